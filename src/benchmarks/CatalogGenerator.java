@@ -0,0 +1,554 @@
+package benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import components.musicdatabase.MusicDatabase;
+import components.musicdatabase.Song;
+
+/**
+ * Generates large synthetic catalogs with realistic skew, the same for every
+ * run with the same seed and settings, either as files in the format of
+ * {@code writeToFile} or straight into a {@code MusicDatabase}.
+ *
+ * <p>
+ * Artists are picked with Zipfian popularity: the artist of rank r is picked
+ * with probability proportional to 1 / r^skew. Each artist has between one
+ * and {@code albumsPerArtist} albums, and a song is a single, with an empty
+ * album, with probability {@code emptyAlbumRate}. Lengths follow a log-normal
+ * distribution with a median of 3:30, between 0:30 and 59:59. Titles are
+ * three or more made-up words, in Cyrillic, Greek, kana, or accented Latin
+ * letters with probability {@code unicodeRate} and in plain Latin letters
+ * otherwise.
+ *
+ * <p>
+ * Apart from the songs repeated on purpose, with probability
+ * {@code duplicateRate}, from among the last few thousand generated, every
+ * song has a title no other song has, for the first 10^9 songs.
+ *
+ * <p>
+ * Usage: {@code CatalogGenerator [rows] [file] [seed] [duplicateRate]}
+ */
+public final class CatalogGenerator {
+
+    /**
+     * Default number of artists.
+     */
+    public static final int DEFAULT_ARTISTS = 50_000;
+
+    /**
+     * Default Zipf exponent of artist popularity.
+     */
+    public static final double DEFAULT_SKEW = 1.0;
+
+    /**
+     * Default greatest number of albums per artist.
+     */
+    public static final int DEFAULT_ALBUMS_PER_ARTIST = 8;
+
+    /**
+     * Default fraction of songs that are singles, with no album.
+     */
+    public static final double DEFAULT_EMPTY_ALBUM_RATE = 0.15;
+
+    /**
+     * Default fraction of titles not in plain Latin letters.
+     */
+    public static final double DEFAULT_UNICODE_RATE = 0.15;
+
+    /**
+     * Number of recent songs a duplicate is picked from.
+     */
+    private static final int RECENT = 4096;
+
+    /**
+     * Syllables of plain Latin words.
+     */
+    private static final String[] LATIN = syllables("bdfgklmnprstvz",
+            "aeiou");
+
+    /**
+     * Syllables of the other scripts: Latin consonants with accented vowels,
+     * Cyrillic, Greek, and hiragana.
+     */
+    private static final String[][] UNICODE = {
+        syllables("bdfglmnprstv",
+                "\u00e1\u00e9\u00ed\u00f3\u00fa\u00e4\u00f6\u00fc"),
+        syllables("\u0431\u0432\u0433\u0434\u0436\u0437\u043a"
+                + "\u043b\u043c\u043d\u043f\u0440\u0441\u0442",
+                "\u0430\u0435\u0438\u043e\u0443\u044f"),
+        syllables("\u03b2\u03b3\u03b4\u03ba\u03bb\u03bc"
+                + "\u03bd\u03c0\u03c1\u03c3\u03c4\u03c6",
+                "\u03b1\u03b5\u03b7\u03b9\u03bf\u03c5\u03c9"),
+        hiragana() };
+
+    /**
+     * Multiplier scrambling title numbers; prime, and so coprime with every
+     * number of titles, which only have the factors 2, 3, 5, 7, and 73.
+     */
+    private static final long SCRAMBLE = 1_000_000_007L;
+
+    /**
+     * Source of randomness for every choice.
+     */
+    private final SplittableRandom random;
+
+    /**
+     * Seed, also used for the names of artists and albums.
+     */
+    private final long seed;
+
+    /**
+     * Cumulative probability of picking each artist, by rank.
+     */
+    private final double[] popularity;
+
+    /**
+     * Greatest number of albums per artist.
+     */
+    private final int albumsPerArtist;
+
+    /**
+     * Fraction of songs with no album.
+     */
+    private final double emptyAlbumRate;
+
+    /**
+     * Fraction of titles not in plain Latin letters.
+     */
+    private final double unicodeRate;
+
+    /**
+     * Fraction of songs repeating a recent one.
+     */
+    private final double duplicateRate;
+
+    /**
+     * Number of titles made so far in each script, plain Latin first.
+     */
+    private final long[] titles;
+
+    /**
+     * The last {@code RECENT} songs made, as a ring.
+     */
+    private final Song[] recent;
+
+    /**
+     * Number of songs made so far, repeats included.
+     */
+    private long count;
+
+    /**
+     * Constructor with the default settings and no duplicates.
+     *
+     * @param seed
+     *            The seed
+     */
+    public CatalogGenerator(long seed) {
+        this(seed, DEFAULT_ARTISTS, DEFAULT_SKEW, DEFAULT_ALBUMS_PER_ARTIST,
+                DEFAULT_EMPTY_ALBUM_RATE, DEFAULT_UNICODE_RATE, 0);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param seed
+     *            The seed
+     * @param artists
+     *            Number of artists
+     * @param skew
+     *            Zipf exponent of artist popularity; 0 makes every artist
+     *            equally popular
+     * @param albumsPerArtist
+     *            Greatest number of albums per artist
+     * @param emptyAlbumRate
+     *            Fraction of songs with no album
+     * @param unicodeRate
+     *            Fraction of titles not in plain Latin letters
+     * @param duplicateRate
+     *            Fraction of songs repeating a recent one
+     * @requires artists > 0 AND skew >= 0 AND albumsPerArtist > 0 AND
+     *           [emptyAlbumRate, unicodeRate, and duplicateRate are in [0,
+     *           1)]
+     */
+    public CatalogGenerator(long seed, int artists, double skew,
+            int albumsPerArtist, double emptyAlbumRate, double unicodeRate,
+            double duplicateRate) {
+        assert artists > 0 : "Violation of: artists > 0";
+        assert skew >= 0 : "Violation of: skew >= 0";
+        assert albumsPerArtist > 0 : "Violation of: albumsPerArtist > 0";
+        assert emptyAlbumRate >= 0
+                && emptyAlbumRate < 1 : "Violation of: 0 <= emptyAlbumRate < 1";
+        assert unicodeRate >= 0
+                && unicodeRate < 1 : "Violation of: 0 <= unicodeRate < 1";
+        assert duplicateRate >= 0
+                && duplicateRate < 1 : "Violation of: 0 <= duplicateRate < 1";
+
+        this.random = new SplittableRandom(seed);
+        this.seed = seed;
+        this.popularity = new double[artists];
+        double total = 0;
+        for (int rank = 0; rank < artists; rank++) {
+            total += 1 / Math.pow(rank + 1, skew);
+            this.popularity[rank] = total;
+        }
+        for (int rank = 0; rank < artists; rank++) {
+            this.popularity[rank] /= total;
+        }
+        this.albumsPerArtist = albumsPerArtist;
+        this.emptyAlbumRate = emptyAlbumRate;
+        this.unicodeRate = unicodeRate;
+        this.duplicateRate = duplicateRate;
+        this.titles = new long[1 + UNICODE.length];
+        this.recent = new Song[RECENT];
+        this.count = 0;
+    }
+
+    /**
+     * Makes every syllable of one consonant followed by one vowel.
+     *
+     * @param consonants
+     *            The consonants
+     * @param vowels
+     *            The vowels
+     * @return the syllables
+     */
+    private static String[] syllables(String consonants, String vowels) {
+        String[] syllables = new String[consonants.length() * vowels.length()];
+        int n = 0;
+        for (int c = 0; c < consonants.length(); c++) {
+            for (int v = 0; v < vowels.length(); v++) {
+                syllables[n] = "" + consonants.charAt(c) + vowels.charAt(v);
+                n++;
+            }
+        }
+        return syllables;
+    }
+
+    /**
+     * Makes the hiragana syllables, one character each, leaving out the small
+     * kana that only combine with others.
+     *
+     * @return the syllables
+     */
+    private static String[] hiragana() {
+        final char first = '\u3042';
+        final char last = '\u3093';
+        final String small = "\u3043\u3045\u3047\u3049\u3063\u3083\u3085"
+                + "\u3087\u308e";
+        ArrayList<String> syllables = new ArrayList<String>();
+        for (char c = first; c <= last; c++) {
+            if (small.indexOf(c) < 0) {
+                syllables.add(String.valueOf(c));
+            }
+        }
+        return syllables.toArray(new String[0]);
+    }
+
+    /**
+     * Writes {@code number} as words of two syllables each, capitalized, with
+     * {@code words} words.
+     *
+     * @param out
+     *            Where to write the words
+     * @param syllables
+     *            The syllables to spell with
+     * @param number
+     *            The number, less than syllables.length^(2 * words)
+     * @param words
+     *            Number of words
+     * @updates out
+     */
+    private static void spell(StringBuilder out, String[] syllables,
+            long number, int words) {
+        long rest = number;
+        for (int w = 0; w < words; w++) {
+            if (w > 0) {
+                out.append(' ');
+            }
+            int start = out.length();
+            for (int s = 0; s < 2; s++) {
+                out.append(syllables[(int) (rest % syllables.length)]);
+                rest /= syllables.length;
+            }
+            out.setCharAt(start, Character.toUpperCase(out.charAt(start)));
+        }
+    }
+
+    /**
+     * Mixes {@code x} with the seed into a well spread number, so names of
+     * artists and albums don't depend on the order songs are made in.
+     *
+     * @param x
+     *            The number to mix
+     * @return the mixed number, at least 0
+     */
+    private long mix(long x) {
+        final long golden = 0x9E3779B97F4A7C15L;
+        final long m1 = 0xBF58476D1CE4E5B9L;
+        final long m2 = 0x94D049BB133111EBL;
+        final int s1 = 30;
+        final int s2 = 27;
+        final int s3 = 31;
+        long z = x + this.seed * golden;
+        z = (z ^ (z >>> s1)) * m1;
+        z = (z ^ (z >>> s2)) * m2;
+        return (z ^ (z >>> s3)) >>> 1;
+    }
+
+    /**
+     * Returns the name of the artist of rank {@code rank}.
+     *
+     * @param rank
+     *            The rank
+     * @return the name
+     */
+    private String artist(int rank) {
+        final int prefixed = 5;
+        final int wordCount = 2;
+        long mixed = this.mix(rank);
+        StringBuilder name = new StringBuilder();
+        if (mixed % prefixed == 0) {
+            name.append("The ");
+        }
+        long space = 1;
+        for (int i = 0; i < 2 * wordCount; i++) {
+            space *= LATIN.length;
+        }
+        /*
+         * A bijection of the rank, as for titles, so no two artists share a
+         * name.
+         */
+        spell(name, LATIN, (rank * SCRAMBLE % space + this.mix(-1) % space)
+                % space, wordCount);
+        return name.toString();
+    }
+
+    /**
+     * Returns the name of album {@code album} of the artist of rank
+     * {@code rank}.
+     *
+     * @param rank
+     *            The rank of the artist
+     * @param album
+     *            The album number
+     * @return the name
+     */
+    private String album(int rank, int album) {
+        final int wordCount = 2;
+        StringBuilder name = new StringBuilder();
+        spell(name, LATIN,
+                this.mix(((long) rank << Integer.SIZE) | album) % (1L << 40),
+                wordCount);
+        return name.toString();
+    }
+
+    /**
+     * Makes a title never made before.
+     *
+     * @return the title
+     */
+    private String title() {
+        final int wordCount = 3;
+        final int extraWords = 3;
+        int script = 0;
+        String[] syllables = LATIN;
+        if (this.random.nextDouble() < this.unicodeRate) {
+            script = 1 + this.random.nextInt(UNICODE.length);
+            syllables = UNICODE[script - 1];
+        }
+        long n = this.titles[script];
+        this.titles[script]++;
+
+        /*
+         * Multiplying by a number coprime with the number of titles, and
+         * adding a seeded offset, is a bijection, so titles stay distinct
+         * while consecutive ones look unrelated.
+         */
+        long space = 1;
+        for (int i = 0; i < 2 * wordCount; i++) {
+            space *= syllables.length;
+        }
+        long scrambled = (n * SCRAMBLE % space + this.mix(script) % space)
+                % space;
+        StringBuilder title = new StringBuilder();
+        spell(title, syllables, scrambled, wordCount);
+        int extra = this.random.nextInt(extraWords);
+        if (extra > 0) {
+            title.append(' ');
+            spell(title, syllables, this.random.nextLong(space), extra);
+        }
+        return title.toString();
+    }
+
+    /**
+     * Makes a length, log-normal with a median of 3:30.
+     *
+     * @return the length, as mm:ss
+     */
+    private String length() {
+        final double median = 210;
+        final double sigma = 0.35;
+        final int shortest = 30;
+        final int longest = 59 * 60 + 59;
+        final int secondsPerMinute = 60;
+        long seconds = Math.round(
+                median * Math.exp(sigma * gaussian(this.random)));
+        seconds = Math.max(shortest, Math.min(longest, seconds));
+        return String.format("%02d:%02d", seconds / secondsPerMinute,
+                seconds % secondsPerMinute);
+    }
+
+    /**
+     * Draws from the standard normal distribution.
+     *
+     * @param random
+     *            Source of randomness
+     * @return the number drawn
+     */
+    private static double gaussian(SplittableRandom random) {
+        /*
+         * Box-Muller, since SplittableRandom has no nextGaussian in Java 17.
+         */
+        double u = 1 - random.nextDouble();
+        double v = random.nextDouble();
+        return Math.sqrt(-2 * Math.log(u)) * Math.cos(2 * Math.PI * v);
+    }
+
+    /**
+     * Makes the next song.
+     *
+     * @return the song
+     */
+    public Song next() {
+        Song song;
+        if (this.count > 0 && this.random.nextDouble() < this.duplicateRate) {
+            int available = (int) Math.min(this.count, RECENT);
+            song = this.recent[(int) ((this.count - 1
+                    - this.random.nextInt(available)) % RECENT)];
+        } else {
+            int rank = Arrays.binarySearch(this.popularity,
+                    this.random.nextDouble());
+            if (rank < 0) {
+                rank = -rank - 1;
+            }
+            rank = Math.min(rank, this.popularity.length - 1);
+            String album = "";
+            if (this.random.nextDouble() >= this.emptyAlbumRate) {
+                int albums = 1 + (int) (this.mix(-2 - rank)
+                        % this.albumsPerArtist);
+                album = this.album(rank, this.random.nextInt(albums));
+            }
+            song = new Song(this.title(), this.artist(rank), album,
+                    this.length());
+        }
+        this.recent[(int) (this.count % RECENT)] = song;
+        this.count++;
+        return song;
+    }
+
+    /**
+     * Adds {@code rows} generated songs to {@code db}, except repeats of songs
+     * already in it, in batches through {@code addEntries}.
+     *
+     * @param db
+     *            The database
+     * @param rows
+     *            Number of songs to generate
+     * @updates db
+     * @ensures db = #db * [the songs generated that were not already in db]
+     */
+    public void populate(MusicDatabase db, long rows) {
+        final int batch = 1 << 16;
+        ArrayList<Song> songs = new ArrayList<Song>(batch);
+        for (long i = 0; i < rows; i++) {
+            songs.add(this.next());
+            if (songs.size() == batch) {
+                db.addEntries(songs);
+                songs.clear();
+            }
+        }
+        db.addEntries(songs);
+    }
+
+    /**
+     * Writes {@code rows} generated songs, repeats included, to {@code out}
+     * in the format of {@code writeToFile}, header first.
+     *
+     * @param out
+     *            The output
+     * @param rows
+     *            Number of songs to generate
+     * @throws IOException
+     *             if out cannot be written
+     */
+    public void write(Writer out, long rows) throws IOException {
+        out.write("Title\tArtist\tAlbum\tLength\n");
+        for (long i = 0; i < rows; i++) {
+            Song song = this.next();
+            out.write(song.title());
+            out.write('\t');
+            out.write(song.artist());
+            out.write('\t');
+            out.write(song.album());
+            out.write('\t');
+            out.write(song.length());
+            out.write('\n');
+        }
+    }
+
+    /**
+     * Main method.
+     *
+     * @param args
+     *            [rows] [file] [seed] [duplicateRate]
+     * @throws IOException
+     *             if the file cannot be written
+     */
+    public static void main(String[] args) throws IOException {
+        final long defaultRows = 10_000_000L;
+        final int bufferSize = 1 << 20;
+        final double nanosPerSecond = 1e9;
+        final int three = 3;
+        long rows = defaultRows;
+        String file = "data/output/catalog.txt";
+        long seed = 1;
+        double duplicateRate = 0;
+        if (args.length > 0) {
+            rows = Long.parseLong(args[0]);
+        }
+        if (args.length > 1) {
+            file = args[1];
+        }
+        if (args.length > 2) {
+            seed = Long.parseLong(args[2]);
+        }
+        if (args.length > three) {
+            duplicateRate = Double.parseDouble(args[three]);
+        }
+
+        CatalogGenerator generator = new CatalogGenerator(seed,
+                DEFAULT_ARTISTS, DEFAULT_SKEW, DEFAULT_ALBUMS_PER_ARTIST,
+                DEFAULT_EMPTY_ALBUM_RATE, DEFAULT_UNICODE_RATE, duplicateRate);
+        Path path = Paths.get(file);
+        long begin = System.nanoTime();
+        try (Writer out = new BufferedWriter(
+                new OutputStreamWriter(Files.newOutputStream(path),
+                        StandardCharsets.UTF_8),
+                bufferSize)) {
+            generator.write(out, rows);
+        }
+        double seconds = (System.nanoTime() - begin) / nanosPerSecond;
+        System.out.printf("%d rows, %d bytes, written to %s in %.1f s%n",
+                rows, Files.size(path), path, seconds);
+    }
+}
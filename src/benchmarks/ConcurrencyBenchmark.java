@@ -0,0 +1,215 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import components.musicdatabase.MusicDatabase;
+import components.musicdatabase.MusicDatabase1;
+import components.musicdatabase.MusicDatabase3;
+import components.musicdatabase.Song;
+
+/**
+ * Measures the throughput of one database shared by many threads, at read to
+ * write ratios of 99/1, 90/10, and 50/50. Compares {@code MusicDatabase3}
+ * against {@code MusicDatabase1} behind one global lock, which is how a
+ * shared unsynchronized database has to be used.
+ *
+ * <p>
+ * A read is a {@code getEntryByOrder} and a {@code contains}. A write either
+ * adds a song of the thread's own or removes the one it added last, so the
+ * size of the database stays the same throughout. Note that
+ * {@code MusicDatabase1.contains} is a linear scan while
+ * {@code MusicDatabase3.contains} is a hash lookup, so at high read ratios
+ * part of the difference is that rather than locking.
+ *
+ * <p>
+ * Usage: {@code ConcurrencyBenchmark [threads] [songs] [seconds]}
+ */
+public final class ConcurrencyBenchmark {
+
+    /**
+     * Private constructor so this utility class cannot be instantiated.
+     */
+    private ConcurrencyBenchmark() {
+    }
+
+    /**
+     * Percentages of operations that are reads, one run each.
+     */
+    private static final int[] READ_PERCENTS = {99, 90, 50 };
+
+    /**
+     * Makes the {@code i}th song of the catalog.
+     *
+     * @param i
+     *            The song number
+     * @return the song
+     */
+    private static Song song(int i) {
+        final int artists = 500;
+        return new Song("Title " + i, "Artist " + (i % artists), "",
+                "03:00");
+    }
+
+    /**
+     * Runs {@code threads} threads doing a mix of reads and writes on
+     * {@code db} for {@code seconds} seconds.
+     *
+     * @param db
+     *            The database, already holding {@code songs} songs
+     * @param globalLock
+     *            Object every operation synchronizes on, or null to call db
+     *            directly
+     * @param threads
+     *            Number of threads
+     * @param songs
+     *            Number of songs in db
+     * @param readPercent
+     *            Percentage of operations that are reads
+     * @param seconds
+     *            How long to run
+     * @return operations per second, over all threads
+     * @throws InterruptedException
+     *             if interrupted while waiting for the threads
+     */
+    private static double run(MusicDatabase db, Object globalLock,
+            int threads, int songs, int readPercent, double seconds)
+            throws InterruptedException {
+        final int hundred = 100;
+        final double nanosPerSecond = 1e9;
+        final double millisPerSecond = 1e3;
+        LongAdder ops = new LongAdder();
+        AtomicBoolean stop = new AtomicBoolean(false);
+        CountDownLatch start = new CountDownLatch(1);
+        ArrayList<Thread> workers = new ArrayList<Thread>();
+
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            Thread worker = new Thread(() -> {
+                SplittableRandom random = new SplittableRandom(id);
+                Song own = new Song("Own " + id, "Benchmark", "", "00:01");
+                boolean added = false;
+                long count = 0;
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                while (!stop.get()) {
+                    boolean read = random.nextInt(hundred) < readPercent;
+                    Song probe = song(random.nextInt(songs));
+                    int n = random.nextInt(songs);
+                    if (globalLock == null) {
+                        added = step(db, read, probe, n, own, added);
+                    } else {
+                        synchronized (globalLock) {
+                            added = step(db, read, probe, n, own, added);
+                        }
+                    }
+                    count++;
+                }
+                ops.add(count);
+            });
+            workers.add(worker);
+            worker.start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        Thread.sleep((long) (seconds * millisPerSecond));
+        stop.set(true);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double elapsed = (System.nanoTime() - begin) / nanosPerSecond;
+        return ops.sum() / elapsed;
+    }
+
+    /**
+     * Does one operation.
+     *
+     * @param db
+     *            The database
+     * @param read
+     *            Whether to read rather than write
+     * @param probe
+     *            Song to look up when reading
+     * @param n
+     *            Position to read
+     * @param own
+     *            The thread's own song, added and removed when writing
+     * @param added
+     *            Whether own is in db
+     * @return whether own is in db afterwards
+     */
+    private static boolean step(MusicDatabase db, boolean read, Song probe,
+            int n, Song own, boolean added) {
+        boolean result = added;
+        if (read) {
+            db.getEntryByOrder(n);
+            db.contains(probe);
+        } else if (added) {
+            db.removeEntry(own);
+            result = false;
+        } else {
+            db.addEntry(own);
+            result = true;
+        }
+        return result;
+    }
+
+    /**
+     * Main method.
+     *
+     * @param args
+     *            [threads] [songs] [seconds]
+     * @throws InterruptedException
+     *             if interrupted while waiting for the threads
+     */
+    public static void main(String[] args) throws InterruptedException {
+        final int defaultSongs = 10_000;
+        final double defaultSeconds = 3;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int songs = defaultSongs;
+        double seconds = defaultSeconds;
+        if (args.length > 0) {
+            threads = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            songs = Integer.parseInt(args[1]);
+        }
+        if (args.length > 2) {
+            seconds = Double.parseDouble(args[2]);
+        }
+
+        System.out.printf("%d threads, %d songs, %.1f s per run%n", threads,
+                songs, seconds);
+        System.out.printf("%-10s %22s %22s %8s%n", "read/write",
+                "MusicDatabase1+lock", "MusicDatabase3", "speedup");
+        for (int readPercent : READ_PERCENTS) {
+            MusicDatabase locked = new MusicDatabase1(songs + threads);
+            MusicDatabase stamped = new MusicDatabase3(songs + threads);
+            for (int i = 0; i < songs; i++) {
+                locked.addEntry(song(i));
+                stamped.addEntry(song(i));
+            }
+
+            /*
+             * Warms up both before measuring either.
+             */
+            run(locked, locked, threads, songs, readPercent, seconds / 2);
+            run(stamped, null, threads, songs, readPercent, seconds / 2);
+            double lockedOps = run(locked, locked, threads, songs, readPercent,
+                    seconds);
+            double stampedOps = run(stamped, null, threads, songs,
+                    readPercent, seconds);
+
+            System.out.printf("%-10s %16.0f ops/s %16.0f ops/s %7.1fx%n",
+                    readPercent + "/" + (100 - readPercent), lockedOps,
+                    stampedOps, stampedOps / lockedOps);
+        }
+    }
+}
@@ -0,0 +1,786 @@
+package benchmarks;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import components.musicdatabase.CachingMusicDatabase;
+import components.musicdatabase.MusicDatabase;
+import components.musicdatabase.MusicDatabaseKernel.SearchField;
+import components.musicdatabase.MusicDatabaseSecondary;
+import components.musicdatabase.OperationStats;
+import components.musicdatabase.Song;
+
+/**
+ * Drives a {@code MusicDatabase} with a mix of operations from many threads
+ * at once for a fixed time, the way a service uses it, rather than one
+ * operation at a time like {@code OperationsBenchmark}. The database starts
+ * with a catalog from {@code CatalogGenerator}; new songs come from the same
+ * generator, so they never repeat the catalog.
+ *
+ * <p>
+ * Each thread repeatedly picks an operation at random, weighted by
+ * {@code --mix}, and runs it. Operations in {@code --periodic} also run on a
+ * timer, once every given number of milliseconds, as scheduled jobs such as
+ * nightly imports would. The operations are:
+ * <ul>
+ * <li>lookup: {@code getEntries} by the title, artist, or album of a catalog
+ * song</li>
+ * <li>contains: {@code contains} of a catalog song</li>
+ * <li>get: {@code getEntryByOrder} at a random position</li>
+ * <li>add: {@code addEntry} of a new song</li>
+ * <li>remove: {@code removeEntryByOrder} at a random position</li>
+ * <li>import: {@code addEntries} of {@code --batch} new songs</li>
+ * <li>split: {@code split} by the artist of a catalog song, then
+ * {@code append} of the songs split off back again</li>
+ * <li>sort: {@code sort} by a random field</li>
+ * </ul>
+ *
+ * <p>
+ * After {@code --warmup} seconds that are not counted, it runs for
+ * {@code --seconds} and prints, for each operation, its throughput, latency
+ * percentiles, allocation rate, and share of garbage collection time. A
+ * thread's allocations are read from {@code ThreadMXBean} around each
+ * operation, so they are exact on platform threads and not available on
+ * virtual threads. Collection time cannot be told apart by operation, so it
+ * is shared out in proportion to the bytes each operation allocated.
+ *
+ * <p>
+ * MusicDatabase1 and MusicDatabase2 are not thread-safe, so with them every
+ * operation runs under one lock and the threads only compete for it.
+ * Virtual threads need Java 21 or later. With {@code --cache} the database
+ * is put behind a {@code CachingMusicDatabase} keeping that many lookup
+ * results, and its hit rate is printed as well.
+ *
+ * <p>
+ * Usage: {@code LoadTest [--impl MusicDatabase3] [--threads 8]
+ * [--thread-kind platform|virtual] [--seconds 30] [--warmup 5]
+ * [--songs 100000] [--batch 10000] [--seed 42] [--cache 0]
+ * [--mix lookup=70,contains=15,get=5,add=4,remove=4,import=1,split=0.5,
+ * sort=0.5]
+ * [--periodic import=5000,sort=10000]}
+ */
+public final class LoadTest {
+
+    /**
+     * Private constructor so this utility class cannot be instantiated.
+     */
+    private LoadTest() {
+    }
+
+    /**
+     * The operations, in the order they are reported.
+     */
+    private enum Op {
+        /**
+         * {@code getEntries}.
+         */
+        LOOKUP,
+        /**
+         * {@code contains}.
+         */
+        CONTAINS,
+        /**
+         * {@code getEntryByOrder}.
+         */
+        GET,
+        /**
+         * {@code addEntry}.
+         */
+        ADD,
+        /**
+         * {@code removeEntryByOrder}.
+         */
+        REMOVE,
+        /**
+         * {@code addEntries}.
+         */
+        IMPORT,
+        /**
+         * {@code split} and {@code append}.
+         */
+        SPLIT,
+        /**
+         * {@code sort}.
+         */
+        SORT;
+
+        /**
+         * Returns the name used in options and reports.
+         *
+         * @return the name
+         */
+        String label() {
+            return this.name().toLowerCase(Locale.ROOT);
+        }
+
+        /**
+         * Returns the operation called {@code label}.
+         *
+         * @param label
+         *            The name used in options
+         * @return the operation
+         */
+        static Op of(String label) {
+            return valueOf(label.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * Implementations that can be used by several threads at once.
+     */
+    private static final Set<String> THREAD_SAFE = Set.of("MusicDatabase3",
+            "MusicDatabase4", "MusicDatabase5");
+
+    /**
+     * Number of catalog songs kept for lookups.
+     */
+    private static final int PROBES = 4096;
+
+    /**
+     * Orders to sort by.
+     */
+    private static final List<Comparator<Song>> ORDERS = List.of(
+            new MusicDatabaseSecondary.TitleComparator(),
+            new MusicDatabaseSecondary.ArtistComparator(),
+            new MusicDatabaseSecondary.AlbumComparator(),
+            new MusicDatabaseSecondary.LengthComparator());
+
+    /**
+     * Fields to look up by.
+     */
+    private static final SearchField[] LOOKUP_FIELDS = { SearchField.TITLE,
+            SearchField.ARTIST, SearchField.ALBUM };
+
+    /**
+     * Allocation counter of the JVM's threads.
+     */
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory
+                    .getThreadMXBean();
+
+    /**
+     * The database under load, the songs to look up, and the statistics of
+     * each operation.
+     */
+    private static final class Workload {
+
+        /**
+         * The database.
+         */
+        private final MusicDatabase db;
+
+        /**
+         * Lock every operation runs under, or null if db is thread-safe.
+         */
+        private final ReentrantLock lock;
+
+        /**
+         * Songs of the catalog to look up.
+         */
+        private final Song[] probes;
+
+        /**
+         * Source of new songs, shared by every thread.
+         */
+        private final CatalogGenerator feed;
+
+        /**
+         * Number of songs added by one import.
+         */
+        private final int batch;
+
+        /**
+         * Latencies of each operation, by ordinal.
+         */
+        private final OperationStats[] stats;
+
+        /**
+         * Bytes allocated by each operation, by ordinal.
+         */
+        private final LongAdder[] allocated;
+
+        /**
+         * Number of times each operation failed, by ordinal.
+         */
+        private final LongAdder[] errors;
+
+        /**
+         * Constructor.
+         *
+         * @param db
+         *            The database
+         * @param threadSafe
+         *            Whether db can be used by several threads at once
+         * @param probes
+         *            Songs of the catalog to look up
+         * @param feed
+         *            Source of new songs
+         * @param batch
+         *            Number of songs added by one import
+         */
+        Workload(MusicDatabase db, boolean threadSafe, Song[] probes,
+                CatalogGenerator feed, int batch) {
+            this.db = db;
+            if (threadSafe) {
+                this.lock = null;
+            } else {
+                this.lock = new ReentrantLock();
+            }
+            this.probes = probes;
+            this.feed = feed;
+            this.batch = batch;
+            Op[] ops = Op.values();
+            this.stats = new OperationStats[ops.length];
+            this.allocated = new LongAdder[ops.length];
+            this.errors = new LongAdder[ops.length];
+            for (Op op : ops) {
+                this.stats[op.ordinal()] = new OperationStats(op.label());
+                this.allocated[op.ordinal()] = new LongAdder();
+                this.errors[op.ordinal()] = new LongAdder();
+            }
+        }
+
+        /**
+         * Forgets everything recorded so far.
+         */
+        void reset() {
+            for (int i = 0; i < this.stats.length; i++) {
+                this.stats[i].reset();
+                this.allocated[i].reset();
+                this.errors[i].reset();
+            }
+        }
+
+        /**
+         * Makes the next new song.
+         *
+         * @return the song
+         */
+        private Song newSong() {
+            synchronized (this.feed) {
+                return this.feed.next();
+            }
+        }
+
+        /**
+         * Runs {@code op} once on db.
+         *
+         * @param op
+         *            The operation
+         * @param random
+         *            Source of the arguments
+         * @return the number of songs found, added, or moved
+         */
+        private long invoke(Op op, SplittableRandom random) {
+            Song probe = this.probes[random.nextInt(this.probes.length)];
+            long rows = 0;
+            switch (op) {
+                case LOOKUP: {
+                    SearchField field = LOOKUP_FIELDS[random
+                            .nextInt(LOOKUP_FIELDS.length)];
+                    String value;
+                    if (field == SearchField.TITLE) {
+                        value = probe.title();
+                    } else if (field == SearchField.ARTIST) {
+                        value = probe.artist();
+                    } else {
+                        value = probe.album();
+                    }
+                    rows = this.db.getEntries(field, value).size();
+                    break;
+                }
+                case CONTAINS: {
+                    if (this.db.contains(probe)) {
+                        rows = 1;
+                    }
+                    break;
+                }
+                case GET: {
+                    int size = this.db.size();
+                    if (size > 0) {
+                        this.db.getEntryByOrder(random.nextInt(size));
+                        rows = 1;
+                    }
+                    break;
+                }
+                case ADD: {
+                    Song song = this.newSong();
+                    if (!this.db.contains(song)) {
+                        this.db.addEntry(song);
+                        rows = 1;
+                    }
+                    break;
+                }
+                case REMOVE: {
+                    int size = this.db.size();
+                    if (size > 0) {
+                        this.db.removeEntryByOrder(random.nextInt(size));
+                        rows = 1;
+                    }
+                    break;
+                }
+                case IMPORT: {
+                    ArrayList<Song> songs = new ArrayList<Song>(this.batch);
+                    for (int i = 0; i < this.batch; i++) {
+                        songs.add(this.newSong());
+                    }
+                    this.db.addEntries(songs);
+                    rows = songs.size();
+                    break;
+                }
+                case SPLIT: {
+                    MusicDatabase part = this.db.split(SearchField.ARTIST,
+                            probe.artist());
+                    rows = part.size();
+                    this.db.append(part);
+                    break;
+                }
+                default: {
+                    this.db.sort(ORDERS.get(random.nextInt(ORDERS.size())));
+                    rows = this.db.size();
+                    break;
+                }
+            }
+            return rows;
+        }
+
+        /**
+         * Runs {@code op} once and records how long it took and what it
+         * allocated. A failure, such as a position taken by another thread's
+         * removal, is counted rather than stopping the test.
+         *
+         * @param op
+         *            The operation
+         * @param random
+         *            Source of the arguments
+         */
+        void run(Op op, SplittableRandom random) {
+            long bytesBefore = THREADS.getCurrentThreadAllocatedBytes();
+            long start = System.nanoTime();
+            long rows = 0;
+            boolean failed = false;
+            if (this.lock != null) {
+                this.lock.lock();
+            }
+            try {
+                rows = this.invoke(op, random);
+            } catch (NoSuchElementException | IndexOutOfBoundsException e) {
+                failed = true;
+            } finally {
+                if (this.lock != null) {
+                    this.lock.unlock();
+                }
+            }
+            long nanos = System.nanoTime() - start;
+            long bytesAfter = THREADS.getCurrentThreadAllocatedBytes();
+            if (failed) {
+                this.errors[op.ordinal()].increment();
+            } else {
+                this.stats[op.ordinal()].record(nanos, 0, rows, 0);
+                if (bytesBefore >= 0 && bytesAfter >= bytesBefore) {
+                    this.allocated[op.ordinal()]
+                            .add(bytesAfter - bytesBefore);
+                }
+            }
+        }
+    }
+
+    /**
+     * Picks operations at random with the weights given.
+     *
+     * @param ops
+     *            The operations that can be picked
+     * @param cumulative
+     *            Sum of the weights of ops[0..i], divided by the total
+     */
+    private record Mix(Op[] ops, double[] cumulative) {
+
+        /**
+         * Parses a mix like {@code lookup=70,add=5}.
+         *
+         * @param spec
+         *            Comma separated operation=weight pairs
+         * @return the mix
+         * @throws IllegalArgumentException
+         *             if spec names no operation with a positive weight
+         */
+        static Mix parse(String spec) {
+            ArrayList<Op> ops = new ArrayList<Op>();
+            ArrayList<Double> weights = new ArrayList<Double>();
+            double total = 0;
+            for (String pair : spec.split(",")) {
+                String[] parts = pair.split("=");
+                double weight = Double.parseDouble(parts[1]);
+                if (weight > 0) {
+                    ops.add(Op.of(parts[0]));
+                    weights.add(weight);
+                    total += weight;
+                }
+            }
+            if (ops.isEmpty()) {
+                throw new IllegalArgumentException(
+                        "ERROR: The mix has no operations: " + spec);
+            }
+            double[] cumulative = new double[ops.size()];
+            double sum = 0;
+            for (int i = 0; i < cumulative.length; i++) {
+                sum += weights.get(i);
+                cumulative[i] = sum / total;
+            }
+            return new Mix(ops.toArray(new Op[0]), cumulative);
+        }
+
+        /**
+         * Picks an operation.
+         *
+         * @param random
+         *            Source of the pick
+         * @return the operation
+         */
+        Op pick(SplittableRandom random) {
+            double r = random.nextDouble();
+            int i = 0;
+            while (i < this.cumulative.length - 1 && r >= this.cumulative[i]) {
+                i++;
+            }
+            return this.ops[i];
+        }
+    }
+
+    /**
+     * Starts {@code threads} threads of the given kind.
+     *
+     * @param kind
+     *            "platform" or "virtual"
+     * @param threads
+     *            Number of threads
+     * @return an executor running each task on a thread of its own
+     * @throws IllegalArgumentException
+     *             if kind is unknown, or virtual and this Java has no virtual
+     *             threads
+     */
+    private static ExecutorService executor(String kind, int threads) {
+        ExecutorService executor;
+        if (kind.equals("platform")) {
+            AtomicInteger count = new AtomicInteger();
+            ThreadFactory factory = r -> {
+                Thread worker = new Thread(r,
+                        "LoadTest-" + count.incrementAndGet());
+                worker.setDaemon(true);
+                return worker;
+            };
+            executor = Executors.newFixedThreadPool(threads, factory);
+        } else if (kind.equals("virtual")) {
+            /*
+             * Looked up reflectively so this still compiles and runs, with
+             * platform threads, on Java versions before 21.
+             */
+            try {
+                executor = (ExecutorService) Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor")
+                        .invoke(null);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalArgumentException(
+                        "ERROR: Virtual threads need Java 21 or later", e);
+            }
+        } else {
+            throw new IllegalArgumentException(
+                    "ERROR: Unknown thread kind " + kind);
+        }
+        return executor;
+    }
+
+    /**
+     * Runs {@code threads} threads on {@code workload} for
+     * {@code millis} milliseconds.
+     *
+     * @param workload
+     *            The workload
+     * @param mix
+     *            The operations each thread picks from
+     * @param periodic
+     *            Milliseconds between timed runs of each operation, or 0 for
+     *            none
+     * @param kind
+     *            "platform" or "virtual"
+     * @param threads
+     *            Number of threads picking from mix
+     * @param millis
+     *            How long to run
+     * @param random
+     *            Source of each thread's random numbers
+     * @throws InterruptedException
+     *             if interrupted while waiting for the threads
+     */
+    private static void drive(Workload workload, Mix mix, long[] periodic,
+            String kind, int threads, long millis, SplittableRandom random)
+            throws InterruptedException {
+        final long nanosPerMilli = 1_000_000L;
+        long deadline = System.nanoTime() + millis * nanosPerMilli;
+        ScheduledExecutorService timer = Executors
+                .newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, "LoadTest-periodic");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        SplittableRandom timerRandom = random.split();
+        for (Op op : Op.values()) {
+            long every = periodic[op.ordinal()];
+            if (every > 0) {
+                timer.scheduleAtFixedRate(() -> workload.run(op, timerRandom),
+                        every, every, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        ExecutorService workers = executor(kind, threads);
+        for (int t = 0; t < threads; t++) {
+            SplittableRandom own = random.split();
+            workers.execute(() -> {
+                while (System.nanoTime() < deadline) {
+                    workload.run(mix.pick(own), own);
+                }
+            });
+        }
+        workers.shutdown();
+        workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        timer.shutdownNow();
+        timer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the total time, in milliseconds, and number of garbage
+     * collections so far.
+     *
+     * @return the time and count
+     */
+    private static long[] gcTotals() {
+        long[] totals = new long[2];
+        for (GarbageCollectorMXBean gc : ManagementFactory
+                .getGarbageCollectorMXBeans()) {
+            totals[0] += Math.max(0, gc.getCollectionTime());
+            totals[1] += Math.max(0, gc.getCollectionCount());
+        }
+        return totals;
+    }
+
+    /**
+     * Prints what was recorded.
+     *
+     * @param workload
+     *            The workload
+     * @param seconds
+     *            How long it ran
+     * @param gcMillis
+     *            Time spent collecting garbage while it ran
+     * @param gcCount
+     *            Number of collections while it ran
+     */
+    private static void report(Workload workload, double seconds,
+            long gcMillis, long gcCount) {
+        final double bytesPerMegabyte = 1 << 20;
+        final double millisPerPercent = 10;
+        long totalAllocated = 0;
+        for (LongAdder bytes : workload.allocated) {
+            totalAllocated += bytes.sum();
+        }
+        System.out.printf("%-9s %10s %11s %9s %9s %9s %10s %10s %9s %11s "
+                + "%8s %7s%n", "op", "calls", "ops/s", "mean us", "p50 us",
+                "p99 us", "p99.9 us", "max us", "alloc MB/s", "alloc B/op",
+                "gc ms", "errors");
+        for (Op op : Op.values()) {
+            OperationStats stats = workload.stats[op.ordinal()];
+            long errors = workload.errors[op.ordinal()].sum();
+            if (stats.getCalls() > 0 || errors > 0) {
+                long bytes = workload.allocated[op.ordinal()].sum();
+                double gcShare = 0;
+                double perOp = 0;
+                if (totalAllocated > 0) {
+                    gcShare = (double) gcMillis * bytes / totalAllocated;
+                }
+                if (stats.getCalls() > 0) {
+                    perOp = (double) bytes / stats.getCalls();
+                }
+                System.out.printf("%-9s %10d %11.1f %9.1f %9.1f %9.1f %10.1f"
+                        + " %10.1f %9.1f %11.0f %8.1f %7d%n", op.label(),
+                        stats.getCalls(), stats.getCalls() / seconds,
+                        stats.getMeanMicros(), stats.getP50Micros(),
+                        stats.getP99Micros(), stats.getP999Micros(),
+                        stats.getMaxMicros(),
+                        bytes / bytesPerMegabyte / seconds, perOp, gcShare,
+                        errors);
+            }
+        }
+        System.out.printf("%d songs at the end, %d collections taking %d ms"
+                + " (%.1f%% of the run), %.1f MB/s allocated%n",
+                workload.db.size(), gcCount, gcMillis,
+                gcMillis / (seconds * millisPerPercent), totalAllocated
+                        / bytesPerMegabyte / seconds);
+    }
+
+    /**
+     * Main method.
+     *
+     * @param args
+     *            Options, as described above
+     * @throws InterruptedException
+     *             if interrupted while running
+     */
+    public static void main(String[] args) throws InterruptedException {
+        final int defaultThreads = 8;
+        final long defaultSeconds = 30;
+        final long defaultWarmup = 5;
+        final int defaultSongs = 100_000;
+        final int defaultBatch = 10_000;
+        final long defaultSeed = 42;
+        final long millisPerSecond = 1000;
+        final double nanosPerSecond = 1e9;
+        final double percent = 100;
+        String impl = "MusicDatabase3";
+        int threads = defaultThreads;
+        String kind = "platform";
+        long seconds = defaultSeconds;
+        long warmup = defaultWarmup;
+        int songs = defaultSongs;
+        int batch = defaultBatch;
+        long seed = defaultSeed;
+        String mixSpec = "lookup=70,contains=15,get=5,add=4,remove=4,"
+                + "import=1,split=0.5,sort=0.5";
+        String periodicSpec = "";
+        int cache = 0;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--impl": {
+                    impl = args[i + 1];
+                    break;
+                }
+                case "--threads": {
+                    threads = Integer.parseInt(args[i + 1]);
+                    break;
+                }
+                case "--thread-kind": {
+                    kind = args[i + 1];
+                    break;
+                }
+                case "--seconds": {
+                    seconds = Long.parseLong(args[i + 1]);
+                    break;
+                }
+                case "--warmup": {
+                    warmup = Long.parseLong(args[i + 1]);
+                    break;
+                }
+                case "--songs": {
+                    songs = Integer.parseInt(args[i + 1]);
+                    break;
+                }
+                case "--batch": {
+                    batch = Integer.parseInt(args[i + 1]);
+                    break;
+                }
+                case "--seed": {
+                    seed = Long.parseLong(args[i + 1]);
+                    break;
+                }
+                case "--mix": {
+                    mixSpec = args[i + 1];
+                    break;
+                }
+                case "--periodic": {
+                    periodicSpec = args[i + 1];
+                    break;
+                }
+                case "--cache": {
+                    cache = Integer.parseInt(args[i + 1]);
+                    break;
+                }
+                default: {
+                    throw new IllegalArgumentException(
+                            "ERROR: Unknown option " + args[i]);
+                }
+            }
+        }
+        Mix mix = Mix.parse(mixSpec);
+        long[] periodic = new long[Op.values().length];
+        if (!periodicSpec.isBlank()) {
+            for (String pair : periodicSpec.split(",")) {
+                String[] parts = pair.split("=");
+                periodic[Op.of(parts[0]).ordinal()] = Long
+                        .parseLong(parts[1].trim());
+            }
+        }
+
+        MusicDatabase db;
+        try {
+            db = (MusicDatabase) Class
+                    .forName("components.musicdatabase." + impl)
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("ERROR: Cannot make a " + impl,
+                    e);
+        }
+        CatalogGenerator feed = new CatalogGenerator(seed);
+        ArrayList<Song> catalog = new ArrayList<Song>(songs);
+        for (int i = 0; i < songs; i++) {
+            catalog.add(feed.next());
+        }
+        db.addEntries(catalog);
+        Song[] probes = new Song[Math.min(PROBES, Math.max(1, songs))];
+        for (int i = 0; i < probes.length; i++) {
+            probes[i] = catalog.get((int) ((long) i * songs / probes.length));
+        }
+        catalog = null;
+        MusicDatabase target = db;
+        if (cache > 0) {
+            target = new CachingMusicDatabase(db, cache);
+        }
+        Workload workload = new Workload(target, THREAD_SAFE.contains(impl),
+                probes, feed, batch);
+
+        System.out.printf("%s, %d songs, %d %s threads, %d s warmup, %d s"
+                + "%n", impl, db.size(), threads, kind, warmup, seconds);
+        SplittableRandom random = new SplittableRandom(seed);
+        if (warmup > 0) {
+            drive(workload, mix, periodic, kind, threads,
+                    warmup * millisPerSecond, random);
+            workload.reset();
+        }
+        long[] gcBefore = gcTotals();
+        long start = System.nanoTime();
+        drive(workload, mix, periodic, kind, threads,
+                seconds * millisPerSecond, random);
+        double elapsed = (System.nanoTime() - start) / nanosPerSecond;
+        long[] gcAfter = gcTotals();
+        report(workload, elapsed, gcAfter[0] - gcBefore[0],
+                gcAfter[1] - gcBefore[1]);
+        if (target instanceof CachingMusicDatabase) {
+            CachingMusicDatabase.CacheStats stats =
+                    ((CachingMusicDatabase) target).cacheStats();
+            System.out.printf("cache: %d hits, %d misses (%.1f%% hits), %d"
+                    + " invalidated, %d evicted%n", stats.hits(),
+                    stats.misses(), stats.hitRate() * percent,
+                    stats.invalidations(), stats.evictions());
+        }
+        if (db instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) db).close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,750 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import components.musicdatabase.MusicDatabase;
+import components.musicdatabase.MusicDatabaseKernel.SearchField;
+import components.musicdatabase.MusicDatabaseSecondary;
+import components.musicdatabase.Song;
+
+/**
+ * Measures the average time of the main kernel and secondary operations of a
+ * {@code MusicDatabase} implementation at several sizes, so that a change can
+ * be checked for performance regressions. Results are printed as a table and
+ * written as JSON in the layout JMH writes with {@code -rf json}, so they can
+ * be kept per commit and compared with the usual JMH tools.
+ *
+ * <p>
+ * Each benchmark is set up once per size, run for {@code warmup} iterations
+ * that are thrown away, and then for {@code iterations} that are measured.
+ * An iteration repeats the operation until {@code millis} milliseconds have
+ * been spent inside it. Untimed preparation before each invocation, such as
+ * putting back the songs an operation removed, is left out. The score is the
+ * mean time per operation over the iterations, and its error is the half
+ * width of a 99.9% confidence interval.
+ *
+ * <p>
+ * Usage: {@code OperationsBenchmark [--impl MusicDatabase1]
+ * [--sizes 1000,100000,1000000] [--filter regex] [--warmup 3]
+ * [--iterations 5] [--millis 500] [--out benchmark-results.json]}
+ */
+public final class OperationsBenchmark {
+
+    /**
+     * Private constructor so this utility class cannot be instantiated.
+     */
+    private OperationsBenchmark() {
+    }
+
+    /**
+     * Number of songs added by one invocation of the addEntry benchmark.
+     */
+    private static final int ADD_BATCH = 1000;
+
+    /**
+     * Number of lookups in one invocation of the contains benchmark.
+     */
+    private static final int CONTAINS_BATCH = 64;
+
+    /**
+     * Number of songs or values chosen up front to look up.
+     */
+    private static final int PROBES = 1024;
+
+    /**
+     * Receives every result, so the JIT can't drop the work producing it.
+     */
+    private static Object sink;
+
+    /**
+     * One benchmark at one size, set up and ready to be invoked.
+     */
+    private interface Trial {
+
+        /**
+         * Untimed preparation before each invocation.
+         */
+        default void prepare() {
+        }
+
+        /**
+         * Runs the operation being measured.
+         *
+         * @return the number of operations performed
+         */
+        int invoke();
+    }
+
+    /**
+     * Makes a trial of a benchmark for a database of the given size.
+     */
+    @FunctionalInterface
+    private interface SetUp {
+
+        /**
+         * Sets up the trial.
+         *
+         * @param size
+         *            Number of songs in the database
+         * @return the trial
+         * @throws IOException
+         *             if a file the trial needs cannot be written
+         */
+        Trial trial(int size) throws IOException;
+    }
+
+    /**
+     * A benchmark.
+     *
+     * @param name
+     *            Name of the benchmark
+     * @param params
+     *            Its parameters other than the size
+     * @param setUp
+     *            Makes a trial of it
+     */
+    private record Benchmark(String name, Map<String, String> params,
+            SetUp setUp) {
+    }
+
+    /**
+     * Keeps {@code result} where the JIT can't prove it unused.
+     *
+     * @param result
+     *            The result of a measured operation
+     */
+    private static void consume(Object result) {
+        sink = result;
+    }
+
+    /**
+     * Makes a catalog of {@code size} songs, the same for every run, with
+     * about 20 songs per artist and 10 per album.
+     *
+     * @param size
+     *            Number of songs
+     * @param prefix
+     *            Start of every title, so catalogs can be made disjoint
+     * @return the songs
+     */
+    private static ArrayList<Song> catalog(int size, String prefix) {
+        final int songsPerArtist = 20;
+        final int songsPerAlbum = 10;
+        final int minutes = 10;
+        final int seconds = 60;
+        SplittableRandom random = new SplittableRandom(size);
+        int artists = Math.max(1, size / songsPerArtist);
+        int albums = Math.max(1, size / songsPerAlbum);
+        ArrayList<Song> songs = new ArrayList<Song>(size);
+        for (int i = 0; i < size; i++) {
+            songs.add(new Song(prefix + " " + i,
+                    "Artist " + random.nextInt(artists),
+                    "Album " + random.nextInt(albums),
+                    String.format("%02d:%02d", random.nextInt(minutes),
+                            random.nextInt(seconds))));
+        }
+        return songs;
+    }
+
+    /**
+     * Makes a database holding {@code songs}, in order.
+     *
+     * @param impl
+     *            Makes empty databases of the implementation measured
+     * @param songs
+     *            The songs
+     * @return the database
+     */
+    private static MusicDatabase filled(Supplier<MusicDatabase> impl,
+            List<Song> songs) {
+        MusicDatabase db = impl.get();
+        db.ensureCapacity(songs.size());
+        for (Song song : songs) {
+            db.addEntry(song);
+        }
+        return db;
+    }
+
+    /**
+     * Returns the value of {@code field} in {@code song}.
+     *
+     * @param field
+     *            The field
+     * @param song
+     *            The song
+     * @return the value
+     */
+    private static String valueOf(SearchField field, Song song) {
+        String value;
+        switch (field) {
+            case TITLE: {
+                value = song.title();
+                break;
+            }
+            case ARTIST: {
+                value = song.artist();
+                break;
+            }
+            case ALBUM: {
+                value = song.album();
+                break;
+            }
+            default: {
+                value = song.length();
+                break;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Picks {@code PROBES} of {@code songs} at random.
+     *
+     * @param songs
+     *            The songs
+     * @return the songs picked
+     */
+    private static Song[] probes(List<Song> songs) {
+        SplittableRandom random = new SplittableRandom(songs.size());
+        Song[] probes = new Song[PROBES];
+        for (int i = 0; i < PROBES; i++) {
+            probes[i] = songs.get(random.nextInt(songs.size()));
+        }
+        return probes;
+    }
+
+    /**
+     * Removes songs from the end of {@code db} until it holds {@code size}.
+     *
+     * @param db
+     *            The database
+     * @param size
+     *            The size to shrink it to
+     * @updates db
+     */
+    private static void truncate(MusicDatabase db, int size) {
+        while (db.size() > size) {
+            db.removeEntryByOrder(db.size() - 1);
+        }
+    }
+
+    /**
+     * Makes the parameters of a benchmark.
+     *
+     * @param pairs
+     *            Names and values, alternating
+     * @return the parameters
+     */
+    private static Map<String, String> params(String... pairs) {
+        Map<String, String> params = new LinkedHashMap<String, String>();
+        for (int i = 0; i + 1 < pairs.length; i += 2) {
+            params.put(pairs[i], pairs[i + 1]);
+        }
+        return params;
+    }
+
+    /**
+     * Makes every benchmark.
+     *
+     * @param impl
+     *            Makes empty databases of the implementation measured
+     * @param files
+     *            Directory for the files read and written
+     * @return the benchmarks
+     */
+    private static List<Benchmark> benchmarks(Supplier<MusicDatabase> impl,
+            Path files) {
+        List<Benchmark> all = new ArrayList<Benchmark>();
+
+        all.add(new Benchmark("addEntry", params(), size -> {
+            MusicDatabase db = filled(impl, catalog(size, "Title"));
+            ArrayList<Song> extra = catalog(ADD_BATCH, "Extra");
+            return new Trial() {
+                @Override
+                public void prepare() {
+                    truncate(db, size);
+                }
+
+                @Override
+                public int invoke() {
+                    for (Song song : extra) {
+                        db.addEntry(song);
+                    }
+                    return extra.size();
+                }
+            };
+        }));
+
+        all.add(new Benchmark("contains", params(), size -> {
+            ArrayList<Song> songs = catalog(size, "Title");
+            MusicDatabase db = filled(impl, songs);
+            Song[] probes = probes(songs);
+            int[] next = {0 };
+            return () -> {
+                for (int i = 0; i < CONTAINS_BATCH; i++) {
+                    consume(db.contains(probes[next[0]]));
+                    next[0] = (next[0] + 1) % PROBES;
+                }
+                return CONTAINS_BATCH;
+            };
+        }));
+
+        for (SearchField field : SearchField.values()) {
+            all.add(new Benchmark("getEntries", params("field", field.name()),
+                    size -> {
+                        ArrayList<Song> songs = catalog(size, "Title");
+                        MusicDatabase db = filled(impl, songs);
+                        Song[] probes = probes(songs);
+                        int[] next = {0 };
+                        return () -> {
+                            consume(db.getEntries(field,
+                                    valueOf(field, probes[next[0]])));
+                            next[0] = (next[0] + 1) % PROBES;
+                            return 1;
+                        };
+                    }));
+        }
+
+        all.add(new Benchmark("removeEntries", params("field", "ARTIST"),
+                size -> {
+                    ArrayList<Song> songs = catalog(size, "Title");
+                    MusicDatabase db = filled(impl, songs);
+                    Song[] probes = probes(songs);
+                    List<List<Song>> removed = new ArrayList<List<Song>>();
+                    removed.add(List.of());
+                    int[] next = {0 };
+                    return new Trial() {
+                        @Override
+                        public void prepare() {
+                            for (Song song : removed.get(0)) {
+                                db.addEntry(song);
+                            }
+                        }
+
+                        @Override
+                        public int invoke() {
+                            removed.set(0, db.removeEntries(SearchField.ARTIST,
+                                    probes[next[0]].artist()));
+                            next[0] = (next[0] + 1) % PROBES;
+                            return 1;
+                        }
+                    };
+                }));
+
+        Map<String, Comparator<Song>> orders =
+                new LinkedHashMap<String, Comparator<Song>>();
+        orders.put("TITLE", new MusicDatabaseSecondary.TitleComparator());
+        orders.put("ARTIST", new MusicDatabaseSecondary.ArtistComparator());
+        orders.put("ALBUM", new MusicDatabaseSecondary.AlbumComparator());
+        orders.put("LENGTH", new MusicDatabaseSecondary.LengthComparator());
+        for (Map.Entry<String, Comparator<Song>> order : orders.entrySet()) {
+            all.add(new Benchmark("sort", params("order", order.getKey()),
+                    size -> {
+                        ArrayList<Song> shuffled = catalog(size, "Title");
+                        Collections.shuffle(shuffled, new Random(size));
+                        MusicDatabase db = impl.get();
+                        return new Trial() {
+                            @Override
+                            public void prepare() {
+                                db.clear();
+                                db.ensureCapacity(size);
+                                for (Song song : shuffled) {
+                                    db.addEntry(song);
+                                }
+                            }
+
+                            @Override
+                            public int invoke() {
+                                db.sort(order.getValue());
+                                return 1;
+                            }
+                        };
+                    }));
+        }
+
+        all.add(new Benchmark("append", params(), size -> {
+            final int appendedFraction = 10;
+            MusicDatabase db = filled(impl, catalog(size, "Title"));
+            MusicDatabase other = filled(impl, catalog(
+                    Math.max(1, size / appendedFraction), "Appended"));
+            return new Trial() {
+                @Override
+                public void prepare() {
+                    truncate(db, size);
+                }
+
+                @Override
+                public int invoke() {
+                    db.append(other);
+                    return 1;
+                }
+            };
+        }));
+
+        all.add(new Benchmark("equals", params(), size -> {
+            MusicDatabase db = filled(impl, catalog(size, "Title"));
+            MusicDatabase copy = filled(impl, catalog(size, "Title"));
+            return () -> {
+                consume(db.equals(copy));
+                return 1;
+            };
+        }));
+
+        all.add(new Benchmark("readFromFile", params(), size -> {
+            String input = files.resolve("input-" + size + ".txt").toString();
+            filled(impl, catalog(size, "Title")).writeToFile(input);
+            MusicDatabase db = impl.get();
+            return new Trial() {
+                @Override
+                public void prepare() {
+                    db.clear();
+                }
+
+                @Override
+                public int invoke() {
+                    db.readFromFile(input);
+                    return 1;
+                }
+            };
+        }));
+
+        all.add(new Benchmark("writeToFile", params(), size -> {
+            String output = files.resolve("output-" + size + ".txt")
+                    .toString();
+            MusicDatabase db = filled(impl, catalog(size, "Title"));
+            return () -> {
+                db.writeToFile(output);
+                return 1;
+            };
+        }));
+
+        return all;
+    }
+
+    /**
+     * Runs one iteration of a trial.
+     *
+     * @param trial
+     *            The trial
+     * @param iterationNanos
+     *            Time, in nanoseconds, to spend invoking it
+     * @return the mean time per operation, in nanoseconds
+     */
+    private static double iterate(Trial trial, long iterationNanos) {
+        long timed = 0;
+        long ops = 0;
+        while (timed < iterationNanos) {
+            trial.prepare();
+            long begin = System.nanoTime();
+            ops += trial.invoke();
+            timed += System.nanoTime() - begin;
+        }
+        return (double) timed / ops;
+    }
+
+    /**
+     * Returns the half width of the 99.9% confidence interval of the mean of
+     * {@code scores}, from Student's t distribution (and the normal
+     * distribution past 30 iterations).
+     *
+     * @param scores
+     *            The scores of the iterations
+     * @param mean
+     *            Their mean
+     * @return the half width, or NaN for fewer than two iterations
+     */
+    private static double error(double[] scores, double mean) {
+        final double[] t999 = {636.619, 31.599, 12.924, 8.610, 6.869, 5.959,
+            5.408, 5.041, 4.781, 4.587, 4.437, 4.318, 4.221, 4.140, 4.073,
+            4.015, 3.965, 3.922, 3.883, 3.850, 3.819, 3.792, 3.768, 3.745,
+            3.725, 3.707, 3.690, 3.674, 3.659, 3.646 };
+        final double normal = 3.291;
+        double error = Double.NaN;
+        int n = scores.length;
+        if (n > 1) {
+            double squares = 0;
+            for (double score : scores) {
+                squares += (score - mean) * (score - mean);
+            }
+            double stdev = Math.sqrt(squares / (n - 1));
+            double t = normal;
+            if (n - 1 <= t999.length) {
+                t = t999[n - 2];
+            }
+            error = t * stdev / Math.sqrt(n);
+        }
+        return error;
+    }
+
+    /**
+     * Writes {@code value} as a JSON number, or as a string for NaN.
+     *
+     * @param out
+     *            The output
+     * @param value
+     *            The value
+     * @throws IOException
+     *             if out cannot be written
+     */
+    private static void writeNumber(Writer out, double value)
+            throws IOException {
+        if (Double.isNaN(value)) {
+            out.write("\"NaN\"");
+        } else {
+            out.write(Double.toString(value));
+        }
+    }
+
+    /**
+     * Writes one result as a JSON object.
+     *
+     * @param out
+     *            The output
+     * @param name
+     *            Full name of the benchmark
+     * @param params
+     *            Its parameters
+     * @param warmup
+     *            Number of warmup iterations
+     * @param millis
+     *            Time, in milliseconds, of each iteration
+     * @param scores
+     *            Time per operation of each measured iteration, in
+     *            nanoseconds
+     * @throws IOException
+     *             if out cannot be written
+     */
+    private static void writeResult(Writer out, String name,
+            Map<String, String> params, int warmup, long millis,
+            double[] scores) throws IOException {
+        double mean = 0;
+        for (double score : scores) {
+            mean += score / scores.length;
+        }
+        double error = error(scores, mean);
+
+        out.write("  {\n    \"benchmark\" : \"" + name + "\",\n");
+        out.write("    \"mode\" : \"avgt\",\n    \"threads\" : 1,\n");
+        out.write("    \"forks\" : 0,\n");
+        out.write("    \"warmupIterations\" : " + warmup + ",\n");
+        out.write("    \"warmupTime\" : \"" + millis + " ms\",\n");
+        out.write("    \"measurementIterations\" : " + scores.length + ",\n");
+        out.write("    \"measurementTime\" : \"" + millis + " ms\",\n");
+        out.write("    \"params\" : {");
+        String separator = "\n";
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            out.write(separator + "      \"" + param.getKey() + "\" : \""
+                    + param.getValue() + "\"");
+            separator = ",\n";
+        }
+        out.write("\n    },\n    \"primaryMetric\" : {\n      \"score\" : ");
+        writeNumber(out, mean);
+        out.write(",\n      \"scoreError\" : ");
+        writeNumber(out, error);
+        out.write(",\n      \"scoreConfidence\" : [ ");
+        writeNumber(out, mean - error);
+        out.write(", ");
+        writeNumber(out, mean + error);
+        out.write(" ],\n      \"scoreUnit\" : \"ns/op\",\n");
+        out.write("      \"rawData\" : [ [ ");
+        for (int i = 0; i < scores.length; i++) {
+            if (i > 0) {
+                out.write(", ");
+            }
+            writeNumber(out, scores[i]);
+        }
+        out.write(" ] ]\n    }\n  }");
+    }
+
+    /**
+     * Sets up, warms up, and measures one benchmark at one size, and reports
+     * the result.
+     *
+     * @param json
+     *            Output for the result as JSON
+     * @param benchmark
+     *            The benchmark
+     * @param impl
+     *            Name of the implementation measured
+     * @param size
+     *            Number of songs in the database
+     * @param warmup
+     *            Number of warmup iterations
+     * @param iterations
+     *            Number of measured iterations
+     * @param millis
+     *            Time, in milliseconds, of each iteration
+     * @throws IOException
+     *             if a file the benchmark needs, or json, cannot be written
+     */
+    private static void measure(Writer json, Benchmark benchmark, String impl,
+            int size, int warmup, int iterations, long millis)
+            throws IOException {
+        final long nanosPerMilli = 1_000_000L;
+        Trial trial = benchmark.setUp().trial(size);
+        for (int i = 0; i < warmup; i++) {
+            iterate(trial, millis * nanosPerMilli);
+        }
+        double[] scores = new double[iterations];
+        double mean = 0;
+        for (int i = 0; i < iterations; i++) {
+            scores[i] = iterate(trial, millis * nanosPerMilli);
+            mean += scores[i] / iterations;
+        }
+
+        Map<String, String> params = params("impl", impl, "size",
+                Integer.toString(size));
+        params.putAll(benchmark.params());
+        String label = benchmark.name();
+        if (!benchmark.params().isEmpty()) {
+            label += benchmark.params().values();
+        }
+        System.out.printf("%-24s %10d %16.1f %12.1f%n", label, size, mean,
+                error(scores, mean));
+        writeResult(json, "OperationsBenchmark." + benchmark.name(), params,
+                warmup, millis, scores);
+        json.flush();
+    }
+
+    /**
+     * Makes empty databases of the named implementation.
+     *
+     * @param impl
+     *            Simple name of a class in components.musicdatabase with a
+     *            no-argument constructor
+     * @return the factory
+     */
+    private static Supplier<MusicDatabase> implementation(String impl) {
+        Function<String, MusicDatabase> make = name -> {
+            try {
+                return (MusicDatabase) Class
+                        .forName("components.musicdatabase." + name)
+                        .getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalArgumentException(
+                        "ERROR: Cannot make a " + name, e);
+            }
+        };
+        make.apply(impl);
+        return () -> make.apply(impl);
+    }
+
+    /**
+     * Deletes {@code directory} and everything in it.
+     *
+     * @param directory
+     *            The directory
+     * @throws IOException
+     *             if it cannot be deleted
+     */
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    /**
+     * Main method.
+     *
+     * @param args
+     *            Options, as described above
+     * @throws IOException
+     *             if the files read and written cannot be, or the results
+     *             cannot be written
+     */
+    public static void main(String[] args) throws IOException {
+        final int defaultWarmup = 3;
+        final int defaultIterations = 5;
+        final long defaultMillis = 500;
+        String impl = "MusicDatabase1";
+        String sizes = "1000,100000,1000000";
+        Pattern filter = Pattern.compile(".*");
+        int warmup = defaultWarmup;
+        int iterations = defaultIterations;
+        long millis = defaultMillis;
+        String out = "benchmark-results.json";
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--impl": {
+                    impl = args[i + 1];
+                    break;
+                }
+                case "--sizes": {
+                    sizes = args[i + 1];
+                    break;
+                }
+                case "--filter": {
+                    filter = Pattern.compile(args[i + 1]);
+                    break;
+                }
+                case "--warmup": {
+                    warmup = Integer.parseInt(args[i + 1]);
+                    break;
+                }
+                case "--iterations": {
+                    iterations = Integer.parseInt(args[i + 1]);
+                    break;
+                }
+                case "--millis": {
+                    millis = Long.parseLong(args[i + 1]);
+                    break;
+                }
+                case "--out": {
+                    out = args[i + 1];
+                    break;
+                }
+                default: {
+                    throw new IllegalArgumentException(
+                            "ERROR: Unknown option " + args[i]);
+                }
+            }
+        }
+
+        Path files = Files.createTempDirectory("music-benchmark");
+        List<Benchmark> benchmarks = benchmarks(implementation(impl), files);
+        System.out.printf("%-24s %10s %16s %12s%n", "benchmark", "size",
+                "ns/op", "error");
+        try (Writer json = Files.newBufferedWriter(Paths.get(out),
+                StandardCharsets.UTF_8)) {
+            json.write("[\n");
+            boolean first = true;
+            for (Benchmark benchmark : benchmarks) {
+                if (filter.matcher(benchmark.name()).find()) {
+                    for (String size : sizes.split(",")) {
+                        if (!first) {
+                            json.write(",\n");
+                        }
+                        first = false;
+                        measure(json, benchmark, impl,
+                                Integer.parseInt(size.trim()), warmup,
+                                iterations, millis);
+                    }
+                }
+            }
+            json.write("\n]\n");
+        } finally {
+            delete(files);
+        }
+        System.out.println("results written to " + out);
+    }
+}
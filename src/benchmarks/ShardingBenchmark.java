@@ -0,0 +1,151 @@
+package benchmarks;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import components.musicdatabase.MusicDatabase;
+import components.musicdatabase.MusicDatabase3;
+import components.musicdatabase.MusicDatabase5;
+import components.musicdatabase.Song;
+
+/**
+ * Measures how the write throughput of {@code MusicDatabase5} scales with its
+ * number of shards, with {@code MusicDatabase3}, which has one lock for every
+ * write, as the baseline.
+ *
+ * <p>
+ * Every thread only writes: it adds songs by randomly chosen artists and,
+ * once it has {@code WINDOW} songs in the database, removes its oldest one
+ * for every one it adds, so the size of the database stays the same
+ * throughout.
+ *
+ * <p>
+ * Usage: {@code ShardingBenchmark [threads] [seconds]}
+ */
+public final class ShardingBenchmark {
+
+    /**
+     * Private constructor so this utility class cannot be instantiated.
+     */
+    private ShardingBenchmark() {
+    }
+
+    /**
+     * Shard counts, one run each.
+     */
+    private static final int[] SHARD_COUNTS = {1, 2, 4, 8, 16, 32, 64 };
+
+    /**
+     * Number of songs each thread keeps in the database.
+     */
+    private static final int WINDOW = 256;
+
+    /**
+     * Runs {@code threads} threads adding and removing songs in {@code db}
+     * for {@code seconds} seconds.
+     *
+     * @param db
+     *            The database
+     * @param threads
+     *            Number of threads
+     * @param seconds
+     *            How long to run
+     * @return writes per second, over all threads
+     * @throws InterruptedException
+     *             if interrupted while waiting for the threads
+     */
+    private static double run(MusicDatabase db, int threads, double seconds)
+            throws InterruptedException {
+        final int artists = 10_000;
+        final double nanosPerSecond = 1e9;
+        final double millisPerSecond = 1e3;
+        LongAdder ops = new LongAdder();
+        AtomicBoolean stop = new AtomicBoolean(false);
+        CountDownLatch start = new CountDownLatch(1);
+        ArrayList<Thread> workers = new ArrayList<Thread>();
+
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            Thread worker = new Thread(() -> {
+                SplittableRandom random = new SplittableRandom(id);
+                ArrayDeque<Song> own = new ArrayDeque<Song>();
+                long count = 0;
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                while (!stop.get()) {
+                    Song song = new Song("Title " + id + "-" + count,
+                            "Artist " + random.nextInt(artists), "",
+                            "03:00");
+                    db.addEntry(song);
+                    own.add(song);
+                    count++;
+                    if (own.size() > WINDOW) {
+                        db.removeEntry(own.remove());
+                        count++;
+                    }
+                }
+                for (Song song : own) {
+                    db.removeEntry(song);
+                }
+                ops.add(count);
+            });
+            workers.add(worker);
+            worker.start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        Thread.sleep((long) (seconds * millisPerSecond));
+        stop.set(true);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double elapsed = (System.nanoTime() - begin) / nanosPerSecond;
+        return ops.sum() / elapsed;
+    }
+
+    /**
+     * Main method.
+     *
+     * @param args
+     *            [threads] [seconds]
+     * @throws InterruptedException
+     *             if interrupted while waiting for the threads
+     */
+    public static void main(String[] args) throws InterruptedException {
+        final double defaultSeconds = 3;
+        int threads = Runtime.getRuntime().availableProcessors();
+        double seconds = defaultSeconds;
+        if (args.length > 0) {
+            threads = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            seconds = Double.parseDouble(args[1]);
+        }
+
+        System.out.printf("%d threads, %d songs, %.1f s per run%n", threads,
+                threads * WINDOW, seconds);
+        System.out.printf("%-16s %20s %8s%n", "database", "writes", "speedup");
+
+        MusicDatabase baseline = new MusicDatabase3();
+        run(baseline, threads, seconds / 2);
+        double baselineOps = run(baseline, threads, seconds);
+        System.out.printf("%-16s %14.0f ops/s %7.1fx%n", "MusicDatabase3",
+                baselineOps, 1.0);
+
+        for (int shards : SHARD_COUNTS) {
+            MusicDatabase sharded = new MusicDatabase5(shards);
+            run(sharded, threads, seconds / 2);
+            double shardedOps = run(sharded, threads, seconds);
+            System.out.printf("%-16s %14.0f ops/s %7.1fx%n",
+                    shards + " shards", shardedOps, shardedOps / baselineOps);
+        }
+    }
+}
@@ -0,0 +1,529 @@
+package components.musicdatabase;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Asynchronous front-end for writing to a {@code MusicDatabaseKernel} from
+ * many threads. {@code addAsync} and {@code removeAsync} only queue the change
+ * and return a future; a single writer thread takes the queued changes in
+ * batches and applies each batch at once, so producers never wait on the
+ * database's locks or pay for its preconditions one song at a time.
+ *
+ * <p>
+ * A batch is taken once {@code maxBatch} changes are waiting, or once the
+ * oldest of them has waited {@code lingerMillis}, whichever comes first, just
+ * like the group commits of {@code JournaledMusicDatabase}. Its changes take
+ * effect in the order they were queued: each song is looked up in the
+ * database once per batch, and the batch's additions and removals are then
+ * applied with one {@code addNewEntries} call and one
+ * {@code removeExistingEntries} call, which {@code MusicDatabase1} and the
+ * thread-safe implementations carry out in a single pass, taking their locks
+ * once. A song removed and added back within one batch keeps its place.
+ *
+ * <p>
+ * While this is open, the writer thread must be the only one writing to the
+ * database, even if the database is thread-safe: each batch looks its songs
+ * up before applying them, and a write landing in between would break the
+ * preconditions of {@code addNewEntries} and {@code removeExistingEntries}.
+ * Other threads may read a thread-safe database meanwhile. If applying a
+ * batch fails, the futures of its changes that took effect anyway complete
+ * as usual, and those of the rest complete exceptionally with the failure.
+ * Futures are completed on the writer thread, so long running work depending
+ * on them should use the {@code Async} variants of
+ * {@code CompletableFuture}'s methods.
+ *
+ * @convention [every change in pending has an incomplete future] AND [if
+ *             closed, pending is empty once the writer thread has stopped]
+ */
+public class BatchingWriter implements Closeable {
+
+    /*
+     * Private members.
+     */
+
+    /**
+     * Default most changes applied as one batch.
+     */
+    public static final int DEFAULT_MAX_BATCH = 256;
+
+    /**
+     * Default longest time, in milliseconds, a change waits for its batch to
+     * fill up.
+     */
+    public static final long DEFAULT_LINGER_MILLIS = 2;
+
+    /**
+     * Number of latency buckets; bucket i counts latencies below 2^i
+     * microseconds.
+     */
+    private static final int LATENCY_BUCKETS = 40;
+
+    /**
+     * One queued change.
+     *
+     * @param add
+     *            Whether the song is to be added rather than removed
+     * @param song
+     *            The song
+     * @param result
+     *            Completed with whether the change did anything
+     * @param queuedAt
+     *            {@code System.nanoTime()} when the change was queued
+     */
+    private record Change(boolean add, Song song,
+            CompletableFuture<Boolean> result, long queuedAt) {
+    }
+
+    /**
+     * Batch sizes and latencies of the batches applied so far.
+     *
+     * @param batches
+     *            Number of batches applied
+     * @param changes
+     *            Number of changes applied
+     * @param maxBatchSize
+     *            Most changes in one batch
+     * @param meanLatencyMicros
+     *            Mean time from queuing a change to completing its future, in
+     *            microseconds
+     * @param p99LatencyMicros
+     *            99th percentile of that time, rounded up to a power of two
+     * @param maxLatencyMicros
+     *            Longest of those times
+     */
+    public record Metrics(long batches, long changes, int maxBatchSize,
+            double meanLatencyMicros, double p99LatencyMicros,
+            double maxLatencyMicros) {
+
+        /**
+         * Returns the mean number of changes per batch.
+         *
+         * @return the mean batch size, or 0 if no batch has been applied
+         */
+        public double meanBatchSize() {
+            double mean = 0;
+            if (this.batches > 0) {
+                mean = (double) this.changes / this.batches;
+            }
+            return mean;
+        }
+    }
+
+    /**
+     * The database written to.
+     */
+    private final MusicDatabaseKernel db;
+
+    /**
+     * Most changes applied as one batch.
+     */
+    private final int maxBatch;
+
+    /**
+     * Longest time, in nanoseconds, a change waits for its batch to fill up.
+     */
+    private final long lingerNanos;
+
+    /**
+     * Changes queued and not yet taken by the writer thread, in order.
+     */
+    private ArrayList<Change> pending = new ArrayList<Change>();
+
+    /**
+     * Whether close has been called.
+     */
+    private boolean closed = false;
+
+    /**
+     * Number of batches applied.
+     */
+    private long batches = 0;
+
+    /**
+     * Number of changes applied.
+     */
+    private long applied = 0;
+
+    /**
+     * Most changes in one batch.
+     */
+    private int maxBatchSize = 0;
+
+    /**
+     * Sum of the latencies of every change applied, in nanoseconds.
+     */
+    private long totalLatencyNanos = 0;
+
+    /**
+     * Longest latency of a change applied, in nanoseconds.
+     */
+    private long maxLatencyNanos = 0;
+
+    /**
+     * latencyCounts[i] = number of changes whose latency was below 2^i
+     * microseconds and at least 2^(i-1).
+     */
+    private final long[] latencyCounts = new long[LATENCY_BUCKETS];
+
+    /**
+     * Guards pending, closed, and the metrics.
+     */
+    private final Object lock = new Object();
+
+    /**
+     * Takes batches from pending and applies them.
+     */
+    private final Thread writer;
+
+    /**
+     * Constructor using the default batch size and linger time.
+     *
+     * @param db
+     *            The database to write to
+     */
+    public BatchingWriter(MusicDatabaseKernel db) {
+        this(db, DEFAULT_MAX_BATCH, DEFAULT_LINGER_MILLIS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param db
+     *            The database to write to
+     * @param maxBatch
+     *            Most changes applied as one batch
+     * @param lingerMillis
+     *            Longest time, in milliseconds, a change waits for its batch
+     *            to fill up, or 0 to apply whatever is waiting right away
+     * @requires maxBatch > 0 AND lingerMillis >= 0
+     */
+    public BatchingWriter(MusicDatabaseKernel db, int maxBatch,
+            long lingerMillis) {
+        assert db != null : "Violation of: db != null";
+        assert maxBatch > 0 : "Violation of: maxBatch > 0";
+        assert lingerMillis >= 0 : "Violation of: lingerMillis >= 0";
+
+        this.db = db;
+        this.maxBatch = maxBatch;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.writer = new Thread(this::run, "MusicDatabase-batcher");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Queues a change.
+     *
+     * @param add
+     *            Whether the song is to be added rather than removed
+     * @param song
+     *            The song
+     * @return the future of the change
+     */
+    private CompletableFuture<Boolean> queue(boolean add, Song song) {
+        assert song != null : "Violation of: song != null";
+
+        CompletableFuture<Boolean> result = new CompletableFuture<Boolean>();
+        synchronized (this.lock) {
+            if (this.closed) {
+                result.completeExceptionally(new IllegalStateException(
+                        "ERROR: This BatchingWriter is closed"));
+            } else {
+                this.pending.add(
+                        new Change(add, song, result, System.nanoTime()));
+                if (this.pending.size() == 1
+                        || this.pending.size() >= this.maxBatch) {
+                    this.lock.notifyAll();
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Queues adding {@code song} to the database.
+     *
+     * @param song
+     *            The song to add
+     * @return a future completed with true once song has been added, or with
+     *         false if song was already in the database by then
+     */
+    public final CompletableFuture<Boolean> addAsync(Song song) {
+        return this.queue(true, song);
+    }
+
+    /**
+     * Queues removing {@code song} from the database.
+     *
+     * @param song
+     *            The song to remove
+     * @return a future completed with true once song has been removed, or with
+     *         false if song was not in the database by then
+     */
+    public final CompletableFuture<Boolean> removeAsync(Song song) {
+        return this.queue(false, song);
+    }
+
+    /**
+     * Returns the batch sizes and latencies of the batches applied so far.
+     *
+     * @return the metrics
+     */
+    public final Metrics metrics() {
+        final double nanosPerMicro = 1e3;
+        final double percentile = 0.99;
+        synchronized (this.lock) {
+            double mean = 0;
+            double p99 = 0;
+            if (this.applied > 0) {
+                mean = this.totalLatencyNanos / nanosPerMicro / this.applied;
+                long target = (long) Math.ceil(this.applied * percentile);
+                long seen = 0;
+                int i = 0;
+                while (seen + this.latencyCounts[i] < target) {
+                    seen += this.latencyCounts[i];
+                    i++;
+                }
+                p99 = Math.min(1L << i, this.maxLatencyNanos / nanosPerMicro);
+            }
+            return new Metrics(this.batches, this.applied, this.maxBatchSize,
+                    mean, p99, this.maxLatencyNanos / nanosPerMicro);
+        }
+    }
+
+    /**
+     * Body of the writer thread: waits for a batch to be due, takes it, and
+     * applies it, until closed and nothing is pending.
+     */
+    private void run() {
+        boolean done = false;
+        while (!done) {
+            ArrayList<Change> batch = null;
+            synchronized (this.lock) {
+                try {
+                    while (this.pending.isEmpty() && !this.closed) {
+                        this.lock.wait();
+                    }
+                    long due = 0;
+                    if (!this.pending.isEmpty()) {
+                        due = this.pending.get(0).queuedAt() + this.lingerNanos;
+                    }
+                    long wait = due - System.nanoTime();
+                    while (!this.closed && this.pending.size() < this.maxBatch
+                            && wait > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(this.lock, wait);
+                        wait = due - System.nanoTime();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    this.closed = true;
+                }
+
+                if (this.pending.size() <= this.maxBatch) {
+                    batch = this.pending;
+                    this.pending = new ArrayList<Change>();
+                } else {
+                    batch = new ArrayList<Change>(
+                            this.pending.subList(0, this.maxBatch));
+                    this.pending.subList(0, this.maxBatch).clear();
+                }
+                done = this.closed && this.pending.isEmpty();
+            }
+            if (!batch.isEmpty()) {
+                this.apply(batch);
+            }
+        }
+    }
+
+    /**
+     * Applies one batch and completes its futures. If applying it fails, the
+     * futures of the changes that took effect anyway are completed as usual,
+     * and only the rest fail.
+     *
+     * @param batch
+     *            The changes, in the order they were queued
+     */
+    private void apply(ArrayList<Change> batch) {
+        boolean[] results = new boolean[batch.size()];
+        LinkedHashSet<Song> added = new LinkedHashSet<Song>();
+        LinkedHashSet<Song> removed = new LinkedHashSet<Song>();
+        HashSet<Song> failed = new HashSet<Song>();
+        Throwable error = null;
+        try {
+            /*
+             * Works out the effect of each change from the state of its song
+             * after the changes before it, looking each song up in the
+             * database only once. states maps each song to whether it was in
+             * the database before the batch and whether it is now.
+             */
+            Map<Song, boolean[]> states = new LinkedHashMap<Song, boolean[]>();
+            for (int i = 0; i < batch.size(); i++) {
+                Change change = batch.get(i);
+                boolean[] state = states.get(change.song());
+                if (state == null) {
+                    boolean in = this.db.contains(change.song());
+                    state = new boolean[] {in, in };
+                    states.put(change.song(), state);
+                }
+                results[i] = change.add() != state[1];
+                state[1] = change.add();
+            }
+
+            for (Map.Entry<Song, boolean[]> entry : states.entrySet()) {
+                boolean[] state = entry.getValue();
+                if (state[1] && !state[0]) {
+                    added.add(entry.getKey());
+                } else if (!state[1] && state[0]) {
+                    removed.add(entry.getKey());
+                }
+            }
+        } catch (RuntimeException | AssertionError e) {
+            error = e;
+            for (Change change : batch) {
+                failed.add(change.song());
+            }
+        }
+
+        if (error == null && !removed.isEmpty()) {
+            error = this.change(removed, false, failed);
+        }
+        if (error == null && !added.isEmpty()) {
+            error = this.change(added, true, failed);
+        } else if (error != null) {
+            failed.addAll(added);
+        }
+
+        ArrayList<Change> applied = new ArrayList<Change>(batch.size());
+        for (Change change : batch) {
+            if (!failed.contains(change.song())) {
+                applied.add(change);
+            }
+        }
+        if (!applied.isEmpty()) {
+            this.record(applied, System.nanoTime());
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            Change change = batch.get(i);
+            if (failed.contains(change.song())) {
+                change.result().completeExceptionally(error);
+            } else {
+                change.result().complete(results[i]);
+            }
+        }
+    }
+
+    /**
+     * Adds or removes {@code songs} all at once and, if that fails, adds the
+     * songs it left unchanged to {@code failed}.
+     *
+     * @param songs
+     *            The songs to change
+     * @param add
+     *            Whether to add the songs rather than remove them
+     * @param failed
+     *            The songs whose changes did not take effect
+     * @return what the change failed with, or null if it succeeded
+     * @requires [if add, no song in songs is in the database] AND [if not
+     *           add, every song in songs is in the database]
+     */
+    private Throwable change(Set<Song> songs, boolean add, Set<Song> failed) {
+        Throwable error = null;
+        try {
+            if (this.db instanceof MusicDatabaseSecondary) {
+                MusicDatabaseSecondary secondary =
+                        (MusicDatabaseSecondary) this.db;
+                if (add) {
+                    secondary.addNewEntries(songs);
+                } else {
+                    secondary.removeExistingEntries(songs);
+                }
+            } else {
+                for (Song song : songs) {
+                    if (add) {
+                        this.db.addEntry(song);
+                    } else {
+                        this.db.removeEntry(song);
+                    }
+                }
+            }
+        } catch (RuntimeException | AssertionError e) {
+            error = e;
+            for (Song song : songs) {
+                if (!this.tookEffect(song, add)) {
+                    failed.add(song);
+                }
+            }
+        }
+        return error;
+    }
+
+    /**
+     * Reports whether {@code song} is in the database if {@code add}, and
+     * not in it otherwise, counting a lookup that fails as no.
+     *
+     * @param song
+     *            The song
+     * @param add
+     *            Whether song was to be added rather than removed
+     * @return true if the change to song took effect
+     */
+    private boolean tookEffect(Song song, boolean add) {
+        boolean tookEffect;
+        try {
+            tookEffect = this.db.contains(song) == add;
+        } catch (RuntimeException | AssertionError e) {
+            tookEffect = false;
+        }
+        return tookEffect;
+    }
+
+    /**
+     * Adds a batch applied at {@code now} to the metrics.
+     *
+     * @param batch
+     *            The batch
+     * @param now
+     *            {@code System.nanoTime()} when it was applied
+     */
+    private void record(ArrayList<Change> batch, long now) {
+        final long nanosPerMicro = 1000;
+        synchronized (this.lock) {
+            this.batches++;
+            this.applied += batch.size();
+            this.maxBatchSize = Math.max(this.maxBatchSize, batch.size());
+            for (Change change : batch) {
+                long latency = now - change.queuedAt();
+                this.totalLatencyNanos += latency;
+                this.maxLatencyNanos = Math.max(this.maxLatencyNanos, latency);
+                int bucket = Long.SIZE
+                        - Long.numberOfLeadingZeros(latency / nanosPerMicro);
+                this.latencyCounts[Math.min(bucket, LATENCY_BUCKETS - 1)]++;
+            }
+        }
+    }
+
+    /**
+     * Applies every change still queued, then stops the writer thread.
+     * Changes queued afterwards fail with an {@code IllegalStateException}.
+     */
+    @Override
+    public void close() {
+        synchronized (this.lock) {
+            this.closed = true;
+            this.lock.notifyAll();
+        }
+        try {
+            this.writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
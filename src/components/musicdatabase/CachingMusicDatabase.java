@@ -0,0 +1,466 @@
+package components.musicdatabase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@code MusicDatabase} that remembers the results of the most recent
+ * {@code getEntries} calls made to another {@code MusicDatabase}, so that
+ * popular lookups, such as the songs of one artist, are answered by copying
+ * the songs found last time rather than searching again.
+ *
+ * <p>
+ * At most {@code capacity} results are kept; when another is needed, the one
+ * used least recently is dropped. Results are invalidated by generation
+ * counters rather than by removing them: every (field, value) pair hashes to
+ * one of a fixed number of counters, and adding or removing a song advances
+ * the counters of its title, artist, album, and length. A result is used only
+ * if its counter has not moved since it was found, so a change invalidates
+ * the results for exactly the values of the songs it touched (and, rarely,
+ * for a value sharing a counter with one), without any cost proportional to
+ * the number of results kept. {@code clear}, {@code transferFrom}, and
+ * {@code sort} change every result, or the order of its songs, so they
+ * advance one counter shared by all results instead.
+ *
+ * <p>
+ * The cache can be used by any number of threads at once; a result found
+ * while a change was being made is never used after that change returns.
+ * This is otherwise exactly as safe to share between threads as rep.
+ * {@code cacheStats()} reports how often the cache was used.
+ *
+ * @convention rep is not changed except through this AND capacity > 0
+ * @correspondence this = rep
+ */
+public class CachingMusicDatabase extends ForwardingMusicDatabase {
+
+    /**
+     * Number of results kept by default.
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /*
+     * Private members.
+     */
+
+    /**
+     * Number of generation counters, a power of two.
+     */
+    private static final int GENERATIONS = 4096;
+
+    /**
+     * Largest number of results kept.
+     */
+    private final int capacity;
+
+    /**
+     * The results kept, from least to most recently used. Guards itself.
+     */
+    private final LinkedHashMap<Key, Result> results;
+
+    /**
+     * Generation of each group of (field, value) pairs.
+     */
+    private final AtomicLongArray generations;
+
+    /**
+     * Generation of every result, advanced when all of them change.
+     */
+    private final AtomicLong everything;
+
+    /**
+     * Number of lookups answered from the cache.
+     */
+    private final LongAdder hits;
+
+    /**
+     * Number of lookups passed to rep.
+     */
+    private final LongAdder misses;
+
+    /**
+     * Number of misses that found a result out of date.
+     */
+    private final LongAdder invalidations;
+
+    /**
+     * Number of results dropped to make room for others.
+     */
+    private final LongAdder evictions;
+
+    /**
+     * A lookup.
+     *
+     * @param field
+     *            The field searched
+     * @param value
+     *            The value searched for
+     */
+    private record Key(SearchField field, String value) {
+    }
+
+    /**
+     * The songs found by a lookup, with the generations current before it
+     * searched.
+     *
+     * @param songs
+     *            The songs found, in order
+     * @param everything
+     *            The generation of every result
+     * @param generation
+     *            The generation of the lookup's group
+     */
+    private record Result(Song[] songs, long everything, long generation) {
+    }
+
+    /**
+     * Statistics of the cache.
+     *
+     * @param hits
+     *            Number of lookups answered from the cache
+     * @param misses
+     *            Number of lookups passed on to the database
+     * @param invalidations
+     *            Number of misses that found a result out of date
+     * @param evictions
+     *            Number of results dropped to make room for others
+     * @param size
+     *            Number of results kept now, including any out of date
+     */
+    public record CacheStats(long hits, long misses, long invalidations,
+            long evictions, int size) {
+
+        /**
+         * Returns the fraction of lookups answered from the cache.
+         *
+         * @return the fraction, or 0 if there were no lookups
+         */
+        public double hitRate() {
+            long lookups = this.hits + this.misses;
+            double rate = 0;
+            if (lookups > 0) {
+                rate = (double) this.hits / lookups;
+            }
+            return rate;
+        }
+    }
+
+    /**
+     * Returns the generation counter of a (field, value) pair. Uses the
+     * field's ordinal rather than its identity hash, so the same pairs share
+     * a counter on every run.
+     *
+     * @param field
+     *            The field
+     * @param value
+     *            The value
+     * @return the index of the counter
+     */
+    private static int group(SearchField field, String value) {
+        final int prime = 31;
+        final int half = 16;
+        int h = value.hashCode() * prime + field.ordinal();
+        return (h ^ (h >>> half)) & (GENERATIONS - 1);
+    }
+
+    /**
+     * Invalidates the results for each value of {@code song}.
+     *
+     * @param song
+     *            A song added or removed
+     */
+    private void invalidate(Song song) {
+        for (SearchField field : SearchField.values()) {
+            this.generations
+                    .incrementAndGet(group(field, valueOf(field, song)));
+        }
+    }
+
+    /**
+     * Invalidates the results for each value of each of {@code songs}.
+     *
+     * @param songs
+     *            The songs added or removed
+     */
+    private void invalidateAll(Iterable<Song> songs) {
+        for (Song song : songs) {
+            this.invalidate(song);
+        }
+    }
+
+    /**
+     * Invalidates every result.
+     */
+    private void invalidateEverything() {
+        this.everything.incrementAndGet();
+    }
+
+    /**
+     * Returns the result kept for {@code key} if it is still up to date.
+     *
+     * @param key
+     *            The lookup
+     * @return the result, or null if there is none up to date
+     */
+    private Result fresh(Key key) {
+        long all = this.everything.get();
+        long generation = this.generations
+                .get(group(key.field(), key.value()));
+        Result result;
+        synchronized (this.results) {
+            result = this.results.get(key);
+        }
+        if (result != null && (result.everything() != all
+                || result.generation() != generation)) {
+            this.invalidations.increment();
+            result = null;
+        }
+        return result;
+    }
+
+    /**
+     * Constructor keeping {@code DEFAULT_CAPACITY} results.
+     *
+     * @param rep
+     *            The database whose results to cache
+     * @requires rep is not changed except through this
+     * @ensures this = rep
+     */
+    public CachingMusicDatabase(MusicDatabase rep) {
+        this(rep, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param rep
+     *            The database whose results to cache
+     * @param capacity
+     *            Largest number of results kept
+     * @requires rep is not changed except through this AND capacity > 0
+     * @ensures this = rep
+     */
+    public CachingMusicDatabase(MusicDatabase rep, int capacity) {
+        super(rep);
+        assert capacity > 0 : "Violation of: capacity > 0";
+
+        final float loadFactor = 0.75f;
+        final int initialCapacity = 16;
+        this.capacity = capacity;
+        this.generations = new AtomicLongArray(GENERATIONS);
+        this.everything = new AtomicLong();
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.invalidations = new LongAdder();
+        this.evictions = new LongAdder();
+        this.results = new LinkedHashMap<Key, Result>(initialCapacity,
+                loadFactor, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Result> e) {
+                boolean full = this
+                        .size() > CachingMusicDatabase.this.capacity;
+                if (full) {
+                    CachingMusicDatabase.this.evictions.increment();
+                }
+                return full;
+            }
+        };
+    }
+
+    /*
+     * --------------------------- Public methods -----------------------------
+     */
+
+    /**
+     * Returns how often the cache has been used so far.
+     *
+     * @return the statistics
+     */
+    public final CacheStats cacheStats() {
+        int size;
+        synchronized (this.results) {
+            size = this.results.size();
+        }
+        return new CacheStats(this.hits.sum(), this.misses.sum(),
+                this.invalidations.sum(), this.evictions.sum(), size);
+    }
+
+    /*
+     * --------------------------- Kernel methods -----------------------------
+     */
+
+    /**
+     * Removes the song and invalidates the results it was in.
+     *
+     * @param repIt
+     *            The iterator over rep
+     * @param song
+     *            The song it last returned
+     */
+    @Override
+    protected final void removeByIterator(Iterator<Song> repIt, Song song) {
+        repIt.remove();
+        this.invalidate(song);
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void clear() {
+        this.rep().clear();
+        this.invalidateEverything();
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void transferFrom(MusicDatabase source) {
+        assert source != null : "Violation of: source is not null";
+        assert source != this : "Violation of: source is not this";
+
+        if (source instanceof CachingMusicDatabase) {
+            CachingMusicDatabase caching = (CachingMusicDatabase) source;
+            this.rep().transferFrom(caching.rep());
+            caching.invalidateEverything();
+        } else {
+            this.rep().transferFrom(source);
+        }
+        this.invalidateEverything();
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void addEntry(Song song) {
+        this.rep().addEntry(song);
+        this.invalidate(song);
+    }
+
+    /**
+     * Returns the songs whose {@code field} is {@code value}, copied from the
+     * cache if they were found before and none has changed since.
+     *
+     * @param field
+     *            The field searched
+     * @param value
+     *            The value searched for
+     * @return a new list of the songs found
+     */
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public ArrayList<Song> getEntries(SearchField field, String value) {
+        assert value != null : "Violation of: value != null";
+
+        Key key = new Key(field, value);
+        Result cached = this.fresh(key);
+        ArrayList<Song> found;
+        if (cached != null) {
+            this.hits.increment();
+            found = new ArrayList<Song>(Arrays.asList(cached.songs()));
+        } else {
+            this.misses.increment();
+            /*
+             * The generations are read before searching, so a change made
+             * during the search leaves this result out of date.
+             */
+            long all = this.everything.get();
+            long generation = this.generations.get(group(field, value));
+            found = this.rep().getEntries(field, value);
+            Result result = new Result(found.toArray(new Song[0]), all,
+                    generation);
+            synchronized (this.results) {
+                this.results.put(key, result);
+            }
+        }
+        return found;
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public ArrayList<Song> removeEntries(SearchField field, String value) {
+        ArrayList<Song> removed = this.rep().removeEntries(field, value);
+        this.invalidateAll(removed);
+        return removed;
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Song removeEntry(Song song) {
+        Song removed = this.rep().removeEntry(song);
+        this.invalidate(removed);
+        return removed;
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Song removeEntryByOrder(int n) {
+        Song removed = this.rep().removeEntryByOrder(n);
+        this.invalidate(removed);
+        return removed;
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void sort(Comparator<Song> order) {
+        this.rep().sort(order);
+        this.invalidateEverything();
+    }
+
+    /**
+     * Returns rep's estimate with the results kept added to its caches. The
+     * songs in them are held by rep as well, so only the arrays count.
+     *
+     * @return the estimate
+     */
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public MemoryReport memoryReport() {
+        MemoryReport report = this.rep().memoryReport();
+        final int resultPrimitives = 2 * Long.BYTES;
+        long cache;
+        synchronized (this.results) {
+            cache = MemoryReport.linkedHashMap(this.results.size());
+            for (Result result : this.results.values()) {
+                cache += MemoryReport.object(2, 0)
+                        + MemoryReport.object(1, resultPrimitives)
+                        + MemoryReport.referenceArray(result.songs().length);
+            }
+        }
+        cache += MemoryReport.array(GENERATIONS, Long.BYTES);
+        return new MemoryReport(report.storage(), report.songs(),
+                report.strings(), report.duplicateStrings(), report.indexes(),
+                report.caches() + cache, report.history(), report.offHeap());
+    }
+
+    @Override
+    protected final void addNewEntries(Collection<Song> songs) {
+        addNewEntries(this.rep(), songs);
+        this.invalidateAll(songs);
+    }
+
+    @Override
+    protected final void mergeNewEntries(List<Song> songs,
+            Comparator<Song> order) {
+        mergeNewEntries(this.rep(), songs, order);
+        /*
+         * The songs already here keep their order, so only the lookups that
+         * now find a merged song change.
+         */
+        this.invalidateAll(songs);
+    }
+
+    @Override
+    protected final void removeExistingEntries(Set<Song> songs) {
+        removeExistingEntries(this.rep(), songs);
+        this.invalidateAll(songs);
+    }
+
+}
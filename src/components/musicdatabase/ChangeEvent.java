@@ -0,0 +1,81 @@
+package components.musicdatabase;
+
+import java.util.Comparator;
+
+/**
+ * A record class holding one change to a {@code MusicDatabase}, as published
+ * by {@code ObservableMusicDatabase}.
+ *
+ * @param kind
+ *            What happened
+ * @param song
+ *            The song added or removed, or null for SORT and CLEAR
+ * @param order
+ *            The order sorted by, or null for anything but SORT
+ */
+public record ChangeEvent(Kind kind, Song song, Comparator<Song> order) {
+
+    /**
+     * The kinds of change.
+     */
+    public enum Kind {
+        /**
+         * A song was added to the end.
+         */
+        ADD,
+        /**
+         * A song was removed.
+         */
+        REMOVE,
+        /**
+         * The songs were sorted.
+         */
+        SORT,
+        /**
+         * Every song was removed.
+         */
+        CLEAR
+    }
+
+    /**
+     * Returns the event of adding {@code song}.
+     *
+     * @param song
+     *            The song
+     * @return the event
+     */
+    public static ChangeEvent added(Song song) {
+        return new ChangeEvent(Kind.ADD, song, null);
+    }
+
+    /**
+     * Returns the event of removing {@code song}.
+     *
+     * @param song
+     *            The song
+     * @return the event
+     */
+    public static ChangeEvent removed(Song song) {
+        return new ChangeEvent(Kind.REMOVE, song, null);
+    }
+
+    /**
+     * Returns the event of sorting by {@code order}.
+     *
+     * @param order
+     *            The order
+     * @return the event
+     */
+    public static ChangeEvent sorted(Comparator<Song> order) {
+        return new ChangeEvent(Kind.SORT, null, order);
+    }
+
+    /**
+     * Returns the event of removing every song.
+     *
+     * @return the event
+     */
+    public static ChangeEvent cleared() {
+        return new ChangeEvent(Kind.CLEAR, null, null);
+    }
+}
@@ -0,0 +1,318 @@
+package components.musicdatabase;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Modification epoch, change history, and content fingerprint kept by a
+ * {@code MusicDatabaseKernel} implementation. The implementation reports every
+ * song it adds or removes, and this answers {@code epoch},
+ * {@code changesSince}, {@code forgetChangesBefore}, and {@code fingerprint}
+ * for it.
+ *
+ * <p>
+ * The history is only recorded from the first time {@code epoch} is called,
+ * since before that nobody can ask for changes since any epoch. A database
+ * that never has its epoch read only pays for a counter increment per change.
+ *
+ * @convention history holds every change after epoch historyStart, in order,
+ *             if historyStart >= 0
+ */
+final class ChangeTracker {
+
+    /**
+     * A song added or removed at a given epoch.
+     *
+     * @param epoch
+     *            Epoch the change produced
+     * @param added
+     *            true if the song was added, false if it was removed
+     * @param song
+     *            The song
+     */
+    private record Change(long epoch, boolean added, Song song) {
+    }
+
+    /**
+     * Number of changes made so far.
+     */
+    private long epoch;
+
+    /**
+     * Epoch since which history is complete, or -1 if history is not being
+     * recorded yet.
+     */
+    private long historyStart;
+
+    /**
+     * Every change since historyStart.
+     */
+    private final ArrayDeque<Change> history;
+
+    /**
+     * Sum of hash(song) over every song in the database.
+     */
+    private long fingerprint;
+
+    /**
+     * Constructor, for an empty database.
+     */
+    ChangeTracker() {
+        this(0);
+    }
+
+    /**
+     * Constructor, for a database reopened with songs already in it.
+     *
+     * @param fingerprint
+     *            The fingerprint of the songs already in the database
+     */
+    ChangeTracker(long fingerprint) {
+        this.epoch = 0;
+        this.historyStart = -1;
+        this.history = new ArrayDeque<Change>();
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Records that {@code song} was added.
+     *
+     * @param song
+     *            The song added
+     */
+    void added(Song song) {
+        this.epoch++;
+        this.fingerprint += hash(song);
+        if (this.historyStart >= 0) {
+            this.history.add(new Change(this.epoch, true, song));
+        }
+    }
+
+    /**
+     * Records that {@code song} was removed.
+     *
+     * @param song
+     *            The song removed
+     */
+    void removed(Song song) {
+        this.epoch++;
+        this.fingerprint -= hash(song);
+        if (this.historyStart >= 0) {
+            this.history.add(new Change(this.epoch, false, song));
+        }
+    }
+
+    /**
+     * Records that every song in {@code songs}, which is every song in the
+     * database, was removed, as one change.
+     *
+     * @param songs
+     *            The songs removed
+     */
+    void removedAll(Iterable<Song> songs) {
+        this.epoch++;
+        this.fingerprint = 0;
+        if (this.historyStart >= 0) {
+            for (Song song : songs) {
+                this.history.add(new Change(this.epoch, false, song));
+            }
+        }
+    }
+
+    /**
+     * Records that every song in {@code songs} was added, as one change.
+     *
+     * @param songs
+     *            The songs added
+     */
+    void addedAll(Iterable<Song> songs) {
+        this.epoch++;
+        for (Song song : songs) {
+            this.fingerprint += hash(song);
+            if (this.historyStart >= 0) {
+                this.history.add(new Change(this.epoch, true, song));
+            }
+        }
+    }
+
+    /**
+     * Records that every song in {@code songs}, whose fingerprint is already
+     * known, was added to the empty database, as one change.
+     *
+     * @param songs
+     *            The songs added
+     * @param songsFingerprint
+     *            The fingerprint of songs
+     */
+    void addedAll(Iterable<Song> songs, long songsFingerprint) {
+        this.epoch++;
+        this.fingerprint = songsFingerprint;
+        if (this.historyStart >= 0) {
+            for (Song song : songs) {
+                this.history.add(new Change(this.epoch, true, song));
+            }
+        }
+    }
+
+    /**
+     * Reports the fingerprint of the songs in the database: the sum of a 64
+     * bit hash of each song. Two databases holding the same songs have the
+     * same fingerprint whatever order they are in, and it is kept up to date
+     * in constant time per song added or removed.
+     *
+     * @return the fingerprint
+     */
+    long fingerprint() {
+        return this.fingerprint;
+    }
+
+    /**
+     * 64 bit hash of a song, made of the 32 bit hashes of its fields so that
+     * songs with the same {@code hashCode} still rarely collide.
+     *
+     * @param song
+     *            The song
+     * @return its hash
+     */
+    private static long hash(Song song) {
+        final int half = 32;
+        final long odd = 0x9E3779B97F4A7C15L;
+        long high = ((long) song.title().hashCode() << half)
+                ^ (song.artist().hashCode() & 0xFFFFFFFFL);
+        long low = ((long) song.album().hashCode() << half)
+                ^ (song.length().hashCode() & 0xFFFFFFFFL);
+        return mix(high) + mix(low ^ odd);
+    }
+
+    /**
+     * Scrambles the bits of a hash (the finalizer of SplitMix64).
+     *
+     * @param hash
+     *            The hash
+     * @return the scrambled hash
+     */
+    private static long mix(long hash) {
+        final int shift1 = 30;
+        final int shift2 = 27;
+        final int shift3 = 31;
+        final long mult1 = 0xBF58476D1CE4E5B9L;
+        final long mult2 = 0x94D049BB133111EBL;
+        long h = (hash ^ (hash >>> shift1)) * mult1;
+        h = (h ^ (h >>> shift2)) * mult2;
+        return h ^ (h >>> shift3);
+    }
+
+    /**
+     * Reports the current epoch, recording history from here on if it isn't
+     * already.
+     *
+     * @return the current epoch
+     */
+    long epoch() {
+        if (this.historyStart < 0) {
+            this.historyStart = this.epoch;
+        }
+        return this.epoch;
+    }
+
+    /**
+     * Estimates the memory the history takes, not counting the songs in it.
+     *
+     * @return the size, in bytes
+     */
+    long memoryBytes() {
+        long changes = this.history.size();
+        final int longs = 3;
+        return MemoryReport.object(1, longs * Long.BYTES)
+                + MemoryReport.object(1, 2 * Integer.BYTES)
+                + MemoryReport.referenceArray(changes)
+                + changes * MemoryReport.object(1, Long.BYTES + 1);
+    }
+
+    /**
+     * Reports the current epoch without starting to record history.
+     *
+     * @return the current epoch
+     */
+    long peekEpoch() {
+        return this.epoch;
+    }
+
+    /**
+     * Reports the net changes made after {@code since}. A song added and then
+     * removed again (or removed and then added back) is in neither list.
+     *
+     * @param since
+     *            An epoch previously returned by {@code epoch}
+     * @return The songs added and removed since {@code since}
+     * @requires historyStart >= 0 AND historyStart <= since <= epoch
+     */
+    Delta changesSince(long since) {
+        assert this.historyStart >= 0 && since >= this.historyStart : ""
+                + "Violation of: changes since the given epoch are known";
+        assert since <= this.epoch : "Violation of: since <= epoch";
+
+        /*
+         * Whether a song was in the database at since is given by the first
+         * change to it afterwards, and whether it is in it now by the last.
+         */
+        Map<Song, boolean[]> firstAndLast = new LinkedHashMap<>();
+        Iterator<Change> it = this.history.descendingIterator();
+        ArrayList<Change> after = new ArrayList<Change>();
+        boolean done = false;
+        while (!done && it.hasNext()) {
+            Change change = it.next();
+            if (change.epoch() > since) {
+                after.add(change);
+            } else {
+                done = true;
+            }
+        }
+        for (int i = after.size() - 1; i >= 0; i--) {
+            Change change = after.get(i);
+            boolean[] ops = firstAndLast.get(change.song());
+            if (ops == null) {
+                firstAndLast.put(change.song(),
+                        new boolean[] {change.added(), change.added() });
+            } else {
+                ops[1] = change.added();
+            }
+        }
+
+        ArrayList<Song> added = new ArrayList<Song>();
+        ArrayList<Song> removed = new ArrayList<Song>();
+        for (Map.Entry<Song, boolean[]> entry : firstAndLast.entrySet()) {
+            boolean[] ops = entry.getValue();
+            if (ops[0] && ops[1]) {
+                added.add(entry.getKey());
+            } else if (!ops[0] && !ops[1]) {
+                removed.add(entry.getKey());
+            }
+        }
+        return new Delta(added, removed);
+    }
+
+    /**
+     * Discards the history up to and including {@code before}, after which
+     * changes since epochs older than {@code before} can no longer be asked
+     * for.
+     *
+     * @param before
+     *            The oldest epoch changes may still be asked for since
+     * @requires before <= epoch
+     */
+    void forgetChangesBefore(long before) {
+        assert before <= this.epoch : "Violation of: before <= epoch";
+
+        if (this.historyStart >= 0 && before > this.historyStart) {
+            while (!this.history.isEmpty()
+                    && this.history.peekFirst().epoch() <= before) {
+                this.history.removeFirst();
+            }
+            this.historyStart = before;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package components.musicdatabase;
+
+import java.util.ArrayList;
+
+/**
+ * A record class holding the difference between two versions of a
+ * {@code MusicDatabase}: the songs only in the newer one, and the songs only in
+ * the older one.
+ *
+ * @param added
+ *            Songs in the newer version that are not in the older one
+ * @param removed
+ *            Songs in the older version that are not in the newer one
+ */
+public record Delta(ArrayList<Song> added, ArrayList<Song> removed) {
+
+    /**
+     * Returns whether the two versions hold the same songs.
+     *
+     * @return true if nothing was added or removed
+     */
+    public boolean isEmpty() {
+        return this.added.isEmpty() && this.removed.isEmpty();
+    }
+}
@@ -0,0 +1,300 @@
+package components.musicdatabase;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * {@code MusicDatabase} that wraps another and forwards calls to it, for the
+ * decorators that add caching, instrumentation, change events, journaling, or
+ * replication on top of any implementation. Queries are forwarded as they
+ * are; each decorator implements the kernel changes itself and overrides
+ * whichever queries it adds to.
+ *
+ * <p>
+ * Bulk changes should go through the static {@code addNewEntries},
+ * {@code mergeNewEntries}, and {@code removeExistingEntries} here, which use
+ * rep's own batched versions when it has them, so that merges and
+ * {@code BatchingWriter} keep their speed when decorated.
+ *
+ * @correspondence this = rep
+ */
+abstract class ForwardingMusicDatabase extends MusicDatabaseSecondary {
+
+    /*
+     * Private members.
+     */
+
+    /**
+     * The database calls are forwarded to.
+     */
+    private final MusicDatabase rep;
+
+    /**
+     * Constructor.
+     *
+     * @param rep
+     *            The database to forward to
+     * @requires rep is not changed except through this
+     * @ensures this = rep
+     */
+    ForwardingMusicDatabase(MusicDatabase rep) {
+        assert rep != null : "Violation of: rep != null";
+
+        this.rep = rep;
+    }
+
+    /**
+     * Returns the database calls are forwarded to.
+     *
+     * @return rep
+     */
+    protected final MusicDatabase rep() {
+        return this.rep;
+    }
+
+    /**
+     * Removes the song last returned by an iterator over rep. Subclasses that
+     * act on every removal override this to act on these too.
+     *
+     * @param repIt
+     *            The iterator over rep
+     * @param song
+     *            The song it last returned
+     * @updates this
+     * @ensures this = #this with song removed
+     */
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    protected void removeByIterator(Iterator<Song> repIt, Song song) {
+        repIt.remove();
+    }
+
+    /**
+     * Adds every song in {@code songs} to {@code rep}, in one batch if it
+     * has a batched version.
+     *
+     * @param rep
+     *            The database to add to
+     * @param songs
+     *            The songs to add
+     * @requires [songs has no duplicates] AND [no song in songs is in rep]
+     * @updates rep
+     */
+    static void addNewEntries(MusicDatabase rep, Collection<Song> songs) {
+        if (rep instanceof MusicDatabaseSecondary) {
+            ((MusicDatabaseSecondary) rep).addNewEntries(songs);
+        } else {
+            for (Song song : songs) {
+                rep.addEntry(song);
+            }
+        }
+    }
+
+    /**
+     * Merges every song in {@code songs} into {@code rep}, in one pass if it
+     * has a batched version.
+     *
+     * @param rep
+     *            The database to merge into
+     * @param songs
+     *            The songs to merge in
+     * @param order
+     *            The order rep and songs are both sorted by
+     * @requires [songs has no duplicates] AND [no song in songs is in rep]
+     *           AND [rep and songs are sorted by order]
+     * @updates rep
+     */
+    static void mergeNewEntries(MusicDatabase rep, List<Song> songs,
+            Comparator<Song> order) {
+        if (rep instanceof MusicDatabaseSecondary) {
+            ((MusicDatabaseSecondary) rep).mergeNewEntries(songs, order);
+        } else {
+            for (Song song : songs) {
+                rep.addEntry(song);
+            }
+            rep.sort(order);
+        }
+    }
+
+    /**
+     * Removes every song in {@code songs} from {@code rep}, in one pass if it
+     * has a batched version.
+     *
+     * @param rep
+     *            The database to remove from
+     * @param songs
+     *            The songs to remove
+     * @requires [every song in songs is in rep]
+     * @updates rep
+     */
+    static void removeExistingEntries(MusicDatabase rep, Set<Song> songs) {
+        if (rep instanceof MusicDatabaseSecondary) {
+            ((MusicDatabaseSecondary) rep).removeExistingEntries(songs);
+        } else {
+            for (Song song : songs) {
+                rep.removeEntry(song);
+            }
+        }
+    }
+
+    /*
+     * --------------------------- Kernel methods -----------------------------
+     */
+
+    /**
+     * Returns an iterator over rep whose {@code remove} goes through
+     * {@code removeByIterator}.
+     *
+     * @return the iterator
+     */
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Iterator<Song> iterator() {
+        Iterator<Song> repIt = this.rep.iterator();
+        Iterator<Song> it = new Iterator<Song>() {
+            private Song last = null;
+
+            @Override
+            public boolean hasNext() {
+                return repIt.hasNext();
+            }
+
+            @Override
+            public Song next() {
+                this.last = repIt.next();
+                return this.last;
+            }
+
+            @Override
+            public void remove() {
+                ForwardingMusicDatabase.this.removeByIterator(repIt,
+                        this.last);
+            }
+        };
+        return it;
+    }
+
+    /**
+     * Returns a new, empty database of the same type as rep. It is not
+     * decorated itself.
+     *
+     * @return the new database
+     */
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public MusicDatabase newInstance() {
+        return this.rep.newInstance();
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void ensureCapacity(int cap) {
+        this.rep.ensureCapacity(cap);
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Song getEntryByOrder(int n) {
+        return this.rep.getEntryByOrder(n);
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public ArrayList<Song> getEntries(MusicDatabaseKernel.SearchField field,
+            String value) {
+        return this.rep.getEntries(field, value);
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Boolean contains(Song song) {
+        return this.rep.contains(song);
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public int size() {
+        return this.rep.size();
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public long epoch() {
+        return this.rep.epoch();
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Delta changesSince(long epoch) {
+        return this.rep.changesSince(epoch);
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void forgetChangesBefore(long epoch) {
+        this.rep.forgetChangesBefore(epoch);
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public long fingerprint() {
+        return this.rep.fingerprint();
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public MemoryReport memoryReport() {
+        return this.rep.memoryReport();
+    }
+
+    /**
+     * Reports how many songs rep's search would examine.
+     *
+     * @param field
+     *            The field searched
+     * @param value
+     *            The value searched for
+     * @return the number of songs examined
+     */
+    @Override
+    protected final long rowsScanned(MusicDatabaseKernel.SearchField field,
+            String value) {
+        long scanned;
+        if (this.rep instanceof MusicDatabaseSecondary) {
+            scanned = ((MusicDatabaseSecondary) this.rep).rowsScanned(field,
+                    value);
+        } else {
+            scanned = this.rep.size();
+        }
+        return scanned;
+    }
+
+    /**
+     * Reports whether rep's {@code contains} is an indexed lookup.
+     *
+     * @return true if rep's contains does not search every song
+     */
+    @Override
+    protected final boolean hasIndexedLookup() {
+        return this.rep instanceof MusicDatabaseSecondary
+                && ((MusicDatabaseSecondary) this.rep).hasIndexedLookup();
+    }
+
+    /**
+     * Reads files in rep's batches, or in one batch if rep has no batched
+     * version, as for any database without an indexed lookup.
+     *
+     * @return the number of rows per batch
+     */
+    @Override
+    protected final int readBatchSize() {
+        int size = Integer.MAX_VALUE;
+        if (this.rep instanceof MusicDatabaseSecondary) {
+            size = ((MusicDatabaseSecondary) this.rep).readBatchSize();
+        }
+        return size;
+    }
+}
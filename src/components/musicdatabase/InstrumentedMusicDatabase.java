@@ -0,0 +1,521 @@
+package components.musicdatabase;
+
+import java.io.Closeable;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * {@code MusicDatabase} that times every call made to another
+ * {@code MusicDatabase} that does real work, keeping for each method a count
+ * of calls and a histogram of their latencies (see {@code OperationStats}).
+ * {@code getEntries} and {@code removeEntries} also count the songs examined
+ * against the songs returned, and {@code readFromFile} and {@code writeToFile}
+ * the songs and bytes read or written, so their throughput can be seen.
+ *
+ * <p>
+ * Constructed with a name, this publishes its statistics through the
+ * platform MBean server until {@code close}: an
+ * {@code InstrumentedMusicDatabaseMBean} named
+ * {@code components.musicdatabase:type=InstrumentedMusicDatabase,name=<name>}
+ * and an {@code OperationStatsMBean} per method named the same with
+ * {@code ,operation=<method>} added, so they can be read from JConsole or any
+ * other JMX client.
+ *
+ * <p>
+ * While disabled, each call costs one volatile read on top of rep's; while
+ * enabled, two {@code System.nanoTime} calls and a few uncontended atomic
+ * adds. Calls that throw are not recorded. {@code size}, {@code iterator},
+ * and the change history are passed straight to rep and never recorded.
+ *
+ * @convention rep is not changed except through this
+ * @correspondence this = rep
+ */
+public class InstrumentedMusicDatabase extends ForwardingMusicDatabase
+        implements InstrumentedMusicDatabaseMBean, Closeable {
+
+    /**
+     * The methods recorded.
+     */
+    public enum Operation {
+        /**
+         * {@code addEntry}.
+         */
+        ADD_ENTRY("addEntry"),
+        /**
+         * {@code removeEntry}.
+         */
+        REMOVE_ENTRY("removeEntry"),
+        /**
+         * {@code removeEntryByOrder}.
+         */
+        REMOVE_ENTRY_BY_ORDER("removeEntryByOrder"),
+        /**
+         * {@code getEntryByOrder}.
+         */
+        GET_ENTRY_BY_ORDER("getEntryByOrder"),
+        /**
+         * {@code getEntries}.
+         */
+        GET_ENTRIES("getEntries"),
+        /**
+         * {@code removeEntries}.
+         */
+        REMOVE_ENTRIES("removeEntries"),
+        /**
+         * {@code contains}.
+         */
+        CONTAINS("contains"),
+        /**
+         * {@code sort}.
+         */
+        SORT("sort"),
+        /**
+         * {@code clear}.
+         */
+        CLEAR("clear"),
+        /**
+         * {@code transferFrom}.
+         */
+        TRANSFER_FROM("transferFrom"),
+        /**
+         * Batches of songs added by the bulk secondary methods, such as
+         * {@code addEntries} and {@code append}.
+         */
+        ADD_NEW_ENTRIES("addNewEntries"),
+        /**
+         * Batches of songs merged in by {@code append} with an order.
+         */
+        MERGE_NEW_ENTRIES("mergeNewEntries"),
+        /**
+         * Batches of songs removed by {@code BatchingWriter}.
+         */
+        REMOVE_EXISTING_ENTRIES("removeExistingEntries"),
+        /**
+         * {@code readFromFile}.
+         */
+        READ_FROM_FILE("readFromFile"),
+        /**
+         * {@code writeToFile}.
+         */
+        WRITE_TO_FILE("writeToFile");
+
+        /**
+         * Name of the method.
+         */
+        private final String method;
+
+        /**
+         * Constructor.
+         *
+         * @param method
+         *            Name of the method
+         */
+        Operation(String method) {
+            this.method = method;
+        }
+
+        /**
+         * Returns the name of the method.
+         *
+         * @return the name
+         */
+        public String method() {
+            return this.method;
+        }
+    }
+
+    /*
+     * Private members.
+     */
+
+    /**
+     * JMX domain of the MBeans published.
+     */
+    private static final String DOMAIN = "components.musicdatabase";
+
+    /**
+     * Statistics of each method, by {@code Operation} ordinal.
+     */
+    private final OperationStats[] stats;
+
+    /**
+     * Names of the MBeans published, to unregister on {@code close}.
+     */
+    private final List<ObjectName> published;
+
+    /**
+     * Whether calls are being recorded.
+     */
+    private volatile boolean enabled;
+
+    /**
+     * Publishes {@code mbean} under {@code name}.
+     *
+     * @param <T>
+     *            Type of the management interface
+     * @param server
+     *            The MBean server
+     * @param name
+     *            The name
+     * @param mbean
+     *            The MBean
+     * @param type
+     *            The management interface
+     * @throws JMException
+     *             if the MBean cannot be published
+     */
+    private <T> void publish(MBeanServer server, String name, T mbean,
+            Class<T> type) throws JMException {
+        ObjectName objectName = new ObjectName(name);
+        server.registerMBean(new StandardMBean(mbean, type), objectName);
+        this.published.add(objectName);
+    }
+
+    /**
+     * Constructor that records calls without publishing anything through
+     * JMX.
+     *
+     * @param rep
+     *            The database to time
+     * @requires rep is not changed except through this
+     * @ensures this = rep
+     */
+    public InstrumentedMusicDatabase(MusicDatabase rep) {
+        super(rep);
+
+        Operation[] operations = Operation.values();
+        this.stats = new OperationStats[operations.length];
+        for (Operation operation : operations) {
+            this.stats[operation.ordinal()] = new OperationStats(
+                    operation.method());
+        }
+        this.published = new ArrayList<ObjectName>();
+        this.enabled = true;
+    }
+
+    /**
+     * Constructor that records calls and publishes the statistics through the
+     * platform MBean server under {@code name}.
+     *
+     * @param rep
+     *            The database to time
+     * @param name
+     *            Name to publish under, unique among the instrumented
+     *            databases of this JVM
+     * @throws IllegalArgumentException
+     *             if name is taken or not a valid JMX name
+     * @requires rep is not changed except through this
+     * @ensures this = rep
+     */
+    public InstrumentedMusicDatabase(MusicDatabase rep, String name) {
+        this(rep);
+        assert name != null : "Violation of: name != null";
+
+        String base = DOMAIN + ":type=InstrumentedMusicDatabase,name=" + name;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            this.publish(server, base, this,
+                    InstrumentedMusicDatabaseMBean.class);
+            for (OperationStats operation : this.stats) {
+                this.publish(server, base + ",operation=" + operation.method(),
+                        operation, OperationStatsMBean.class);
+            }
+        } catch (JMException e) {
+            this.close();
+            throw new IllegalArgumentException(
+                    "ERROR: Cannot publish " + name + " through JMX", e);
+        }
+    }
+
+    /*
+     * --------------------------- Public methods -----------------------------
+     */
+
+    /**
+     * Returns the statistics of {@code operation}.
+     *
+     * @param operation
+     *            The method
+     * @return the statistics
+     */
+    public final OperationStats stats(Operation operation) {
+        return this.stats[operation.ordinal()];
+    }
+
+    @Override
+    public final boolean isEnabled() {
+        return this.enabled;
+    }
+
+    @Override
+    public final void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    public final void reset() {
+        for (OperationStats operation : this.stats) {
+            operation.reset();
+        }
+    }
+
+    /**
+     * Stops publishing the statistics through JMX. Calls are still recorded.
+     */
+    @Override
+    public final void close() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : this.published) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                /*
+                 * Already unregistered by someone else.
+                 */
+            }
+        }
+        this.published.clear();
+    }
+
+    /*
+     * --------------------------- Kernel methods -----------------------------
+     */
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void clear() {
+        if (this.enabled) {
+            long start = System.nanoTime();
+            this.rep().clear();
+            this.stats(Operation.CLEAR).record(System.nanoTime() - start);
+        } else {
+            this.rep().clear();
+        }
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void transferFrom(MusicDatabase source) {
+        assert source != null : "Violation of: source is not null";
+        assert source != this : "Violation of: source is not this";
+
+        MusicDatabase from = source;
+        if (source instanceof InstrumentedMusicDatabase) {
+            from = ((InstrumentedMusicDatabase) source).rep();
+        }
+        if (this.enabled) {
+            long start = System.nanoTime();
+            this.rep().transferFrom(from);
+            this.stats(Operation.TRANSFER_FROM)
+                    .record(System.nanoTime() - start);
+        } else {
+            this.rep().transferFrom(from);
+        }
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void addEntry(Song song) {
+        if (this.enabled) {
+            long start = System.nanoTime();
+            this.rep().addEntry(song);
+            this.stats(Operation.ADD_ENTRY).record(System.nanoTime() - start);
+        } else {
+            this.rep().addEntry(song);
+        }
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Song getEntryByOrder(int n) {
+        Song song;
+        if (this.enabled) {
+            long start = System.nanoTime();
+            song = this.rep().getEntryByOrder(n);
+            this.stats(Operation.GET_ENTRY_BY_ORDER)
+                    .record(System.nanoTime() - start);
+        } else {
+            song = this.rep().getEntryByOrder(n);
+        }
+        return song;
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public ArrayList<Song> getEntries(SearchField field, String value) {
+        ArrayList<Song> found;
+        if (this.enabled) {
+            long scanned = this.rowsScanned(field, value);
+            long start = System.nanoTime();
+            found = this.rep().getEntries(field, value);
+            this.stats(Operation.GET_ENTRIES).record(
+                    System.nanoTime() - start, scanned, found.size(), 0);
+        } else {
+            found = this.rep().getEntries(field, value);
+        }
+        return found;
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public ArrayList<Song> removeEntries(SearchField field, String value) {
+        ArrayList<Song> removed;
+        if (this.enabled) {
+            long scanned = this.rowsScanned(field, value);
+            long start = System.nanoTime();
+            removed = this.rep().removeEntries(field, value);
+            this.stats(Operation.REMOVE_ENTRIES).record(
+                    System.nanoTime() - start, scanned, removed.size(), 0);
+        } else {
+            removed = this.rep().removeEntries(field, value);
+        }
+        return removed;
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Song removeEntry(Song song) {
+        Song removed;
+        if (this.enabled) {
+            long start = System.nanoTime();
+            removed = this.rep().removeEntry(song);
+            this.stats(Operation.REMOVE_ENTRY)
+                    .record(System.nanoTime() - start);
+        } else {
+            removed = this.rep().removeEntry(song);
+        }
+        return removed;
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Song removeEntryByOrder(int n) {
+        Song removed;
+        if (this.enabled) {
+            long start = System.nanoTime();
+            removed = this.rep().removeEntryByOrder(n);
+            this.stats(Operation.REMOVE_ENTRY_BY_ORDER)
+                    .record(System.nanoTime() - start);
+        } else {
+            removed = this.rep().removeEntryByOrder(n);
+        }
+        return removed;
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Boolean contains(Song song) {
+        Boolean found;
+        if (this.enabled) {
+            long start = System.nanoTime();
+            found = this.rep().contains(song);
+            this.stats(Operation.CONTAINS).record(System.nanoTime() - start);
+        } else {
+            found = this.rep().contains(song);
+        }
+        return found;
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void sort(Comparator<Song> order) {
+        if (this.enabled) {
+            long start = System.nanoTime();
+            this.rep().sort(order);
+            this.stats(Operation.SORT).record(System.nanoTime() - start);
+        } else {
+            this.rep().sort(order);
+        }
+    }
+
+    /*
+     * ------------------------- Secondary methods -----------------------------
+     */
+
+    /**
+     * Reads the file with rep's own {@code readFromFile}, recording the songs
+     * added and the size of the file.
+     *
+     * @param inputPath
+     *            The path of the file
+     */
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void readFromFile(String inputPath) {
+        if (this.enabled) {
+            int before = this.rep().size();
+            long start = System.nanoTime();
+            this.rep().readFromFile(inputPath);
+            long nanos = System.nanoTime() - start;
+            this.stats(Operation.READ_FROM_FILE).record(nanos, 0,
+                    this.rep().size() - before, new File(inputPath).length());
+        } else {
+            this.rep().readFromFile(inputPath);
+        }
+    }
+
+    /**
+     * Writes the file with rep's own {@code writeToFile}, recording the songs
+     * written and the size of the file.
+     *
+     * @param outputPath
+     *            The path of the file
+     * @param compress
+     *            Whether to GZIP compress the file
+     */
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void writeToFile(String outputPath, boolean compress) {
+        if (this.enabled) {
+            long start = System.nanoTime();
+            this.rep().writeToFile(outputPath, compress);
+            long nanos = System.nanoTime() - start;
+            this.stats(Operation.WRITE_TO_FILE).record(nanos, 0,
+                    this.rep().size(), new File(outputPath).length());
+        } else {
+            this.rep().writeToFile(outputPath, compress);
+        }
+    }
+
+    @Override
+    protected final void addNewEntries(Collection<Song> songs) {
+        long start = System.nanoTime();
+        addNewEntries(this.rep(), songs);
+        if (this.enabled) {
+            this.stats(Operation.ADD_NEW_ENTRIES).record(
+                    System.nanoTime() - start, 0, songs.size(), 0);
+        }
+    }
+
+    @Override
+    protected final void mergeNewEntries(List<Song> songs,
+            Comparator<Song> order) {
+        long start = System.nanoTime();
+        mergeNewEntries(this.rep(), songs, order);
+        if (this.enabled) {
+            this.stats(Operation.MERGE_NEW_ENTRIES).record(
+                    System.nanoTime() - start, 0, songs.size(), 0);
+        }
+    }
+
+    @Override
+    protected final void removeExistingEntries(Set<Song> songs) {
+        long start = System.nanoTime();
+        removeExistingEntries(this.rep(), songs);
+        if (this.enabled) {
+            this.stats(Operation.REMOVE_EXISTING_ENTRIES).record(
+                    System.nanoTime() - start, 0, songs.size(), 0);
+        }
+    }
+
+}
@@ -0,0 +1,29 @@
+package components.musicdatabase;
+
+/**
+ * Management interface of an {@code InstrumentedMusicDatabase}, for turning
+ * its statistics on and off. The statistics themselves are published as one
+ * {@code OperationStatsMBean} per method.
+ */
+public interface InstrumentedMusicDatabaseMBean {
+
+    /**
+     * Reports whether calls are being recorded.
+     *
+     * @return true if calls are recorded
+     */
+    boolean isEnabled();
+
+    /**
+     * Starts or stops recording calls. Statistics recorded so far are kept.
+     *
+     * @param enabled
+     *            Whether to record calls
+     */
+    void setEnabled(boolean enabled);
+
+    /**
+     * Forgets every call recorded so far, for every method.
+     */
+    void reset();
+}
@@ -0,0 +1,935 @@
+package components.musicdatabase;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Modifier;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * {@code MusicDatabase} that persists every change made to another
+ * {@code MusicDatabase} in an append-only journal, so that the database can be
+ * rebuilt after a restart without rewriting the whole catalog for each change.
+ *
+ * <p>
+ * Every {@code addEntry}, {@code removeEntry}, {@code removeEntryByOrder},
+ * {@code removeEntries}, {@code sort} and {@code clear} is applied to the
+ * wrapped database and then appended to the journal as one line of text.
+ * Journal lines are written and forced to disk in groups: once
+ * {@code groupSize} of them are waiting, once the oldest of them has waited
+ * {@code lingerMillis}, or when {@code sync} is called, whichever comes first.
+ * A change returns as soon as its line is waiting, before it is on disk, so a
+ * crash can lose the changes of the last group (at most {@code groupSize}
+ * changes or {@code lingerMillis} worth). Call {@code sync} when a change
+ * must be durable before going on; a {@code groupSize} of 1 forces every
+ * change before it returns.
+ * Every {@code checkpointInterval} changes the whole database is written to a
+ * checkpoint file and the journal starts over.
+ *
+ * <p>
+ * Opening a directory that already holds a checkpoint or journal loads the
+ * checkpoint into the wrapped database and replays the journal after it. A
+ * journal line that was only partly written before a crash is detected by its
+ * checksum and discarded along with everything after it.
+ *
+ * @convention rep is not journaled by anything else. Every change made to rep
+ *             since checkpoint-[generation].txt was written is in
+ *             journal-[generation].log or in pending.
+ * @correspondence this = rep
+ */
+public class JournaledMusicDatabase extends ForwardingMusicDatabase
+        implements Closeable {
+
+    /*
+     * Private members.
+     */
+
+    /**
+     * Default number of changes forced to disk together.
+     */
+    public static final int DEFAULT_GROUP_SIZE = 64;
+
+    /**
+     * Default longest time, in milliseconds, a change waits to be forced to
+     * disk.
+     */
+    public static final long DEFAULT_LINGER_MILLIS = 10;
+
+    /**
+     * Default number of changes between checkpoints.
+     */
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 100_000;
+
+    /**
+     * Thread that forces changes to disk once they have waited long enough,
+     * shared by every {@code JournaledMusicDatabase}.
+     */
+    private static final ScheduledExecutorService FLUSHER = Executors
+            .newSingleThreadScheduledExecutor(r -> {
+                Thread flusher = new Thread(r, "MusicDatabase-journal");
+                flusher.setDaemon(true);
+                return flusher;
+            });
+
+    /**
+     * Journal line recording {@code addEntry}.
+     */
+    static final char ADD = 'A';
+
+    /**
+     * Journal line recording {@code removeEntry} or
+     * {@code removeEntryByOrder}.
+     */
+    static final char REMOVE = 'R';
+
+    /**
+     * Journal line recording {@code removeEntries}.
+     */
+    static final char REMOVE_ENTRIES = 'E';
+
+    /**
+     * Journal line recording {@code sort}.
+     */
+    static final char SORT = 'S';
+
+    /**
+     * Journal line recording {@code clear}.
+     */
+    static final char CLEAR = 'C';
+
+    /**
+     * Directory holding the checkpoint and journal files.
+     */
+    private final Path directory;
+
+    /**
+     * Number of changes forced to disk together.
+     */
+    private final int groupSize;
+
+    /**
+     * Longest time, in milliseconds, a change waits to be forced to disk, or
+     * 0 if changes only wait for a whole group.
+     */
+    private final long lingerMillis;
+
+    /**
+     * Number of changes between checkpoints.
+     */
+    private final int checkpointInterval;
+
+    /**
+     * Generation of the current checkpoint and journal files.
+     */
+    private long generation;
+
+    /**
+     * Open channel to journal-[generation].log.
+     */
+    private FileChannel journal;
+
+    /**
+     * Encoded journal lines not yet written to {@code journal}. Also guards
+     * every access to {@code journal}, since the flusher thread writes it too.
+     */
+    private final ByteArrayOutputStream pending;
+
+    /**
+     * Number of journal lines in {@code pending}.
+     */
+    private int pendingCount;
+
+    /**
+     * Number of changes since the current checkpoint.
+     */
+    private int sinceCheckpoint;
+
+    /**
+     * Task forcing {@code pending} to disk once its oldest line has waited
+     * {@code lingerMillis}, or null if none is scheduled. Guarded by
+     * {@code pending}.
+     */
+    private ScheduledFuture<?> flushTask;
+
+    /**
+     * Whether a failed write left bytes in {@code journal} that could not be
+     * truncated away, so that nothing more may be appended to it. Guarded by
+     * {@code pending}.
+     */
+    private boolean failed;
+
+    /**
+     * Constructor using the default group size, linger time, and checkpoint
+     * interval.
+     *
+     * @param rep
+     *            The database to journal
+     * @param directory
+     *            Directory holding the checkpoint and journal files
+     * @throws IOException
+     *             if the directory cannot be read or written
+     * @requires rep is empty AND rep is not journaled by anything else
+     * @ensures this = [rep recovered from the files in directory]
+     */
+    public JournaledMusicDatabase(MusicDatabase rep, String directory)
+            throws IOException {
+        this(rep, directory, DEFAULT_GROUP_SIZE, DEFAULT_LINGER_MILLIS,
+                DEFAULT_CHECKPOINT_INTERVAL);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param rep
+     *            The database to journal
+     * @param directory
+     *            Directory holding the checkpoint and journal files
+     * @param groupSize
+     *            Number of changes forced to disk together
+     * @param lingerMillis
+     *            Longest time, in milliseconds, a change waits to be forced to
+     *            disk, or 0 to only force changes once groupSize are waiting
+     * @param checkpointInterval
+     *            Number of changes between checkpoints
+     * @throws IOException
+     *             if the directory cannot be read or written
+     * @requires rep is empty AND rep is not journaled by anything else AND
+     *           groupSize > 0 AND lingerMillis >= 0 AND checkpointInterval > 0
+     * @ensures this = [rep recovered from the files in directory]
+     */
+    public JournaledMusicDatabase(MusicDatabase rep, String directory,
+            int groupSize, long lingerMillis, int checkpointInterval)
+            throws IOException {
+        super(rep);
+        assert rep.size() == 0 : "Violation of: rep is empty";
+        assert directory != null : "Violation of: directory != null";
+        assert groupSize > 0 : "Violation of: groupSize > 0";
+        assert lingerMillis >= 0 : "Violation of: lingerMillis >= 0";
+        assert checkpointInterval > 0 : "Violation of: checkpointInterval > 0";
+
+        this.directory = Paths.get(directory);
+        this.groupSize = groupSize;
+        this.lingerMillis = lingerMillis;
+        this.checkpointInterval = checkpointInterval;
+        this.pending = new ByteArrayOutputStream();
+        this.pendingCount = 0;
+        this.flushTask = null;
+        this.failed = false;
+
+        Files.createDirectories(this.directory);
+        this.recover();
+    }
+
+    /*
+     * ---------------------------- Recovery ----------------------------------
+     */
+
+    /**
+     * Returns the checkpoint file of the given generation.
+     *
+     * @param gen
+     *            The generation
+     * @return The path of checkpoint-[gen].txt
+     */
+    private Path checkpointFile(long gen) {
+        return this.directory.resolve("checkpoint-" + gen + ".txt");
+    }
+
+    /**
+     * Returns the journal file of the given generation.
+     *
+     * @param gen
+     *            The generation
+     * @return The path of journal-[gen].log
+     */
+    private Path journalFile(long gen) {
+        return this.directory.resolve("journal-" + gen + ".log");
+    }
+
+    /**
+     * Finds the newest checkpoint in {@code directory}, loads it into rep,
+     * replays its journal, and opens that journal for appending. Files of
+     * older generations are deleted.
+     *
+     * @throws IOException
+     *             if the directory cannot be read or written
+     * @updates rep
+     */
+    private void recover() throws IOException {
+        this.generation = 0;
+        try (Stream<Path> files = Files.list(this.directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.startsWith("checkpoint-") && name.endsWith(".txt")) {
+                    long gen = Long.parseLong(name.substring(
+                            "checkpoint-".length(),
+                            name.length() - ".txt".length()));
+                    this.generation = Math.max(this.generation, gen);
+                }
+            }
+        }
+
+        if (Files.exists(this.checkpointFile(this.generation))) {
+            loadCheckpoint(this.checkpointFile(this.generation), this.rep());
+        }
+
+        Path journalPath = this.journalFile(this.generation);
+        this.sinceCheckpoint = 0;
+        long validLength = 0;
+        if (Files.exists(journalPath)) {
+            try (InputStream in = new BufferedInputStream(
+                    Files.newInputStream(journalPath))) {
+                ByteArrayOutputStream line = new ByteArrayOutputStream();
+                int b = in.read();
+                long offset = 0;
+                while (b != -1) {
+                    offset++;
+                    if (b == '\n') {
+                        String record = decode(line);
+                        if (record == null) {
+                            break;
+                        }
+                        apply(this.rep(), record);
+                        this.sinceCheckpoint++;
+                        validLength = offset;
+                        line.reset();
+                    } else {
+                        line.write(b);
+                    }
+                    b = in.read();
+                }
+            }
+        }
+
+        this.journal = FileChannel.open(journalPath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        /*
+         * Anything after the last complete line was torn by a crash.
+         */
+        this.journal.truncate(validLength);
+        this.journal.position(validLength);
+        this.journal.force(true);
+
+        this.deleteOlderGenerations();
+    }
+
+    /**
+     * Deletes every checkpoint and journal file older than
+     * {@code generation}.
+     *
+     * @throws IOException
+     *             if the directory cannot be read or written
+     */
+    private void deleteOlderGenerations() throws IOException {
+        try (Stream<Path> files = Files.list(this.directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                String gen = "";
+                if (name.startsWith("checkpoint-") && name.endsWith(".txt")) {
+                    gen = name.substring("checkpoint-".length(),
+                            name.length() - ".txt".length());
+                } else if (name.startsWith("journal-")
+                        && name.endsWith(".log")) {
+                    gen = name.substring("journal-".length(),
+                            name.length() - ".log".length());
+                }
+                if (!gen.isEmpty() && Long.parseLong(gen) < this.generation) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds every song in a checkpoint file to {@code db}. Checkpoints are
+     * written by this class and never hold duplicates, so unlike
+     * {@code readFromFile} this does not look for songs already in db.
+     *
+     * @param checkpoint
+     *            The checkpoint file
+     * @param db
+     *            The database to add the songs to
+     * @throws IOException
+     *             if the file cannot be read
+     * @updates db
+     */
+    private static void loadCheckpoint(Path checkpoint, MusicDatabase db)
+            throws IOException {
+        final int three = 3;
+        try (BufferedReader rdr = Files.newBufferedReader(checkpoint,
+                StandardCharsets.UTF_8)) {
+            isValidHeader(rdr.readLine());
+            String line = rdr.readLine();
+            while (line != null) {
+                String[] fields = line.split("\t", -1);
+                db.addEntry(new Song(fields[0], fields[1], fields[2],
+                        fields[three]));
+                line = rdr.readLine();
+            }
+        }
+    }
+
+    /*
+     * --------------------------- Journal lines ------------------------------
+     */
+
+    /**
+     * Appends {@code value} to {@code line}, escaping backslashes, tabs, and
+     * line breaks so that it can't be mistaken for a separator.
+     *
+     * @param line
+     *            The journal line being built
+     * @param value
+     *            The value to append
+     * @updates line
+     */
+    private static void appendEscaped(StringBuilder line, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\': {
+                    line.append("\\\\");
+                    break;
+                }
+                case '\t': {
+                    line.append("\\t");
+                    break;
+                }
+                case '\n': {
+                    line.append("\\n");
+                    break;
+                }
+                case '\r': {
+                    line.append("\\r");
+                    break;
+                }
+                default: {
+                    line.append(c);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reverses {@code appendEscaped}.
+     *
+     * @param value
+     *            An escaped value
+     * @return The original value
+     */
+    private static String unescape(String value) {
+        if (value.indexOf('\\') < 0) {
+            return value;
+        }
+        StringBuilder result = new StringBuilder(value.length());
+        int i = 0;
+        while (i < value.length()) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                i++;
+                char escaped = value.charAt(i);
+                switch (escaped) {
+                    case 't': {
+                        result.append('\t');
+                        break;
+                    }
+                    case 'n': {
+                        result.append('\n');
+                        break;
+                    }
+                    case 'r': {
+                        result.append('\r');
+                        break;
+                    }
+                    default: {
+                        result.append(escaped);
+                        break;
+                    }
+                }
+            } else {
+                result.append(c);
+            }
+            i++;
+        }
+        return result.toString();
+    }
+
+    /**
+     * Builds the journal line for a change, without its checksum.
+     *
+     * @param op
+     *            The kind of change
+     * @param values
+     *            The values describing the change
+     * @return The journal line
+     */
+    static String journalLine(char op, String... values) {
+        StringBuilder line = new StringBuilder();
+        line.append(op);
+        for (String value : values) {
+            line.append('\t');
+            appendEscaped(line, value);
+        }
+        return line.toString();
+    }
+
+    /**
+     * Builds the journal line for a change to {@code song}, without its
+     * checksum.
+     *
+     * @param op
+     *            The kind of change
+     * @param song
+     *            The song changed
+     * @return The journal line
+     */
+    static String journalLine(char op, Song song) {
+        return journalLine(op, song.title(), song.artist(), song.album(),
+                song.length());
+    }
+
+    /**
+     * Encodes a journal line with its checksum and line break.
+     *
+     * @param record
+     *            The journal line
+     * @return The bytes to write to the journal
+     */
+    static byte[] encode(String record) {
+        byte[] body = record.getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        String checksum = "\t" + Long.toHexString(crc.getValue()) + "\n";
+        byte[] tail = checksum.getBytes(StandardCharsets.US_ASCII);
+
+        byte[] line = new byte[body.length + tail.length];
+        System.arraycopy(body, 0, line, 0, body.length);
+        System.arraycopy(tail, 0, line, body.length, tail.length);
+        return line;
+    }
+
+    /**
+     * Checks the checksum of an encoded journal line (without its line break)
+     * and returns the line without it.
+     *
+     * @param line
+     *            The bytes read from the journal
+     * @return The journal line, or null if its checksum does not match
+     */
+    static String decode(ByteArrayOutputStream line) {
+        byte[] bytes = line.toByteArray();
+        int tab = bytes.length - 1;
+        while (tab >= 0 && bytes[tab] != '\t') {
+            tab--;
+        }
+        if (tab < 0) {
+            return null;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, tab);
+        String checksum = new String(bytes, tab + 1, bytes.length - tab - 1,
+                StandardCharsets.US_ASCII);
+        if (!checksum.equals(Long.toHexString(crc.getValue()))) {
+            return null;
+        }
+        return new String(bytes, 0, tab, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Applies the change described by a journal line to {@code db}.
+     *
+     * @param db
+     *            The database to change
+     * @param record
+     *            The journal line, without its checksum
+     * @throws IllegalArgumentException
+     *             if the journal line is not recognized
+     * @updates db
+     */
+    @SuppressWarnings("unchecked")
+    static void apply(MusicDatabase db, String record) {
+        final int three = 3;
+        final int four = 4;
+        String[] values = record.split("\t", -1);
+        for (int i = 1; i < values.length; i++) {
+            values[i] = unescape(values[i]);
+        }
+
+        switch (values[0].charAt(0)) {
+            case ADD: {
+                db.addEntry(new Song(values[1], values[2], values[three],
+                        values[four]));
+                break;
+            }
+            case REMOVE: {
+                db.removeEntry(new Song(values[1], values[2], values[three],
+                        values[four]));
+                break;
+            }
+            case REMOVE_ENTRIES: {
+                db.removeEntries(SearchField.valueOf(values[1]), values[2]);
+                break;
+            }
+            case SORT: {
+                try {
+                    db.sort((Comparator<Song>) Class.forName(values[1])
+                            .getConstructor().newInstance());
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalArgumentException(
+                            "ERROR: Cannot recreate comparator " + values[1],
+                            e);
+                }
+                break;
+            }
+            case CLEAR: {
+                db.clear();
+                break;
+            }
+            default: {
+                throw new IllegalArgumentException(
+                        "ERROR: Unrecognized journal line " + record);
+            }
+        }
+    }
+
+    /**
+     * Whether a journal line naming {@code order}'s class can recreate it,
+     * i.e. it and every class enclosing it are public, named, and not
+     * abstract, and it has a public no-argument constructor.
+     *
+     * @param order
+     *            The comparator
+     * @return true if {@code order} can be journaled by class name
+     */
+    static boolean isRecreatable(Comparator<Song> order) {
+        Class<?> type = order.getClass();
+        boolean recreatable = !type.isSynthetic() && !type.isAnonymousClass()
+                && !type.isLocalClass() && type.getEnclosingMethod() == null
+                && !Modifier.isAbstract(type.getModifiers());
+        Class<?> enclosing = type;
+        while (recreatable && enclosing != null) {
+            recreatable = Modifier.isPublic(enclosing.getModifiers());
+            enclosing = enclosing.getEnclosingClass();
+        }
+        if (recreatable) {
+            try {
+                type.getConstructor();
+            } catch (NoSuchMethodException e) {
+                recreatable = false;
+            }
+        }
+        return recreatable;
+    }
+
+    /**
+     * Journals one change, forcing the journal to disk if a whole group is
+     * waiting and taking a checkpoint if one is due. Otherwise the change is
+     * not yet durable when this returns.
+     *
+     * @param record
+     *            The journal line, without its checksum
+     */
+    private void log(String record) {
+        byte[] line = encode(record);
+        synchronized (this.pending) {
+            this.pending.write(line, 0, line.length);
+            this.pendingCount++;
+            if (this.pendingCount >= this.groupSize) {
+                this.flush();
+            } else if (this.flushTask == null && this.lingerMillis > 0) {
+                /*
+                 * This is the oldest line waiting, so the group is forced
+                 * once it has waited lingerMillis, unless it fills first.
+                 */
+                this.flushTask = FLUSHER.schedule(this::flushQuietly,
+                        this.lingerMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        this.sinceCheckpoint++;
+        if (this.sinceCheckpoint >= this.checkpointInterval) {
+            this.checkpoint();
+        }
+    }
+
+    /**
+     * Journals sorting by {@code order}, or takes a checkpoint if replay could
+     * not recreate order.
+     *
+     * @param order
+     *            The order sorted by
+     */
+    private void logSort(Comparator<Song> order) {
+        if (isRecreatable(order)) {
+            this.log(journalLine(SORT, order.getClass().getName()));
+        } else {
+            /*
+             * A lambda or anonymous comparator can't be recreated when the
+             * journal is replayed, so the sorted order is saved directly.
+             */
+            this.checkpoint();
+        }
+    }
+
+    /**
+     * Cancels the scheduled linger flush, if any.
+     */
+    private void cancelFlushTask() {
+        synchronized (this.pending) {
+            if (this.flushTask != null) {
+                this.flushTask.cancel(false);
+                this.flushTask = null;
+            }
+        }
+    }
+
+    /**
+     * Writes and forces every pending journal line to disk. If that fails,
+     * the journal is truncated back to where the lines started, so that a
+     * later flush does not append them after a torn line that recovery would
+     * stop at.
+     *
+     * @throws IllegalStateException
+     *             if the journal cannot be written
+     */
+    private void flush() {
+        synchronized (this.pending) {
+            this.cancelFlushTask();
+            if (this.failed) {
+                throw new IllegalStateException(
+                        "ERROR: Journal is unusable after a failed write");
+            }
+            if (this.pendingCount > 0) {
+                long start = -1;
+                try {
+                    start = this.journal.position();
+                    this.pending
+                            .writeTo(Channels.newOutputStream(this.journal));
+                    this.journal.force(false);
+                } catch (IOException e) {
+                    if (start >= 0) {
+                        try {
+                            this.journal.truncate(start);
+                            this.journal.position(start);
+                        } catch (IOException truncateFailure) {
+                            e.addSuppressed(truncateFailure);
+                            this.failed = true;
+                        }
+                    }
+                    throw new IllegalStateException(
+                            "ERROR: Cannot write journal", e);
+                }
+                this.pending.reset();
+                this.pendingCount = 0;
+            }
+        }
+    }
+
+    /**
+     * Used by the flusher thread, which has nowhere to throw to.
+     */
+    private void flushQuietly() {
+        try {
+            this.flush();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /*
+     * --------------------------- Public methods -----------------------------
+     */
+
+    /**
+     * Forces every change made so far to disk.
+     *
+     * @ensures every change made to this so far is durable
+     */
+    public final void sync() {
+        this.flush();
+    }
+
+    /**
+     * Writes all of this to a new checkpoint file and starts a new, empty
+     * journal, then deletes the previous checkpoint and journal.
+     *
+     * @ensures every change made to this so far is durable
+     */
+    public final void checkpoint() {
+        synchronized (this.pending) {
+            try {
+                long next = this.generation + 1;
+                SongWriter.writeAtomically(this.checkpointFile(next),
+                        this.rep(), false);
+                /*
+                 * From here on the new checkpoint holds everything, so the
+                 * lines still pending are no longer needed.
+                 */
+                this.pending.reset();
+                this.pendingCount = 0;
+                this.cancelFlushTask();
+                this.failed = false;
+                this.journal.close();
+                this.generation = next;
+                this.journal = FileChannel.open(
+                        this.journalFile(this.generation),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+                this.journal.force(true);
+                this.deleteOlderGenerations();
+            } catch (IOException e) {
+                throw new IllegalStateException(
+                        "ERROR: Cannot write checkpoint", e);
+            }
+        }
+        this.sinceCheckpoint = 0;
+    }
+
+    /**
+     * Forces every change to disk and closes the journal. This must not be used
+     * afterwards.
+     *
+     * @throws IOException
+     *             if the journal cannot be written
+     */
+    @Override
+    public final void close() throws IOException {
+        synchronized (this.pending) {
+            try {
+                this.flush();
+            } finally {
+                this.cancelFlushTask();
+                this.journal.close();
+            }
+        }
+    }
+
+    /*
+     * --------------------------- Kernel methods -----------------------------
+     */
+
+    /**
+     * Removes the song and journals its removal.
+     *
+     * @param repIt
+     *            The iterator over rep
+     * @param song
+     *            The song it last returned
+     */
+    @Override
+    protected final void removeByIterator(Iterator<Song> repIt, Song song) {
+        repIt.remove();
+        this.log(journalLine(REMOVE, song));
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void clear() {
+        this.rep().clear();
+        this.log(journalLine(CLEAR));
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void transferFrom(MusicDatabase source) {
+        assert source != null : "Violation of: source is not null";
+        assert source != this : "Violation of: source is not this";
+
+        if (source instanceof JournaledMusicDatabase) {
+            /*
+             * Moves the contents of source's rep rather than its journal,
+             * which stays with source (now empty).
+             */
+            JournaledMusicDatabase journaled = (JournaledMusicDatabase) source;
+            this.rep().transferFrom(journaled.rep());
+            journaled.log(journalLine(CLEAR));
+        } else {
+            this.rep().transferFrom(source);
+        }
+        /*
+         * Replacing everything at once is cheaper to persist as a checkpoint
+         * than as a journal line per song.
+         */
+        this.checkpoint();
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void addEntry(Song song) {
+        this.rep().addEntry(song);
+        this.log(journalLine(ADD, song));
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public ArrayList<Song> removeEntries(SearchField field, String value) {
+        ArrayList<Song> removed = this.rep().removeEntries(field, value);
+        if (removed.size() > 0) {
+            this.log(journalLine(REMOVE_ENTRIES, field.name(), value));
+        }
+        return removed;
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Song removeEntry(Song song) {
+        Song removed = this.rep().removeEntry(song);
+        this.log(journalLine(REMOVE, removed));
+        return removed;
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Song removeEntryByOrder(int n) {
+        Song removed = this.rep().removeEntryByOrder(n);
+        this.log(journalLine(REMOVE, removed));
+        return removed;
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void sort(Comparator<Song> order) {
+        this.rep().sort(order);
+        this.logSort(order);
+    }
+
+    /**
+     * Merges through rep's own batched version, then journals a line per song
+     * merged in and one for the sort, which replays to the merged order.
+     *
+     * @param songs
+     *            The songs to merge in
+     * @param order
+     *            The order this and songs are both sorted by
+     */
+    @Override
+    protected final void mergeNewEntries(List<Song> songs,
+            Comparator<Song> order) {
+        mergeNewEntries(this.rep(), songs, order);
+        for (Song song : songs) {
+            this.log(journalLine(ADD, song));
+        }
+        this.logSort(order);
+    }
+}
@@ -0,0 +1,202 @@
+package components.musicdatabase;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies in nanoseconds that any number of threads can record
+ * into without locking. Each power of two is split into eight buckets, so a
+ * percentile read back is at most 12.5% above the true value, and the whole
+ * histogram is a fixed array of under 500 counters however many latencies it
+ * holds.
+ *
+ * <p>
+ * Reading a percentile while latencies are being recorded gives a value
+ * somewhere between those before and after the concurrent recordings.
+ */
+final class LatencyHistogram {
+
+    /**
+     * Number of bits of each latency below its highest set bit used to pick
+     * its bucket.
+     */
+    private static final int SUB_BITS = 3;
+
+    /**
+     * Number of buckets per power of two.
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    /**
+     * Number of buckets, enough for any non-negative long.
+     */
+    private static final int BUCKETS = (Long.SIZE - SUB_BITS) * SUB_BUCKETS;
+
+    /**
+     * Number of latencies in each bucket.
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Number of latencies recorded.
+     */
+    private final LongAdder count = new LongAdder();
+
+    /**
+     * Sum of the latencies recorded.
+     */
+    private final LongAdder total = new LongAdder();
+
+    /**
+     * Largest latency recorded.
+     */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Returns the bucket holding {@code nanos}.
+     *
+     * @param nanos
+     *            The latency
+     * @return the bucket
+     * @requires nanos >= 0
+     */
+    static int bucketOf(long nanos) {
+        int bucket;
+        if (nanos < SUB_BUCKETS) {
+            bucket = (int) nanos;
+        } else {
+            int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(nanos);
+            int sub = (int) (nanos >>> (exponent - SUB_BITS))
+                    & (SUB_BUCKETS - 1);
+            bucket = (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+        return bucket;
+    }
+
+    /**
+     * Returns the largest latency in {@code bucket}.
+     *
+     * @param bucket
+     *            The bucket
+     * @return the largest latency
+     */
+    static long upperBoundOf(int bucket) {
+        long bound;
+        if (bucket < SUB_BUCKETS) {
+            bound = bucket;
+        } else {
+            int shift = bucket / SUB_BUCKETS - 1;
+            long base = SUB_BUCKETS + bucket % SUB_BUCKETS;
+            if (base + 1 > Long.MAX_VALUE >>> shift) {
+                bound = Long.MAX_VALUE;
+            } else {
+                bound = ((base + 1) << shift) - 1;
+            }
+        }
+        return bound;
+    }
+
+    /**
+     * Records one latency.
+     *
+     * @param nanos
+     *            The latency, in nanoseconds; negative ones count as 0
+     */
+    void record(long nanos) {
+        long latency = Math.max(0, nanos);
+        this.counts.incrementAndGet(bucketOf(latency));
+        this.count.increment();
+        this.total.add(latency);
+        if (latency > this.max.get()) {
+            this.max.accumulateAndGet(latency, Math::max);
+        }
+    }
+
+    /**
+     * Returns the number of latencies recorded.
+     *
+     * @return the number of latencies
+     */
+    long count() {
+        return this.count.sum();
+    }
+
+    /**
+     * Returns the mean latency, in nanoseconds.
+     *
+     * @return the mean, or 0 if nothing was recorded
+     */
+    double mean() {
+        long n = this.count.sum();
+        double mean = 0;
+        if (n > 0) {
+            mean = (double) this.total.sum() / n;
+        }
+        return mean;
+    }
+
+    /**
+     * Returns the total of the latencies recorded, in nanoseconds.
+     *
+     * @return the total
+     */
+    long total() {
+        return this.total.sum();
+    }
+
+    /**
+     * Returns the largest latency recorded, in nanoseconds.
+     *
+     * @return the largest latency, or 0 if nothing was recorded
+     */
+    long max() {
+        return this.max.get();
+    }
+
+    /**
+     * Returns the latency, in nanoseconds, that a fraction {@code quantile}
+     * of the latencies recorded are at or below, rounded up to the top of its
+     * bucket but never above the largest latency recorded.
+     *
+     * @param quantile
+     *            The fraction, such as 0.99 for the 99th percentile
+     * @return the latency, or 0 if nothing was recorded
+     * @requires 0 <= quantile <= 1
+     */
+    long percentile(double quantile) {
+        assert quantile >= 0 && quantile <= 1
+                : "Violation of: 0 <= quantile <= 1";
+
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            n += this.counts.get(i);
+        }
+        long latency = 0;
+        if (n > 0) {
+            long rank = Math.max(1, (long) Math.ceil(quantile * n));
+            long seen = 0;
+            int bucket = 0;
+            while (bucket < BUCKETS - 1
+                    && seen + this.counts.get(bucket) < rank) {
+                seen += this.counts.get(bucket);
+                bucket++;
+            }
+            latency = Math.min(upperBoundOf(bucket), this.max.get());
+        }
+        return latency;
+    }
+
+    /**
+     * Forgets every latency recorded so far. Latencies recorded while this
+     * runs may be partly kept.
+     */
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            this.counts.set(i, 0);
+        }
+        this.count.reset();
+        this.total.reset();
+        this.max.set(0);
+    }
+}
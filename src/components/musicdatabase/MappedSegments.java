@@ -0,0 +1,300 @@
+package components.musicdatabase;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+/**
+ * A byte addressable store backed by a series of equally sized, memory-mapped
+ * segment files named [name]-00000.seg, [name]-00001.seg, and so on in one
+ * directory. Positions are {@code long}s, so a store is not limited to the 2GB
+ * a single {@code MappedByteBuffer} can map. None of the data is held on the
+ * heap; the operating system pages it in and out as it is used.
+ *
+ * <p>
+ * Values are never split across segments as long as {@code long}s are written
+ * at multiples of 8 and {@code int}s at multiples of 4, and byte arrays are
+ * placed with {@code fitsInSegment}.
+ *
+ * @convention segments.get(i) maps [name]-i.seg, which is segmentSize bytes
+ *             long
+ */
+final class MappedSegments {
+
+    /**
+     * Directory holding the segment files.
+     */
+    private final Path directory;
+
+    /**
+     * Prefix of every segment file's name.
+     */
+    private final String name;
+
+    /**
+     * log2 of segmentSize.
+     */
+    private final int segmentBits;
+
+    /**
+     * Size of each segment, in bytes.
+     */
+    private final long segmentSize;
+
+    /**
+     * The mapped segments, in order.
+     */
+    private final ArrayList<MappedByteBuffer> segments;
+
+    /**
+     * Constructor. Maps every segment file of this name already in
+     * {@code directory}.
+     *
+     * @param directory
+     *            Directory holding the segment files
+     * @param name
+     *            Prefix of every segment file's name
+     * @param segmentBits
+     *            log2 of the size of each segment, in bytes
+     * @throws IOException
+     *             if a segment file cannot be mapped
+     * @requires 3 <= segmentBits <= 30
+     */
+    MappedSegments(Path directory, String name, int segmentBits)
+            throws IOException {
+        final int minBits = 3;
+        final int maxBits = 30;
+        assert minBits <= segmentBits && segmentBits <= maxBits : ""
+                + "Violation of: 3 <= segmentBits <= 30";
+
+        this.directory = directory;
+        this.name = name;
+        this.segmentBits = segmentBits;
+        this.segmentSize = 1L << segmentBits;
+        this.segments = new ArrayList<MappedByteBuffer>();
+
+        while (Files.exists(this.segmentFile(this.segments.size()))) {
+            this.mapSegment(this.segments.size());
+        }
+    }
+
+    /**
+     * Returns the path of the segment file with the given index.
+     *
+     * @param index
+     *            The index of the segment
+     * @return The path of [name]-[index].seg
+     */
+    private Path segmentFile(int index) {
+        return this.directory
+                .resolve(String.format("%s-%05d.seg", this.name, index));
+    }
+
+    /**
+     * Maps the segment file with the given index, creating it if necessary,
+     * and adds it to the end of segments.
+     *
+     * @param index
+     *            The index of the segment, which is segments.size()
+     * @throws IOException
+     *             if the file cannot be mapped
+     */
+    private void mapSegment(int index) throws IOException {
+        try (FileChannel channel = FileChannel.open(this.segmentFile(index),
+                StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            /*
+             * The mapping stays valid after the channel is closed.
+             */
+            this.segments.add(channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    this.segmentSize));
+        }
+    }
+
+    /**
+     * Returns the number of bytes currently mapped.
+     *
+     * @return the capacity of this, in bytes
+     */
+    long capacity() {
+        return ((long) this.segments.size()) << this.segmentBits;
+    }
+
+    /**
+     * Returns the size of each segment.
+     *
+     * @return the segment size, in bytes
+     */
+    long segmentSize() {
+        return this.segmentSize;
+    }
+
+    /**
+     * Maps enough segments for positions up to {@code bytes} to be valid.
+     * Newly mapped bytes are zero.
+     *
+     * @param bytes
+     *            The number of bytes needed
+     * @throws IOException
+     *             if a segment file cannot be created
+     * @ensures capacity >= bytes
+     */
+    void ensureCapacity(long bytes) throws IOException {
+        while (this.capacity() < bytes) {
+            this.mapSegment(this.segments.size());
+        }
+    }
+
+    /**
+     * Returns whether {@code length} bytes starting at {@code pos} are all in
+     * the same segment.
+     *
+     * @param pos
+     *            The first position
+     * @param length
+     *            The number of bytes
+     * @return true if the bytes do not cross into another segment
+     */
+    boolean fitsInSegment(long pos, int length) {
+        return (pos >>> this.segmentBits) == ((pos + length
+                - 1) >>> this.segmentBits);
+    }
+
+    /**
+     * Returns the segment holding {@code pos}.
+     *
+     * @param pos
+     *            A position
+     * @return the segment
+     */
+    private MappedByteBuffer segment(long pos) {
+        return this.segments.get((int) (pos >>> this.segmentBits));
+    }
+
+    /**
+     * Returns the offset of {@code pos} within its segment.
+     *
+     * @param pos
+     *            A position
+     * @return the offset
+     */
+    private int offset(long pos) {
+        return (int) (pos & (this.segmentSize - 1));
+    }
+
+    /**
+     * Reads the {@code long} at {@code pos}.
+     *
+     * @param pos
+     *            The position, a multiple of 8
+     * @return the value
+     * @requires pos + 8 <= capacity
+     */
+    long getLong(long pos) {
+        return this.segment(pos).getLong(this.offset(pos));
+    }
+
+    /**
+     * Writes the {@code long} at {@code pos}.
+     *
+     * @param pos
+     *            The position, a multiple of 8
+     * @param value
+     *            The value
+     * @requires pos + 8 <= capacity
+     */
+    void putLong(long pos, long value) {
+        this.segment(pos).putLong(this.offset(pos), value);
+    }
+
+    /**
+     * Reads the {@code int} at {@code pos}.
+     *
+     * @param pos
+     *            The position, a multiple of 4
+     * @return the value
+     * @requires pos + 4 <= capacity
+     */
+    int getInt(long pos) {
+        return this.segment(pos).getInt(this.offset(pos));
+    }
+
+    /**
+     * Writes the {@code int} at {@code pos}.
+     *
+     * @param pos
+     *            The position, a multiple of 4
+     * @param value
+     *            The value
+     * @requires pos + 4 <= capacity
+     */
+    void putInt(long pos, int value) {
+        this.segment(pos).putInt(this.offset(pos), value);
+    }
+
+    /**
+     * Copies {@code length} bytes starting at {@code pos} into {@code dst}.
+     *
+     * @param pos
+     *            The first position
+     * @param dst
+     *            The array to copy into, from index 0
+     * @param length
+     *            The number of bytes
+     * @requires fitsInSegment(pos, length) AND pos + length <= capacity
+     */
+    void get(long pos, byte[] dst, int length) {
+        this.segment(pos).get(this.offset(pos), dst, 0, length);
+    }
+
+    /**
+     * Copies all of {@code src} to {@code pos}.
+     *
+     * @param pos
+     *            The first position
+     * @param src
+     *            The bytes to copy
+     * @requires fitsInSegment(pos, src.length) AND pos + src.length <=
+     *           capacity
+     */
+    void put(long pos, byte[] src) {
+        this.segment(pos).put(this.offset(pos), src);
+    }
+
+    /**
+     * Forces every change to the segments out to their files.
+     */
+    void force() {
+        for (MappedByteBuffer segment : this.segments) {
+            segment.force();
+        }
+    }
+
+    /**
+     * Forgets every segment and deletes their files. This must not be used
+     * afterwards.
+     *
+     * @throws IOException
+     *             if the directory cannot be written
+     */
+    void delete() throws IOException {
+        int count = this.segments.size();
+        this.segments.clear();
+        for (int i = 0; i < count; i++) {
+            /*
+             * Some platforms refuse to delete a file that is still mapped, in
+             * which case it is left to be reclaimed once the mapping is
+             * garbage collected.
+             */
+            try {
+                Files.deleteIfExists(this.segmentFile(i));
+            } catch (IOException e) {
+                this.segmentFile(i).toFile().deleteOnExit();
+            }
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package components.musicdatabase;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+/**
+ * Estimate of the memory a {@code MusicDatabase} retains, in bytes, broken
+ * down by what it is used for. Returned by {@code memoryReport()}.
+ *
+ * <p>
+ * Sizes are worked out from the object layout of the running JVM (reference
+ * size, header sizes, and alignment, read from HotSpot's flags) rather than
+ * measured, so they are close for the structures counted but leave out
+ * anything a database shares with other objects, such as songs also held by
+ * the caller. A string shared by several songs is counted once. Songs that
+ * were removed but are still held by the change history are not counted.
+ *
+ * @param storage
+ *            Bytes of the structures holding the songs in order, not counting
+ *            the songs themselves
+ * @param songs
+ *            Bytes of the {@code Song} records held
+ * @param strings
+ *            Bytes of the distinct {@code String}s those songs refer to
+ * @param duplicateStrings
+ *            The part of strings taken by strings equal to another one
+ *            counted, which interning or deduplication would save
+ * @param indexes
+ *            Bytes of the structures for finding songs by value
+ * @param caches
+ *            Bytes of caches and views that could be rebuilt
+ * @param history
+ *            Bytes of the change history kept for {@code changesSince}
+ * @param offHeap
+ *            The part of storage and indexes held outside the Java heap, such
+ *            as in mapped files
+ */
+public record MemoryReport(long storage, long songs, long strings,
+        long duplicateStrings, long indexes, long caches, long history,
+        long offHeap) {
+
+    /**
+     * Size of a reference.
+     */
+    static final int REFERENCE;
+
+    /**
+     * Size of an object header.
+     */
+    static final int HEADER;
+
+    /**
+     * Size of an array header, including its length.
+     */
+    static final int ARRAY_HEADER;
+
+    /**
+     * Alignment of objects.
+     */
+    static final int ALIGNMENT;
+
+    static {
+        final int wide = 8;
+        final int narrow = 4;
+        final int compressedHeader = 12;
+        final int fullHeader = 16;
+        boolean compressedOops = true;
+        boolean compressedClasses = true;
+        int alignment = wide;
+        try {
+            HotSpotDiagnosticMXBean hotSpot = ManagementFactory
+                    .getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            compressedOops = Boolean.parseBoolean(
+                    hotSpot.getVMOption("UseCompressedOops").getValue());
+            compressedClasses = Boolean.parseBoolean(hotSpot
+                    .getVMOption("UseCompressedClassPointers").getValue());
+            alignment = Integer.parseInt(
+                    hotSpot.getVMOption("ObjectAlignmentInBytes").getValue());
+        } catch (RuntimeException e) {
+            /*
+             * Not HotSpot; assumes its 64-bit defaults.
+             */
+        }
+        if (compressedOops) {
+            REFERENCE = narrow;
+        } else {
+            REFERENCE = wide;
+        }
+        if (compressedClasses) {
+            HEADER = compressedHeader;
+        } else {
+            HEADER = fullHeader;
+        }
+        ARRAY_HEADER = HEADER + Integer.BYTES;
+        ALIGNMENT = alignment;
+    }
+
+    /**
+     * Rounds {@code bytes} up to the object alignment.
+     *
+     * @param bytes
+     *            The size
+     * @return the aligned size
+     */
+    static long align(long bytes) {
+        return (bytes + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    /**
+     * Returns the size of an object.
+     *
+     * @param references
+     *            Number of reference fields
+     * @param primitiveBytes
+     *            Total size of the primitive fields
+     * @return the size
+     */
+    static long object(int references, int primitiveBytes) {
+        return align(HEADER + (long) references * REFERENCE + primitiveBytes);
+    }
+
+    /**
+     * Returns the size of an array.
+     *
+     * @param length
+     *            Length of the array
+     * @param elementBytes
+     *            Size of each element
+     * @return the size
+     */
+    static long array(long length, int elementBytes) {
+        return align(ARRAY_HEADER + length * elementBytes);
+    }
+
+    /**
+     * Returns the size of an array of references.
+     *
+     * @param length
+     *            Length of the array
+     * @return the size
+     */
+    static long referenceArray(long length) {
+        return array(length, REFERENCE);
+    }
+
+    /**
+     * Returns the size of an {@code ArrayList} holding {@code size}
+     * references, assuming no spare capacity.
+     *
+     * @param size
+     *            Number of elements
+     * @return the size
+     */
+    static long arrayList(long size) {
+        return object(1, 2 * Integer.BYTES) + referenceArray(size);
+    }
+
+    /**
+     * Returns the size of the table of a hash map or set of {@code size}
+     * entries at the default load factor.
+     *
+     * @param size
+     *            Number of entries
+     * @return the size of the table
+     */
+    private static long table(long size) {
+        final double loadFactor = 0.75;
+        final long minCapacity = 16;
+        long capacity = minCapacity;
+        while (capacity * loadFactor < size) {
+            capacity *= 2;
+        }
+        return referenceArray(capacity);
+    }
+
+    /**
+     * Returns the size of a {@code HashSet} of {@code size} elements, not
+     * counting the elements.
+     *
+     * @param size
+     *            Number of elements
+     * @return the size
+     */
+    static long hashSet(long size) {
+        final int mapReferences = 4;
+        final int mapPrimitives = 4 * Integer.BYTES;
+        final int nodeReferences = 3;
+        return object(1, 0) + object(mapReferences, mapPrimitives)
+                + table(size)
+                + size * object(nodeReferences, Integer.BYTES);
+    }
+
+    /**
+     * Returns the size of a {@code ConcurrentHashMap.newKeySet()} of
+     * {@code size} elements, not counting the elements.
+     *
+     * @param size
+     *            Number of elements
+     * @return the size
+     */
+    static long concurrentSet(long size) {
+        final int mapReferences = 6;
+        final int mapPrimitives = Long.BYTES + 3 * Integer.BYTES;
+        final int nodeReferences = 3;
+        return object(2, 0) + object(mapReferences, mapPrimitives)
+                + table(size)
+                + size * object(nodeReferences, Integer.BYTES);
+    }
+
+    /**
+     * Returns the size of a {@code LinkedHashMap} of {@code size} entries,
+     * not counting the keys and values.
+     *
+     * @param size
+     *            Number of entries
+     * @return the size
+     */
+    static long linkedHashMap(long size) {
+        final int mapReferences = 6;
+        final int mapPrimitives = 4 * Integer.BYTES + 1;
+        final int entryReferences = 5;
+        return object(mapReferences, mapPrimitives) + table(size)
+                + size * object(entryReferences, Integer.BYTES);
+    }
+
+    /**
+     * Returns the size of {@code str} and its characters.
+     *
+     * @param str
+     *            The string
+     * @return the size
+     */
+    static long string(String str) {
+        final int latin1Max = 0xFF;
+        final int fields = Integer.BYTES + 2;
+        int charBytes = 1;
+        int i = 0;
+        while (i < str.length() && charBytes == 1) {
+            if (str.charAt(i) > latin1Max) {
+                charBytes = 2;
+            }
+            i++;
+        }
+        return object(1, fields) + array(str.length(), charBytes);
+    }
+
+    /**
+     * Returns the size of one {@code Song}.
+     *
+     * @return the size
+     */
+    static long song() {
+        final int fields = 4;
+        return object(fields, 0);
+    }
+
+    /**
+     * Makes a report, counting the songs in {@code resident} and the strings
+     * they refer to.
+     *
+     * @param resident
+     *            The songs held
+     * @param storage
+     *            Bytes of the structures holding the songs in order
+     * @param indexes
+     *            Bytes of the structures for finding songs by value
+     * @param caches
+     *            Bytes of caches and views
+     * @param history
+     *            Bytes of the change history
+     * @param offHeap
+     *            The part of storage and indexes outside the Java heap
+     * @return the report
+     */
+    static MemoryReport of(Iterable<Song> resident, long storage,
+            long indexes, long caches, long history, long offHeap) {
+        IdentityHashMap<String, Boolean> counted =
+                new IdentityHashMap<String, Boolean>();
+        HashSet<String> values = new HashSet<String>();
+        long songs = 0;
+        long strings = 0;
+        long duplicates = 0;
+        for (Song song : resident) {
+            songs += song();
+            for (String str : new String[] { song.title(), song.artist(),
+                    song.album(), song.length() }) {
+                if (counted.put(str, Boolean.TRUE) == null) {
+                    long bytes = string(str);
+                    strings += bytes;
+                    if (!values.add(str)) {
+                        duplicates += bytes;
+                    }
+                }
+            }
+        }
+        return new MemoryReport(storage, songs, strings, duplicates, indexes,
+                caches, history, offHeap);
+    }
+
+    /**
+     * Returns the total estimated size, on and off the heap.
+     *
+     * @return the total, in bytes
+     */
+    public long total() {
+        return this.storage + this.songs + this.strings + this.indexes
+                + this.caches + this.history;
+    }
+
+    /**
+     * Returns the estimated size on the Java heap.
+     *
+     * @return the size, in bytes
+     */
+    public long heap() {
+        return this.total() - this.offHeap;
+    }
+
+    @Override
+    public String toString() {
+        String row = "%-20s%,16d bytes%n";
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(row, "storage", this.storage));
+        report.append(String.format(row, "songs", this.songs));
+        report.append(String.format(row, "strings", this.strings));
+        report.append(String.format(row, "  duplicate strings",
+                this.duplicateStrings));
+        report.append(String.format(row, "indexes", this.indexes));
+        report.append(String.format(row, "caches", this.caches));
+        report.append(String.format(row, "history", this.history));
+        report.append(String.format(row, "total", this.total()));
+        report.append(String.format(row, "  off heap", this.offHeap));
+        return report.toString();
+    }
+}
@@ -1,6 +1,10 @@
 package components.musicdatabase;
 
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 
 /**
  * {@code MusicDatabaseKernel} enhanced with secondary methods.
@@ -43,6 +47,97 @@ public interface MusicDatabase extends MusicDatabaseKernel {
      */
     void writeToFile(String outputPath);
 
+    /**
+     * Same as {@code writeToFile(outputPath)}, except that if {@code compress}
+     * is true the whole file is written as a GZIP stream.
+     *
+     * @param outputPath
+     *            Path to create the file in. If "", the file will be printed to
+     *            .\output\Music_Database.txt by default.
+     * @param compress
+     *            Whether the output should be GZIP compressed
+     * @requires {@code outputPath} is a valid file path and can be printed to,
+     *           or it is ""
+     * @ensures All songs in this are printed to the output file in the format
+     *          described by {@code writeToFile(outputPath)}, GZIP compressed if
+     *          {@code compress} is true.
+     */
+    void writeToFile(String outputPath, boolean compress);
+
+    /**
+     * Writes this to a tab delimited .txt file like {@code writeToFile}, but on
+     * a background thread. The songs in this are copied before returning, so
+     * this can keep being modified while the file is written. The file is
+     * written to a temporary file that replaces {@code outputPath} only once
+     * it is complete, so it is never left half written. If several exports to
+     * the same file are requested before the first one starts, they are
+     * written once, with the contents of this at the latest request.
+     *
+     * @param outputPath
+     *            Path to create the .txt in. If "", the .txt file will be
+     *            printed to .\output\Music_Database.txt by default.
+     * @return A future completed once the file has been written, or
+     *         completed exceptionally if writing it failed
+     * @requires {@code outputPath} is a valid file path and can be printed to,
+     *           or it is ""
+     * @ensures Once writeToFileAsync completes, the output file contains this
+     *          as of the call (or a later call to the same file), in the format
+     *          described by {@code writeToFile(outputPath)}.
+     */
+    CompletableFuture<Void> writeToFileAsync(String outputPath);
+
+    /**
+     * Writes the songs added to and removed from this since {@code sinceEpoch}
+     * to a tab delimited .txt file, so that another database holding this as
+     * of {@code sinceEpoch} can be brought up to date with
+     * {@code applyDelta(String)} without reading all of this. The first row
+     * contains "Delta", {@code sinceEpoch}, and the current epoch of this.
+     * Every row onwards contains "+" for an added song or "-" for a removed
+     * one, followed by its title, artist, album, and length.
+     *
+     * @param outputPath
+     *            Path to create the .txt in
+     * @param sinceEpoch
+     *            An epoch previously returned by {@code epoch()}
+     * @requires {@code outputPath} is a valid file path and can be printed to
+     *           AND [sinceEpoch is valid for {@code changesSince}]
+     * @ensures The output file contains changesSince(sinceEpoch) in the format
+     *          described above
+     */
+    void writeDelta(String outputPath, long sinceEpoch);
+
+    /**
+     * Reads a file written by {@code writeDelta} and applies it to this.
+     *
+     * @param inputPath
+     *            The path to the .txt file
+     * @return The epoch of the database the delta was written from, to pass
+     *         to its {@code writeDelta} next time, or -1 if the file could not
+     *         be read or has an invalid row, in which case this is unchanged
+     * @requires {@code inputPath} leads to a file written by
+     *           {@code writeDelta}
+     * @ensures this = #this with the songs removed in the delta removed and
+     *          the songs added in the delta added
+     * @updates this
+     */
+    long applyDelta(String inputPath);
+
+    /**
+     * Applies {@code delta} to this, removing every song in
+     * {@code delta.removed()} that is in this and adding every song in
+     * {@code delta.added()} that is not. Takes time linear in the size of
+     * delta if {@code contains} is an indexed lookup, and in the sizes of this
+     * and delta otherwise.
+     *
+     * @param delta
+     *            The changes to apply
+     * @requires delta != null
+     * @ensures this = (#this / delta.removed) * [the delta.added that were
+     *          not already in this]
+     * @updates this
+     */
+    void applyDelta(Delta delta);
+
     /**
      * Prints out the details of the given {@code song} with nice formatting.
      *
@@ -87,6 +182,45 @@ public interface MusicDatabase extends MusicDatabaseKernel {
      */
     MusicDatabase split(SearchField field, String value);
 
+    /**
+     * Splits this into one new database per distinct value of {@code field},
+     * in a single pass over this, and removes every song from this. Each
+     * database keeps its songs in the order they were in this.
+     *
+     * @param field
+     *            An enum that can be either "title", "artist", "length", or
+     *            "album"
+     * @return A map from each value of field in this to a new
+     *         {@code MusicDatabase} holding the songs with that value, in the
+     *         order each value first appeared in this
+     * @ensures [the values of partitionBy partition #this by field] AND this =
+     *          {}
+     * @updates this
+     */
+    Map<String, MusicDatabase> partitionBy(SearchField field);
+
+    /**
+     * Splits this into one new database per distinct key, in a single pass
+     * over this, and removes every song from this. Each database keeps its
+     * songs in the order they were in this.
+     *
+     * @param key
+     *            Computes the key of each song
+     * @param parallel
+     *            Whether to compute the keys and build the databases on
+     *            multiple threads
+     * @return A map from each key of a song in this to a new
+     *         {@code MusicDatabase} holding the songs with that key, in the
+     *         order each key first appeared in this
+     * @requires key != null AND [key never returns null] AND [if parallel,
+     *           key can be called from multiple threads at once]
+     * @ensures [the values of partitionBy partition #this by key] AND this =
+     *          {}
+     * @updates this
+     */
+    Map<String, MusicDatabase> partitionBy(Function<Song, String> key,
+            boolean parallel);
+
     /**
      * Adds to this the songs in db that are not already in this.
      *
@@ -99,6 +233,24 @@ public interface MusicDatabase extends MusicDatabaseKernel {
      */
     void append(MusicDatabase db);
 
+    /**
+     * Merges into this the songs in db that are not already in this, keeping
+     * this sorted. Since both are already sorted, this takes time linear in
+     * their sizes rather than a sort afterwards.
+     *
+     * @param db
+     *            The {@code MusicDatabase} to merge into this
+     * @param order
+     *            The order this and db are both sorted by
+     * @requires db != null AND [this is sorted by order] AND [db is sorted by
+     *           order]
+     * @ensures this = [#this and the db.entries that were not already in
+     *          this, sorted by order, with songs from #this first among songs
+     *          that order considers equal]
+     * @updates this
+     */
+    void append(MusicDatabase db, Comparator<Song> order);
+
     /**
      * Adds the songs in the given {@code ArrayList} to this if they are not
      * already in this.
@@ -112,10 +264,97 @@ public interface MusicDatabase extends MusicDatabaseKernel {
     void addEntries(ArrayList<Song> songs);
 
     /**
-     * Checks this and db for equality by comparing their string representations
-     * lexicographically.
+     * Makes a new database with every song in this followed by the songs in
+     * other that are not in this. Takes time linear in the sizes of this and
+     * other; other may be any {@code Iterable}, such as one streaming songs
+     * from a file, and is iterated over exactly once.
+     *
+     * @param other
+     *            The songs to combine with this
+     * @return A new {@code MusicDatabase} holding the songs in either
+     * @requires other != null
+     * @ensures union = this * [the songs in other that are not in this]
+     */
+    MusicDatabase union(Iterable<Song> other);
+
+    /**
+     * Makes a new database with the songs in this that are also in other, in
+     * the order they are in this. Takes time linear in the sizes of this and
+     * other; other may be any {@code Iterable} and is iterated over exactly
+     * once.
+     *
+     * @param other
+     *            The songs to intersect this with
+     * @return A new {@code MusicDatabase} holding the songs in both
+     * @requires other != null
+     * @ensures intersect = [the songs in this that are in other, in order]
+     */
+    MusicDatabase intersect(Iterable<Song> other);
+
+    /**
+     * Makes a new database with the songs in this that are not in other, in
+     * the order they are in this. Takes time linear in the sizes of this and
+     * other; other may be any {@code Iterable} and is iterated over exactly
+     * once.
+     *
+     * @param other
+     *            The songs to leave out
+     * @return A new {@code MusicDatabase} holding the songs only in this
+     * @requires other != null
+     * @ensures subtract = [the songs in this that are not in other, in order]
+     */
+    MusicDatabase subtract(Iterable<Song> other);
+
+    /**
+     * Reports what changed going from this to other: the songs only in other
+     * were added, and the songs only in this were removed, so that
+     * {@code applyDelta(diff(other))} makes this hold the songs in other.
+     * Takes time linear in the sizes of this and other; other may be any
+     * {@code Iterable} and is iterated over exactly once.
+     *
+     * @param other
+     *            The newer version of this
+     * @return The songs added and removed, in the order they are in other and
+     *         this respectively
+     * @requires other != null AND [other has no duplicates]
+     * @ensures diff = ([the songs in other that are not in this], [the songs
+     *          in this that are not in other])
+     */
+    Delta diff(Iterable<Song> other);
+
+    /**
+     * Writes the same rows as {@code toString} to {@code out}, in blocks of
+     * many rows at a time, without building the whole string first.
+     *
+     * @param out
+     *            Where to write the rows, such as a {@code Writer} or
+     *            {@code StringBuilder}
+     * @throws IllegalStateException
+     *             if out cannot be written to
+     * @requires out != null
+     * @ensures out = #out * [the rows of this.toString()]
+     * @updates out
+     */
+    void renderTo(Appendable out);
+
+    /**
+     * Estimates how much memory this retains, broken down into the storage of
+     * its songs, the {@code Song} records and their strings (including how
+     * much of that is duplicate strings), its indexes, caches, and change
+     * history, for sizing the heap a database of a given size needs.
+     *
+     * @return the estimate
+     * @ensures [memoryReport estimates the memory this retains]
+     */
+    MemoryReport memoryReport();
+
+    /**
+     * Checks this and db for equality: the same songs in the same order. Takes
+     * constant time when their fingerprints differ, and otherwise compares
+     * them song by song.
      *
      * @param db
+     *            The database to compare this to
      * @return true if this and db are equal
      * @ensures equals = true if this = db
      */
@@ -1,15 +1,33 @@
 package components.musicdatabase;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.ListIterator;
 import java.util.NoSuchElementException;
+import java.util.Set;
+
+import components.musicdatabase.MusicDatabaseEvents.ScanEvent;
+import components.musicdatabase.MusicDatabaseEvents.SortEvent;
 
 /**
  * {@code MusicDatabase} represented as an {@link java.util.ArrayList
  * java.util.ArrayList} with implementations of primary methods.
  *
+ * <p>
+ * This remembers the order it was last sorted by, for as long as the songs
+ * stay in that order, and skips sorting by it again. It can also keep sorted
+ * views (see {@code addView}): for each comparator registered, the positions
+ * of the songs in that order, kept up to date as songs are added and removed.
+ * A view can be read in order without sorting the songs themselves, and
+ * {@code sort} by a view's comparator just rearranges the songs to match it.
+ * Each view makes adding or removing a song cost time linear in the size of
+ * this, as removing already does.
+ *
  * @convention No songs in this are null. There are no duplicate {@code Song}
  *             objects in this. This only contains {@code Song} objects.
  * @correspondence this is represented as an ArrayList of {@code Song} objects
@@ -31,6 +49,278 @@ public class MusicDatabase1 extends MusicDatabaseSecondary {
      */
     private ArrayList<Song> db;
 
+    /**
+     * Modification epoch and history of changes to {@code db}.
+     */
+    private final ChangeTracker changes;
+
+    /**
+     * The order {@code db} is known to be in, or null if none is known.
+     */
+    private Comparator<Song> sortedBy;
+
+    /**
+     * Views kept up to date, by their comparator.
+     */
+    private final LinkedHashMap<Comparator<Song>, SortedView> views;
+
+    /**
+     * Positions in {@code db} of its songs in the order of one comparator,
+     * with songs that compare equal in the order they are in {@code db}, as a
+     * stable sort would leave them.
+     */
+    private static final class SortedView {
+
+        /**
+         * The order of the view.
+         */
+        private final Comparator<Song> order;
+
+        /**
+         * Positions in {@code db}, in order; only the first {@code size} are
+         * used.
+         */
+        private int[] positions;
+
+        /**
+         * Number of songs in the view.
+         */
+        private int size;
+
+        /**
+         * Constructor.
+         *
+         * @param order
+         *            The order of the view
+         * @param db
+         *            The songs
+         */
+        SortedView(Comparator<Song> order, ArrayList<Song> db) {
+            this.order = order;
+            this.rebuild(db);
+        }
+
+        /**
+         * Sorts the positions of every song in {@code db} again.
+         *
+         * @param db
+         *            The songs
+         */
+        void rebuild(ArrayList<Song> db) {
+            this.positions = sortedPositions(db, 0, this.order);
+            this.size = this.positions.length;
+        }
+
+        /**
+         * Makes room for {@code extra} more positions.
+         *
+         * @param extra
+         *            The number of positions to be added
+         */
+        private void grow(int extra) {
+            int needed = this.size + extra;
+            if (needed > this.positions.length) {
+                int capacity = Math.max(needed,
+                        this.positions.length + (this.positions.length >> 1));
+                this.positions = Arrays.copyOf(this.positions, capacity);
+            }
+        }
+
+        /**
+         * Adds the songs {@code db} has from position {@code from} on, which
+         * were just added to its end.
+         *
+         * @param db
+         *            The songs
+         * @param from
+         *            The position of the first song added
+         */
+        void added(ArrayList<Song> db, int from) {
+            int count = db.size() - from;
+            this.grow(count);
+            if (count == 1) {
+                /*
+                 * After every song that compares less or equal, by binary
+                 * search.
+                 */
+                Song song = db.get(from);
+                int low = 0;
+                int high = this.size;
+                while (low < high) {
+                    int mid = (low + high) >>> 1;
+                    if (this.order.compare(db.get(this.positions[mid]),
+                            song) <= 0) {
+                        low = mid + 1;
+                    } else {
+                        high = mid;
+                    }
+                }
+                System.arraycopy(this.positions, low, this.positions, low + 1,
+                        this.size - low);
+                this.positions[low] = from;
+            } else if (count > 1) {
+                /*
+                 * Merges the new songs, sorted, in from the end, putting them
+                 * after the old songs they compare equal to.
+                 */
+                int[] added = sortedPositions(db, from, this.order);
+                int old = this.size - 1;
+                int next = added.length - 1;
+                int to = this.size + added.length - 1;
+                while (next >= 0) {
+                    if (old >= 0 && this.order.compare(
+                            db.get(this.positions[old]),
+                            db.get(added[next])) > 0) {
+                        this.positions[to] = this.positions[old];
+                        old--;
+                    } else {
+                        this.positions[to] = added[next];
+                        next--;
+                    }
+                    to--;
+                }
+            }
+            this.size += count;
+        }
+
+        /**
+         * Removes the song that was at {@code position}, moving the songs
+         * after it back one position.
+         *
+         * @param position
+         *            The position removed
+         */
+        void removed(int position) {
+            int to = 0;
+            for (int i = 0; i < this.size; i++) {
+                int p = this.positions[i];
+                if (p != position) {
+                    if (p > position) {
+                        p--;
+                    }
+                    this.positions[to] = p;
+                    to++;
+                }
+            }
+            this.size = to;
+        }
+
+        /**
+         * Moves each song from position {@code p} to {@code moved[p]},
+         * removing it if that is negative.
+         *
+         * @param moved
+         *            The new position of each old position
+         */
+        void moved(int[] moved) {
+            int to = 0;
+            for (int i = 0; i < this.size; i++) {
+                int p = moved[this.positions[i]];
+                if (p >= 0) {
+                    this.positions[to] = p;
+                    to++;
+                }
+            }
+            this.size = to;
+        }
+
+        /**
+         * Puts songs that compare equal back in the order they are in
+         * {@code db}, after it was rearranged.
+         *
+         * @param db
+         *            The songs
+         */
+        void restoreTies(ArrayList<Song> db) {
+            int start = 0;
+            for (int i = 1; i <= this.size; i++) {
+                if (i == this.size || this.order.compare(
+                        db.get(this.positions[i - 1]),
+                        db.get(this.positions[i])) != 0) {
+                    if (i - start > 1) {
+                        Arrays.sort(this.positions, start, i);
+                    }
+                    start = i;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the positions in {@code db}, from {@code from} on, sorted
+     * stably by {@code order}.
+     *
+     * @param db
+     *            The songs
+     * @param from
+     *            The first position
+     * @param order
+     *            The order
+     * @return the positions
+     */
+    private static int[] sortedPositions(ArrayList<Song> db, int from,
+            Comparator<Song> order) {
+        Integer[] boxed = new Integer[db.size() - from];
+        for (int i = 0; i < boxed.length; i++) {
+            boxed[i] = from + i;
+        }
+        Arrays.sort(boxed, (p, q) -> order.compare(db.get(p), db.get(q)));
+        int[] positions = new int[boxed.length];
+        for (int i = 0; i < boxed.length; i++) {
+            positions[i] = boxed[i];
+        }
+        return positions;
+    }
+
+    /**
+     * Checks whether the songs from position {@code from} on, just added,
+     * are still in the order this was sorted by, and forgets that order if
+     * not. Then adds them to every view.
+     *
+     * @param from
+     *            The position of the first song added
+     */
+    private void added(int from) {
+        if (this.sortedBy != null) {
+            int i = Math.max(from, 1);
+            while (i < this.db.size() && this.sortedBy
+                    .compare(this.db.get(i - 1), this.db.get(i)) <= 0) {
+                i++;
+            }
+            if (i < this.db.size()) {
+                this.sortedBy = null;
+            }
+        }
+        for (SortedView view : this.views.values()) {
+            view.added(this.db, from);
+        }
+    }
+
+    /**
+     * Removes the song that was at {@code position} from every view.
+     *
+     * @param position
+     *            The position removed
+     */
+    private void removed(int position) {
+        for (SortedView view : this.views.values()) {
+            view.removed(position);
+        }
+    }
+
+    /**
+     * Returns the view kept for {@code order}.
+     *
+     * @param order
+     *            The order
+     * @return the view
+     */
+    private SortedView keptView(Comparator<Song> order) {
+        SortedView view = this.views.get(order);
+        assert view != null : "Violation of: a view is kept for order";
+        return view;
+    }
+
     /*
      * Constructors.
      */
@@ -39,6 +329,8 @@ public class MusicDatabase1 extends MusicDatabaseSecondary {
      * No-argument constructor.
      */
     public MusicDatabase1() {
+        this.changes = new ChangeTracker();
+        this.views = new LinkedHashMap<Comparator<Song>, SortedView>();
         this.createNewRep(DEFAULT_SIZE);
     }
 
@@ -50,6 +342,8 @@ public class MusicDatabase1 extends MusicDatabaseSecondary {
      *            The initial size of the underlying {@code ArrayList}
      */
     public MusicDatabase1(int size) {
+        this.changes = new ChangeTracker();
+        this.views = new LinkedHashMap<Comparator<Song>, SortedView>();
         this.createNewRep(size);
     }
 
@@ -62,6 +356,101 @@ public class MusicDatabase1 extends MusicDatabaseSecondary {
      */
     private void createNewRep(int initSize) {
         this.db = new ArrayList<Song>(initSize);
+        for (SortedView view : this.views.values()) {
+            view.rebuild(this.db);
+        }
+    }
+
+    /*
+     * --------------------------- Public methods -----------------------------
+     */
+
+    /**
+     * Returns the order this is known to be in: the one it was last sorted
+     * by, if every song added since came after the songs before it.
+     *
+     * @return the order, or null if none is known
+     */
+    public final Comparator<Song> sortedBy() {
+        return this.sortedBy;
+    }
+
+    /**
+     * Starts keeping a view of this sorted by {@code order}, if one is not
+     * kept already. Sorts the positions of the songs once; after that they
+     * are kept up to date as songs are added and removed.
+     *
+     * @param order
+     *            The order of the view
+     */
+    public final void addView(Comparator<Song> order) {
+        assert order != null : "Violation of: order != null";
+
+        if (!this.views.containsKey(order)) {
+            this.views.put(order, new SortedView(order, this.db));
+        }
+    }
+
+    /**
+     * Stops keeping the view sorted by {@code order}, if one is kept.
+     *
+     * @param order
+     *            The order of the view
+     */
+    public final void removeView(Comparator<Song> order) {
+        this.views.remove(order);
+    }
+
+    /**
+     * Returns the song at position {@code n} of the view sorted by
+     * {@code order}.
+     *
+     * @param order
+     *            The order of the view
+     * @param n
+     *            The position in that order
+     * @return the song
+     * @requires a view is kept for order AND 0 <= n < |this|
+     */
+    public final Song getEntryInView(Comparator<Song> order, int n) {
+        SortedView view = this.keptView(order);
+        assert 0 <= n && n < view.size : "Violation of: 0 <= n < |this|";
+
+        return this.db.get(view.positions[n]);
+    }
+
+    /**
+     * Returns the songs of this in the order of the view sorted by
+     * {@code order}, without sorting them. This must not be changed while
+     * they are being iterated over.
+     *
+     * @param order
+     *            The order of the view
+     * @return the songs, in that order
+     * @requires a view is kept for order
+     */
+    public final Iterable<Song> view(Comparator<Song> order) {
+        SortedView view = this.keptView(order);
+        return () -> new Iterator<Song>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return this.next < view.size;
+            }
+
+            @Override
+            public Song next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException(
+                            "ERROR: No more values in this");
+                }
+                Song song = MusicDatabase1.this.db
+                        .get(view.positions[this.next]);
+                this.next++;
+                return song;
+            }
+        };
     }
 
     // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
@@ -98,7 +487,9 @@ public class MusicDatabase1 extends MusicDatabaseSecondary {
                         + "Violation of: next() has been called at least "
                         + "once before this method.";
 
-                MusicDatabase1.this.db.remove(this.pos);
+                Song removed = MusicDatabase1.this.db.remove(this.pos);
+                MusicDatabase1.this.changes.removed(removed);
+                MusicDatabase1.this.removed(this.pos);
                 this.pos--;
 
                 this.nextCalled = false;
@@ -110,6 +501,7 @@ public class MusicDatabase1 extends MusicDatabaseSecondary {
     // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
     @Override
     public void clear() {
+        this.changes.removedAll(this.db);
         this.createNewRep(DEFAULT_SIZE);
     }
 
@@ -131,7 +523,15 @@ public class MusicDatabase1 extends MusicDatabaseSecondary {
          * execution in that case.
          */
         MusicDatabase1 temp = (MusicDatabase1) source;
+        long fingerprint = temp.changes.fingerprint();
+        this.changes.removedAll(this.db);
+        temp.changes.removedAll(temp.db);
         this.db = temp.db;
+        this.sortedBy = temp.sortedBy;
+        for (SortedView view : this.views.values()) {
+            view.rebuild(this.db);
+        }
+        this.changes.addedAll(this.db, fingerprint);
         temp.createNewRep(DEFAULT_SIZE);
     }
 
@@ -150,6 +550,97 @@ public class MusicDatabase1 extends MusicDatabaseSecondary {
         assert !this.db.contains(song) : "Violation of: song is not in this";
 
         this.db.add(song);
+        this.changes.added(song);
+        this.added(this.db.size() - 1);
+    }
+
+    /**
+     * Adds the whole batch with one {@code ArrayList.addAll}.
+     *
+     * @param songs
+     *            The songs to add
+     */
+    @Override
+    protected final void addNewEntries(Collection<Song> songs) {
+        int from = this.db.size();
+        this.db.addAll(songs);
+        this.changes.addedAll(songs);
+        this.added(from);
+    }
+
+    /**
+     * Merges in one pass, moving every view's positions along with the songs
+     * rather than sorting again.
+     *
+     * @param songs
+     *            The songs to merge in
+     * @param order
+     *            The order this and songs are both sorted by
+     */
+    @Override
+    protected final void mergeNewEntries(List<Song> songs,
+            Comparator<Song> order) {
+        int from = this.db.size();
+        Song[] merged = mergeSorted(this.db, from, songs, order);
+        this.db.addAll(songs);
+        this.changes.addedAll(songs);
+        int[] moved = null;
+        if (!this.views.isEmpty()) {
+            for (SortedView view : this.views.values()) {
+                view.added(this.db, from);
+            }
+            moved = new int[merged.length];
+            int old = 0;
+            int added = from;
+            for (int i = 0; i < merged.length; i++) {
+                if (old < from && merged[i].equals(this.db.get(old))) {
+                    moved[old] = i;
+                    old++;
+                } else {
+                    moved[added] = i;
+                    added++;
+                }
+            }
+        }
+        for (int i = 0; i < merged.length; i++) {
+            this.db.set(i, merged[i]);
+        }
+        if (moved != null) {
+            for (SortedView view : this.views.values()) {
+                view.moved(moved);
+                view.restoreTies(this.db);
+            }
+        }
+        this.sortedBy = order;
+    }
+
+    /**
+     * Removes the whole set with one {@code ArrayList.removeIf}.
+     *
+     * @param songs
+     *            The songs to remove
+     */
+    @Override
+    protected final void removeExistingEntries(Set<Song> songs) {
+        if (!this.views.isEmpty()) {
+            int[] moved = new int[this.db.size()];
+            int to = 0;
+            for (int i = 0; i < moved.length; i++) {
+                if (songs.contains(this.db.get(i))) {
+                    moved[i] = -1;
+                } else {
+                    moved[i] = to;
+                    to++;
+                }
+            }
+            for (SortedView view : this.views.values()) {
+                view.moved(moved);
+            }
+        }
+        this.db.removeIf(songs::contains);
+        for (Song song : songs) {
+            this.changes.removed(song);
+        }
     }
 
     // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
@@ -176,6 +667,8 @@ public class MusicDatabase1 extends MusicDatabaseSecondary {
             String value) {
         assert value != null : "Violation of: value != null";
 
+        ScanEvent event = new ScanEvent();
+        event.begin();
         ArrayList<Song> list = new ArrayList<Song>();
 
         for (Song song : this.db) {
@@ -209,6 +702,7 @@ public class MusicDatabase1 extends MusicDatabaseSecondary {
                 }
             }
         }
+        event.record(false, field, this.size(), list.size());
         return list;
     }
 
@@ -218,18 +712,30 @@ public class MusicDatabase1 extends MusicDatabaseSecondary {
             String value) {
         assert value != null : "Violation of: value != null";
 
+        ScanEvent event = new ScanEvent();
+        event.begin();
         ArrayList<Song> list = new ArrayList<Song>();
 
         ListIterator<Song> dbIt = this.db.listIterator();
+        /*
+         * Where each song ends up, for the views, if there are any.
+         */
+        int[] moved = null;
+        if (!this.views.isEmpty()) {
+            moved = new int[this.db.size()];
+        }
+        int position = 0;
 
         while (dbIt.hasNext()) {
             Song song = dbIt.next();
+            int removedBefore = list.size();
 
             switch (field) {
                 case TITLE: {
                     if (song.title().equals(value)) {
                         list.add(song);
                         dbIt.remove();
+                        this.changes.removed(song);
                     }
                     break;
                 }
@@ -237,6 +743,7 @@ public class MusicDatabase1 extends MusicDatabaseSecondary {
                     if (song.artist().equals(value)) {
                         list.add(song);
                         dbIt.remove();
+                        this.changes.removed(song);
                     }
                     break;
                 }
@@ -244,6 +751,7 @@ public class MusicDatabase1 extends MusicDatabaseSecondary {
                     if (song.album().equals(value)) {
                         list.add(song);
                         dbIt.remove();
+                        this.changes.removed(song);
                     }
                     break;
                 }
@@ -251,6 +759,7 @@ public class MusicDatabase1 extends MusicDatabaseSecondary {
                     if (song.length().equals(value)) {
                         list.add(song);
                         dbIt.remove();
+                        this.changes.removed(song);
                     }
                     break;
                 }
@@ -258,8 +767,22 @@ public class MusicDatabase1 extends MusicDatabaseSecondary {
                     break;
                 }
             }
+            if (moved != null) {
+                if (list.size() > removedBefore) {
+                    moved[position] = -1;
+                } else {
+                    moved[position] = position - list.size();
+                }
+            }
+            position++;
+        }
+        if (moved != null) {
+            for (SortedView view : this.views.values()) {
+                view.moved(moved);
+            }
         }
 
+        event.record(true, field, this.size() + list.size(), list.size());
         return list;
     }
 
@@ -268,7 +791,10 @@ public class MusicDatabase1 extends MusicDatabaseSecondary {
     public Song removeEntry(Song song) {
         assert this.db.contains(song) : "Violation of: song is in this";
 
-        this.db.remove(song);
+        int position = this.db.indexOf(song);
+        this.db.remove(position);
+        this.changes.removed(song);
+        this.removed(position);
         return song;
     }
 
@@ -287,7 +813,10 @@ public class MusicDatabase1 extends MusicDatabaseSecondary {
                     "ERROR: No element exists at the given position");
         }
 
-        return this.db.remove(n);
+        this.db.remove(n);
+        this.changes.removed(entry);
+        this.removed(n);
+        return entry;
     }
 
     // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
@@ -305,6 +834,82 @@ public class MusicDatabase1 extends MusicDatabaseSecondary {
     // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
     @Override
     public void sort(Comparator<Song> order) {
-        this.db.sort(order);
+        if (!order.equals(this.sortedBy)) {
+            SortEvent event = new SortEvent();
+            event.begin();
+            if (this.views.isEmpty()) {
+                this.db.sort(order);
+            } else {
+                /*
+                 * Rearranges the songs by the view for order, or by positions
+                 * sorted now if there is none, and moves every view's
+                 * positions along with them.
+                 */
+                int[] sorted;
+                SortedView kept = this.views.get(order);
+                if (kept != null) {
+                    sorted = Arrays.copyOf(kept.positions, kept.size);
+                } else {
+                    sorted = sortedPositions(this.db, 0, order);
+                }
+                Song[] songs = this.db.toArray(new Song[0]);
+                int[] moved = new int[sorted.length];
+                for (int i = 0; i < sorted.length; i++) {
+                    this.db.set(i, songs[sorted[i]]);
+                    moved[sorted[i]] = i;
+                }
+                for (SortedView view : this.views.values()) {
+                    view.moved(moved);
+                    view.restoreTies(this.db);
+                }
+            }
+            event.record(this.size(), order);
+            this.sortedBy = order;
+        }
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public long epoch() {
+        return this.changes.epoch();
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Delta changesSince(long epoch) {
+        return this.changes.changesSince(epoch);
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void forgetChangesBefore(long epoch) {
+        this.changes.forgetChangesBefore(epoch);
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public long fingerprint() {
+        return this.changes.fingerprint();
+    }
+
+    /**
+     * Counts the list of songs as storage, the views as caches, and the
+     * change history.
+     *
+     * @return the estimate
+     */
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public MemoryReport memoryReport() {
+        long views = 0;
+        if (!this.views.isEmpty()) {
+            views = MemoryReport.linkedHashMap(this.views.size());
+            for (SortedView view : this.views.values()) {
+                views += MemoryReport.object(2, Integer.BYTES) + MemoryReport
+                        .array(view.positions.length, Integer.BYTES);
+            }
+        }
+        return MemoryReport.of(this.db, MemoryReport.arrayList(this.db.size()),
+                0, views, this.changes.memoryBytes(), 0);
     }
 }
@@ -0,0 +1,1608 @@
+package components.musicdatabase;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import components.musicdatabase.MusicDatabaseEvents.ScanEvent;
+import components.musicdatabase.MusicDatabaseEvents.SortEvent;
+
+/**
+ * {@code MusicDatabase} whose songs live in memory-mapped segment files in a
+ * directory rather than on the heap, for catalogs too large to hold in memory.
+ * Only a small cache of recently read songs is kept on the heap, so the heap
+ * used does not grow with the size of the database.
+ *
+ * <p>
+ * The directory holds:
+ * <ul>
+ * <li>rows-*.seg: every song added, as a record holding its four fields and,
+ * for each field, links to the previous and next song with the same value in
+ * that field.</li>
+ * <li>order-*.seg: the position of each song's record, in database order.</li>
+ * <li>songs-*.seg: an open addressing hash table from each song to its record,
+ * used by {@code contains} and {@code removeEntry}.</li>
+ * <li>title-*.seg, artist-*.seg, album-*.seg, length-*.seg: an open
+ * addressing hash table from each value of that field to the first and last
+ * record holding it, used by {@code getEntries} and {@code removeEntries} to
+ * visit only the matching songs.</li>
+ * <li>meta-*.seg: the size of the database and of each file.</li>
+ * </ul>
+ * A database constructed with a directory keeps its songs there after it is
+ * closed and reopens them when constructed with the same directory again. The
+ * files are only guaranteed to be consistent after {@code close} or
+ * {@code sync}; wrap this in a {@code JournaledMusicDatabase} for crash
+ * safety. Space used by removed songs is not reclaimed until {@code clear}.
+ *
+ * @convention [every song in the order file has a record in the rows files,
+ *             an entry in the songs table, and is linked into the chain of its
+ *             value in each field table, in database order] AND [there are no
+ *             duplicate songs]
+ * @correspondence this = [the songs whose records are in the order file, in
+ *                 that order]
+ */
+public class MusicDatabase2 extends MusicDatabaseSecondary
+        implements Closeable {
+
+    /*
+     * Private members.
+     */
+
+    /**
+     * Default number of songs kept in the on-heap cache.
+     */
+    public static final int DEFAULT_CACHE_SIZE = 4096;
+
+    /**
+     * log2 of the size of each segment file, in bytes (8MB).
+     */
+    private static final int SEGMENT_BITS = 23;
+
+    /**
+     * Identifies a directory written by this class.
+     */
+    private static final long MAGIC = 0x4D75736963444232L;
+
+    /**
+     * Number of fields in a song.
+     */
+    private static final int FIELDS = 4;
+
+    /**
+     * Bytes at the start of a record holding the next and previous links for
+     * each field.
+     */
+    private static final int LINK_BYTES = FIELDS * 2 * Long.BYTES;
+
+    /**
+     * Slot size of the songs table: hash, record.
+     */
+    private static final int SONG_SLOT = 2 * Long.BYTES;
+
+    /**
+     * Slot size of the field tables: hash, first record, last record, count.
+     */
+    private static final int VALUE_SLOT = 4 * Long.BYTES;
+
+    /**
+     * Smallest number of slots in a table.
+     */
+    private static final long MIN_TABLE_SLOTS = 1024;
+
+    /**
+     * A table is grown once more than this many tenths of its slots are used
+     * or were used.
+     */
+    private static final int MAX_LOAD_TENTHS = 7;
+
+    /**
+     * Record link or table slot reference meaning no record. Records start
+     * after the first 8 bytes of the rows files so no record is at 0.
+     */
+    private static final long NONE = 0;
+
+    /**
+     * Table slot reference meaning the slot was used and then removed.
+     */
+    private static final long TOMBSTONE = -1;
+
+    /**
+     * Number of songs sorted on the heap at a time by {@code sort}.
+     */
+    private static final int SORT_RUN = 1 << 16;
+
+    /**
+     * Meta file position of the number of songs.
+     */
+    private static final int META_SIZE = Long.BYTES;
+
+    /**
+     * Meta file position of the end of the rows files.
+     */
+    private static final int META_DATA_END = 2 * Long.BYTES;
+
+    /**
+     * Meta file position of the generation of the order file.
+     */
+    private static final int META_ORDER_GEN = 3 * Long.BYTES;
+
+    /**
+     * Meta file position of the first table's metadata; each table's takes 4
+     * longs.
+     */
+    private static final int META_TABLES = 4 * Long.BYTES;
+
+    /**
+     * Meta file position of the fingerprint, saved by {@code sync}.
+     */
+    private static final int META_FINGERPRINT = META_TABLES
+            + (FIELDS + 1) * 4 * Long.BYTES;
+
+    /**
+     * log2 of the size of the meta file.
+     */
+    private static final int META_BITS = 12;
+
+    /**
+     * Names of the field tables' files, indexed like {@code SearchField}.
+     */
+    private static final String[] FIELD_NAMES = {"title", "artist", "length",
+            "album" };
+
+    /**
+     * Deletes temporary directories once their database is unreachable.
+     */
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    /**
+     * Temporary directories not yet deleted, deleted at exit if their
+     * databases are never closed or collected.
+     */
+    private static final Set<Path> TEMPORARY = ConcurrentHashMap.newKeySet();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            for (Path dir : TEMPORARY) {
+                deleteDirectory(dir);
+            }
+        }, "MusicDatabase2-cleanup"));
+    }
+
+    /**
+     * An open addressing hash table stored in segment files, whose slot count
+     * and usage are kept in the meta file.
+     */
+    private static final class Table {
+
+        /**
+         * Directory holding the table's files.
+         */
+        private final Path directory;
+
+        /**
+         * Prefix of the table's file names.
+         */
+        private final String name;
+
+        /**
+         * Size of each slot, in bytes.
+         */
+        private final int slotSize;
+
+        /**
+         * Meta file holding the table's metadata.
+         */
+        private final MappedSegments meta;
+
+        /**
+         * Position of the table's metadata in the meta file.
+         */
+        private final int metaPos;
+
+        /**
+         * The slots.
+         */
+        private MappedSegments slots;
+
+        /**
+         * Number of slots, a power of two.
+         */
+        private long capacity;
+
+        /**
+         * Number of slots in use.
+         */
+        private long used;
+
+        /**
+         * Number of slots that were used and then removed.
+         */
+        private long tombstones;
+
+        /**
+         * Incremented every time the table is grown into new files.
+         */
+        private long generation;
+
+        /**
+         * Constructor. Opens the table described in the meta file, or creates
+         * an empty one if there isn't one.
+         *
+         * @param directory
+         *            Directory holding the table's files
+         * @param name
+         *            Prefix of the table's file names
+         * @param slotSize
+         *            Size of each slot, in bytes
+         * @param meta
+         *            The meta file
+         * @param metaPos
+         *            Position of the table's metadata in the meta file
+         * @throws IOException
+         *             if the files cannot be mapped
+         */
+        Table(Path directory, String name, int slotSize, MappedSegments meta,
+                int metaPos) throws IOException {
+            final int three = 3;
+            this.directory = directory;
+            this.name = name;
+            this.slotSize = slotSize;
+            this.meta = meta;
+            this.metaPos = metaPos;
+            this.generation = meta.getLong(metaPos);
+            this.capacity = meta.getLong(metaPos + Long.BYTES);
+            this.used = meta.getLong(metaPos + 2 * Long.BYTES);
+            this.tombstones = meta.getLong(metaPos + three * Long.BYTES);
+            if (this.capacity == 0) {
+                this.capacity = MIN_TABLE_SLOTS;
+            }
+            this.slots = this.open(this.generation, this.capacity);
+            this.save();
+        }
+
+        /**
+         * Maps the files of one generation of the table.
+         *
+         * @param gen
+         *            The generation
+         * @param slotCount
+         *            Number of slots
+         * @return the mapped slots
+         * @throws IOException
+         *             if the files cannot be mapped
+         */
+        private MappedSegments open(long gen, long slotCount)
+                throws IOException {
+            long bytes = slotCount * this.slotSize;
+            int bits = Math.min(SEGMENT_BITS,
+                    Long.numberOfTrailingZeros(Long.highestOneBit(bytes)));
+            MappedSegments mapped = new MappedSegments(this.directory,
+                    this.name + "-g" + gen, bits);
+            mapped.ensureCapacity(bytes);
+            return mapped;
+        }
+
+        /**
+         * Writes the table's metadata to the meta file.
+         */
+        private void save() {
+            final int three = 3;
+            this.meta.putLong(this.metaPos, this.generation);
+            this.meta.putLong(this.metaPos + Long.BYTES, this.capacity);
+            this.meta.putLong(this.metaPos + 2 * Long.BYTES, this.used);
+            this.meta.putLong(this.metaPos + three * Long.BYTES,
+                    this.tombstones);
+        }
+
+        /**
+         * Returns the position of a slot's first byte.
+         *
+         * @param slot
+         *            The slot
+         * @return its position
+         */
+        long pos(long slot) {
+            return slot * this.slotSize;
+        }
+
+        /**
+         * Returns the slot after {@code slot}, wrapping around.
+         *
+         * @param slot
+         *            The slot
+         * @return the next slot
+         */
+        long next(long slot) {
+            return (slot + 1) & (this.capacity - 1);
+        }
+
+        /**
+         * Returns the slot probing for {@code hash} starts at.
+         *
+         * @param hash
+         *            The hash
+         * @return the first slot to probe
+         */
+        long first(long hash) {
+            return hash & (this.capacity - 1);
+        }
+
+        /**
+         * Returns the hash stored in a slot.
+         *
+         * @param slot
+         *            The slot
+         * @return its hash
+         */
+        long hash(long slot) {
+            return this.slots.getLong(this.pos(slot));
+        }
+
+        /**
+         * Returns the record referenced by a slot, {@code NONE} if it is
+         * empty, or {@code TOMBSTONE} if it was removed.
+         *
+         * @param slot
+         *            The slot
+         * @return its record
+         */
+        long ref(long slot) {
+            return this.slots.getLong(this.pos(slot) + Long.BYTES);
+        }
+
+        /**
+         * Returns the first empty or removed slot probing for {@code hash}
+         * finds.
+         *
+         * @param hash
+         *            The hash
+         * @return the slot to insert into
+         */
+        long free(long hash) {
+            long slot = this.first(hash);
+            long ref = this.ref(slot);
+            while (ref != NONE && ref != TOMBSTONE) {
+                slot = this.next(slot);
+                ref = this.ref(slot);
+            }
+            return slot;
+        }
+
+        /**
+         * Marks a slot as used by {@code hash} and {@code ref}.
+         *
+         * @param slot
+         *            A slot returned by {@code free}
+         * @param hash
+         *            The hash
+         * @param ref
+         *            The record
+         */
+        void use(long slot, long hash, long ref) {
+            if (this.ref(slot) == TOMBSTONE) {
+                this.tombstones--;
+            }
+            this.slots.putLong(this.pos(slot), hash);
+            this.slots.putLong(this.pos(slot) + Long.BYTES, ref);
+            this.used++;
+            this.save();
+        }
+
+        /**
+         * Marks a slot as removed.
+         *
+         * @param slot
+         *            A used slot
+         */
+        void remove(long slot) {
+            this.slots.putLong(this.pos(slot) + Long.BYTES, TOMBSTONE);
+            this.used--;
+            this.tombstones++;
+            this.save();
+        }
+
+        /**
+         * Grows (or cleans out) the table, if necessary, so that
+         * {@code extra} more slots can be used without going over the
+         * maximum load.
+         *
+         * @param extra
+         *            Number of slots about to be used
+         * @throws IOException
+         *             if the new files cannot be mapped
+         */
+        void reserve(long extra) throws IOException {
+            final int ten = 10;
+            if ((this.used + this.tombstones + extra) * ten <= this.capacity
+                    * MAX_LOAD_TENTHS) {
+                return;
+            }
+
+            long newCapacity = this.capacity;
+            while ((this.used + extra) * ten > newCapacity * MAX_LOAD_TENTHS
+                    / 2) {
+                newCapacity *= 2;
+            }
+            long newGeneration = this.generation + 1;
+            MappedSegments newSlots = this.open(newGeneration, newCapacity);
+            MappedSegments oldSlots = this.slots;
+            long oldCapacity = this.capacity;
+
+            this.slots = newSlots;
+            this.capacity = newCapacity;
+            for (long slot = 0; slot < oldCapacity; slot++) {
+                long oldPos = slot * this.slotSize;
+                long ref = oldSlots.getLong(oldPos + Long.BYTES);
+                if (ref != NONE && ref != TOMBSTONE) {
+                    long hash = oldSlots.getLong(oldPos);
+                    long newPos = this.pos(this.free(hash));
+                    for (int i = 0; i < this.slotSize; i += Long.BYTES) {
+                        newSlots.putLong(newPos + i,
+                                oldSlots.getLong(oldPos + i));
+                    }
+                }
+            }
+            this.tombstones = 0;
+            this.generation = newGeneration;
+            this.save();
+            oldSlots.delete();
+        }
+
+        /**
+         * Forces the table out to its files.
+         */
+        void force() {
+            this.slots.force();
+        }
+
+        /**
+         * Deletes the table's files. This must not be used afterwards.
+         *
+         * @throws IOException
+         *             if the files cannot be deleted
+         */
+        void delete() throws IOException {
+            this.slots.delete();
+        }
+    }
+
+    /**
+     * Every file of the database, mapped.
+     */
+    private static final class Store {
+
+        /**
+         * Sizes and table metadata.
+         */
+        private final MappedSegments meta;
+
+        /**
+         * Song records.
+         */
+        private final MappedSegments rows;
+
+        /**
+         * Record of each position.
+         */
+        private MappedSegments order;
+
+        /**
+         * Table from each song to its record.
+         */
+        private final Table songs;
+
+        /**
+         * Table from each value of each field to its records, indexed like
+         * {@code SearchField}.
+         */
+        private final Table[] fields;
+
+        /**
+         * Constructor. Opens the files in {@code directory}, creating empty
+         * ones if there aren't any.
+         *
+         * @param directory
+         *            The directory
+         * @throws IOException
+         *             if the files cannot be mapped, or the directory holds
+         *             something else
+         */
+        Store(Path directory) throws IOException {
+            this.meta = new MappedSegments(directory, "meta", META_BITS);
+            this.meta.ensureCapacity(1);
+            if (this.meta.getLong(0) == 0) {
+                this.meta.putLong(0, MAGIC);
+                this.meta.putLong(META_DATA_END, Long.BYTES);
+            } else if (this.meta.getLong(0) != MAGIC) {
+                throw new IOException(
+                        "ERROR: " + directory + " is not a MusicDatabase2");
+            }
+
+            this.rows = new MappedSegments(directory, "rows", SEGMENT_BITS);
+            this.order = new MappedSegments(directory,
+                    "order-g" + this.meta.getLong(META_ORDER_GEN),
+                    SEGMENT_BITS);
+            this.songs = new Table(directory, "songs", SONG_SLOT, this.meta,
+                    META_TABLES);
+            this.fields = new Table[FIELDS];
+            for (int f = 0; f < FIELDS; f++) {
+                this.fields[f] = new Table(directory, FIELD_NAMES[f],
+                        VALUE_SLOT, this.meta,
+                        META_TABLES + (f + 1) * 4 * Long.BYTES);
+            }
+        }
+
+        /**
+         * Forces every file out to disk.
+         */
+        void force() {
+            this.rows.force();
+            this.order.force();
+            this.songs.force();
+            for (Table table : this.fields) {
+                table.force();
+            }
+            this.meta.force();
+        }
+
+        /**
+         * Deletes every file. This must not be used afterwards.
+         *
+         * @throws IOException
+         *             if the files cannot be deleted
+         */
+        void delete() throws IOException {
+            this.rows.delete();
+            this.order.delete();
+            this.songs.delete();
+            for (Table table : this.fields) {
+                table.delete();
+            }
+            this.meta.delete();
+        }
+    }
+
+    /**
+     * Directory holding the files.
+     */
+    private final Path directory;
+
+    /**
+     * Representation of {@code this}.
+     */
+    private Store store;
+
+    /**
+     * Recently read songs, keyed by record, least recently used first.
+     */
+    private final LinkedHashMap<Long, Song> cache;
+
+    /**
+     * Scratch buffer for decoding records.
+     */
+    private byte[] scratch;
+
+    /**
+     * Modification epoch and history of changes to {@code store}.
+     */
+    private final ChangeTracker changes;
+
+    /**
+     * Deletes the directory once this is unreachable, if it is temporary, or
+     * null.
+     */
+    private final Cleaner.Cleanable cleanable;
+
+    /*
+     * Constructors.
+     */
+
+    /**
+     * No-argument constructor. The songs are kept in a temporary directory
+     * that is deleted when this is closed or garbage collected.
+     *
+     * @throws IllegalStateException
+     *             if the temporary directory cannot be created
+     */
+    public MusicDatabase2() {
+        try {
+            this.directory = Files.createTempDirectory("musicdatabase");
+        } catch (IOException e) {
+            throw new IllegalStateException(
+                    "ERROR: Cannot create temporary directory", e);
+        }
+        Path dir = this.directory;
+        TEMPORARY.add(dir);
+        this.cleanable = CLEANER.register(this, () -> {
+            TEMPORARY.remove(dir);
+            deleteDirectory(dir);
+        });
+        this.cache = newCache(DEFAULT_CACHE_SIZE);
+        this.createNewRep();
+        this.changes = new ChangeTracker();
+    }
+
+    /**
+     * Constructor that keeps the songs in {@code directory}, reopening any
+     * songs already there.
+     *
+     * @param directory
+     *            Directory to keep the songs in
+     * @param cacheSize
+     *            Number of songs to keep in the on-heap cache
+     * @throws IllegalStateException
+     *             if the directory cannot be read or written
+     * @requires cacheSize > 0 AND directory is empty or was written by
+     *           {@code MusicDatabase2}
+     */
+    public MusicDatabase2(String directory, int cacheSize) {
+        assert directory != null : "Violation of: directory != null";
+        assert cacheSize > 0 : "Violation of: cacheSize > 0";
+
+        this.directory = Paths.get(directory);
+        this.cleanable = null;
+        this.cache = newCache(cacheSize);
+        try {
+            Files.createDirectories(this.directory);
+        } catch (IOException e) {
+            throw new IllegalStateException(
+                    "ERROR: Cannot create " + directory, e);
+        }
+        this.createNewRep();
+        this.changes = new ChangeTracker(
+                this.store.meta.getLong(META_FINGERPRINT));
+    }
+
+    /**
+     * Creates a least recently used cache.
+     *
+     * @param cacheSize
+     *            Number of songs to keep
+     * @return the cache
+     */
+    private static LinkedHashMap<Long, Song> newCache(int cacheSize) {
+        final float loadFactor = 0.75f;
+        return new LinkedHashMap<Long, Song>(cacheSize, loadFactor, true) {
+            /**
+             * Serialization is not used.
+             */
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Song> eldest) {
+                return this.size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Creator of initial representation, opening whatever is in
+     * {@code directory}.
+     */
+    private void createNewRep() {
+        try {
+            this.store = new Store(this.directory);
+        } catch (IOException e) {
+            throw new IllegalStateException(
+                    "ERROR: Cannot open " + this.directory, e);
+        }
+        this.cache.clear();
+        this.scratch = new byte[FIELDS];
+    }
+
+    /**
+     * Deletes a directory and everything in it, ignoring failures.
+     *
+     * @param dir
+     *            The directory
+     */
+    private static void deleteDirectory(Path dir) {
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(dir);
+        } catch (IOException e) {
+            dir.toFile().deleteOnExit();
+        }
+    }
+
+    /*
+     * ------------------------------- Records --------------------------------
+     */
+
+    /**
+     * 64 bit hash of a string.
+     *
+     * @param str
+     *            The string
+     * @return its hash
+     */
+    private static long hash(String str) {
+        final long prime = 0x100000001B3L;
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < str.length(); i++) {
+            h = (h ^ str.charAt(i)) * prime;
+        }
+        return mix(h);
+    }
+
+    /**
+     * 64 bit hash of a song.
+     *
+     * @param song
+     *            The song
+     * @return its hash
+     */
+    private static long hash(Song song) {
+        final long prime = 0x9E3779B97F4A7C15L;
+        long h = hash(song.title());
+        h = h * prime + hash(song.artist());
+        h = h * prime + hash(song.album());
+        h = h * prime + hash(song.length());
+        return mix(h);
+    }
+
+    /**
+     * Scrambles the bits of a hash (the finalizer of SplitMix64).
+     *
+     * @param hash
+     *            The hash
+     * @return the scrambled hash
+     */
+    private static long mix(long hash) {
+        final int shift1 = 30;
+        final int shift2 = 27;
+        final int shift3 = 31;
+        final long mult1 = 0xBF58476D1CE4E5B9L;
+        final long mult2 = 0x94D049BB133111EBL;
+        long h = (hash ^ (hash >>> shift1)) * mult1;
+        h = (h ^ (h >>> shift2)) * mult2;
+        return h ^ (h >>> shift3);
+    }
+
+    /**
+     * Returns the value of one field of a song.
+     *
+     * @param song
+     *            The song
+     * @param f
+     *            The field's index, like {@code SearchField}
+     * @return the value
+     */
+    private static String field(Song song, int f) {
+        final int three = 3;
+        String value;
+        if (f == 0) {
+            value = song.title();
+        } else if (f == 1) {
+            value = song.artist();
+        } else if (f == 2) {
+            value = song.length();
+        } else {
+            assert f == three : "Violation of: f < 4";
+            value = song.album();
+        }
+        return value;
+    }
+
+    /**
+     * Returns the position of a record's link to the next or previous record
+     * with the same value in a field.
+     *
+     * @param rec
+     *            The record
+     * @param f
+     *            The field's index
+     * @param prev
+     *            true for the previous link, false for the next
+     * @return the position of the link
+     */
+    private static long link(long rec, int f, boolean prev) {
+        long pos = rec + f * 2L * Long.BYTES;
+        if (prev) {
+            pos += Long.BYTES;
+        }
+        return pos;
+    }
+
+    /**
+     * Writes a new record for {@code song} at the end of the rows files.
+     *
+     * @param song
+     *            The song
+     * @return the new record
+     * @throws IOException
+     *             if the rows files cannot be grown
+     */
+    private long writeRecord(Song song) throws IOException {
+        MappedSegments rows = this.store.rows;
+        byte[][] values = new byte[FIELDS][];
+        int length = LINK_BYTES;
+        for (int f = 0; f < FIELDS; f++) {
+            values[f] = field(song, f).getBytes(StandardCharsets.UTF_8);
+            length += Integer.BYTES + values[f].length;
+        }
+        length = (length + Long.BYTES - 1) & -Long.BYTES;
+        assert length <= rows.segmentSize() : ""
+                + "Violation of: song fits in one segment";
+
+        long rec = this.store.meta.getLong(META_DATA_END);
+        if (!rows.fitsInSegment(rec, length)) {
+            rec = (rec + rows.segmentSize() - 1) & -rows.segmentSize();
+        }
+        rows.ensureCapacity(rec + length);
+
+        for (int i = 0; i < LINK_BYTES; i += Long.BYTES) {
+            rows.putLong(rec + i, NONE);
+        }
+        long pos = rec + LINK_BYTES;
+        for (byte[] value : values) {
+            rows.putInt(pos, value.length);
+            pos += Integer.BYTES;
+            rows.put(pos, value);
+            pos += value.length;
+        }
+        this.store.meta.putLong(META_DATA_END, rec + length);
+        return rec;
+    }
+
+    /**
+     * Reads one field of a record.
+     *
+     * @param rec
+     *            The record
+     * @param f
+     *            The field's index
+     * @return the value
+     */
+    private String readField(long rec, int f) {
+        MappedSegments rows = this.store.rows;
+        long pos = rec + LINK_BYTES;
+        for (int i = 0; i < f; i++) {
+            pos += Integer.BYTES + rows.getInt(pos);
+        }
+        int length = rows.getInt(pos);
+        if (this.scratch.length < length) {
+            this.scratch = new byte[length];
+        }
+        rows.get(pos + Integer.BYTES, this.scratch, length);
+        return new String(this.scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a record, from the cache if it is there.
+     *
+     * @param rec
+     *            The record
+     * @return the song
+     */
+    private Song readRecord(long rec) {
+        final int three = 3;
+        Song song = this.cache.get(rec);
+        if (song == null) {
+            String[] values = new String[FIELDS];
+            for (int f = 0; f < FIELDS; f++) {
+                values[f] = this.readField(rec, f);
+            }
+            song = new Song(values[0], values[1], values[three], values[2]);
+            this.cache.put(rec, song);
+        }
+        return song;
+    }
+
+    /**
+     * Returns the record at a position.
+     *
+     * @param n
+     *            The position
+     * @return the record
+     */
+    private long recordAt(long n) {
+        return this.store.order.getLong(n * Long.BYTES);
+    }
+
+    /*
+     * -------------------------------- Tables --------------------------------
+     */
+
+    /**
+     * Finds the songs table slot holding {@code song}.
+     *
+     * @param song
+     *            The song
+     * @param hash
+     *            Its hash
+     * @return the slot, or -1 if song is not in this
+     */
+    private long findSong(Song song, long hash) {
+        Table songs = this.store.songs;
+        long slot = songs.first(hash);
+        long ref = songs.ref(slot);
+        long found = -1;
+        while (found < 0 && ref != NONE) {
+            if (ref != TOMBSTONE && songs.hash(slot) == hash
+                    && this.readRecord(ref).equals(song)) {
+                found = slot;
+            }
+            slot = songs.next(slot);
+            ref = songs.ref(slot);
+        }
+        return found;
+    }
+
+    /**
+     * Finds the slot of a field table holding {@code value}.
+     *
+     * @param f
+     *            The field's index
+     * @param value
+     *            The value
+     * @param hash
+     *            Its hash
+     * @return the slot, or -1 if no song in this has value in field f
+     */
+    private long findValue(int f, String value, long hash) {
+        Table table = this.store.fields[f];
+        long slot = table.first(hash);
+        long ref = table.ref(slot);
+        long found = -1;
+        while (found < 0 && ref != NONE) {
+            if (ref != TOMBSTONE && table.hash(slot) == hash
+                    && this.readField(ref, f).equals(value)) {
+                found = slot;
+            }
+            slot = table.next(slot);
+            ref = table.ref(slot);
+        }
+        return found;
+    }
+
+    /**
+     * Links a record to the end of the chain of its value in field f,
+     * starting the chain if there isn't one.
+     *
+     * @param rec
+     *            The record
+     * @param f
+     *            The field's index
+     * @param value
+     *            The record's value in field f
+     * @throws IOException
+     *             if the table cannot be grown
+     */
+    private void linkValue(long rec, int f, String value) throws IOException {
+        final int three = 3;
+        Table table = this.store.fields[f];
+        MappedSegments rows = this.store.rows;
+        long hash = hash(value);
+        long slot = this.findValue(f, value, hash);
+        if (slot < 0) {
+            table.reserve(1);
+            slot = table.free(hash);
+            table.use(slot, hash, rec);
+            long pos = table.pos(slot);
+            table.slots.putLong(pos + 2 * Long.BYTES, rec);
+            table.slots.putLong(pos + three * Long.BYTES, 1);
+        } else {
+            long pos = table.pos(slot);
+            long tail = table.slots.getLong(pos + 2 * Long.BYTES);
+            if (tail == NONE) {
+                /*
+                 * Only while sort relinks every chain: the chain is being
+                 * rebuilt from scratch.
+                 */
+                table.slots.putLong(pos + Long.BYTES, rec);
+            } else {
+                rows.putLong(link(tail, f, false), rec);
+            }
+            rows.putLong(link(rec, f, true), tail);
+            rows.putLong(link(rec, f, false), NONE);
+            table.slots.putLong(pos + 2 * Long.BYTES, rec);
+            table.slots.putLong(pos + three * Long.BYTES,
+                    table.slots.getLong(pos + three * Long.BYTES) + 1);
+        }
+    }
+
+    /**
+     * Unlinks a record from the chain of its value in field f, removing the
+     * value from the table if it was the last record with it.
+     *
+     * @param rec
+     *            The record
+     * @param f
+     *            The field's index
+     */
+    private void unlinkValue(long rec, int f) {
+        final int three = 3;
+        Table table = this.store.fields[f];
+        MappedSegments rows = this.store.rows;
+        String value = this.readField(rec, f);
+        long slot = this.findValue(f, value, hash(value));
+        long pos = table.pos(slot);
+        long count = table.slots.getLong(pos + three * Long.BYTES) - 1;
+        if (count == 0) {
+            table.remove(slot);
+        } else {
+            long prev = rows.getLong(link(rec, f, true));
+            long next = rows.getLong(link(rec, f, false));
+            if (prev == NONE) {
+                table.slots.putLong(pos + Long.BYTES, next);
+            } else {
+                rows.putLong(link(prev, f, false), next);
+            }
+            if (next == NONE) {
+                table.slots.putLong(pos + 2 * Long.BYTES, prev);
+            } else {
+                rows.putLong(link(next, f, true), prev);
+            }
+            table.slots.putLong(pos + three * Long.BYTES, count);
+        }
+    }
+
+    /**
+     * Removes a record from the songs table and every field table. It stays
+     * in the order file.
+     *
+     * @param rec
+     *            The record
+     * @param song
+     *            The record's song
+     */
+    private void unlinkRecord(long rec, Song song) {
+        this.store.songs.remove(this.findSong(song, hash(song)));
+        for (int f = 0; f < FIELDS; f++) {
+            this.unlinkValue(rec, f);
+        }
+        this.cache.remove(rec);
+    }
+
+    /**
+     * Removes the position {@code n} from the order file, moving every later
+     * position down by one.
+     *
+     * @param n
+     *            The position
+     */
+    private void removePosition(long n) {
+        MappedSegments order = this.store.order;
+        long size = this.store.meta.getLong(META_SIZE);
+        for (long i = n + 1; i < size; i++) {
+            order.putLong((i - 1) * Long.BYTES, order.getLong(i * Long.BYTES));
+        }
+        this.store.meta.putLong(META_SIZE, size - 1);
+    }
+
+    /*
+     * ---------------------------- Public methods ----------------------------
+     */
+
+    /**
+     * Forces every file out to disk, so the directory holds this as it is now.
+     */
+    public final void sync() {
+        this.store.meta.putLong(META_FINGERPRINT, this.changes.fingerprint());
+        this.store.force();
+    }
+
+    /**
+     * Forces every file out to disk, and deletes them if this was constructed
+     * without a directory. This must not be used afterwards.
+     */
+    @Override
+    public final void close() {
+        this.sync();
+        if (this.cleanable != null) {
+            this.cleanable.clean();
+        }
+    }
+
+    /*
+     * ---------------------------- Kernel methods ----------------------------
+     */
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Iterator<Song> iterator() {
+        Iterator<Song> it = new Iterator<Song>() {
+            private int pos = -1;
+            private boolean nextCalled = false;
+
+            @Override
+            public boolean hasNext() {
+                return (this.pos + 1) < MusicDatabase2.this.size();
+            }
+
+            @Override
+            public Song next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException(
+                            "ERROR: No more values in this");
+                }
+                this.pos++;
+                this.nextCalled = true;
+                return MusicDatabase2.this
+                        .readRecord(MusicDatabase2.this.recordAt(this.pos));
+            }
+
+            @Override
+            public void remove() {
+                assert this.nextCalled : ""
+                        + "Violation of: next() has been called at least "
+                        + "once before this method.";
+
+                MusicDatabase2.this.removeEntryByOrder(this.pos);
+                this.pos--;
+                this.nextCalled = false;
+            }
+        };
+        return it;
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void clear() {
+        this.changes.removedAll(this);
+        try {
+            this.store.delete();
+        } catch (IOException e) {
+            throw new IllegalStateException(
+                    "ERROR: Cannot delete " + this.directory, e);
+        }
+        this.createNewRep();
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public MusicDatabase newInstance() {
+        return new MusicDatabase2();
+    }
+
+    /**
+     * Since the songs of this stay in its own directory, this copies the songs
+     * of {@code source}, which takes time proportional to its size.
+     *
+     * @param source
+     *            The database to transfer from
+     */
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void transferFrom(MusicDatabase source) {
+        assert source != null : "Violation of: source is not null";
+        assert source != this : "Violation of: source is not this";
+        assert source instanceof MusicDatabase2 : ""
+                + "Violation of: source is of dynamic type MusicDatabase2";
+
+        this.clear();
+        this.ensureCapacity(Math.max(1, source.size()));
+        for (Song song : source) {
+            this.addEntry(song);
+        }
+        source.clear();
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void ensureCapacity(int cap) {
+        assert cap > 0 : "Violation of: cap > 0";
+
+        try {
+            this.store.order.ensureCapacity((long) cap * Long.BYTES);
+            this.store.songs.reserve(cap - this.size());
+        } catch (IOException e) {
+            throw new IllegalStateException(
+                    "ERROR: Cannot grow " + this.directory, e);
+        }
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void addEntry(Song song) {
+        assert song != null : "Violation of: song != null";
+        assert !this.contains(song) : "Violation of: song is not in this";
+
+        long size = this.store.meta.getLong(META_SIZE);
+        try {
+            long rec = this.writeRecord(song);
+            Table songs = this.store.songs;
+            songs.reserve(1);
+            long hash = hash(song);
+            songs.use(songs.free(hash), hash, rec);
+            for (int f = 0; f < FIELDS; f++) {
+                this.linkValue(rec, f, field(song, f));
+            }
+            this.store.order.ensureCapacity((size + 1) * Long.BYTES);
+            this.store.order.putLong(size * Long.BYTES, rec);
+            this.cache.put(rec, song);
+        } catch (IOException e) {
+            throw new IllegalStateException(
+                    "ERROR: Cannot grow " + this.directory, e);
+        }
+        this.store.meta.putLong(META_SIZE, size + 1);
+        this.changes.added(song);
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Song getEntryByOrder(int n) {
+        if (n < 0 || n >= this.size()) {
+            throw new NoSuchElementException(
+                    "ERROR: No element exists at the given position");
+        }
+
+        return this.readRecord(this.recordAt(n));
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public ArrayList<Song> getEntries(MusicDatabaseKernel.SearchField field,
+            String value) {
+        assert value != null : "Violation of: value != null";
+
+        ScanEvent event = new ScanEvent();
+        event.begin();
+        final int three = 3;
+        int f = field.ordinal();
+        Table table = this.store.fields[f];
+        long slot = this.findValue(f, value, hash(value));
+        ArrayList<Song> list;
+        if (slot < 0) {
+            list = new ArrayList<Song>();
+        } else {
+            long pos = table.pos(slot);
+            list = new ArrayList<Song>(
+                    (int) table.slots.getLong(pos + three * Long.BYTES));
+            long rec = table.slots.getLong(pos + Long.BYTES);
+            while (rec != NONE) {
+                list.add(this.readRecord(rec));
+                rec = this.store.rows.getLong(link(rec, f, false));
+            }
+        }
+        event.record(false, field, this.size(), list.size());
+        return list;
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public ArrayList<Song> removeEntries(MusicDatabaseKernel.SearchField field,
+            String value) {
+        assert value != null : "Violation of: value != null";
+
+        ScanEvent event = new ScanEvent();
+        event.begin();
+        int f = field.ordinal();
+        long slot = this.findValue(f, value, hash(value));
+        ArrayList<Song> list = new ArrayList<Song>();
+        if (slot >= 0) {
+            /*
+             * Collects the chain first, since unlinking it changes the links
+             * being followed.
+             */
+            HashSet<Long> removed = new HashSet<Long>();
+            ArrayList<Long> recs = new ArrayList<Long>();
+            long rec = this.store.fields[f].ref(slot);
+            while (rec != NONE) {
+                recs.add(rec);
+                removed.add(rec);
+                list.add(this.readRecord(rec));
+                rec = this.store.rows.getLong(link(rec, f, false));
+            }
+            for (int i = 0; i < recs.size(); i++) {
+                this.unlinkRecord(recs.get(i), list.get(i));
+                this.changes.removed(list.get(i));
+            }
+
+            /*
+             * Closes every gap in the order file in one pass.
+             */
+            MappedSegments order = this.store.order;
+            long size = this.store.meta.getLong(META_SIZE);
+            long kept = 0;
+            for (long i = 0; i < size; i++) {
+                long r = order.getLong(i * Long.BYTES);
+                if (!removed.contains(r)) {
+                    order.putLong(kept * Long.BYTES, r);
+                    kept++;
+                }
+            }
+            this.store.meta.putLong(META_SIZE, kept);
+        }
+        event.record(true, field, this.size() + list.size(), list.size());
+        return list;
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Song removeEntry(Song song) {
+        assert this.contains(song) : "Violation of: song is in this";
+
+        long rec = this.store.songs.ref(this.findSong(song, hash(song)));
+        long size = this.store.meta.getLong(META_SIZE);
+        long n = 0;
+        while (n < size && this.recordAt(n) != rec) {
+            n++;
+        }
+        this.unlinkRecord(rec, song);
+        this.removePosition(n);
+        this.changes.removed(song);
+        return song;
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Song removeEntryByOrder(int n) {
+        Song entry = this.getEntryByOrder(n);
+        this.unlinkRecord(this.recordAt(n), entry);
+        this.removePosition(n);
+        this.changes.removed(entry);
+        return entry;
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Boolean contains(Song song) {
+        return this.findSong(song, hash(song)) >= 0;
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public int size() {
+        return (int) this.store.meta.getLong(META_SIZE);
+    }
+
+    /**
+     * Sorts with an external merge sort, so only {@code SORT_RUN} songs are
+     * on the heap at a time, then relinks every field chain in the new order.
+     *
+     * @param order
+     *            The order to sort by
+     */
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void sort(Comparator<Song> order) {
+        SortEvent event = new SortEvent();
+        event.begin();
+        long size = this.store.meta.getLong(META_SIZE);
+        long gen = this.store.meta.getLong(META_ORDER_GEN) + 1;
+        try {
+            MappedSegments runs = new MappedSegments(this.directory,
+                    "sortrun-g" + gen, SEGMENT_BITS);
+            runs.ensureCapacity(Math.max(1, size * Long.BYTES));
+            this.sortRuns(runs, size, order);
+
+            MappedSegments sorted = new MappedSegments(this.directory,
+                    "order-g" + gen, SEGMENT_BITS);
+            sorted.ensureCapacity(Math.max(1, size * Long.BYTES));
+            this.mergeRuns(runs, sorted, size, order);
+            runs.delete();
+
+            MappedSegments old = this.store.order;
+            this.store.order = sorted;
+            this.store.meta.putLong(META_ORDER_GEN, gen);
+            old.delete();
+
+            this.relinkChains(size);
+        } catch (IOException e) {
+            throw new IllegalStateException(
+                    "ERROR: Cannot sort " + this.directory, e);
+        }
+        event.record(this.size(), order);
+    }
+
+    /**
+     * Copies the order file to {@code runs} with each run of
+     * {@code SORT_RUN} positions sorted.
+     *
+     * @param runs
+     *            Where to write the sorted runs
+     * @param size
+     *            The number of songs
+     * @param order
+     *            The order to sort by
+     */
+    private void sortRuns(MappedSegments runs, long size,
+            Comparator<Song> order) {
+        ArrayList<Long> recs = new ArrayList<Long>(SORT_RUN);
+        for (long start = 0; start < size; start += SORT_RUN) {
+            long end = Math.min(size, start + SORT_RUN);
+            recs.clear();
+            for (long i = start; i < end; i++) {
+                recs.add(this.recordAt(i));
+            }
+            /*
+             * Reads each song once, rather than once per comparison.
+             */
+            Map<Long, Song> songs = new HashMap<Long, Song>();
+            for (Long rec : recs) {
+                songs.put(rec, this.readRecord(rec));
+            }
+            recs.sort((a, b) -> order.compare(songs.get(a), songs.get(b)));
+            for (int i = 0; i < recs.size(); i++) {
+                runs.putLong((start + i) * Long.BYTES, recs.get(i));
+            }
+        }
+    }
+
+    /**
+     * Merges the sorted runs in {@code runs} into {@code sorted}. Ties go to
+     * the earlier run, keeping the sort stable.
+     *
+     * @param runs
+     *            The sorted runs
+     * @param sorted
+     *            Where to write the merged order
+     * @param size
+     *            The number of songs
+     * @param order
+     *            The order to sort by
+     */
+    private void mergeRuns(MappedSegments runs, MappedSegments sorted,
+            long size, Comparator<Song> order) {
+        /*
+         * Each cursor is {next position, end of run}, compared by the song at
+         * its next position.
+         */
+        Map<long[], Song> heads = new IdentityHashMap<>();
+        PriorityQueue<long[]> queue = new PriorityQueue<long[]>(
+                Math.max(1, (int) (size / SORT_RUN) + 1), (a, b) -> {
+                    int cmp = order.compare(heads.get(a), heads.get(b));
+                    if (cmp == 0) {
+                        cmp = Long.compare(a[0], b[0]);
+                    }
+                    return cmp;
+                });
+        for (long start = 0; start < size; start += SORT_RUN) {
+            long[] cursor = {start, Math.min(size, start + SORT_RUN) };
+            heads.put(cursor,
+                    this.readRecord(runs.getLong(start * Long.BYTES)));
+            queue.add(cursor);
+        }
+
+        long out = 0;
+        while (!queue.isEmpty()) {
+            long[] cursor = queue.poll();
+            sorted.putLong(out * Long.BYTES,
+                    runs.getLong(cursor[0] * Long.BYTES));
+            out++;
+            cursor[0]++;
+            if (cursor[0] < cursor[1]) {
+                heads.put(cursor,
+                        this.readRecord(runs.getLong(cursor[0] * Long.BYTES)));
+                queue.add(cursor);
+            } else {
+                heads.remove(cursor);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds every field chain in database order.
+     *
+     * @param size
+     *            The number of songs
+     * @throws IOException
+     *             if a table cannot be grown
+     */
+    private void relinkChains(long size) throws IOException {
+        /*
+         * Emptying each chain's tail makes linkValue start it over, while its
+         * head still identifies its value to findValue until then.
+         */
+        final int three = 3;
+        for (Table table : this.store.fields) {
+            for (long slot = 0; slot < table.capacity; slot++) {
+                long ref = table.ref(slot);
+                if (ref != NONE && ref != TOMBSTONE) {
+                    long pos = table.pos(slot);
+                    table.slots.putLong(pos + 2 * Long.BYTES, NONE);
+                    table.slots.putLong(pos + three * Long.BYTES, 0);
+                }
+            }
+        }
+        for (long i = 0; i < size; i++) {
+            long rec = this.recordAt(i);
+            for (int f = 0; f < FIELDS; f++) {
+                this.linkValue(rec, f, this.readField(rec, f));
+            }
+        }
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public long epoch() {
+        return this.changes.epoch();
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Delta changesSince(long epoch) {
+        return this.changes.changesSince(epoch);
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void forgetChangesBefore(long epoch) {
+        this.changes.forgetChangesBefore(epoch);
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public long fingerprint() {
+        return this.changes.fingerprint();
+    }
+
+    /**
+     * Reports the songs with {@code value} in {@code field}, the only ones
+     * its index chain visits.
+     *
+     * @param field
+     *            The field searched
+     * @param value
+     *            The value searched for
+     * @return the number of songs examined
+     */
+    @Override
+    protected final long rowsScanned(MusicDatabaseKernel.SearchField field,
+            String value) {
+        final int three = 3;
+        int f = field.ordinal();
+        long slot = this.findValue(f, value, hash(value));
+        long scanned = 0;
+        if (slot >= 0) {
+            Table table = this.store.fields[f];
+            scanned = table.slots.getLong(table.pos(slot) + three * Long.BYTES);
+        }
+        return scanned;
+    }
+
+    /**
+     * Reports that {@code contains} probes the song index in the mapped
+     * files, so bulk merges never copy the songs onto the heap.
+     *
+     * @return true
+     */
+    @Override
+    protected final boolean hasIndexedLookup() {
+        return true;
+    }
+
+    /**
+     * Counts the mapped files as storage and indexes held off the heap, and
+     * only the songs in the on-heap cache as songs, since the others are
+     * decoded from the files each time they are read.
+     *
+     * @return the estimate
+     */
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public MemoryReport memoryReport() {
+        long storage = this.store.meta.capacity() + this.store.rows.capacity()
+                + this.store.order.capacity();
+        long indexes = this.store.songs.slots.capacity();
+        for (Table table : this.store.fields) {
+            indexes += table.slots.capacity();
+        }
+        long caches = MemoryReport.linkedHashMap(this.cache.size())
+                + this.cache.size() * MemoryReport.object(0, Long.BYTES)
+                + MemoryReport.array(this.scratch.length, 1);
+        return MemoryReport.of(this.cache.values(), storage, indexes, caches,
+                this.changes.memoryBytes(), storage + indexes);
+    }
+}
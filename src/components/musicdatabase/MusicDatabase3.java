@@ -0,0 +1,612 @@
+package components.musicdatabase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
+
+import components.musicdatabase.MusicDatabaseEvents.ScanEvent;
+import components.musicdatabase.MusicDatabaseEvents.SortEvent;
+
+/**
+ * Thread-safe {@code MusicDatabase} that many threads can read and write at
+ * once. Every kernel method is atomic. Reads ({@code getEntries},
+ * {@code getEntryByOrder}, {@code contains}, {@code size}, and iteration) first
+ * run without locking under a {@code StampedLock} optimistic read, and only
+ * take the read lock if a write happened meanwhile, so readers do not block
+ * each other or writers. Writes and {@code sort} take the write lock.
+ *
+ * <p>
+ * Secondary methods are made of several kernel calls, so while each call is
+ * atomic, other threads' writes may land between them. Iterators see the
+ * songs as they were when {@code iterator} was called.
+ *
+ * @convention [songs[0, size) holds the songs of this, with no nulls or
+ *             duplicates] AND [songs[size, songs.length) are null] AND members
+ *             = [the set of songs in songs[0, size)] AND [songs, size, and
+ *             members are only modified while holding the write lock]
+ * @correspondence this = songs[0, size)
+ */
+public class MusicDatabase3 extends MusicDatabaseSecondary {
+
+    /*
+     * Private members.
+     */
+
+    /**
+     * The default initial length of the array if the no-argument constructor
+     * is used.
+     */
+    private static final int DEFAULT_SIZE = 20;
+
+    /**
+     * Guards every field below.
+     */
+    private final StampedLock lock = new StampedLock();
+
+    /**
+     * The songs of this, in order, followed by nulls.
+     */
+    private Song[] songs;
+
+    /**
+     * Number of songs in this.
+     */
+    private int size;
+
+    /**
+     * The songs of this, for constant time {@code contains}. Concurrent, so
+     * that optimistic reads of it never fail outright.
+     */
+    private Set<Song> members;
+
+    /**
+     * Modification epoch and history of changes to this.
+     */
+    private final ChangeTracker changes;
+
+    /*
+     * Constructors.
+     */
+
+    /**
+     * No-argument constructor.
+     */
+    public MusicDatabase3() {
+        this.changes = new ChangeTracker();
+        this.createNewRep(DEFAULT_SIZE);
+    }
+
+    /**
+     * Constructor that allows user to set initial length of the array.
+     *
+     * @param size
+     *            The initial length of the array
+     */
+    public MusicDatabase3(int size) {
+        this.changes = new ChangeTracker();
+        this.createNewRep(size);
+    }
+
+    /**
+     * Creator of initial representation. Only called while holding the write
+     * lock or during construction.
+     *
+     * @param initSize
+     *            Determines how long the array is initially
+     */
+    private void createNewRep(int initSize) {
+        this.songs = new Song[initSize];
+        this.size = 0;
+        this.members = ConcurrentHashMap.newKeySet(initSize);
+    }
+
+    /**
+     * Runs {@code reader} under an optimistic read and returns its result if
+     * no write happened meanwhile, and otherwise runs it again under the read
+     * lock.
+     *
+     * @param <T>
+     *            The type of the result
+     * @param reader
+     *            Reads this
+     * @return the result of reader
+     * @requires reader has no side effects AND [reader cannot throw or loop
+     *           forever, even if a write changes the fields it reads
+     *           halfway]
+     */
+    private <T> T read(Supplier<T> reader) {
+        long stamp = this.lock.tryOptimisticRead();
+        T result = null;
+        boolean valid = false;
+        if (stamp != 0) {
+            result = reader.get();
+            valid = this.lock.validate(stamp);
+        }
+        if (!valid) {
+            stamp = this.lock.readLock();
+            try {
+                result = reader.get();
+            } finally {
+                this.lock.unlockRead(stamp);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Makes room for {@code cap} songs. Only called while holding the write
+     * lock.
+     *
+     * @param cap
+     *            The number of songs needed
+     */
+    private void grow(int cap) {
+        if (this.songs.length < cap) {
+            int length = Math.max(cap, this.songs.length + this.songs.length / 2
+                    + 1);
+            this.songs = Arrays.copyOf(this.songs, length);
+        }
+    }
+
+    /**
+     * Removes the song at position {@code n}, moving every later song down by
+     * one. Only called while holding the write lock.
+     *
+     * @param n
+     *            The position
+     * @return the song removed
+     */
+    private Song removeAt(int n) {
+        Song entry = this.songs[n];
+        System.arraycopy(this.songs, n + 1, this.songs, n, this.size - n - 1);
+        this.size--;
+        this.songs[this.size] = null;
+        this.members.remove(entry);
+        this.changes.removed(entry);
+        return entry;
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Iterator<Song> iterator() {
+        /*
+         * Iterates over a copy, so the iterator never sees a write halfway
+         * through and never holds a lock.
+         */
+        Song[] copy = this.read(() -> {
+            Song[] a = this.songs;
+            return Arrays.copyOf(a, Math.min(this.size, a.length));
+        });
+
+        Iterator<Song> it = new Iterator<Song>() {
+            private int pos = -1;
+            private boolean nextCalled = false;
+
+            @Override
+            public boolean hasNext() {
+                return (this.pos + 1) < copy.length;
+            }
+
+            @Override
+            public Song next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException(
+                            "ERROR: No more values in this");
+                }
+                this.pos++;
+                this.nextCalled = true;
+                return copy[this.pos];
+            }
+
+            @Override
+            public void remove() {
+                assert this.nextCalled : ""
+                        + "Violation of: next() has been called at least "
+                        + "once before this method.";
+
+                long stamp = MusicDatabase3.this.lock.writeLock();
+                try {
+                    Song song = copy[this.pos];
+                    if (MusicDatabase3.this.members.contains(song)) {
+                        int n = 0;
+                        while (!MusicDatabase3.this.songs[n].equals(song)) {
+                            n++;
+                        }
+                        MusicDatabase3.this.removeAt(n);
+                    }
+                } finally {
+                    MusicDatabase3.this.lock.unlockWrite(stamp);
+                }
+                this.nextCalled = false;
+            }
+        };
+        return it;
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void clear() {
+        long stamp = this.lock.writeLock();
+        try {
+            this.changes.removedAll(Arrays.asList(this.songs).subList(0,
+                    this.size));
+            this.createNewRep(DEFAULT_SIZE);
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public MusicDatabase newInstance() {
+        return new MusicDatabase3();
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void transferFrom(MusicDatabase source) {
+        assert source != null : "Violation of: source is not null";
+        assert source != this : "Violation of: source is not this";
+        assert source instanceof MusicDatabase3 : ""
+                + "Violation of: source is of dynamic type MusicDatabase3";
+
+        /*
+         * Takes the two locks one after the other rather than together, so
+         * two threads transferring in opposite directions cannot deadlock.
+         */
+        MusicDatabase3 temp = (MusicDatabase3) source;
+        Song[] songs;
+        int size;
+        Set<Song> members;
+        long fingerprint;
+        long stamp = temp.lock.writeLock();
+        try {
+            songs = temp.songs;
+            size = temp.size;
+            members = temp.members;
+            fingerprint = temp.changes.fingerprint();
+            temp.changes.removedAll(Arrays.asList(songs).subList(0, size));
+            temp.createNewRep(DEFAULT_SIZE);
+        } finally {
+            temp.lock.unlockWrite(stamp);
+        }
+
+        stamp = this.lock.writeLock();
+        try {
+            this.changes.removedAll(Arrays.asList(this.songs).subList(0,
+                    this.size));
+            this.songs = songs;
+            this.size = size;
+            this.members = members;
+            this.changes.addedAll(Arrays.asList(songs).subList(0, size),
+                    fingerprint);
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void ensureCapacity(int cap) {
+        assert cap > 0 : "Violation of: cap > 0";
+
+        long stamp = this.lock.writeLock();
+        try {
+            this.grow(cap);
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void addEntry(Song song) {
+        assert song != null : "Violation of: song != null";
+
+        long stamp = this.lock.writeLock();
+        try {
+            assert !this.members.contains(song) : ""
+                    + "Violation of: song is not in this";
+
+            this.grow(this.size + 1);
+            this.songs[this.size] = song;
+            this.size++;
+            this.members.add(song);
+            this.changes.added(song);
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Adds the whole batch under one write lock, so readers see all of it or
+     * none of it.
+     *
+     * @param songs
+     *            The songs to add
+     */
+    @Override
+    protected final void addNewEntries(Collection<Song> songs) {
+        long stamp = this.lock.writeLock();
+        try {
+            this.grow(this.size + songs.size());
+            for (Song song : songs) {
+                this.songs[this.size] = song;
+                this.size++;
+                this.members.add(song);
+            }
+            this.changes.addedAll(songs);
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Merges the whole batch in one pass under one write lock, so readers see
+     * all of it or none of it.
+     *
+     * @param songs
+     *            The songs to merge in
+     * @param order
+     *            The order this and songs are both sorted by
+     */
+    @Override
+    protected final void mergeNewEntries(List<Song> songs,
+            Comparator<Song> order) {
+        long stamp = this.lock.writeLock();
+        try {
+            this.songs = mergeSorted(
+                    Arrays.asList(this.songs).subList(0, this.size), this.size,
+                    songs, order);
+            this.size = this.songs.length;
+            this.members.addAll(songs);
+            this.changes.addedAll(songs);
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes the whole set in one pass under one write lock.
+     *
+     * @param songs
+     *            The songs to remove
+     */
+    @Override
+    protected final void removeExistingEntries(Set<Song> songs) {
+        long stamp = this.lock.writeLock();
+        try {
+            int kept = 0;
+            for (int i = 0; i < this.size; i++) {
+                Song song = this.songs[i];
+                if (songs.contains(song)) {
+                    this.members.remove(song);
+                    this.changes.removed(song);
+                } else {
+                    this.songs[kept] = song;
+                    kept++;
+                }
+            }
+            Arrays.fill(this.songs, kept, this.size, null);
+            this.size = kept;
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Reports that {@code contains} looks in the hash set of members.
+     *
+     * @return true
+     */
+    @Override
+    protected final boolean hasIndexedLookup() {
+        return true;
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Song getEntryByOrder(int n) {
+        Song entry = this.read(() -> {
+            Song[] a = this.songs;
+            Song song = null;
+            if (0 <= n && n < this.size && n < a.length) {
+                song = a[n];
+            }
+            return song;
+        });
+
+        if (entry == null) {
+            throw new NoSuchElementException(
+                    "ERROR: No element exists at the given position");
+        }
+        return entry;
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public ArrayList<Song> getEntries(MusicDatabaseKernel.SearchField field,
+            String value) {
+        assert value != null : "Violation of: value != null";
+
+        ScanEvent event = new ScanEvent();
+        event.begin();
+        ArrayList<Song> found = this.read(() -> {
+            Song[] a = this.songs;
+            int n = Math.min(this.size, a.length);
+            ArrayList<Song> list = new ArrayList<Song>();
+            for (int i = 0; i < n; i++) {
+                Song song = a[i];
+                if (song != null && valueOf(field, song).equals(value)) {
+                    list.add(song);
+                }
+            }
+            return list;
+        });
+        event.record(false, field, this.size(), found.size());
+        return found;
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public ArrayList<Song> removeEntries(MusicDatabaseKernel.SearchField field,
+            String value) {
+        assert value != null : "Violation of: value != null";
+
+        ScanEvent event = new ScanEvent();
+        event.begin();
+        ArrayList<Song> list = new ArrayList<Song>();
+        long stamp = this.lock.writeLock();
+        try {
+            int kept = 0;
+            for (int i = 0; i < this.size; i++) {
+                Song song = this.songs[i];
+                if (valueOf(field, song).equals(value)) {
+                    list.add(song);
+                    this.members.remove(song);
+                    this.changes.removed(song);
+                } else {
+                    this.songs[kept] = song;
+                    kept++;
+                }
+            }
+            Arrays.fill(this.songs, kept, this.size, null);
+            this.size = kept;
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+        event.record(true, field, this.size() + list.size(), list.size());
+        return list;
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Song removeEntry(Song song) {
+        long stamp = this.lock.writeLock();
+        try {
+            assert this.members.contains(song) : ""
+                    + "Violation of: song is in this";
+
+            int n = 0;
+            while (!this.songs[n].equals(song)) {
+                n++;
+            }
+            this.removeAt(n);
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+        return song;
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Song removeEntryByOrder(int n) {
+        long stamp = this.lock.writeLock();
+        try {
+            if (n < 0 || n >= this.size) {
+                throw new NoSuchElementException(
+                        "ERROR: No element exists at the given position");
+            }
+            return this.removeAt(n);
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Boolean contains(Song song) {
+        return this.read(() -> this.members.contains(song));
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public int size() {
+        return this.read(() -> this.size);
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void sort(Comparator<Song> order) {
+        SortEvent event = new SortEvent();
+        event.begin();
+        long stamp = this.lock.writeLock();
+        try {
+            Arrays.sort(this.songs, 0, this.size, order);
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+        event.record(this.size(), order);
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public long epoch() {
+        /*
+         * Write lock, since the first call starts recording history.
+         */
+        long stamp = this.lock.writeLock();
+        try {
+            return this.changes.epoch();
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Delta changesSince(long epoch) {
+        long stamp = this.lock.readLock();
+        try {
+            return this.changes.changesSince(epoch);
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void forgetChangesBefore(long epoch) {
+        long stamp = this.lock.writeLock();
+        try {
+            this.changes.forgetChangesBefore(epoch);
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public long fingerprint() {
+        return this.read(() -> this.changes.fingerprint());
+    }
+
+    /**
+     * Counts the array of songs, including its spare room, as storage, and
+     * the set of members as an index.
+     *
+     * @return the estimate
+     */
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public MemoryReport memoryReport() {
+        long stamp = this.lock.readLock();
+        try {
+            return MemoryReport.of(
+                    Arrays.asList(this.songs).subList(0, this.size),
+                    MemoryReport.referenceArray(this.songs.length),
+                    MemoryReport.concurrentSet(this.members.size()), 0,
+                    this.changes.memoryBytes(), 0);
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+}
@@ -0,0 +1,1509 @@
+package components.musicdatabase;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import components.musicdatabase.MusicDatabaseEvents.ScanEvent;
+import components.musicdatabase.MusicDatabaseEvents.SortEvent;
+
+/**
+ * Versioned {@code MusicDatabase} with snapshot isolation. The songs are held
+ * in an immutable {@code Version}; every write builds the next version,
+ * sharing every part of the current one it did not change, and then publishes
+ * it with one volatile write. Readers never lock or wait: each kernel call
+ * reads whichever version is current, and {@code snapshot} hands out a
+ * read-only database fixed at the current version, which stays consistent
+ * however long it is used while imports and sorts go on.
+ *
+ * <p>
+ * A version holds the songs in order in a {@code Rope}, a tree whose leaves
+ * are chunks of at most {@code CHUNK_SIZE} songs, and the set of songs in a
+ * {@code Members} hash trie. Both have height logarithmic in the number of
+ * songs, so a single add or remove copies one chunk and the few small nodes
+ * above it and in the trie, however large the database grows.
+ * {@code readFromFile}, {@code append}, and {@code addEntries} publish all
+ * their songs as one version, and {@code sort} publishes the sorted version
+ * only once it is complete. Old versions are garbage collected as soon as no
+ * snapshot refers to them, so only versions still in use take up memory.
+ *
+ * <p>
+ * Writers are serialized with each other. Secondary methods made of several
+ * kernel calls (other than the batched ones above) publish a version per
+ * call.
+ *
+ * @convention [current is a valid version] AND [if snapshot, this is never
+ *             written to]
+ * @correspondence this = [the songs of current.songs, in order]
+ */
+public class MusicDatabase4 extends MusicDatabaseSecondary {
+
+    /*
+     * Private members.
+     */
+
+    /**
+     * Most songs held by one chunk.
+     */
+    private static final int CHUNK_SIZE = 1024;
+
+    /**
+     * Most children of one inner node of a {@code Rope}.
+     */
+    private static final int BRANCH = 32;
+
+    /**
+     * Number of hash bits used by each level of a {@code Members} trie.
+     */
+    private static final int TRIE_BITS = 5;
+
+    /**
+     * Immutable sequence of songs, held as a tree whose leaves are chunks of
+     * songs. Changing one song copies its chunk and the nodes above it, and
+     * shares the rest.
+     *
+     * @convention [exactly one of songs and children is null] AND [if
+     *             children is null, height = 0 AND songs.length <=
+     *             CHUNK_SIZE] AND [if songs is null, children holds 1 to
+     *             BRANCH non-empty nodes of height height - 1, and ends[i] =
+     *             [number of songs in children[0..i]]] AND size = [number of
+     *             songs]
+     */
+    private static final class Rope {
+
+        /**
+         * The empty sequence.
+         */
+        static final Rope EMPTY = new Rope(new Song[0]);
+
+        /**
+         * The songs of a leaf, or null.
+         */
+        private final Song[] songs;
+
+        /**
+         * The children of an inner node, or null.
+         */
+        private final Rope[] children;
+
+        /**
+         * Position just past the last song of each child, or null.
+         */
+        private final int[] ends;
+
+        /**
+         * Number of levels below this.
+         */
+        private final int height;
+
+        /**
+         * Number of songs.
+         */
+        private final int size;
+
+        /**
+         * Leaf constructor.
+         *
+         * @param songs
+         *            The chunk of songs
+         */
+        Rope(Song[] songs) {
+            this.songs = songs;
+            this.children = null;
+            this.ends = null;
+            this.height = 0;
+            this.size = songs.length;
+        }
+
+        /**
+         * Inner node constructor.
+         *
+         * @param children
+         *            The children
+         */
+        Rope(Rope[] children) {
+            this.songs = null;
+            this.children = children;
+            this.ends = new int[children.length];
+            int total = 0;
+            for (int i = 0; i < children.length; i++) {
+                total += children[i].size;
+                this.ends[i] = total;
+            }
+            this.height = children[0].height + 1;
+            this.size = total;
+        }
+
+        /**
+         * Builds a sequence of the first {@code count} songs of
+         * {@code songs}, with every chunk full but the last.
+         *
+         * @param songs
+         *            The songs, in order
+         * @param count
+         *            Number of songs in songs to use
+         * @return the sequence
+         */
+        static Rope of(Song[] songs, int count) {
+            if (count == 0) {
+                return EMPTY;
+            }
+            Rope[] level = new Rope[(count + CHUNK_SIZE - 1) / CHUNK_SIZE];
+            for (int i = 0; i < level.length; i++) {
+                int from = i * CHUNK_SIZE;
+                level[i] = new Rope(Arrays.copyOfRange(songs, from,
+                        Math.min(count, from + CHUNK_SIZE)));
+            }
+            while (level.length > 1) {
+                Rope[] up = new Rope[(level.length + BRANCH - 1) / BRANCH];
+                for (int i = 0; i < up.length; i++) {
+                    int from = i * BRANCH;
+                    up[i] = new Rope(Arrays.copyOfRange(level, from,
+                            Math.min(level.length, from + BRANCH)));
+                }
+                level = up;
+            }
+            return level[0];
+        }
+
+        /**
+         * Returns the index of the child holding position {@code n}.
+         *
+         * @param n
+         *            The position
+         * @return the child index
+         * @requires [this is an inner node] AND 0 <= n < size
+         */
+        private int childOf(int n) {
+            int low = 0;
+            int high = this.children.length - 1;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (this.ends[mid] <= n) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Returns the position of the first song of child {@code c}.
+         *
+         * @param c
+         *            The child index
+         * @return its position
+         */
+        private int startOf(int c) {
+            int start = 0;
+            if (c > 0) {
+                start = this.ends[c - 1];
+            }
+            return start;
+        }
+
+        /**
+         * Returns the song at position {@code n}.
+         *
+         * @param n
+         *            The position
+         * @return the song
+         * @requires 0 <= n < size
+         */
+        Song get(int n) {
+            Rope node = this;
+            int pos = n;
+            while (node.songs == null) {
+                int c = node.childOf(pos);
+                pos -= node.startOf(c);
+                node = node.children[c];
+            }
+            return node.songs[pos];
+        }
+
+        /**
+         * Returns this without the song at position {@code n}, or null if that
+         * was its only song.
+         *
+         * @param n
+         *            The position
+         * @return the smaller sequence
+         * @requires 0 <= n < size
+         */
+        private Rope without(int n) {
+            Rope result;
+            if (this.songs != null) {
+                if (this.songs.length == 1) {
+                    result = null;
+                } else {
+                    Song[] smaller = new Song[this.songs.length - 1];
+                    System.arraycopy(this.songs, 0, smaller, 0, n);
+                    System.arraycopy(this.songs, n + 1, smaller, n,
+                            this.songs.length - n - 1);
+                    result = new Rope(smaller);
+                }
+            } else {
+                int c = this.childOf(n);
+                Rope child = this.children[c].without(n - this.startOf(c));
+                if (child != null) {
+                    Rope[] kids = this.children.clone();
+                    kids[c] = child;
+                    result = new Rope(kids);
+                } else if (this.children.length > 1) {
+                    Rope[] kids = new Rope[this.children.length - 1];
+                    System.arraycopy(this.children, 0, kids, 0, c);
+                    System.arraycopy(this.children, c + 1, kids, c,
+                            this.children.length - c - 1);
+                    result = new Rope(kids);
+                } else {
+                    result = null;
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Returns this without the song at position {@code n}.
+         *
+         * @param n
+         *            The position
+         * @return the smaller sequence
+         * @requires 0 <= n < size
+         */
+        Rope remove(int n) {
+            Rope result = this.without(n);
+            if (result == null) {
+                result = EMPTY;
+            }
+            while (result.songs == null && result.children.length == 1) {
+                result = result.children[0];
+            }
+            return result;
+        }
+
+        /**
+         * Returns the last chunk of this.
+         *
+         * @return the chunk
+         * @requires size > 0
+         */
+        Song[] lastChunk() {
+            Rope node = this;
+            while (node.songs == null) {
+                node = node.children[node.children.length - 1];
+            }
+            return node.songs;
+        }
+
+        /**
+         * Returns this with its last chunk replaced by {@code chunk}.
+         *
+         * @param chunk
+         *            The new last chunk
+         * @return the changed sequence
+         * @requires size > 0 AND 0 < |chunk| <= CHUNK_SIZE
+         */
+        Rope withLastChunk(Song[] chunk) {
+            Rope result;
+            if (this.songs != null) {
+                result = new Rope(chunk);
+            } else {
+                Rope[] kids = this.children.clone();
+                kids[kids.length - 1] = kids[kids.length - 1]
+                        .withLastChunk(chunk);
+                result = new Rope(kids);
+            }
+            return result;
+        }
+
+        /**
+         * Returns this followed by {@code leaf}, as one node of the height of
+         * this or, if this is full, as two.
+         *
+         * @param leaf
+         *            The leaf to add
+         * @return the nodes
+         */
+        private Rope[] push(Rope leaf) {
+            Rope[] result;
+            if (this.songs != null) {
+                result = new Rope[] {this, leaf};
+            } else {
+                int last = this.children.length - 1;
+                Rope[] pushed = this.children[last].push(leaf);
+                if (pushed.length == 1) {
+                    Rope[] kids = this.children.clone();
+                    kids[last] = pushed[0];
+                    result = new Rope[] {new Rope(kids)};
+                } else if (this.children.length < BRANCH) {
+                    Rope[] kids = Arrays.copyOf(this.children, last + 2);
+                    kids[last] = pushed[0];
+                    kids[last + 1] = pushed[1];
+                    result = new Rope[] {new Rope(kids)};
+                } else {
+                    Rope[] kids = this.children.clone();
+                    kids[last] = pushed[0];
+                    result = new Rope[] {new Rope(kids),
+                            new Rope(new Rope[] {pushed[1]})};
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Returns this followed by the songs of {@code chunk}, as a new chunk.
+         *
+         * @param chunk
+         *            The songs to add
+         * @return the longer sequence
+         * @requires 0 < |chunk| <= CHUNK_SIZE
+         */
+        Rope append(Song[] chunk) {
+            Rope leaf = new Rope(chunk);
+            Rope result;
+            if (this.size == 0) {
+                result = leaf;
+            } else {
+                Rope[] pushed = this.push(leaf);
+                if (pushed.length == 1) {
+                    result = pushed[0];
+                } else {
+                    result = new Rope(pushed);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Returns the chunks of this, in order.
+         *
+         * @return the chunks, none of them empty
+         */
+        Iterable<Song[]> chunks() {
+            return () -> {
+                ArrayDeque<Rope> pending = new ArrayDeque<Rope>();
+                if (this.size > 0) {
+                    pending.push(this);
+                }
+                return new Iterator<Song[]>() {
+                    @Override
+                    public boolean hasNext() {
+                        return !pending.isEmpty();
+                    }
+
+                    @Override
+                    public Song[] next() {
+                        if (pending.isEmpty()) {
+                            throw new NoSuchElementException(
+                                    "ERROR: No more values in this");
+                        }
+                        Rope node = pending.pop();
+                        while (node.songs == null) {
+                            for (int i = node.children.length - 1; i > 0;
+                                    i--) {
+                                pending.push(node.children[i]);
+                            }
+                            node = node.children[0];
+                        }
+                        return node.songs;
+                    }
+                };
+            };
+        }
+
+        /**
+         * Estimates the memory taken by this and every node below it.
+         *
+         * @return the estimate, in bytes
+         */
+        long memoryBytes() {
+            final int references = 3;
+            long bytes = MemoryReport.object(references, 2 * Integer.BYTES);
+            if (this.songs != null) {
+                bytes += MemoryReport.referenceArray(this.songs.length);
+            } else {
+                bytes += MemoryReport.referenceArray(this.children.length)
+                        + MemoryReport.array(this.ends.length, Integer.BYTES);
+                for (Rope child : this.children) {
+                    bytes += child.memoryBytes();
+                }
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * Node of a hash trie holding a set of songs. Each level picks a slot by
+     * {@code TRIE_BITS} more bits of the song's hash; once every bit is used,
+     * the songs left collide and are held in one list. Nodes are never
+     * modified once published; while a {@code MembersEditor} builds the next
+     * version, the nodes it created are changed in place rather than copied
+     * again.
+     *
+     * @convention [if collisions, slots holds songs with the same hash and
+     *             bitmap is unused] AND [otherwise slots[bitCount(bitmap &
+     *             (bit - 1))] is the song or node of slot bit, for each bit
+     *             set in bitmap] AND [no node below the root is empty]
+     */
+    private static final class Members {
+
+        /**
+         * The empty set.
+         */
+        static final Members EMPTY = new Members(null, false, 0,
+                new Object[0]);
+
+        /**
+         * The editor that created this and may still change it, or null.
+         */
+        private final Object edit;
+
+        /**
+         * Whether this holds songs whose hashes are equal.
+         */
+        private final boolean collisions;
+
+        /**
+         * Which slots are used.
+         */
+        private int bitmap;
+
+        /**
+         * The songs and nodes of the used slots, in order of slot.
+         */
+        private Object[] slots;
+
+        /**
+         * Constructor.
+         *
+         * @param edit
+         *            The editor that may change this, or null
+         * @param collisions
+         *            Whether this holds songs whose hashes are equal
+         * @param bitmap
+         *            Which slots are used
+         * @param slots
+         *            The songs and nodes of the used slots
+         */
+        Members(Object edit, boolean collisions, int bitmap, Object[] slots) {
+            this.edit = edit;
+            this.collisions = collisions;
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+
+        /**
+         * Returns the hash that places {@code song} in the trie.
+         *
+         * @param song
+         *            The song
+         * @return the hash
+         */
+        static int hash(Song song) {
+            final int golden = 0x9E3779B9;
+            final int half = 16;
+            int h = song.hashCode() * golden;
+            return h ^ (h >>> half);
+        }
+
+        /**
+         * Returns the bit of the slot {@code hash} picks at {@code shift}.
+         *
+         * @param hash
+         *            The hash
+         * @param shift
+         *            Number of hash bits used by the levels above
+         * @return the bit
+         */
+        private static int bit(int hash, int shift) {
+            return 1 << ((hash >>> shift) & ((1 << TRIE_BITS) - 1));
+        }
+
+        /**
+         * Returns the node at {@code shift} for songs with the given hash.
+         *
+         * @param edit
+         *            The editor the node may be changed by
+         * @param shift
+         *            Number of hash bits used by the levels above
+         * @return an empty node
+         */
+        private static Members empty(Object edit, int shift) {
+            return new Members(edit, shift >= Integer.SIZE, 0, new Object[0]);
+        }
+
+        /**
+         * Returns this if {@code edit} created it, and otherwise a copy that
+         * {@code edit} may change.
+         *
+         * @param edit
+         *            The editor
+         * @return the node to change
+         */
+        private Members editable(Object edit) {
+            Members node = this;
+            if (this.edit != edit) {
+                node = new Members(edit, this.collisions, this.bitmap,
+                        this.slots.clone());
+            }
+            return node;
+        }
+
+        /**
+         * Returns whether {@code song} is in this.
+         *
+         * @param song
+         *            The song
+         * @return true if it is
+         */
+        boolean contains(Song song) {
+            int hash = hash(song);
+            Members node = this;
+            int shift = 0;
+            Object found = null;
+            while (node != null) {
+                if (node.collisions) {
+                    for (Object slot : node.slots) {
+                        if (song.equals(slot)) {
+                            found = slot;
+                        }
+                    }
+                    node = null;
+                } else {
+                    int bit = bit(hash, shift);
+                    if ((node.bitmap & bit) == 0) {
+                        node = null;
+                    } else {
+                        Object slot = node.slots[Integer
+                                .bitCount(node.bitmap & (bit - 1))];
+                        if (slot instanceof Members) {
+                            node = (Members) slot;
+                            shift += TRIE_BITS;
+                        } else {
+                            found = slot;
+                            node = null;
+                        }
+                    }
+                }
+            }
+            return song.equals(found);
+        }
+
+        /**
+         * Returns this with {@code song} added.
+         *
+         * @param edit
+         *            The editor the nodes returned may be changed by
+         * @param song
+         *            The song
+         * @param hash
+         *            Its hash
+         * @param shift
+         *            Number of hash bits used by the levels above
+         * @return the node holding this and song
+         * @requires song is not in this
+         */
+        Members with(Object edit, Song song, int hash, int shift) {
+            Members node;
+            if (this.collisions) {
+                node = this.editable(edit);
+                node.slots = Arrays.copyOf(this.slots, this.slots.length + 1);
+                node.slots[this.slots.length] = song;
+            } else {
+                int bit = bit(hash, shift);
+                int i = Integer.bitCount(this.bitmap & (bit - 1));
+                if ((this.bitmap & bit) == 0) {
+                    Object[] slots = new Object[this.slots.length + 1];
+                    System.arraycopy(this.slots, 0, slots, 0, i);
+                    slots[i] = song;
+                    System.arraycopy(this.slots, i, slots, i + 1,
+                            this.slots.length - i);
+                    node = this.editable(edit);
+                    node.bitmap = this.bitmap | bit;
+                    node.slots = slots;
+                } else {
+                    Object slot = this.slots[i];
+                    Members child;
+                    if (slot instanceof Members) {
+                        child = ((Members) slot).with(edit, song, hash,
+                                shift + TRIE_BITS);
+                    } else {
+                        Song other = (Song) slot;
+                        child = empty(edit, shift + TRIE_BITS)
+                                .with(edit, other, hash(other),
+                                        shift + TRIE_BITS)
+                                .with(edit, song, hash, shift + TRIE_BITS);
+                    }
+                    node = this;
+                    if (child != slot) {
+                        node = this.editable(edit);
+                        node.slots[i] = child;
+                    }
+                }
+            }
+            return node;
+        }
+
+        /**
+         * Returns this with {@code song} removed, or null if that leaves it
+         * empty.
+         *
+         * @param edit
+         *            The editor the nodes returned may be changed by
+         * @param song
+         *            The song
+         * @param hash
+         *            Its hash
+         * @param shift
+         *            Number of hash bits used by the levels above
+         * @return the node holding the rest of this, or null
+         * @requires song is in this
+         */
+        Members without(Object edit, Song song, int hash, int shift) {
+            int i;
+            int bit = 0;
+            Members child = null;
+            if (this.collisions) {
+                i = 0;
+                while (!song.equals(this.slots[i])) {
+                    i++;
+                }
+            } else {
+                bit = bit(hash, shift);
+                i = Integer.bitCount(this.bitmap & (bit - 1));
+                if (this.slots[i] instanceof Members) {
+                    child = ((Members) this.slots[i]).without(edit, song,
+                            hash, shift + TRIE_BITS);
+                }
+            }
+
+            Members node;
+            if (child != null) {
+                node = this;
+                if (child != this.slots[i]) {
+                    node = this.editable(edit);
+                    node.slots[i] = child;
+                }
+            } else if (this.slots.length == 1) {
+                node = null;
+            } else {
+                Object[] slots = new Object[this.slots.length - 1];
+                System.arraycopy(this.slots, 0, slots, 0, i);
+                System.arraycopy(this.slots, i + 1, slots, i,
+                        this.slots.length - i - 1);
+                node = this.editable(edit);
+                node.bitmap = this.bitmap & ~bit;
+                node.slots = slots;
+            }
+            return node;
+        }
+
+        /**
+         * Estimates the memory taken by this and every node below it.
+         *
+         * @return the estimate, in bytes
+         */
+        long memoryBytes() {
+            long bytes = MemoryReport.object(2, Integer.BYTES + 1)
+                    + MemoryReport.referenceArray(this.slots.length);
+            for (Object slot : this.slots) {
+                if (slot instanceof Members) {
+                    bytes += ((Members) slot).memoryBytes();
+                }
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * Builds the set of songs of the next version from that of a published
+     * one, copying each node the first time it is changed and sharing the
+     * rest.
+     */
+    private static final class MembersEditor {
+
+        /**
+         * Marks the nodes created by this editor, which it may change.
+         */
+        private final Object edit = new Object();
+
+        /**
+         * The edited set.
+         */
+        private Members root;
+
+        /**
+         * Constructor.
+         *
+         * @param base
+         *            The set to edit, which is never modified
+         */
+        MembersEditor(Members base) {
+            this.root = base;
+        }
+
+        /**
+         * Adds {@code song}.
+         *
+         * @param song
+         *            The song
+         */
+        void add(Song song) {
+            this.root = this.root.with(this.edit, song, Members.hash(song), 0);
+        }
+
+        /**
+         * Removes {@code song}.
+         *
+         * @param song
+         *            The song
+         */
+        void remove(Song song) {
+            this.root = this.root.without(this.edit, song, Members.hash(song),
+                    0);
+            if (this.root == null) {
+                this.root = Members.EMPTY;
+            }
+        }
+
+        /**
+         * Returns the edited set. This must not be used afterwards.
+         *
+         * @return the set
+         */
+        Members members() {
+            return this.root;
+        }
+    }
+
+    /**
+     * One immutable version of the songs. Nothing reachable from a version is
+     * ever modified once it is published.
+     *
+     * @convention size = songs.size AND members = [the set of songs in
+     *             songs]
+     */
+    private static final class Version {
+
+        /**
+         * The songs, in order.
+         */
+        private final Rope songs;
+
+        /**
+         * The set of songs.
+         */
+        private final Members members;
+
+        /**
+         * Number of songs.
+         */
+        private final int size;
+
+        /**
+         * Epoch this version was published at.
+         */
+        private final long epoch;
+
+        /**
+         * Fingerprint of the songs.
+         */
+        private final long fingerprint;
+
+        /**
+         * Constructor.
+         *
+         * @param songs
+         *            The songs, in order
+         * @param members
+         *            The set of songs
+         * @param epoch
+         *            The epoch
+         * @param fingerprint
+         *            The fingerprint
+         */
+        Version(Rope songs, Members members, long epoch, long fingerprint) {
+            this.songs = songs;
+            this.members = members;
+            this.size = songs.size;
+            this.epoch = epoch;
+            this.fingerprint = fingerprint;
+        }
+
+        /**
+         * Returns the song at position {@code n}.
+         *
+         * @param n
+         *            The position
+         * @return the song
+         * @requires 0 <= n < size
+         */
+        Song get(int n) {
+            return this.songs.get(n);
+        }
+
+        /**
+         * Returns whether {@code song} is in this version.
+         *
+         * @param song
+         *            The song
+         * @return true if it is
+         */
+        boolean contains(Song song) {
+            return this.members.contains(song);
+        }
+    }
+
+    /**
+     * The version read by every kernel call.
+     */
+    private volatile Version current;
+
+    /**
+     * Whether this is a snapshot, which cannot be written to.
+     */
+    private final boolean snapshot;
+
+    /**
+     * Held while building and publishing a version, so writers take turns.
+     */
+    private final Object writer = new Object();
+
+    /**
+     * Modification epoch and history of changes to this. Only used while
+     * holding {@code writer}.
+     */
+    private final ChangeTracker changes;
+
+    /*
+     * Constructors.
+     */
+
+    /**
+     * No-argument constructor.
+     */
+    public MusicDatabase4() {
+        this.snapshot = false;
+        this.changes = new ChangeTracker();
+        this.createNewRep();
+    }
+
+    /**
+     * Constructor of a snapshot fixed at {@code version}.
+     *
+     * @param version
+     *            The version
+     */
+    private MusicDatabase4(Version version) {
+        this.snapshot = true;
+        this.changes = null;
+        this.current = version;
+    }
+
+    /**
+     * Creator of initial representation.
+     */
+    private void createNewRep() {
+        this.current = new Version(Rope.EMPTY, Members.EMPTY, 0, 0);
+    }
+
+    /**
+     * Throws if this is a snapshot.
+     */
+    private void checkWritable() {
+        if (this.snapshot) {
+            throw new UnsupportedOperationException(
+                    "ERROR: A snapshot cannot be changed");
+        }
+    }
+
+    /**
+     * Publishes a version with the given songs and set of songs, and the
+     * epoch and fingerprint of changes. Only called while holding writer.
+     *
+     * @param songs
+     *            The songs, in order
+     * @param members
+     *            The set of songs
+     */
+    private void publish(Rope songs, Members members) {
+        this.current = new Version(songs, members, this.changes.peekEpoch(),
+                this.changes.fingerprint());
+    }
+
+    /**
+     * Returns every song of {@code version} in one array.
+     *
+     * @param version
+     *            The version
+     * @return the songs, in order
+     */
+    private static Song[] flatten(Version version) {
+        Song[] songs = new Song[version.size];
+        int pos = 0;
+        for (Song[] chunk : version.songs.chunks()) {
+            System.arraycopy(chunk, 0, songs, pos, chunk.length);
+            pos += chunk.length;
+        }
+        return songs;
+    }
+
+    /**
+     * Returns the songs of {@code version}, without copying them.
+     *
+     * @param version
+     *            The version
+     * @return the songs, in order
+     */
+    private static Iterable<Song> songsOf(Version version) {
+        return () -> new Iterator<Song>() {
+            private final Iterator<Song[]> chunks = version.songs.chunks()
+                    .iterator();
+            private Song[] chunk = new Song[0];
+            private int offset = 0;
+
+            @Override
+            public boolean hasNext() {
+                return this.offset < this.chunk.length
+                        || this.chunks.hasNext();
+            }
+
+            @Override
+            public Song next() {
+                if (this.offset == this.chunk.length) {
+                    this.chunk = this.chunks.next();
+                    this.offset = 0;
+                }
+                Song song = this.chunk[this.offset];
+                this.offset++;
+                return song;
+            }
+        };
+    }
+
+    /**
+     * Removes the song at position {@code n} from the current version and
+     * publishes the result. Only called while holding writer.
+     *
+     * @param n
+     *            The position
+     * @return the song removed
+     * @requires 0 <= n < current.size
+     */
+    private Song removeAt(int n) {
+        Version v = this.current;
+        Song entry = v.get(n);
+        MembersEditor members = new MembersEditor(v.members);
+        members.remove(entry);
+
+        this.changes.removed(entry);
+        this.publish(v.songs.remove(n), members.members());
+        return entry;
+    }
+
+    /**
+     * Appends {@code songs} to the current version and publishes the result
+     * as one version. Only called while holding writer.
+     *
+     * @param songs
+     *            The songs
+     * @requires [songs has no duplicates] AND [no song in songs is in this]
+     */
+    private void appendAll(Collection<Song> songs) {
+        Version v = this.current;
+
+        /*
+         * Tops up the last chunk, then adds new ones.
+         */
+        Rope rope = v.songs;
+        Iterator<Song> it = songs.iterator();
+        int remaining = songs.size();
+        if (rope.size > 0) {
+            Song[] last = rope.lastChunk();
+            int topUp = Math.min(CHUNK_SIZE - last.length, remaining);
+            if (topUp > 0) {
+                Song[] grown = Arrays.copyOf(last, last.length + topUp);
+                for (int i = last.length; i < grown.length; i++) {
+                    grown[i] = it.next();
+                }
+                rope = rope.withLastChunk(grown);
+                remaining -= topUp;
+            }
+        }
+        while (remaining > 0) {
+            Song[] chunk = new Song[Math.min(CHUNK_SIZE, remaining)];
+            for (int i = 0; i < chunk.length; i++) {
+                chunk[i] = it.next();
+            }
+            rope = rope.append(chunk);
+            remaining -= chunk.length;
+        }
+
+        /*
+         * Copies each node of the set touched at most once.
+         */
+        MembersEditor members = new MembersEditor(v.members);
+        for (Song song : songs) {
+            members.add(song);
+        }
+
+        this.changes.addedAll(songs);
+        this.publish(rope, members.members());
+    }
+
+    /*
+     * ---------------------------- Public methods ----------------------------
+     */
+
+    /**
+     * Returns a read-only database holding the songs of this as they are now.
+     * It never changes, whatever is done to this afterwards, and costs no
+     * copying or locking.
+     *
+     * @return the snapshot
+     * @ensures snapshot = this AND [snapshot cannot be changed]
+     */
+    public final MusicDatabase4 snapshot() {
+        return new MusicDatabase4(this.current);
+    }
+
+    /**
+     * Reports whether this is a snapshot.
+     *
+     * @return true if this was returned by {@code snapshot}
+     */
+    public final boolean isSnapshot() {
+        return this.snapshot;
+    }
+
+    /*
+     * ---------------------------- Kernel methods ----------------------------
+     */
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Iterator<Song> iterator() {
+        Version v = this.current;
+        Iterator<Song> it = new Iterator<Song>() {
+            private final Iterator<Song[]> chunks = v.songs.chunks()
+                    .iterator();
+            private Song[] chunk = new Song[0];
+            private int offset = -1;
+            private boolean nextCalled = false;
+
+            @Override
+            public boolean hasNext() {
+                return this.offset + 1 < this.chunk.length
+                        || this.chunks.hasNext();
+            }
+
+            @Override
+            public Song next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException(
+                            "ERROR: No more values in this");
+                }
+                this.offset++;
+                if (this.offset == this.chunk.length) {
+                    this.chunk = this.chunks.next();
+                    this.offset = 0;
+                }
+                this.nextCalled = true;
+                return this.chunk[this.offset];
+            }
+
+            @Override
+            public void remove() {
+                assert this.nextCalled : ""
+                        + "Violation of: next() has been called at least "
+                        + "once before this method.";
+
+                /*
+                 * The iterator keeps walking the version it started on, so
+                 * the song is removed from the current version by value.
+                 */
+                Song song = this.chunk[this.offset];
+                if (MusicDatabase4.this.contains(song)) {
+                    MusicDatabase4.this.removeEntry(song);
+                }
+                this.nextCalled = false;
+            }
+        };
+        return it;
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void clear() {
+        this.checkWritable();
+        synchronized (this.writer) {
+            Version v = this.current;
+            this.changes.removedAll(songsOf(v));
+            this.publish(Rope.EMPTY, Members.EMPTY);
+        }
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public MusicDatabase newInstance() {
+        return new MusicDatabase4();
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void transferFrom(MusicDatabase source) {
+        assert source != null : "Violation of: source is not null";
+        assert source != this : "Violation of: source is not this";
+        assert source instanceof MusicDatabase4 : ""
+                + "Violation of: source is of dynamic type MusicDatabase4";
+        this.checkWritable();
+
+        MusicDatabase4 temp = (MusicDatabase4) source;
+        temp.checkWritable();
+        Version v;
+        synchronized (temp.writer) {
+            v = temp.current;
+            temp.changes.removedAll(songsOf(v));
+            temp.publish(Rope.EMPTY, Members.EMPTY);
+        }
+        synchronized (this.writer) {
+            this.changes.removedAll(songsOf(this.current));
+            this.changes.addedAll(songsOf(v), v.fingerprint);
+            this.publish(v.songs, v.members);
+        }
+    }
+
+    /**
+     * Does nothing, since chunks are always allocated at their final size.
+     *
+     * @param cap
+     *            The number of songs expected
+     */
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void ensureCapacity(int cap) {
+        assert cap > 0 : "Violation of: cap > 0";
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void addEntry(Song song) {
+        assert song != null : "Violation of: song != null";
+        this.checkWritable();
+
+        synchronized (this.writer) {
+            assert !this.current.contains(song) : ""
+                    + "Violation of: song is not in this";
+
+            this.appendAll(Arrays.asList(song));
+        }
+    }
+
+    /**
+     * Publishes the whole batch as one version.
+     *
+     * @param songs
+     *            The songs to add
+     */
+    @Override
+    protected final void addNewEntries(Collection<Song> songs) {
+        this.checkWritable();
+        synchronized (this.writer) {
+            this.appendAll(songs);
+        }
+    }
+
+    /**
+     * Merges the whole batch in one pass and publishes the result as one
+     * version.
+     *
+     * @param songs
+     *            The songs to merge in
+     * @param order
+     *            The order this and songs are both sorted by
+     */
+    @Override
+    protected final void mergeNewEntries(List<Song> songs,
+            Comparator<Song> order) {
+        this.checkWritable();
+        synchronized (this.writer) {
+            Version v = this.current;
+            Song[] merged = mergeSorted(songsOf(v), v.size, songs, order);
+            MembersEditor members = new MembersEditor(v.members);
+            for (Song song : songs) {
+                members.add(song);
+            }
+            this.changes.addedAll(songs);
+            this.publish(Rope.of(merged, merged.length), members.members());
+        }
+    }
+
+    /**
+     * Publishes the whole removal as one version.
+     *
+     * @param songs
+     *            The songs to remove
+     */
+    @Override
+    protected final void removeExistingEntries(Set<Song> songs) {
+        this.checkWritable();
+        synchronized (this.writer) {
+            Version v = this.current;
+            Song[] kept = new Song[v.size];
+            int count = 0;
+            MembersEditor members = new MembersEditor(v.members);
+            for (Song[] chunk : v.songs.chunks()) {
+                for (Song song : chunk) {
+                    if (songs.contains(song)) {
+                        members.remove(song);
+                        this.changes.removed(song);
+                    } else {
+                        kept[count] = song;
+                        count++;
+                    }
+                }
+            }
+            this.publish(Rope.of(kept, count), members.members());
+        }
+    }
+
+    /**
+     * Reports that {@code contains} looks in the members hash trie.
+     *
+     * @return true
+     */
+    @Override
+    protected final boolean hasIndexedLookup() {
+        return true;
+    }
+
+    /**
+     * Reads a whole file before adding it, so that it is published as one
+     * version.
+     *
+     * @return {@code Integer.MAX_VALUE}
+     */
+    @Override
+    protected final int readBatchSize() {
+        return Integer.MAX_VALUE;
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Song getEntryByOrder(int n) {
+        Version v = this.current;
+        if (n < 0 || n >= v.size) {
+            throw new NoSuchElementException(
+                    "ERROR: No element exists at the given position");
+        }
+        return v.get(n);
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public ArrayList<Song> getEntries(MusicDatabaseKernel.SearchField field,
+            String value) {
+        assert value != null : "Violation of: value != null";
+
+        ScanEvent event = new ScanEvent();
+        event.begin();
+        ArrayList<Song> list = new ArrayList<Song>();
+        for (Song[] chunk : this.current.songs.chunks()) {
+            for (Song song : chunk) {
+                if (valueOf(field, song).equals(value)) {
+                    list.add(song);
+                }
+            }
+        }
+        event.record(false, field, this.size(), list.size());
+        return list;
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public ArrayList<Song> removeEntries(MusicDatabaseKernel.SearchField field,
+            String value) {
+        assert value != null : "Violation of: value != null";
+        this.checkWritable();
+
+        ScanEvent event = new ScanEvent();
+        event.begin();
+        ArrayList<Song> list = new ArrayList<Song>();
+        synchronized (this.writer) {
+            Version v = this.current;
+            Song[] kept = new Song[v.size];
+            int count = 0;
+            for (Song[] chunk : v.songs.chunks()) {
+                for (Song song : chunk) {
+                    if (valueOf(field, song).equals(value)) {
+                        list.add(song);
+                    } else {
+                        kept[count] = song;
+                        count++;
+                    }
+                }
+            }
+
+            if (list.size() > 0) {
+                MembersEditor members = new MembersEditor(v.members);
+                for (Song song : list) {
+                    members.remove(song);
+                    this.changes.removed(song);
+                }
+                this.publish(Rope.of(kept, count), members.members());
+            }
+        }
+        event.record(true, field, this.size() + list.size(), list.size());
+        return list;
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Song removeEntry(Song song) {
+        this.checkWritable();
+        synchronized (this.writer) {
+            Version v = this.current;
+            assert v.contains(song) : "Violation of: song is in this";
+
+            int n = 0;
+            Iterator<Song> it = songsOf(v).iterator();
+            while (!it.next().equals(song)) {
+                n++;
+            }
+            this.removeAt(n);
+        }
+        return song;
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Song removeEntryByOrder(int n) {
+        this.checkWritable();
+        synchronized (this.writer) {
+            if (n < 0 || n >= this.current.size) {
+                throw new NoSuchElementException(
+                        "ERROR: No element exists at the given position");
+            }
+            return this.removeAt(n);
+        }
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Boolean contains(Song song) {
+        return this.current.contains(song);
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public int size() {
+        return this.current.size;
+    }
+
+    /**
+     * Sorts a copy of the songs and publishes it only once it is sorted, so
+     * readers keep seeing the old order until then. The set of songs is
+     * shared with the old version, since it is unchanged.
+     *
+     * @param order
+     *            The order to sort by
+     */
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void sort(Comparator<Song> order) {
+        SortEvent event = new SortEvent();
+        event.begin();
+        this.checkWritable();
+        synchronized (this.writer) {
+            Version v = this.current;
+            Song[] songs = flatten(v);
+            Arrays.sort(songs, order);
+            this.publish(Rope.of(songs, songs.length), v.members);
+        }
+        event.record(this.size(), order);
+    }
+
+    /**
+     * Returns the epoch of the version this reads; a snapshot's never
+     * changes.
+     *
+     * @return the current modification epoch
+     */
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public long epoch() {
+        long epoch;
+        if (this.snapshot) {
+            epoch = this.current.epoch;
+        } else {
+            synchronized (this.writer) {
+                epoch = this.changes.epoch();
+            }
+        }
+        return epoch;
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Delta changesSince(long epoch) {
+        Delta delta;
+        if (this.snapshot) {
+            assert epoch == this.current.epoch : ""
+                    + "Violation of: epoch was returned by this.epoch()";
+            delta = new Delta(new ArrayList<Song>(), new ArrayList<Song>());
+        } else {
+            synchronized (this.writer) {
+                delta = this.changes.changesSince(epoch);
+            }
+        }
+        return delta;
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void forgetChangesBefore(long epoch) {
+        if (!this.snapshot) {
+            synchronized (this.writer) {
+                this.changes.forgetChangesBefore(epoch);
+            }
+        }
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public long fingerprint() {
+        return this.current.fingerprint;
+    }
+
+    /**
+     * Counts the rope of the current version as storage and its set of songs
+     * as an index. Older versions still held by readers are not counted.
+     *
+     * @return the estimate
+     */
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public MemoryReport memoryReport() {
+        final int versionReferences = 2;
+        final int versionLongs = 2;
+        Version v = this.current;
+        long storage = MemoryReport.object(versionReferences,
+                versionLongs * Long.BYTES + Integer.BYTES)
+                + v.songs.memoryBytes();
+        long indexes = v.members.memoryBytes();
+        long history = 0;
+        if (!this.snapshot) {
+            synchronized (this.writer) {
+                history = this.changes.memoryBytes();
+            }
+        }
+        return MemoryReport.of(songsOf(v), storage, indexes, 0, history, 0);
+    }
+}
@@ -0,0 +1,993 @@
+package components.musicdatabase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import components.musicdatabase.MusicDatabaseEvents.ScanEvent;
+import components.musicdatabase.MusicDatabaseEvents.SortEvent;
+
+/**
+ * Thread-safe {@code MusicDatabase} whose songs are split by a hash of their
+ * artist across a fixed number of shards, each with its own lock, so writes
+ * to different shards run in parallel. Every kernel method is atomic.
+ *
+ * <p>
+ * Adding, removing, or looking up a song locks only its shard, as do
+ * {@code getEntries} and {@code removeEntries} by artist. By any other field
+ * they lock every shard, search them in parallel on the calling thread and a
+ * pool of search threads kept by this class, and merge the results, so a
+ * concurrent {@code sort} can't renumber the keys part way through. Every
+ * song carries a key, and the order of this is the order of the keys: songs
+ * added get increasing keys, and {@code sort} sorts each shard, merges them,
+ * and renumbers the keys in the merged order.
+ * {@code getEntryByOrder}, {@code removeEntryByOrder}, and iteration use that
+ * merged view, which is kept until the next write and otherwise rebuilt by
+ * merging the shards under every lock.
+ *
+ * <p>
+ * Locks are always taken in shard order, and the change history only while
+ * holding a shard lock, so no two calls can deadlock. The search threads
+ * never take a lock themselves: they only search shards whose locks the
+ * calling thread holds for them, so waiting for them can't deadlock either.
+ * Secondary methods are made of several kernel calls, so other threads'
+ * writes may land between them.
+ *
+ * @convention [every song of this is in exactly one shard, the one
+ *             shardOf(song) picks] AND [the entries of each shard are in
+ *             increasing order of key, with no two songs of this sharing a
+ *             key] AND [every key is less than nextKey] AND [the members of
+ *             each shard are the songs of its entries] AND size = [number of
+ *             songs in all shards] AND [view is null or the songs of every
+ *             shard merged in order of key] AND [shards are only modified
+ *             while holding their lock]
+ * @correspondence this = [the songs of every shard, in order of key]
+ */
+public class MusicDatabase5 extends MusicDatabaseSecondary {
+
+    /*
+     * Private members.
+     */
+
+    /**
+     * The default number of shards if the no-argument constructor is used.
+     */
+    private static final int DEFAULT_SHARDS = 16;
+
+    /**
+     * Threads that search shards in parallel, shared by every
+     * {@code MusicDatabase5}. They only touch shards locked by the thread
+     * waiting for them, and never wait for a lock themselves.
+     */
+    private static final ExecutorService SEARCHERS = Executors
+            .newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                    r -> {
+                        Thread searcher = new Thread(r,
+                                "MusicDatabase5-search");
+                        searcher.setDaemon(true);
+                        return searcher;
+                    });
+
+    /**
+     * A song and the key giving its position in this.
+     *
+     * @param key
+     *            The key; songs are in increasing order of key
+     * @param song
+     *            The song
+     */
+    private record Entry(long key, Song song) {
+    }
+
+    /**
+     * Orders entries by key.
+     */
+    private static final Comparator<Entry> BY_KEY = Comparator
+            .comparingLong(Entry::key);
+
+    /**
+     * One shard: the songs of this whose artist hashes to it.
+     */
+    private static final class Shard {
+
+        /**
+         * Guards the other fields.
+         */
+        private final ReentrantLock lock = new ReentrantLock();
+
+        /**
+         * The songs of this shard, in increasing order of key.
+         */
+        private ArrayList<Entry> entries = new ArrayList<Entry>();
+
+        /**
+         * The songs of this shard, for constant time {@code contains}.
+         */
+        private HashSet<Song> members = new HashSet<Song>();
+
+        /**
+         * Returns the position of {@code song} in entries.
+         *
+         * @param song
+         *            The song
+         * @return its position
+         * @requires song is in members
+         */
+        private int indexOf(Song song) {
+            int i = 0;
+            while (!this.entries.get(i).song().equals(song)) {
+                i++;
+            }
+            return i;
+        }
+
+        /**
+         * Returns the entries whose {@code field} is {@code value}, removing
+         * them if {@code remove}.
+         *
+         * @param field
+         *            The field to match
+         * @param value
+         *            The value to match
+         * @param remove
+         *            Whether to remove the matches
+         * @return the matches, in order of key
+         */
+        private ArrayList<Entry> matching(
+                MusicDatabaseKernel.SearchField field, String value,
+                boolean remove) {
+            ArrayList<Entry> matches = new ArrayList<Entry>();
+            ArrayList<Entry> kept = new ArrayList<Entry>();
+            if (remove) {
+                kept.ensureCapacity(this.entries.size());
+            }
+            for (Entry entry : this.entries) {
+                if (valueOf(field, entry.song()).equals(value)) {
+                    matches.add(entry);
+                } else if (remove) {
+                    kept.add(entry);
+                }
+            }
+            if (remove && matches.size() > 0) {
+                this.entries = kept;
+                for (Entry entry : matches) {
+                    this.members.remove(entry.song());
+                }
+            }
+            return matches;
+        }
+    }
+
+    /**
+     * The shards.
+     */
+    private final Shard[] shards;
+
+    /**
+     * Key for the next song added.
+     */
+    private final AtomicLong nextKey = new AtomicLong();
+
+    /**
+     * Number of songs in this.
+     */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * The songs of this in order, or null if a write happened since it was
+     * last built. Never modified once set.
+     */
+    private volatile Song[] view;
+
+    /**
+     * Modification epoch and history of changes to this. Only used while
+     * synchronized on it.
+     */
+    private final ChangeTracker changes;
+
+    /*
+     * Constructors.
+     */
+
+    /**
+     * No-argument constructor.
+     */
+    public MusicDatabase5() {
+        this(DEFAULT_SHARDS);
+    }
+
+    /**
+     * Constructor that allows user to set the number of shards.
+     *
+     * @param shards
+     *            The number of shards
+     * @requires shards > 0
+     */
+    public MusicDatabase5(int shards) {
+        assert shards > 0 : "Violation of: shards > 0";
+
+        this.shards = new Shard[shards];
+        for (int i = 0; i < shards; i++) {
+            this.shards[i] = new Shard();
+        }
+        this.view = new Song[0];
+        this.changes = new ChangeTracker();
+    }
+
+    /**
+     * Returns the shard that songs by {@code artist} belong in.
+     *
+     * @param artist
+     *            The artist
+     * @return the shard
+     */
+    private Shard shardOf(String artist) {
+        final int golden = 0x9E3779B9;
+        final int half = 16;
+        int h = artist.hashCode() * golden;
+        return this.shards[Math.floorMod(h ^ (h >>> half),
+                this.shards.length)];
+    }
+
+    /**
+     * Locks every shard, in order.
+     */
+    private void lockAll() {
+        for (Shard shard : this.shards) {
+            shard.lock.lock();
+        }
+    }
+
+    /**
+     * Unlocks every shard, in reverse order.
+     */
+    private void unlockAll() {
+        for (int i = this.shards.length - 1; i >= 0; i--) {
+            this.shards[i].lock.unlock();
+        }
+    }
+
+    /**
+     * Merges lists that are each in the given order into one list in that
+     * order.
+     *
+     * @param lists
+     *            The lists
+     * @param order
+     *            The order of each list, which never finds two entries equal
+     * @return every entry of lists, in order
+     */
+    private static ArrayList<Entry> merge(List<? extends List<Entry>> lists,
+            Comparator<Entry> order) {
+        int total = 0;
+        for (List<Entry> list : lists) {
+            total += list.size();
+        }
+
+        ArrayList<Entry> merged = new ArrayList<Entry>(total);
+        int[] next = new int[lists.size()];
+        PriorityQueue<Integer> heads = new PriorityQueue<Integer>(
+                Math.max(1, lists.size()),
+                (a, b) -> order.compare(lists.get(a).get(next[a]),
+                        lists.get(b).get(next[b])));
+        for (int i = 0; i < lists.size(); i++) {
+            if (!lists.get(i).isEmpty()) {
+                heads.add(i);
+            }
+        }
+        while (!heads.isEmpty()) {
+            int i = heads.poll();
+            merged.add(lists.get(i).get(next[i]));
+            next[i]++;
+            if (next[i] < lists.get(i).size()) {
+                heads.add(i);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Returns the songs of {@code entries}.
+     *
+     * @param entries
+     *            The entries
+     * @return their songs, in the same order
+     */
+    private static ArrayList<Song> songsOf(List<Entry> entries) {
+        ArrayList<Song> songs = new ArrayList<Song>(entries.size());
+        for (Entry entry : entries) {
+            songs.add(entry.song());
+        }
+        return songs;
+    }
+
+    /**
+     * Returns every entry of every shard, in order. Only called while holding
+     * every lock.
+     *
+     * @return the entries
+     */
+    private ArrayList<Entry> mergedEntries() {
+        ArrayList<ArrayList<Entry>> lists = new ArrayList<ArrayList<Entry>>();
+        for (Shard shard : this.shards) {
+            lists.add(shard.entries);
+        }
+        return merge(lists, BY_KEY);
+    }
+
+    /**
+     * Returns the merged view of this, building it under every lock if a
+     * write happened since it was last built.
+     *
+     * @return the songs of this, in order
+     */
+    private Song[] view() {
+        Song[] songs = this.view;
+        if (songs == null) {
+            this.lockAll();
+            try {
+                songs = this.view;
+                if (songs == null) {
+                    songs = songsOf(this.mergedEntries())
+                            .toArray(new Song[0]);
+                    this.view = songs;
+                }
+            } finally {
+                this.unlockAll();
+            }
+        }
+        return songs;
+    }
+
+    /**
+     * Replaces the songs of every shard with {@code songs}, numbering their
+     * keys from 0 in order. Only called while holding every lock.
+     *
+     * @param songs
+     *            The new songs of this, in order
+     */
+    private void refill(List<Song> songs) {
+        for (Shard shard : this.shards) {
+            shard.entries = new ArrayList<Entry>();
+            shard.members = new HashSet<Song>();
+        }
+        long key = 0;
+        for (Song song : songs) {
+            Shard shard = this.shardOf(song.artist());
+            shard.entries.add(new Entry(key, song));
+            shard.members.add(song);
+            key++;
+        }
+        this.nextKey.set(key);
+        this.size.set(songs.size());
+        this.view = songs.toArray(new Song[0]);
+    }
+
+    /**
+     * Adds {@code song} to {@code shard} with the next key. Only called while
+     * holding the shard's lock.
+     *
+     * @param shard
+     *            The shard
+     * @param song
+     *            The song
+     * @requires shard = shardOf(song.artist()) AND song is not in this
+     */
+    private void append(Shard shard, Song song) {
+        shard.entries.add(new Entry(this.nextKey.getAndIncrement(), song));
+        shard.members.add(song);
+        this.size.incrementAndGet();
+        this.view = null;
+    }
+
+    /**
+     * Removes the entry at position {@code i} of {@code shard}. Only called
+     * while holding the shard's lock.
+     *
+     * @param shard
+     *            The shard
+     * @param i
+     *            The position in shard.entries
+     * @return the song removed
+     */
+    private Song removeAt(Shard shard, int i) {
+        Song song = shard.entries.remove(i).song();
+        shard.members.remove(song);
+        this.size.decrementAndGet();
+        this.view = null;
+        synchronized (this.changes) {
+            this.changes.removed(song);
+        }
+        return song;
+    }
+
+    /**
+     * Records that {@code matches} were removed from this. Only called while
+     * holding the lock of every shard they were in.
+     *
+     * @param matches
+     *            The entries removed
+     */
+    private void removed(List<Entry> matches) {
+        if (matches.size() > 0) {
+            this.size.addAndGet(-matches.size());
+            this.view = null;
+            synchronized (this.changes) {
+                for (Entry entry : matches) {
+                    this.changes.removed(entry.song());
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for a shard search to finish, without giving up on an interrupt
+     * since the shard locks can't be released while it runs.
+     *
+     * @param search
+     *            The search
+     * @return its matches
+     */
+    private static ArrayList<Entry> await(Future<ArrayList<Entry>> search) {
+        ArrayList<Entry> matches = null;
+        boolean interrupted = false;
+        while (matches == null) {
+            try {
+                matches = search.get();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("ERROR: Shard search failed",
+                        e.getCause());
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return matches;
+    }
+
+    /**
+     * Returns the entries of every shard whose {@code field} is
+     * {@code value}, removing them if {@code remove}. By artist this looks in
+     * one shard under its lock; otherwise it locks every shard and searches
+     * the first on the calling thread and the rest in parallel on
+     * {@code SEARCHERS}.
+     *
+     * @param field
+     *            The field to match
+     * @param value
+     *            The value to match
+     * @param remove
+     *            Whether to remove the matches
+     * @return the matches, in order
+     */
+    private ArrayList<Entry> matching(MusicDatabaseKernel.SearchField field,
+            String value, boolean remove) {
+        ArrayList<Entry> matches;
+        if (field == MusicDatabaseKernel.SearchField.ARTIST) {
+            Shard shard = this.shardOf(value);
+            shard.lock.lock();
+            try {
+                matches = shard.matching(field, value, remove);
+                if (remove) {
+                    this.removed(matches);
+                }
+            } finally {
+                shard.lock.unlock();
+            }
+        } else {
+            this.lockAll();
+            try {
+                ArrayList<Future<ArrayList<Entry>>> searches =
+                        new ArrayList<Future<ArrayList<Entry>>>();
+                for (int i = 1; i < this.shards.length; i++) {
+                    Shard shard = this.shards[i];
+                    searches.add(SEARCHERS.submit(
+                            () -> shard.matching(field, value, remove)));
+                }
+                /*
+                 * Every search has to finish before the locks are released,
+                 * even if one of them fails.
+                 */
+                ArrayList<ArrayList<Entry>> found =
+                        new ArrayList<ArrayList<Entry>>();
+                RuntimeException failure = null;
+                try {
+                    found.add(this.shards[0].matching(field, value, remove));
+                } catch (RuntimeException e) {
+                    failure = e;
+                }
+                for (Future<ArrayList<Entry>> search : searches) {
+                    try {
+                        found.add(await(search));
+                    } catch (IllegalStateException e) {
+                        if (failure == null) {
+                            failure = e;
+                        }
+                    }
+                }
+                matches = merge(found, BY_KEY);
+                if (remove) {
+                    this.removed(matches);
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+            } finally {
+                this.unlockAll();
+            }
+        }
+        return matches;
+    }
+
+    /*
+     * ---------------------------- Kernel methods ----------------------------
+     */
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Iterator<Song> iterator() {
+        /*
+         * The view is never modified once built, so the iterator walks it
+         * without copying or locking.
+         */
+        Song[] songs = this.view();
+
+        Iterator<Song> it = new Iterator<Song>() {
+            private int pos = -1;
+            private boolean nextCalled = false;
+
+            @Override
+            public boolean hasNext() {
+                return (this.pos + 1) < songs.length;
+            }
+
+            @Override
+            public Song next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException(
+                            "ERROR: No more values in this");
+                }
+                this.pos++;
+                this.nextCalled = true;
+                return songs[this.pos];
+            }
+
+            @Override
+            public void remove() {
+                assert this.nextCalled : ""
+                        + "Violation of: next() has been called at least "
+                        + "once before this method.";
+
+                Song song = songs[this.pos];
+                Shard shard = MusicDatabase5.this.shardOf(song.artist());
+                shard.lock.lock();
+                try {
+                    if (shard.members.contains(song)) {
+                        MusicDatabase5.this.removeAt(shard,
+                                shard.indexOf(song));
+                    }
+                } finally {
+                    shard.lock.unlock();
+                }
+                this.nextCalled = false;
+            }
+        };
+        return it;
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void clear() {
+        this.lockAll();
+        try {
+            ArrayList<Song> songs = songsOf(this.mergedEntries());
+            synchronized (this.changes) {
+                this.changes.removedAll(songs);
+            }
+            this.refill(new ArrayList<Song>());
+        } finally {
+            this.unlockAll();
+        }
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public MusicDatabase newInstance() {
+        return new MusicDatabase5(this.shards.length);
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void transferFrom(MusicDatabase source) {
+        assert source != null : "Violation of: source is not null";
+        assert source != this : "Violation of: source is not this";
+        assert source instanceof MusicDatabase5 : ""
+                + "Violation of: source is of dynamic type MusicDatabase5";
+
+        /*
+         * Takes the two sets of locks one after the other rather than
+         * together, so two threads transferring in opposite directions cannot
+         * deadlock. The songs are dealt out again, since the two may not have
+         * the same number of shards.
+         */
+        MusicDatabase5 temp = (MusicDatabase5) source;
+        ArrayList<Song> songs;
+        long fingerprint;
+        temp.lockAll();
+        try {
+            songs = songsOf(temp.mergedEntries());
+            synchronized (temp.changes) {
+                fingerprint = temp.changes.fingerprint();
+                temp.changes.removedAll(songs);
+            }
+            temp.refill(new ArrayList<Song>());
+        } finally {
+            temp.unlockAll();
+        }
+
+        this.lockAll();
+        try {
+            ArrayList<Song> old = songsOf(this.mergedEntries());
+            synchronized (this.changes) {
+                this.changes.removedAll(old);
+                this.changes.addedAll(songs, fingerprint);
+            }
+            this.refill(songs);
+        } finally {
+            this.unlockAll();
+        }
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void ensureCapacity(int cap) {
+        assert cap > 0 : "Violation of: cap > 0";
+
+        int perShard = cap / this.shards.length + 1;
+        for (Shard shard : this.shards) {
+            shard.lock.lock();
+            try {
+                shard.entries.ensureCapacity(perShard);
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void addEntry(Song song) {
+        assert song != null : "Violation of: song != null";
+
+        Shard shard = this.shardOf(song.artist());
+        shard.lock.lock();
+        try {
+            assert !shard.members.contains(song) : ""
+                    + "Violation of: song is not in this";
+
+            this.append(shard, song);
+            synchronized (this.changes) {
+                this.changes.added(song);
+            }
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * Adds the whole batch under every lock, so readers see all of it or none
+     * of it.
+     *
+     * @param songs
+     *            The songs to add
+     */
+    @Override
+    protected final void addNewEntries(Collection<Song> songs) {
+        this.lockAll();
+        try {
+            for (Song song : songs) {
+                this.append(this.shardOf(song.artist()), song);
+            }
+            synchronized (this.changes) {
+                this.changes.addedAll(songs);
+            }
+        } finally {
+            this.unlockAll();
+        }
+    }
+
+    /**
+     * Merges the whole batch under every lock, so readers see all of it or
+     * none of it, and renumbers the keys in the merged order.
+     *
+     * @param songs
+     *            The songs to merge in
+     * @param order
+     *            The order this and songs are both sorted by
+     */
+    @Override
+    protected final void mergeNewEntries(List<Song> songs,
+            Comparator<Song> order) {
+        this.lockAll();
+        try {
+            ArrayList<Song> old = songsOf(this.mergedEntries());
+            this.refill(Arrays.asList(
+                    mergeSorted(old, old.size(), songs, order)));
+            synchronized (this.changes) {
+                this.changes.addedAll(songs);
+            }
+        } finally {
+            this.unlockAll();
+        }
+    }
+
+    /**
+     * Removes the whole set under every lock, in one pass over each shard.
+     *
+     * @param songs
+     *            The songs to remove
+     */
+    @Override
+    protected final void removeExistingEntries(Set<Song> songs) {
+        this.lockAll();
+        try {
+            for (Shard shard : this.shards) {
+                shard.entries.removeIf(entry -> songs.contains(entry.song()));
+                shard.members.removeAll(songs);
+            }
+            this.size.addAndGet(-songs.size());
+            this.view = null;
+            synchronized (this.changes) {
+                for (Song song : songs) {
+                    this.changes.removed(song);
+                }
+            }
+        } finally {
+            this.unlockAll();
+        }
+    }
+
+    /**
+     * Reports the songs of the artist's shard when searching by artist, and
+     * every song otherwise.
+     *
+     * @param field
+     *            The field searched
+     * @param value
+     *            The value searched for
+     * @return the number of songs examined
+     */
+    @Override
+    protected final long rowsScanned(MusicDatabaseKernel.SearchField field,
+            String value) {
+        long scanned;
+        if (field == MusicDatabaseKernel.SearchField.ARTIST) {
+            Shard shard = this.shardOf(value);
+            shard.lock.lock();
+            try {
+                scanned = shard.entries.size();
+            } finally {
+                shard.lock.unlock();
+            }
+        } else {
+            scanned = this.size();
+        }
+        return scanned;
+    }
+
+    /**
+     * Reports that {@code contains} looks in one shard's hash set.
+     *
+     * @return true
+     */
+    @Override
+    protected final boolean hasIndexedLookup() {
+        return true;
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Song getEntryByOrder(int n) {
+        Song[] songs = this.view();
+        if (n < 0 || n >= songs.length) {
+            throw new NoSuchElementException(
+                    "ERROR: No element exists at the given position");
+        }
+        return songs[n];
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public ArrayList<Song> getEntries(MusicDatabaseKernel.SearchField field,
+            String value) {
+        assert value != null : "Violation of: value != null";
+
+        ScanEvent event = new ScanEvent();
+        event.begin();
+        ArrayList<Song> list = songsOf(this.matching(field, value, false));
+        event.record(false, field, this.size(), list.size());
+        return list;
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public ArrayList<Song> removeEntries(MusicDatabaseKernel.SearchField field,
+            String value) {
+        assert value != null : "Violation of: value != null";
+
+        ScanEvent event = new ScanEvent();
+        event.begin();
+        ArrayList<Song> list = songsOf(this.matching(field, value, true));
+        event.record(true, field, this.size() + list.size(), list.size());
+        return list;
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Song removeEntry(Song song) {
+        Shard shard = this.shardOf(song.artist());
+        shard.lock.lock();
+        try {
+            assert shard.members.contains(song) : ""
+                    + "Violation of: song is in this";
+
+            this.removeAt(shard, shard.indexOf(song));
+        } finally {
+            shard.lock.unlock();
+        }
+        return song;
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Song removeEntryByOrder(int n) {
+        this.lockAll();
+        try {
+            Song[] songs = this.view();
+            if (n < 0 || n >= songs.length) {
+                throw new NoSuchElementException(
+                        "ERROR: No element exists at the given position");
+            }
+            Shard shard = this.shardOf(songs[n].artist());
+            return this.removeAt(shard, shard.indexOf(songs[n]));
+        } finally {
+            this.unlockAll();
+        }
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Boolean contains(Song song) {
+        Shard shard = this.shardOf(song.artist());
+        shard.lock.lock();
+        try {
+            return shard.members.contains(song);
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public int size() {
+        return this.size.get();
+    }
+
+    /**
+     * Sorts every shard, then merges them. Songs that
+     * {@code order} finds equal keep their relative order, as with a stable
+     * sort of the whole database.
+     *
+     * @param order
+     *            The order to sort by
+     */
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void sort(Comparator<Song> order) {
+        SortEvent event = new SortEvent();
+        event.begin();
+        Comparator<Entry> byOrder = Comparator
+                .comparing(Entry::song, order).thenComparing(BY_KEY);
+        this.lockAll();
+        try {
+            ArrayList<ArrayList<Entry>> lists =
+                    new ArrayList<ArrayList<Entry>>();
+            for (Shard shard : this.shards) {
+                shard.entries.sort(byOrder);
+                lists.add(shard.entries);
+            }
+            this.refill(songsOf(merge(lists, byOrder)));
+        } finally {
+            this.unlockAll();
+        }
+        event.record(this.size(), order);
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public long epoch() {
+        synchronized (this.changes) {
+            return this.changes.epoch();
+        }
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Delta changesSince(long epoch) {
+        synchronized (this.changes) {
+            return this.changes.changesSince(epoch);
+        }
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void forgetChangesBefore(long epoch) {
+        synchronized (this.changes) {
+            this.changes.forgetChangesBefore(epoch);
+        }
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public long fingerprint() {
+        synchronized (this.changes) {
+            return this.changes.fingerprint();
+        }
+    }
+
+    /**
+     * Counts each shard's list of keyed entries as storage, each shard's set
+     * of members as an index, and the merged view, if built, as a cache.
+     *
+     * @return the estimate
+     */
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public MemoryReport memoryReport() {
+        final int shardReferences = 3;
+        ArrayList<Song> songs = new ArrayList<Song>(this.size.get());
+        long storage = MemoryReport.referenceArray(this.shards.length);
+        long indexes = 0;
+        long history;
+        this.lockAll();
+        try {
+            for (Shard shard : this.shards) {
+                storage += MemoryReport.object(shardReferences, 0)
+                        + MemoryReport.arrayList(shard.entries.size())
+                        + shard.entries.size()
+                                * MemoryReport.object(1, Long.BYTES);
+                indexes += MemoryReport.hashSet(shard.members.size());
+                for (Entry entry : shard.entries) {
+                    songs.add(entry.song());
+                }
+            }
+            synchronized (this.changes) {
+                history = this.changes.memoryBytes();
+            }
+        } finally {
+            this.unlockAll();
+        }
+        long caches = 0;
+        Song[] merged = this.view;
+        if (merged != null) {
+            caches = MemoryReport.referenceArray(merged.length);
+        }
+        return MemoryReport.of(songs, storage, indexes, caches, history, 0);
+    }
+}
@@ -0,0 +1,349 @@
+package components.musicdatabase;
+
+import java.util.Comparator;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder events for the work a {@code MusicDatabase} does in
+ * bulk, so imports, exports, sorts, and scans show up by name on a JFR
+ * timeline instead of as anonymous {@code ArrayList} and {@code String}
+ * frames. Each is used the same way:
+ *
+ * <pre>
+ * ScanEvent event = new ScanEvent();
+ * event.begin();
+ * ... the work ...
+ * event.record(...);
+ * </pre>
+ *
+ * While no recording has the event enabled, {@code begin} and {@code record}
+ * do nothing and the JIT removes the allocation, so the cost is near zero.
+ * The fields are only filled in, and comparator names only looked up, when
+ * the event is going to be committed.
+ */
+final class MusicDatabaseEvents {
+
+    /**
+     * Private constructor so this utility class cannot be instantiated.
+     */
+    private MusicDatabaseEvents() {
+    }
+
+    /**
+     * Category of every event, as shown in JDK Mission Control.
+     */
+    private static final String CATEGORY = "Music Database";
+
+    /**
+     * Returns the name of the class of {@code order}, or an empty string if
+     * order is null.
+     *
+     * @param order
+     *            The comparator, or null
+     * @return the class name
+     */
+    private static String nameOf(Comparator<Song> order) {
+        String name = "";
+        if (order != null) {
+            name = order.getClass().getName();
+        }
+        return name;
+    }
+
+    /**
+     * {@code readFromFile}.
+     */
+    @Name("components.musicdatabase.ReadFromFile")
+    @Label("Read From File")
+    @Category(CATEGORY)
+    @Description("Songs read from a tab delimited file")
+    static final class ReadEvent extends Event {
+
+        /**
+         * Path of the file.
+         */
+        @Label("Path")
+        private String path;
+
+        /**
+         * Number of valid rows read.
+         */
+        @Label("Rows")
+        private long rows;
+
+        /**
+         * Size of the file.
+         */
+        @Label("Bytes")
+        @DataAmount
+        private long bytes;
+
+        /**
+         * Commits this, if enabled.
+         *
+         * @param file
+         *            Path of the file
+         * @param rowCount
+         *            Number of valid rows read
+         * @param byteCount
+         *            Size of the file
+         */
+        void record(String file, long rowCount, long byteCount) {
+            if (this.shouldCommit()) {
+                this.path = file;
+                this.rows = rowCount;
+                this.bytes = byteCount;
+                this.commit();
+            }
+        }
+    }
+
+    /**
+     * {@code writeToFile}.
+     */
+    @Name("components.musicdatabase.WriteToFile")
+    @Label("Write To File")
+    @Category(CATEGORY)
+    @Description("Songs written to a tab delimited file")
+    static final class WriteEvent extends Event {
+
+        /**
+         * Path of the file.
+         */
+        @Label("Path")
+        private String path;
+
+        /**
+         * Number of rows written.
+         */
+        @Label("Rows")
+        private long rows;
+
+        /**
+         * Size of the file written.
+         */
+        @Label("Bytes")
+        @DataAmount
+        private long bytes;
+
+        /**
+         * Whether the file is GZIP compressed.
+         */
+        @Label("Compressed")
+        private boolean compressed;
+
+        /**
+         * Commits this, if enabled.
+         *
+         * @param file
+         *            Path of the file
+         * @param rowCount
+         *            Number of rows written
+         * @param byteCount
+         *            Size of the file written
+         * @param gzip
+         *            Whether the file is GZIP compressed
+         */
+        void record(String file, long rowCount, long byteCount,
+                boolean gzip) {
+            if (this.shouldCommit()) {
+                this.path = file;
+                this.rows = rowCount;
+                this.bytes = byteCount;
+                this.compressed = gzip;
+                this.commit();
+            }
+        }
+    }
+
+    /**
+     * {@code sort}.
+     */
+    @Name("components.musicdatabase.Sort")
+    @Label("Sort")
+    @Category(CATEGORY)
+    @Description("Songs put in a new order")
+    static final class SortEvent extends Event {
+
+        /**
+         * Number of songs sorted.
+         */
+        @Label("Rows")
+        private long rows;
+
+        /**
+         * Class of the comparator.
+         */
+        @Label("Comparator")
+        private String comparator;
+
+        /**
+         * Commits this, if enabled.
+         *
+         * @param rowCount
+         *            Number of songs sorted
+         * @param order
+         *            The comparator
+         */
+        void record(long rowCount, Comparator<Song> order) {
+            if (this.shouldCommit()) {
+                this.rows = rowCount;
+                this.comparator = nameOf(order);
+                this.commit();
+            }
+        }
+    }
+
+    /**
+     * {@code getEntries} and {@code removeEntries}.
+     */
+    @Name("components.musicdatabase.Scan")
+    @Label("Scan")
+    @Category(CATEGORY)
+    @Description("Songs searched for a value of one field")
+    static final class ScanEvent extends Event {
+
+        /**
+         * Method that searched.
+         */
+        @Label("Method")
+        private String method;
+
+        /**
+         * Field searched.
+         */
+        @Label("Field")
+        private String field;
+
+        /**
+         * Number of songs in the database when the search began.
+         */
+        @Label("Rows")
+        private long rows;
+
+        /**
+         * Number of songs found.
+         */
+        @Label("Matches")
+        private long matches;
+
+        /**
+         * Commits this, if enabled.
+         *
+         * @param removing
+         *            Whether the songs found were removed
+         * @param searched
+         *            Field searched
+         * @param rowCount
+         *            Number of songs in the database when the search began
+         * @param matchCount
+         *            Number of songs found
+         */
+        void record(boolean removing, MusicDatabaseKernel.SearchField searched,
+                long rowCount, long matchCount) {
+            if (this.shouldCommit()) {
+                if (removing) {
+                    this.method = "removeEntries";
+                } else {
+                    this.method = "getEntries";
+                }
+                this.field = searched.name();
+                this.rows = rowCount;
+                this.matches = matchCount;
+                this.commit();
+            }
+        }
+    }
+
+    /**
+     * {@code split}.
+     */
+    @Name("components.musicdatabase.Split")
+    @Label("Split")
+    @Category(CATEGORY)
+    @Description("Songs with a value of one field moved to a new database")
+    static final class SplitEvent extends Event {
+
+        /**
+         * Field searched.
+         */
+        @Label("Field")
+        private String field;
+
+        /**
+         * Number of songs moved.
+         */
+        @Label("Rows")
+        private long rows;
+
+        /**
+         * Commits this, if enabled.
+         *
+         * @param searched
+         *            Field searched
+         * @param rowCount
+         *            Number of songs moved
+         */
+        void record(MusicDatabaseKernel.SearchField searched, long rowCount) {
+            if (this.shouldCommit()) {
+                this.field = searched.name();
+                this.rows = rowCount;
+                this.commit();
+            }
+        }
+    }
+
+    /**
+     * {@code append}.
+     */
+    @Name("components.musicdatabase.Append")
+    @Label("Append")
+    @Category(CATEGORY)
+    @Description("Songs of another database merged into this one")
+    static final class AppendEvent extends Event {
+
+        /**
+         * Number of songs in the other database.
+         */
+        @Label("Rows")
+        private long rows;
+
+        /**
+         * Number of those songs that were not already in this one.
+         */
+        @Label("Added")
+        private long added;
+
+        /**
+         * Class of the comparator both were sorted by, or empty for a plain
+         * append.
+         */
+        @Label("Comparator")
+        private String comparator;
+
+        /**
+         * Commits this, if enabled.
+         *
+         * @param rowCount
+         *            Number of songs in the other database
+         * @param addedCount
+         *            Number of those songs that were not already in this one
+         * @param order
+         *            The comparator both were sorted by, or null
+         */
+        void record(long rowCount, long addedCount, Comparator<Song> order) {
+            if (this.shouldCommit()) {
+                this.rows = rowCount;
+                this.added = addedCount;
+                this.comparator = nameOf(order);
+                this.commit();
+            }
+        }
+    }
+}
@@ -156,4 +156,55 @@ public interface MusicDatabaseKernel
      * @updates this
      */
     void sort(Comparator<Song> order);
+
+    /**
+     * Returns the modification epoch of this, a number that goes up every time
+     * songs are added to or removed from this. Changes made after the returned
+     * epoch can later be retrieved with {@code changesSince}.
+     *
+     * @return the current modification epoch
+     * @ensures epoch = [number of changes made to this so far] AND changes
+     *          since epoch are retained
+     */
+    long epoch();
+
+    /**
+     * Returns the songs added to and removed from this since {@code epoch}. A
+     * song that was added and removed again since then (or removed and added
+     * back) is in neither list.
+     *
+     * @param epoch
+     *            An epoch previously returned by {@code epoch()}
+     * @return The net songs added and removed since {@code epoch}
+     * @requires epoch was returned by {@code this.epoch()} AND changes before
+     *           it have not been discarded by {@code forgetChangesBefore}
+     * @ensures changesSince.added = [songs in this but not in this at epoch]
+     *          AND changesSince.removed = [songs in this at epoch but not in
+     *          this]
+     */
+    Delta changesSince(long epoch);
+
+    /**
+     * Discards the history of changes made up to {@code epoch}, after which
+     * {@code changesSince} may no longer be called with anything older.
+     *
+     * @param epoch
+     *            The oldest epoch {@code changesSince} will still be called
+     *            with
+     * @requires epoch <= this.epoch()
+     * @ensures changes made up to epoch are no longer retained
+     */
+    void forgetChangesBefore(long epoch);
+
+    /**
+     * Returns a fingerprint of the songs in this, kept up to date as songs are
+     * added and removed so that it takes constant time. Databases holding the
+     * same songs, in any order, have the same fingerprint, so databases with
+     * different fingerprints are known to be unequal.
+     *
+     * @return the fingerprint of this
+     * @ensures [if this and db hold the same songs then fingerprint =
+     *          db.fingerprint]
+     */
+    long fingerprint();
 }
@@ -1,33 +1,176 @@
 package components.musicdatabase;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import components.musicdatabase.MusicDatabaseEvents.AppendEvent;
+import components.musicdatabase.MusicDatabaseEvents.ReadEvent;
+import components.musicdatabase.MusicDatabaseEvents.SplitEvent;
+import components.musicdatabase.MusicDatabaseEvents.WriteEvent;
 
 /**
  * Layered implementation of secondary methods for {@code MusicDatabase}.
  */
 public abstract class MusicDatabaseSecondary implements MusicDatabase {
 
+    /*
+     * Private members.
+     */
+
+    /**
+     * Single background thread that runs every {@code writeToFileAsync}
+     * export, in the order they were requested.
+     */
+    private static final ExecutorService EXPORTER = Executors
+            .newSingleThreadExecutor(r -> {
+                Thread exporter = new Thread(r, "MusicDatabase-exporter");
+                exporter.setDaemon(true);
+                return exporter;
+            });
+
+    /**
+     * Number of characters {@code renderTo} and {@code printSongs} collect
+     * before handing them on in one block.
+     */
+    private static final int RENDER_BLOCK = 1 << 16;
+
+    /**
+     * Number of rows {@code readFromFile} reads before adding them, unless
+     * {@code readBatchSize} says otherwise.
+     */
+    private static final int READ_BATCH = 4096;
+
+    /**
+     * Separator between the fields of a row of {@code toString}.
+     */
+    private static final String FIELD_SEPARATOR = "    ";
+
+    /**
+     * Charset of catalogs written before {@code writeToFile} wrote UTF-8: the
+     * platform default on the Windows machines they came from.
+     */
+    private static final Charset LEGACY_CHARSET = Charset
+            .forName("windows-1252");
+
+    /**
+     * Line printed between songs by {@code printSongs}.
+     */
+    private static final String SONG_SEPARATOR = ""
+            + "******************************";
+
+    /**
+     * An export requested through {@code writeToFileAsync} that the exporter
+     * thread has not started yet.
+     */
+    private static final class PendingExport {
+
+        /**
+         * The most recent snapshot requested to be written.
+         */
+        private ArrayList<Song> snapshot;
+
+        /**
+         * Completed once {@code snapshot} is written.
+         */
+        private final CompletableFuture<Void> future;
+
+        /**
+         * Constructor.
+         */
+        PendingExport() {
+            this.future = new CompletableFuture<Void>();
+        }
+    }
+
+    /**
+     * Exports of this waiting for the exporter thread, keyed by the file they
+     * will write.
+     */
+    private final Map<Path, PendingExport> pendingExports = new HashMap<>();
+
     /*
      * ----------------------------Utility methods------------------------------
      */
 
     /**
-     * Simplified version of System.out.println for convenience.
+     * Prints everything in {@code block} to the console with one call and
+     * empties it.
      *
-     * @param output
-     *            The string to be printed to the console
+     * @param block
+     *            The characters to print
+     * @updates block, console
+     * @ensures block = ""
      */
-    private static void out(String output) {
-        System.out.println(output);
+    private static void flushOut(StringBuilder block) {
+        System.out.print(block);
+        System.out.flush();
+        block.setLength(0);
+    }
+
+    /**
+     * Appends the lines {@code printSong} prints for {@code song} to
+     * {@code block}.
+     *
+     * @param block
+     *            The block to append to
+     * @param song
+     *            The song
+     * @updates block
+     */
+    private static void appendDetails(StringBuilder block, Song song) {
+        String newLine = System.lineSeparator();
+        block.append("* Title: ").append(song.title()).append(newLine);
+        block.append("* Artist: ").append(song.artist()).append(newLine);
+        /*
+         * Not all songs are part of an album, so this line will only print if a
+         * song is part of an album
+         */
+        if (!song.album().equals("")) {
+            block.append("* Album: ").append(song.album()).append(newLine);
+        }
+        block.append("* Length: ").append(song.length()).append(newLine);
+    }
+
+    /**
+     * Appends the row {@code toString} has for {@code song} to {@code block}.
+     *
+     * @param block
+     *            The block to append to
+     * @param song
+     *            The song
+     * @updates block
+     */
+    private static void appendRow(StringBuilder block, Song song) {
+        block.append(song.title()).append(FIELD_SEPARATOR)
+                .append(song.artist()).append(FIELD_SEPARATOR)
+                .append(song.album()).append(FIELD_SEPARATOR)
+                .append(song.length()).append('\n');
     }
 
     /**
@@ -126,18 +269,81 @@ public abstract class MusicDatabaseSecondary implements MusicDatabase {
         }
     }
 
-    /*
-     * ------------------------- Secondary methods -----------------------------
+    /**
+     * Resolves the path given to {@code writeToFile}, substituting the default
+     * path for "", and makes its parent folders if they don't already exist.
+     *
+     * @param outputPath
+     *            The path given to {@code writeToFile}
+     * @return The path of the file to write
+     * @requires outputPath != null
      */
+    private static Path outputFile(String outputPath) {
+        String path = outputPath;
+        if (outputPath == "") {
+            path = ".\\output\\Music_Database";
+        }
 
-    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
-    @Override
-    public void readFromFile(String inputPath) {
-        assert inputPath != null : "Violation of: inputPath != null";
-        assert inputPath != "" : "Violation of: inputPath != \"\"";
+        File outputFile = new File(path);
+        /*
+         * Makes the parent folders of the given path if they don't already
+         * exist.
+         */
+        File outputDirectory = outputFile.getAbsoluteFile().getParentFile();
+        if (outputDirectory != null) {
+            outputDirectory.mkdirs();
+        }
 
-        try (BufferedReader rdr = new BufferedReader(
-                new FileReader(inputPath));) {
+        return outputFile.toPath();
+    }
+
+    /**
+     * Returns the charset the file at {@code inputPath} is encoded in: UTF-8
+     * if it decodes strictly as UTF-8, and otherwise {@code LEGACY_CHARSET},
+     * for catalogs written before {@code writeToFile} used UTF-8. Decodes the
+     * whole file up front, one buffer at a time, so that no batch of a
+     * catalog is added in the wrong charset.
+     *
+     * @param inputPath
+     *            The path of the file
+     * @return the charset
+     * @throws IOException
+     *             if the file cannot be read
+     */
+    private static Charset charsetOf(String inputPath) throws IOException {
+        Charset charset = StandardCharsets.UTF_8;
+        try (InputStreamReader rdr = new InputStreamReader(
+                new FileInputStream(inputPath), charset.newDecoder())) {
+            char[] buffer = new char[RENDER_BLOCK];
+            int read = rdr.read(buffer);
+            while (read >= 0) {
+                read = rdr.read(buffer);
+            }
+        } catch (CharacterCodingException e) {
+            charset = LEGACY_CHARSET;
+        }
+        return charset;
+    }
+
+    /**
+     * Adds the songs in the rows of the file at {@code inputPath} that are
+     * not already in this, stopping at the first invalid row. The rows are
+     * added {@code readBatchSize} at a time, and those read before an invalid
+     * row are still added.
+     *
+     * @param inputPath
+     *            The path of the file
+     * @return the number of rows read
+     * @updates this
+     */
+    private int readRows(String inputPath) {
+        int batchSize = this.readBatchSize();
+        ArrayList<Song> batch = new ArrayList<Song>(
+                Math.min(batchSize, READ_BATCH));
+        int count = 0;
+        try (BufferedReader rdr = new BufferedReader(new InputStreamReader(
+                new FileInputStream(inputPath),
+                charsetOf(inputPath).newDecoder()))) {
             isTxt(inputPath);
 
             String line = rdr.readLine();
@@ -160,8 +366,11 @@ public abstract class MusicDatabaseSecondary implements MusicDatabase {
                 Song song = new Song(fields[0], fields[1], fields[2],
                         fields[three]);
 
-                if (!this.contains(song)) {
-                    this.addEntry(song);
+                batch.add(song);
+                count++;
+                if (batch.size() >= batchSize) {
+                    this.merge(batch, batch.size());
+                    batch.clear();
                 }
 
                 line = rdr.readLine();
@@ -170,69 +379,233 @@ public abstract class MusicDatabaseSecondary implements MusicDatabase {
         } catch (Exception e) {
             e.printStackTrace();
         }
+        this.merge(batch, batch.size());
+        return count;
+    }
+
+    /*
+     * ------------------------- Secondary methods -----------------------------
+     */
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void readFromFile(String inputPath) {
+        assert inputPath != null : "Violation of: inputPath != null";
+        assert inputPath != "" : "Violation of: inputPath != \"\"";
+
+        ReadEvent event = new ReadEvent();
+        event.begin();
+        int rows = this.readRows(inputPath);
+        event.record(inputPath, rows, new File(inputPath).length());
     }
 
     // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
     @Override
     public void writeToFile(String outputPath) {
+        this.writeToFile(outputPath, false);
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void writeToFile(String outputPath, boolean compress) {
         assert outputPath != null : "Violation of: outputPath != null";
 
-        BufferedWriter wrtr = null;
+        /*
+         * Rows are encoded straight into SongWriter's buffer, which goes to a
+         * temporary file in large blocks and then replaces the output file
+         * in one rename.
+         */
+        WriteEvent event = new WriteEvent();
+        event.begin();
+        Path output = outputFile(outputPath);
         try {
-            String path = outputPath;
-            if (outputPath == "") {
-                path = ".\\output\\Music_Database";
-            }
+            SongWriter.writeAtomically(output, this, compress);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        event.record(outputPath, this.size(), output.toFile().length(),
+                compress);
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public CompletableFuture<Void> writeToFileAsync(String outputPath) {
+        assert outputPath != null : "Violation of: outputPath != null";
 
-            File outputFile = new File(path);
+        Path path = outputFile(outputPath).toAbsolutePath().normalize();
+        ArrayList<Song> snapshot = new ArrayList<Song>(this.size());
+        for (Song song : this) {
+            snapshot.add(song);
+        }
+
+        synchronized (this.pendingExports) {
             /*
-             * Makes the parent folders of the given path if they don't already
-             * exist.
+             * If an export to the same file is still waiting for the exporter
+             * thread, it just picks up the newer snapshot instead of a second
+             * write being queued.
              */
-            File outputDirectory = outputFile.getParentFile();
-            if (outputDirectory != null) {
-                outputDirectory.mkdirs();
+            PendingExport pending = this.pendingExports.get(path);
+            if (pending == null) {
+                pending = new PendingExport();
+                this.pendingExports.put(path, pending);
+                PendingExport submitted = pending;
+                EXPORTER.execute(() -> this.runExport(path, submitted));
             }
-            wrtr = new BufferedWriter(new FileWriter(outputFile));
+            pending.snapshot = snapshot;
+            return pending.future;
+        }
+    }
 
-            wrtr.write("Title\tArtist\tAlbum\tLength");
-            wrtr.newLine();
+    /**
+     * Runs on the exporter thread. Takes {@code pending} out of the pending
+     * exports, so any later request starts a new export, then writes its
+     * snapshot to {@code path}.
+     *
+     * @param path
+     *            The file to write
+     * @param pending
+     *            The export to run
+     */
+    private void runExport(Path path, PendingExport pending) {
+        ArrayList<Song> snapshot;
+        synchronized (this.pendingExports) {
+            this.pendingExports.remove(path);
+            snapshot = pending.snapshot;
+        }
 
-            for (Song song : this) {
-                wrtr.write(String.format("%s\t%s\t%s\t%s", song.title(),
-                        song.artist(), song.album(), song.length()));
-                wrtr.newLine();
-            }
+        try {
+            SongWriter.writeAtomically(path, snapshot, false);
+            pending.future.complete(null);
+        } catch (Exception e) {
+            pending.future.completeExceptionally(e);
+        }
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void writeDelta(String outputPath, long sinceEpoch) {
+        assert outputPath != null : "Violation of: outputPath != null";
 
-            wrtr.flush();
+        long toEpoch = this.epoch();
+        Delta delta = this.changesSince(sinceEpoch);
+        try {
+            SongWriter.writeAtomically(outputFile(outputPath), false, wrtr -> {
+                wrtr.writeField("Delta\t" + sinceEpoch + "\t" + toEpoch);
+                wrtr.writeNewLine();
+                for (Song song : delta.removed()) {
+                    wrtr.writeByte('-');
+                    wrtr.writeByte('\t');
+                    wrtr.write(song);
+                }
+                for (Song song : delta.added()) {
+                    wrtr.writeByte('+');
+                    wrtr.writeByte('\t');
+                    wrtr.write(song);
+                }
+            });
         } catch (Exception e) {
             e.printStackTrace();
-        } finally {
-            try {
-                if (wrtr != null) {
-                    wrtr.close();
+        }
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public long applyDelta(String inputPath) {
+        assert inputPath != null : "Violation of: inputPath != null";
+        assert inputPath != "" : "Violation of: inputPath != \"\"";
+
+        final int three = 3;
+        final int four = 4;
+        final int five = 5;
+        long toEpoch;
+        Delta delta = new Delta(new ArrayList<Song>(), new ArrayList<Song>());
+        try (BufferedReader rdr = new BufferedReader(
+                new FileReader(inputPath, StandardCharsets.UTF_8));) {
+            String[] header = rdr.readLine().split("\t");
+            if (header.length != three || !header[0].equals("Delta")) {
+                throw new IllegalArgumentException(
+                        "ERROR: Header is incorrectly formatted. Header should "
+                                + "be in the form \"Delta\\tsince\\tepoch\"");
+            }
+            toEpoch = Long.parseLong(header[2]);
+
+            String line = rdr.readLine();
+            int lineCount = 2;
+            while (line != null) {
+                String[] fields = line.split("\t", -1);
+                boolean added = fields[0].equals("+");
+                if (fields.length != five
+                        || !(added || fields[0].equals("-"))) {
+                    throw new IllegalArgumentException("ERROR on row "
+                            + lineCount + ": the given line is invalid. "
+                            + "Each row must be \"+\" or \"-\" followed "
+                            + "by four values, all separated by tabs.");
+                }
+                isValidDataRow(line.substring(2), lineCount);
+
+                Song song = new Song(fields[1], fields[2], fields[three],
+                        fields[four]);
+                if (added) {
+                    delta.added().add(song);
+                } else {
+                    delta.removed().add(song);
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
+
+                line = rdr.readLine();
+                lineCount++;
             }
+        } catch (Exception e) {
+            e.printStackTrace();
+            toEpoch = -1;
+            delta = null;
         }
+
+        /*
+         * Only applied once every row has been read and checked, so a bad
+         * file leaves this unchanged.
+         */
+        if (delta != null) {
+            this.applyDelta(delta);
+        }
+        return toEpoch;
     }
 
     // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
     @Override
-    public void printSong(Song song) {
-        assert song != null : "Violation of: song != null";
+    public void applyDelta(Delta delta) {
+        assert delta != null : "Violation of: delta != null";
 
-        out("* Title: " + song.title());
-        out("* Artist: " + song.artist());
         /*
-         * Not all songs are part of an album, so this line will only print if a
-         * song is part of an album
+         * Applied in bulk, as append is: with contains if this has an indexed
+         * lookup, and otherwise with one hash set of this, so the cost is
+         * linear in the size of this only for implementations that search
+         * every song anyway.
          */
-        if (!song.album().equals("")) {
-            out("* Album: " + song.album());
+        HashSet<Song> present = null;
+        if (!this.hasIndexedLookup()) {
+            present = hashSet(this);
+        }
+        HashSet<Song> removed = new HashSet<Song>();
+        for (Song song : delta.removed()) {
+            if (present == null && this.contains(song)
+                    || present != null && present.contains(song)) {
+                removed.add(song);
+            }
+        }
+        if (removed.size() > 0) {
+            this.removeExistingEntries(removed);
         }
-        out("* Length: " + song.length());
+        this.merge(delta.added(), delta.added().size());
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void printSong(Song song) {
+        assert song != null : "Violation of: song != null";
+
+        StringBuilder block = new StringBuilder();
+        appendDetails(block, song);
+        flushOut(block);
     }
 
     // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
@@ -240,22 +613,24 @@ public abstract class MusicDatabaseSecondary implements MusicDatabase {
     public void printSongs(ArrayList<Song> songs) {
         assert songs != null : "Violation of: songs != null";
 
-        out("Songs to be printed: " + songs.size());
-        out("******************************");
+        /*
+         * Collects the lines into large blocks rather than printing each one,
+         * which would be a separate write to the console.
+         */
+        String newLine = System.lineSeparator();
+        StringBuilder block = new StringBuilder(RENDER_BLOCK);
+        block.append("Songs to be printed: ").append(songs.size())
+                .append(newLine);
+        block.append(SONG_SEPARATOR).append(newLine);
 
         for (Song song : songs) {
-            out("* Title: " + song.title());
-            out("* Artist: " + song.artist());
-            /*
-             * Not all songs are part of an album, so this line will only print
-             * if a song is part of an album
-             */
-            if (!song.album().equals("")) {
-                out("* Album: " + song.album());
+            appendDetails(block, song);
+            block.append(SONG_SEPARATOR).append(newLine);
+            if (block.length() >= RENDER_BLOCK) {
+                flushOut(block);
             }
-            out("* Length: " + song.length());
-            out("******************************");
         }
+        flushOut(block);
     }
 
     // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
@@ -264,6 +639,8 @@ public abstract class MusicDatabaseSecondary implements MusicDatabase {
             String value) {
         assert value != null : "Violation of: value != null";
 
+        SplitEvent event = new SplitEvent();
+        event.begin();
         MusicDatabase newDB = this.newInstance();
         ArrayList<Song> splitSongs = this.removeEntries(field, value);
 
@@ -271,71 +648,603 @@ public abstract class MusicDatabaseSecondary implements MusicDatabase {
             newDB.addEntry(song);
         }
 
+        event.record(field, splitSongs.size());
         return newDB;
     }
 
+    /**
+     * Adds every song in {@code songs} to the end of this, in order. Used by
+     * the bulk merges once they have removed duplicates, so implementations
+     * whose representation can take a whole batch at once should override it.
+     *
+     * @param songs
+     *            The songs to add
+     * @requires [songs has no duplicates] AND [no song in songs is in this]
+     * @ensures this = #this * songs
+     * @updates this
+     */
+    protected void addNewEntries(Collection<Song> songs) {
+        for (Song song : songs) {
+            this.addEntry(song);
+        }
+    }
+
+    /**
+     * Merges every song in {@code songs} into this, keeping this sorted by
+     * {@code order}. Used by {@code append(db, order)} once it has removed
+     * duplicates. The default adds the songs to the end and then sorts, which
+     * leaves them where a merge would since the sort is stable; implementations
+     * that can merge in one pass, or should publish the result at once, should
+     * override it.
+     *
+     * @param songs
+     *            The songs to merge in
+     * @param order
+     *            The order this and songs are both sorted by
+     * @requires [songs has no duplicates] AND [no song in songs is in this]
+     *           AND [this is sorted by order] AND [songs is sorted by order]
+     * @ensures this = [#this and songs, sorted by order, with songs from #this
+     *          first among songs that order considers equal]
+     * @updates this
+     */
+    protected void mergeNewEntries(List<Song> songs, Comparator<Song> order) {
+        this.addNewEntries(songs);
+        this.sort(order);
+    }
+
+    /**
+     * Merges {@code second} into {@code first}, both sorted by {@code order},
+     * taking the song from first on ties so the merge is stable.
+     *
+     * @param first
+     *            The songs that come first among equals
+     * @param firstCount
+     *            The number of songs in first
+     * @param second
+     *            The songs to merge in
+     * @param order
+     *            The order first and second are both sorted by
+     * @return every song of first and second, sorted by order
+     */
+    static Song[] mergeSorted(Iterable<Song> first, int firstCount,
+            List<Song> second, Comparator<Song> order) {
+        Song[] merged = new Song[firstCount + second.size()];
+        Iterator<Song> mine = first.iterator();
+        Iterator<Song> theirs = second.iterator();
+        Song next1 = null;
+        if (mine.hasNext()) {
+            next1 = mine.next();
+        }
+        Song next2 = null;
+        if (theirs.hasNext()) {
+            next2 = theirs.next();
+        }
+        int to = 0;
+        while (next1 != null || next2 != null) {
+            if (next2 == null
+                    || next1 != null && order.compare(next1, next2) <= 0) {
+                merged[to] = next1;
+                next1 = null;
+                if (mine.hasNext()) {
+                    next1 = mine.next();
+                }
+            } else {
+                merged[to] = next2;
+                next2 = null;
+                if (theirs.hasNext()) {
+                    next2 = theirs.next();
+                }
+            }
+            to++;
+        }
+        return merged;
+    }
+
+    /**
+     * Removes every song in {@code songs} from this, keeping the rest in
+     * order. Used by {@code BatchingWriter} to apply a batch of removals, so
+     * implementations that can remove a whole set in one pass should override
+     * it.
+     *
+     * @param songs
+     *            The songs to remove
+     * @requires [every song in songs is in this]
+     * @ensures this = #this with every song in songs removed
+     * @updates this
+     */
+    protected void removeExistingEntries(Set<Song> songs) {
+        if (songs.size() == this.size()) {
+            /*
+             * Every song in this is in songs.
+             */
+            this.clear();
+        } else {
+            for (Song song : songs) {
+                this.removeEntry(song);
+            }
+        }
+    }
+
+    /**
+     * Reports how many songs {@code getEntries(field, value)} or
+     * {@code removeEntries(field, value)} would examine right now, for
+     * {@code InstrumentedMusicDatabase}. Implementations that search every
+     * song need not override it; those with an index should.
+     *
+     * @param field
+     *            The field searched
+     * @param value
+     *            The value searched for
+     * @return the number of songs examined
+     */
+    protected long rowsScanned(MusicDatabaseKernel.SearchField field,
+            String value) {
+        return this.size();
+    }
+
+    /**
+     * Reports whether {@code contains} is an indexed lookup rather than a
+     * search of every song, for the bulk merges: those dedupe with
+     * {@code contains} when it is, and otherwise with a hash set of this.
+     * Implementations with an index should override it, which also keeps the
+     * merges from copying a database kept off the heap onto it.
+     *
+     * @return true if contains does not search every song
+     */
+    protected boolean hasIndexedLookup() {
+        return false;
+    }
+
+    /**
+     * Returns the number of rows {@code readFromFile} reads before adding
+     * them, which bounds the heap it needs for a file of any size. The
+     * default reads the whole file in one batch if {@code contains} searches
+     * every song, since each batch then copies this into a hash set, and such
+     * an implementation keeps every song on the heap anyway. Implementations
+     * that should publish a whole file at once override it to return
+     * {@code Integer.MAX_VALUE}.
+     *
+     * @return the number of rows per batch
+     */
+    protected int readBatchSize() {
+        int size = READ_BATCH;
+        if (!this.hasIndexedLookup()) {
+            size = Integer.MAX_VALUE;
+        }
+        return size;
+    }
+
+    /**
+     * Returns the songs in {@code songs} that are not already in this, each
+     * once, in order. Uses {@code contains} if this has an indexed lookup,
+     * and otherwise one hash set of this built up front rather than a
+     * {@code contains} call per song.
+     *
+     * @param songs
+     *            The songs
+     * @param count
+     *            The number of songs in songs
+     * @return the songs not in this
+     */
+    private ArrayList<Song> newSongs(Iterable<Song> songs, int count) {
+        final float loadFactor = 0.75f;
+        HashSet<Song> seen;
+        boolean indexed = this.hasIndexedLookup();
+        if (indexed) {
+            seen = new HashSet<Song>((int) (count / loadFactor) + 1);
+        } else {
+            seen = new HashSet<Song>(
+                    (int) ((this.size() + count) / loadFactor) + 1);
+            for (Song song : this) {
+                seen.add(song);
+            }
+        }
+
+        ArrayList<Song> added = new ArrayList<Song>(count);
+        for (Song song : songs) {
+            if ((!indexed || !this.contains(song)) && seen.add(song)) {
+                added.add(song);
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Adds the songs in {@code songs} that are not already in this.
+     *
+     * @param songs
+     *            The songs to add
+     * @param count
+     *            The number of songs in songs
+     * @updates this
+     * @ensures this = #this * [the songs that were not already in this]
+     */
+    private void merge(Iterable<Song> songs, int count) {
+        ArrayList<Song> added = this.newSongs(songs, count);
+        if (added.size() > 0) {
+            this.ensureCapacity(this.size() + added.size());
+            this.addNewEntries(added);
+        }
+    }
+
     // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
     @Override
-    public void append(MusicDatabase db) {
-        assert db != null : "Violation of: db != null";
+    public Map<String, MusicDatabase> partitionBy(
+            MusicDatabaseKernel.SearchField field) {
+        return this.partitionBy(song -> valueOf(field, song), false);
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Map<String, MusicDatabase> partitionBy(Function<Song, String> key,
+            boolean parallel) {
+        assert key != null : "Violation of: key != null";
+
+        ArrayList<Song> songs = new ArrayList<Song>(this.size());
+        for (Song song : this) {
+            songs.add(song);
+        }
+
+        /*
+         * Counts every bucket first so each can be allocated at its final
+         * size. The keys are computed in parallel if asked, since the key
+         * function is the costly part; filling the buckets stays in order.
+         */
+        String[] keys = new String[songs.size()];
+        if (parallel) {
+            IntStream.range(0, keys.length).parallel()
+                    .forEach(i -> keys[i] = key.apply(songs.get(i)));
+        } else {
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = key.apply(songs.get(i));
+            }
+        }
+        Map<String, int[]> counts = new LinkedHashMap<>();
+        for (int i = 0; i < keys.length; i++) {
+            assert keys[i] != null : "Violation of: key(song) != null";
+            counts.computeIfAbsent(keys[i], k -> new int[1])[0]++;
+        }
+        Map<String, ArrayList<Song>> buckets = new LinkedHashMap<>(
+                counts.size() * 2);
+        for (Map.Entry<String, int[]> count : counts.entrySet()) {
+            buckets.put(count.getKey(),
+                    new ArrayList<Song>(count.getValue()[0]));
+        }
+        for (int i = 0; i < keys.length; i++) {
+            buckets.get(keys[i]).add(songs.get(i));
+        }
 
-        for (Song song : db) {
-            if (!this.contains(song)) {
-                this.addEntry(song);
+        Map<String, MusicDatabase> partitions;
+        if (parallel) {
+            partitions = buckets.entrySet().parallelStream()
+                    .collect(Collectors.toMap(Map.Entry::getKey,
+                            bucket -> this.newDatabase(bucket.getValue()),
+                            (db1, db2) -> db1, LinkedHashMap::new));
+        } else {
+            partitions = new LinkedHashMap<>(buckets.size() * 2);
+            for (Map.Entry<String, ArrayList<Song>> bucket : buckets
+                    .entrySet()) {
+                partitions.put(bucket.getKey(),
+                        this.newDatabase(bucket.getValue()));
             }
         }
+
+        /*
+         * Removes exactly the songs partitioned rather than clearing, so that
+         * songs another thread added meanwhile are kept.
+         */
+        this.removeExistingEntries(new HashSet<Song>(songs));
+        return partitions;
     }
 
-    /*
-     * For the methods above and below, their functionality is identical, but
-     * they take different parameters. Are they fine as is or should I combine
-     * them into one overloaded method?
-     */
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void append(MusicDatabase db) {
+        assert db != null : "Violation of: db != null";
+
+        AppendEvent event = new AppendEvent();
+        event.begin();
+        int before = this.size();
+        this.merge(db, db.size());
+        event.record(db.size(), this.size() - before, null);
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void append(MusicDatabase db, Comparator<Song> order) {
+        assert db != null : "Violation of: db != null";
+        assert order != null : "Violation of: order != null";
+
+        AppendEvent event = new AppendEvent();
+        event.begin();
+        int before = this.size();
+
+        /*
+         * The songs of db not already in this are still sorted by order, so
+         * the implementation can merge them in without sorting, and without
+         * emptying this first.
+         */
+        ArrayList<Song> added = this.newSongs(db, db.size());
+        if (added.size() > 0) {
+            this.mergeNewEntries(added, order);
+        }
+        event.record(db.size(), this.size() - before, order);
+    }
 
     // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
     @Override
     public void addEntries(ArrayList<Song> songs) {
         assert songs != null : "Violation of: songs != null";
 
+        this.merge(songs, songs.size());
+    }
+
+    /**
+     * Makes a hash set of every song in {@code songs}, presized if songs is a
+     * {@code MusicDatabase}.
+     *
+     * @param songs
+     *            The songs
+     * @return the set
+     */
+    private static HashSet<Song> hashSet(Iterable<Song> songs) {
+        final float loadFactor = 0.75f;
+        int count = 0;
+        if (songs instanceof MusicDatabase) {
+            count = ((MusicDatabase) songs).size();
+        }
+        HashSet<Song> set = new HashSet<Song>((int) (count / loadFactor) + 1);
         for (Song song : songs) {
-            if (!this.contains(song)) {
-                this.addEntry(song);
+            set.add(song);
+        }
+        return set;
+    }
+
+    /**
+     * Makes a new database of the same type as this holding {@code songs}.
+     *
+     * @param songs
+     *            The songs, without duplicates, in order
+     * @return the new database
+     */
+    private MusicDatabase newDatabase(ArrayList<Song> songs) {
+        MusicDatabase db = this.newInstance();
+        if (songs.size() > 0) {
+            db.ensureCapacity(songs.size());
+            if (db instanceof MusicDatabaseSecondary) {
+                ((MusicDatabaseSecondary) db).addNewEntries(songs);
+            } else {
+                for (Song song : songs) {
+                    db.addEntry(song);
+                }
+            }
+        }
+        return db;
+    }
+
+    /**
+     * Returns the value of {@code field} in {@code song}.
+     *
+     * @param field
+     *            The field
+     * @param song
+     *            The song
+     * @return the value
+     */
+    static String valueOf(MusicDatabaseKernel.SearchField field,
+            Song song) {
+        String value;
+        switch (field) {
+            case TITLE: {
+                value = song.title();
+                break;
+            }
+            case ARTIST: {
+                value = song.artist();
+                break;
+            }
+            case ALBUM: {
+                value = song.album();
+                break;
+            }
+            default: {
+                value = song.length();
+                break;
+            }
+        }
+        return value;
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public MusicDatabase union(Iterable<Song> other) {
+        assert other != null : "Violation of: other != null";
+
+        HashSet<Song> present = hashSet(this);
+        ArrayList<Song> songs = new ArrayList<Song>(present.size());
+        for (Song song : this) {
+            songs.add(song);
+        }
+        for (Song song : other) {
+            if (present.add(song)) {
+                songs.add(song);
+            }
+        }
+        return this.newDatabase(songs);
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public MusicDatabase intersect(Iterable<Song> other) {
+        assert other != null : "Violation of: other != null";
+
+        HashSet<Song> theirs = hashSet(other);
+        ArrayList<Song> songs = new ArrayList<Song>();
+        for (Song song : this) {
+            if (theirs.contains(song)) {
+                songs.add(song);
+            }
+        }
+        return this.newDatabase(songs);
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public MusicDatabase subtract(Iterable<Song> other) {
+        assert other != null : "Violation of: other != null";
+
+        HashSet<Song> theirs = hashSet(other);
+        ArrayList<Song> songs = new ArrayList<Song>();
+        for (Song song : this) {
+            if (!theirs.contains(song)) {
+                songs.add(song);
             }
         }
+        return this.newDatabase(songs);
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Delta diff(Iterable<Song> other) {
+        assert other != null : "Violation of: other != null";
+
+        final float loadFactor = 0.75f;
+        HashSet<Song> mine = hashSet(this);
+        HashSet<Song> theirs = new HashSet<Song>(
+                (int) (mine.size() / loadFactor) + 1);
+        ArrayList<Song> added = new ArrayList<Song>();
+        for (Song song : other) {
+            theirs.add(song);
+            if (!mine.contains(song)) {
+                added.add(song);
+            }
+        }
+
+        ArrayList<Song> removed = new ArrayList<Song>();
+        for (Song song : this) {
+            if (!theirs.contains(song)) {
+                removed.add(song);
+            }
+        }
+        return new Delta(added, removed);
     }
 
     // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
     @Override
     public String toString() {
-        String result = "";
-        if (this.size() > 0) {
-            StringBuilder strDB = new StringBuilder(this.size());
-            for (Song song : this) {
-                strDB.append(
-                        String.format("%s    %s    %s    %s\n", song.title(),
-                                song.artist(), song.album(), song.length()));
+        /*
+         * Sized exactly, so the builder never has to grow.
+         */
+        final int separators = 3;
+        long length = 0;
+        for (Song song : this) {
+            length += song.title().length() + song.artist().length()
+                    + song.album().length() + song.length().length()
+                    + separators * FIELD_SEPARATOR.length() + 1;
+        }
+        assert length <= Integer.MAX_VALUE : ""
+                + "Violation of: toString fits in a String";
+
+        StringBuilder strDB = new StringBuilder((int) length);
+        this.renderTo(strDB);
+        return strDB.toString();
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void renderTo(Appendable out) {
+        assert out != null : "Violation of: out != null";
+
+        try {
+            if (out instanceof StringBuilder) {
+                for (Song song : this) {
+                    appendRow((StringBuilder) out, song);
+                }
+            } else {
+                StringBuilder block = new StringBuilder(RENDER_BLOCK);
+                for (Song song : this) {
+                    appendRow(block, song);
+                    if (block.length() >= RENDER_BLOCK) {
+                        out.append(block);
+                        block.setLength(0);
+                    }
+                }
+                out.append(block);
             }
-            result = strDB.toString();
+        } catch (IOException e) {
+            throw new IllegalStateException("ERROR: Cannot render database",
+                    e);
         }
+    }
 
-        return result;
+    /**
+     * Counts the songs of this and one reference to each as storage.
+     * Implementations with indexes, caches, or history should override it.
+     *
+     * @return the estimate
+     */
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public MemoryReport memoryReport() {
+        return MemoryReport.of(this, MemoryReport.referenceArray(this.size()),
+                0, 0, 0, 0);
     }
 
     // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
     @Override
     public Boolean equals(MusicDatabase db) {
-        return (this.toString().equals(db.toString()));
+        /*
+         * Databases with different songs almost always have different
+         * fingerprints, so only databases that are probably equal are
+         * compared song by song.
+         */
+        int size = this.size();
+        boolean equal = size == db.size()
+                && this.fingerprint() == db.fingerprint();
+        for (int i = 0; equal && i < size; i++) {
+            equal = this.getEntryByOrder(i).equals(db.getEntryByOrder(i));
+        }
+        return equal;
     }
 
     /*
      * ------------------------- Comparator Classes ----------------------------
      */
 
+    /**
+     * A comparator that keeps no state, so that every instance of one class
+     * orders songs the same way. Instances of the same class are equal, so
+     * sorting by a new one can be recognized as sorting by the same order
+     * again.
+     */
+    public abstract static class StatelessComparator
+            implements Comparator<Song> {
+
+        /**
+         * Returns whether {@code obj} is a comparator of the same class.
+         *
+         * @param obj
+         *            The object compared with
+         * @return true if obj orders songs the same way
+         */
+        // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+        @Override
+        public boolean equals(Object obj) {
+            return obj != null && obj.getClass() == this.getClass();
+        }
+
+        // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+        @Override
+        public int hashCode() {
+            return this.getClass().hashCode();
+        }
+    }
+
     /**
      * A comparator subclass that compares song objects lexicographically based
      * on their title fields.
      */
-    public static class TitleComparator implements Comparator<Song> {
+    public static class TitleComparator extends StatelessComparator {
 
         // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
         @Override
@@ -348,7 +1257,7 @@ public abstract class MusicDatabaseSecondary implements MusicDatabase {
      * A comparator subclass that compares song objects lexicographically based
      * on their artist fields.
      */
-    public static class ArtistComparator implements Comparator<Song> {
+    public static class ArtistComparator extends StatelessComparator {
 
         // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
         @Override
@@ -364,7 +1273,7 @@ public abstract class MusicDatabaseSecondary implements MusicDatabase {
      * titles are compared instead, and if both are non-blank they are compared
      * normally.
      */
-    public static class AlbumComparator implements Comparator<Song> {
+    public static class AlbumComparator extends StatelessComparator {
 
         // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
         @Override
@@ -386,7 +1295,7 @@ public abstract class MusicDatabaseSecondary implements MusicDatabase {
      * A comparator subclass that compares song objects based on their length in
      * seconds. The shortest songs will come first.
      */
-    public static class LengthComparator implements Comparator<Song> {
+    public static class LengthComparator extends StatelessComparator {
 
         // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
         @Override
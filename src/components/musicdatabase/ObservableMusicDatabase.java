@@ -0,0 +1,545 @@
+package components.musicdatabase;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@code MusicDatabase} that publishes every change made to another
+ * {@code MusicDatabase} as a {@code ChangeEvent}, so that consumers such as
+ * indexes or replicas can follow it incrementally instead of diffing whole
+ * copies.
+ *
+ * <p>
+ * {@code changes()} publishes one event per change; {@code changes(maxBatch,
+ * lingerMillis)} publishes them in lists, once {@code maxBatch} are waiting or
+ * the oldest has waited {@code lingerMillis}. Events are delivered to each
+ * subscriber in the order the changes were made, on the executor given to the
+ * constructor. Each subscriber has a buffer of {@code bufferCapacity} events
+ * (or lists); while any subscriber's buffer is full, the change that would
+ * publish the next event blocks until that subscriber requests more, so a slow
+ * consumer slows the writers down rather than losing events or running out of
+ * memory. Subscribers must therefore never change this themselves.
+ *
+ * <p>
+ * While nothing is subscribed no events are built, so an unobserved
+ * {@code ObservableMusicDatabase} costs little more than rep. Changes made by
+ * several threads at once, if rep allows that, are applied and published one
+ * at a time, so they are published in the order rep applied them.
+ *
+ * @convention rep is not changed except through this
+ * @correspondence this = rep
+ */
+public class ObservableMusicDatabase extends ForwardingMusicDatabase
+        implements Closeable {
+
+    /*
+     * Private members.
+     */
+
+    /**
+     * Thread that publishes batches once they have waited long enough, shared
+     * by every {@code ObservableMusicDatabase}. It never waits for a
+     * subscriber, so one slow subscriber can't hold up the others' batches.
+     */
+    private static final ScheduledExecutorService LINGER = Executors
+            .newSingleThreadScheduledExecutor(r -> {
+                Thread linger = new Thread(r, "MusicDatabase-events");
+                linger.setDaemon(true);
+                return linger;
+            });
+
+    /**
+     * Executor delivering events to subscribers.
+     */
+    private final Executor executor;
+
+    /**
+     * Number of events (or batches) buffered for each subscriber.
+     */
+    private final int bufferCapacity;
+
+    /**
+     * Guards every change to rep together with publishing it, so events are
+     * published in the order rep applied them.
+     */
+    private final Object publishing;
+
+    /**
+     * Publisher of single events.
+     */
+    private final SubmissionPublisher<ChangeEvent> events;
+
+    /**
+     * Publishers of batches of events, one per call of
+     * {@code changes(maxBatch, lingerMillis)}.
+     */
+    private final List<Batcher> batchers;
+
+    /**
+     * Collects events into lists and publishes them.
+     */
+    private final class Batcher {
+
+        /**
+         * Publisher of the lists.
+         */
+        private final SubmissionPublisher<List<ChangeEvent>> publisher;
+
+        /**
+         * Largest number of events in one list.
+         */
+        private final int maxBatch;
+
+        /**
+         * Longest time, in milliseconds, an event waits to be published, or 0
+         * to only publish full lists.
+         */
+        private final long lingerMillis;
+
+        /**
+         * Guards {@code pending} and {@code lingerTask}, and publishing, so
+         * lists go out in order.
+         */
+        private final ReentrantLock lock;
+
+        /**
+         * Events not yet published.
+         */
+        private final ArrayList<ChangeEvent> pending;
+
+        /**
+         * Task publishing {@code pending} once its oldest event has waited
+         * {@code lingerMillis}, or null if none is scheduled.
+         */
+        private ScheduledFuture<?> lingerTask;
+
+        /**
+         * Constructor.
+         *
+         * @param maxBatch
+         *            Largest number of events in one list
+         * @param lingerMillis
+         *            Longest time, in milliseconds, an event waits to be
+         *            published, or 0 to only publish full lists
+         */
+        Batcher(int maxBatch, long lingerMillis) {
+            this.publisher = new SubmissionPublisher<List<ChangeEvent>>(
+                    ObservableMusicDatabase.this.executor,
+                    ObservableMusicDatabase.this.bufferCapacity);
+            this.maxBatch = maxBatch;
+            this.lingerMillis = lingerMillis;
+            this.lock = new ReentrantLock();
+            this.pending = new ArrayList<ChangeEvent>();
+            this.lingerTask = null;
+        }
+
+        /**
+         * Schedules {@code lingerFlush} to run once {@code lingerMillis} have
+         * passed.
+         *
+         * @return the scheduled task
+         */
+        private ScheduledFuture<?> scheduleLingerFlush() {
+            return LINGER.schedule(this::lingerFlush, this.lingerMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Queues {@code event}, publishing the list once it is full.
+         *
+         * @param event
+         *            The event
+         */
+        void add(ChangeEvent event) {
+            this.lock.lock();
+            try {
+                this.pending.add(event);
+                if (this.pending.size() >= this.maxBatch) {
+                    this.flush();
+                } else if (this.lingerTask == null && this.lingerMillis > 0) {
+                    this.lingerTask = this.scheduleLingerFlush();
+                }
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        /**
+         * Publishes the events waiting, if any, blocking while a subscriber's
+         * buffer is full.
+         */
+        void flush() {
+            this.lock.lock();
+            try {
+                if (this.lingerTask != null) {
+                    this.lingerTask.cancel(false);
+                    this.lingerTask = null;
+                }
+                if (this.pending.size() > 0 && !this.publisher.isClosed()) {
+                    List<ChangeEvent> batch = List.copyOf(this.pending);
+                    this.pending.clear();
+                    this.publisher.submit(batch);
+                }
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        /**
+         * Publishes the events waiting, if that can be done without blocking;
+         * otherwise tries again after another {@code lingerMillis}. Used by
+         * the shared linger thread.
+         */
+        private void lingerFlush() {
+            if (!this.lock.tryLock()) {
+                /*
+                 * A writer is publishing, possibly blocked on a full buffer.
+                 * Whatever it leaves pending is picked up by the retry.
+                 */
+                this.scheduleLingerFlush();
+                return;
+            }
+            try {
+                this.lingerTask = null;
+                if (this.pending.size() > 0 && !this.publisher.isClosed()) {
+                    /*
+                     * Only this publishes, under lock, so while every buffer
+                     * has room submit can't block.
+                     */
+                    if (this.publisher.estimateMaximumLag() < this.publisher
+                            .getMaxBufferCapacity()) {
+                        List<ChangeEvent> batch = List.copyOf(this.pending);
+                        this.pending.clear();
+                        this.publisher.submit(batch);
+                    } else {
+                        this.lingerTask = this.scheduleLingerFlush();
+                    }
+                }
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        /**
+         * Publishes the events waiting and completes every subscription.
+         */
+        void close() {
+            this.lock.lock();
+            try {
+                this.flush();
+                this.publisher.close();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Whether anything is subscribed, so that events need to be built.
+     *
+     * @return true if events are published
+     */
+    private boolean observed() {
+        return this.events.hasSubscribers() || !this.batchers.isEmpty();
+    }
+
+    /**
+     * Publishes {@code event} to every subscriber.
+     *
+     * @param event
+     *            The event
+     */
+    private void publish(ChangeEvent event) {
+        if (this.events.hasSubscribers()) {
+            this.events.submit(event);
+        }
+        for (Batcher batcher : this.batchers) {
+            batcher.add(event);
+        }
+    }
+
+    /**
+     * Publishes an event for each song in {@code songs}, if anything is
+     * subscribed.
+     *
+     * @param songs
+     *            The songs added or removed
+     * @param added
+     *            Whether the songs were added rather than removed
+     */
+    private void publishAll(Iterable<Song> songs, boolean added) {
+        if (this.observed()) {
+            for (Song song : songs) {
+                if (added) {
+                    this.publish(ChangeEvent.added(song));
+                } else {
+                    this.publish(ChangeEvent.removed(song));
+                }
+            }
+        }
+    }
+
+    /**
+     * Constructor delivering events on the common pool with the default buffer
+     * capacity.
+     *
+     * @param rep
+     *            The database to observe
+     * @requires rep is not changed except through this
+     * @ensures this = rep
+     */
+    public ObservableMusicDatabase(MusicDatabase rep) {
+        this(rep, ForkJoinPool.commonPool(), Flow.defaultBufferSize());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param rep
+     *            The database to observe
+     * @param executor
+     *            Executor delivering events to subscribers
+     * @param bufferCapacity
+     *            Number of events (or batches) buffered for each subscriber
+     *            before changes block
+     * @requires rep is not changed except through this AND bufferCapacity > 0
+     * @ensures this = rep
+     */
+    public ObservableMusicDatabase(MusicDatabase rep, Executor executor,
+            int bufferCapacity) {
+        super(rep);
+        assert executor != null : "Violation of: executor != null";
+        assert bufferCapacity > 0 : "Violation of: bufferCapacity > 0";
+
+        this.executor = executor;
+        this.bufferCapacity = bufferCapacity;
+        this.publishing = new Object();
+        this.events = new SubmissionPublisher<ChangeEvent>(executor,
+                bufferCapacity);
+        this.batchers = new CopyOnWriteArrayList<Batcher>();
+    }
+
+    /*
+     * --------------------------- Public methods -----------------------------
+     */
+
+    /**
+     * Returns the publisher of every change made to this from now on, one
+     * event at a time.
+     *
+     * @return the publisher
+     */
+    public final Flow.Publisher<ChangeEvent> changes() {
+        return this.events;
+    }
+
+    /**
+     * Returns a new publisher of every change made to this from now on, in
+     * lists of up to {@code maxBatch} events. A list is published once it is
+     * full or once its oldest event has waited {@code lingerMillis}.
+     *
+     * @param maxBatch
+     *            Largest number of events in one list
+     * @param lingerMillis
+     *            Longest time, in milliseconds, an event waits to be
+     *            published, or 0 to only publish full lists (and the rest on
+     *            {@code flush} or {@code close})
+     * @return the publisher
+     * @requires maxBatch > 0 AND lingerMillis >= 0
+     */
+    public final Flow.Publisher<List<ChangeEvent>> changes(int maxBatch,
+            long lingerMillis) {
+        assert maxBatch > 0 : "Violation of: maxBatch > 0";
+        assert lingerMillis >= 0 : "Violation of: lingerMillis >= 0";
+
+        Batcher batcher = new Batcher(maxBatch, lingerMillis);
+        this.batchers.add(batcher);
+        return batcher.publisher;
+    }
+
+    /**
+     * Publishes every event still waiting to fill a batch.
+     */
+    public final void flush() {
+        for (Batcher batcher : this.batchers) {
+            batcher.flush();
+        }
+    }
+
+    /**
+     * Publishes every event still waiting to fill a batch and completes every
+     * subscription. Changes made afterwards are no longer published.
+     */
+    @Override
+    public final void close() {
+        synchronized (this.publishing) {
+            for (Batcher batcher : this.batchers) {
+                batcher.close();
+            }
+            this.batchers.clear();
+            this.events.close();
+        }
+    }
+
+    /*
+     * --------------------------- Kernel methods -----------------------------
+     */
+
+    /**
+     * Removes the song and publishes its removal.
+     *
+     * @param repIt
+     *            The iterator over rep
+     * @param song
+     *            The song it last returned
+     */
+    @Override
+    protected final void removeByIterator(Iterator<Song> repIt, Song song) {
+        synchronized (this.publishing) {
+            repIt.remove();
+            if (this.observed()) {
+                this.publish(ChangeEvent.removed(song));
+            }
+        }
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void clear() {
+        synchronized (this.publishing) {
+            this.rep().clear();
+            if (this.observed()) {
+                this.publish(ChangeEvent.cleared());
+            }
+        }
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void transferFrom(MusicDatabase source) {
+        assert source != null : "Violation of: source is not null";
+        assert source != this : "Violation of: source is not this";
+
+        synchronized (this.publishing) {
+            if (source instanceof ObservableMusicDatabase) {
+                /*
+                 * Moves the contents of source's rep; source's subscribers see
+                 * it cleared.
+                 */
+                ObservableMusicDatabase observable =
+                        (ObservableMusicDatabase) source;
+                synchronized (observable.publishing) {
+                    this.rep().transferFrom(observable.rep());
+                    if (observable.observed()) {
+                        observable.publish(ChangeEvent.cleared());
+                    }
+                }
+            } else {
+                this.rep().transferFrom(source);
+            }
+            if (this.observed()) {
+                this.publish(ChangeEvent.cleared());
+                this.publishAll(this.rep(), true);
+            }
+        }
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void addEntry(Song song) {
+        synchronized (this.publishing) {
+            this.rep().addEntry(song);
+            if (this.observed()) {
+                this.publish(ChangeEvent.added(song));
+            }
+        }
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public ArrayList<Song> removeEntries(SearchField field, String value) {
+        synchronized (this.publishing) {
+            ArrayList<Song> removed = this.rep().removeEntries(field, value);
+            this.publishAll(removed, false);
+            return removed;
+        }
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Song removeEntry(Song song) {
+        synchronized (this.publishing) {
+            Song removed = this.rep().removeEntry(song);
+            if (this.observed()) {
+                this.publish(ChangeEvent.removed(removed));
+            }
+            return removed;
+        }
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Song removeEntryByOrder(int n) {
+        synchronized (this.publishing) {
+            Song removed = this.rep().removeEntryByOrder(n);
+            if (this.observed()) {
+                this.publish(ChangeEvent.removed(removed));
+            }
+            return removed;
+        }
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void sort(Comparator<Song> order) {
+        synchronized (this.publishing) {
+            this.rep().sort(order);
+            if (this.observed()) {
+                this.publish(ChangeEvent.sorted(order));
+            }
+        }
+    }
+
+    @Override
+    protected final void addNewEntries(Collection<Song> songs) {
+        synchronized (this.publishing) {
+            addNewEntries(this.rep(), songs);
+            this.publishAll(songs, true);
+        }
+    }
+
+    @Override
+    protected final void mergeNewEntries(List<Song> songs,
+            Comparator<Song> order) {
+        synchronized (this.publishing) {
+            mergeNewEntries(this.rep(), songs, order);
+            this.publishAll(songs, true);
+            if (this.observed()) {
+                this.publish(ChangeEvent.sorted(order));
+            }
+        }
+    }
+
+    @Override
+    protected final void removeExistingEntries(Set<Song> songs) {
+        synchronized (this.publishing) {
+            removeExistingEntries(this.rep(), songs);
+            this.publishAll(songs, false);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package components.musicdatabase;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics {@code InstrumentedMusicDatabase} keeps for one of its methods:
+ * how often it was called, how long the calls took, and how many songs and
+ * bytes they handled. Safe to update and read from any number of threads, so
+ * load generators can keep their own per operation with {@code record}.
+ */
+public final class OperationStats implements OperationStatsMBean {
+
+    /**
+     * Nanoseconds per microsecond.
+     */
+    private static final double NANOS_PER_MICRO = 1e3;
+
+    /**
+     * Nanoseconds per second.
+     */
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    /**
+     * Name of the method.
+     */
+    private final String method;
+
+    /**
+     * Latencies of the calls, in nanoseconds.
+     */
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    /**
+     * Number of songs examined.
+     */
+    private final LongAdder rowsScanned = new LongAdder();
+
+    /**
+     * Number of songs returned, read, or written.
+     */
+    private final LongAdder rows = new LongAdder();
+
+    /**
+     * Number of bytes read or written.
+     */
+    private final LongAdder bytes = new LongAdder();
+
+    /**
+     * Constructor.
+     *
+     * @param method
+     *            Name of the method or operation
+     */
+    public OperationStats(String method) {
+        this.method = method;
+    }
+
+    /**
+     * Records a call that handled no songs or bytes.
+     *
+     * @param nanos
+     *            How long the call took
+     */
+    public void record(long nanos) {
+        this.latencies.record(nanos);
+    }
+
+    /**
+     * Records a call.
+     *
+     * @param nanos
+     *            How long the call took
+     * @param scanned
+     *            Number of songs examined
+     * @param handled
+     *            Number of songs returned, read, or written
+     * @param byteCount
+     *            Number of bytes read or written
+     */
+    public void record(long nanos, long scanned, long handled,
+            long byteCount) {
+        this.latencies.record(nanos);
+        this.rowsScanned.add(scanned);
+        this.rows.add(handled);
+        this.bytes.add(byteCount);
+    }
+
+    /**
+     * Returns the name of the method.
+     *
+     * @return the name
+     */
+    public String method() {
+        return this.method;
+    }
+
+    /**
+     * Returns {@code amount} per second of time spent in the method.
+     *
+     * @param amount
+     *            The amount
+     * @return the rate, or 0 if no time was spent
+     */
+    private double perSecond(long amount) {
+        long nanos = this.latencies.total();
+        double rate = 0;
+        if (nanos > 0) {
+            rate = amount * NANOS_PER_SECOND / nanos;
+        }
+        return rate;
+    }
+
+    @Override
+    public long getCalls() {
+        return this.latencies.count();
+    }
+
+    @Override
+    public double getMeanMicros() {
+        return this.latencies.mean() / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public double getP50Micros() {
+        final double p50 = 0.5;
+        return this.latencies.percentile(p50) / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public double getP99Micros() {
+        final double p99 = 0.99;
+        return this.latencies.percentile(p99) / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public double getP999Micros() {
+        final double p999 = 0.999;
+        return this.latencies.percentile(p999) / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public double getMaxMicros() {
+        return this.latencies.max() / NANOS_PER_MICRO;
+    }
+
+    @Override
+    public long getRowsScanned() {
+        return this.rowsScanned.sum();
+    }
+
+    @Override
+    public long getRows() {
+        return this.rows.sum();
+    }
+
+    @Override
+    public long getBytes() {
+        return this.bytes.sum();
+    }
+
+    @Override
+    public double getRowsPerSecond() {
+        return this.perSecond(this.rows.sum());
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        return this.perSecond(this.bytes.sum());
+    }
+
+    @Override
+    public void reset() {
+        this.latencies.reset();
+        this.rowsScanned.reset();
+        this.rows.reset();
+        this.bytes.reset();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "%s: %d calls, p50 %.1f us, p99 %.1f us, p99.9 %.1f us, "
+                        + "max %.1f us",
+                this.method, this.getCalls(), this.getP50Micros(),
+                this.getP99Micros(), this.getP999Micros(),
+                this.getMaxMicros());
+    }
+}
@@ -0,0 +1,95 @@
+package components.musicdatabase;
+
+/**
+ * Management interface of the statistics {@code InstrumentedMusicDatabase}
+ * keeps for one of its methods. Latencies are in microseconds and
+ * percentiles are accurate to within 12.5%.
+ */
+public interface OperationStatsMBean {
+
+    /**
+     * Returns the number of calls recorded.
+     *
+     * @return the number of calls
+     */
+    long getCalls();
+
+    /**
+     * Returns the mean latency of a call.
+     *
+     * @return the mean, in microseconds
+     */
+    double getMeanMicros();
+
+    /**
+     * Returns the median latency of a call.
+     *
+     * @return the median, in microseconds
+     */
+    double getP50Micros();
+
+    /**
+     * Returns the 99th percentile latency of a call.
+     *
+     * @return the percentile, in microseconds
+     */
+    double getP99Micros();
+
+    /**
+     * Returns the 99.9th percentile latency of a call.
+     *
+     * @return the percentile, in microseconds
+     */
+    double getP999Micros();
+
+    /**
+     * Returns the largest latency of a call.
+     *
+     * @return the largest latency, in microseconds
+     */
+    double getMaxMicros();
+
+    /**
+     * Returns the number of songs examined by {@code getEntries} or
+     * {@code removeEntries}, or 0 for other methods.
+     *
+     * @return the number of songs
+     */
+    long getRowsScanned();
+
+    /**
+     * Returns the number of songs returned by {@code getEntries} or
+     * {@code removeEntries}, or read or written by {@code readFromFile} or
+     * {@code writeToFile}, or 0 for other methods.
+     *
+     * @return the number of songs
+     */
+    long getRows();
+
+    /**
+     * Returns the number of bytes read by {@code readFromFile} or written by
+     * {@code writeToFile}, or 0 for other methods.
+     *
+     * @return the number of bytes
+     */
+    long getBytes();
+
+    /**
+     * Returns the number of songs per second of time spent in the method.
+     *
+     * @return the rate
+     */
+    double getRowsPerSecond();
+
+    /**
+     * Returns the number of bytes per second of time spent in the method.
+     *
+     * @return the rate
+     */
+    double getBytesPerSecond();
+
+    /**
+     * Forgets every call recorded so far.
+     */
+    void reset();
+}
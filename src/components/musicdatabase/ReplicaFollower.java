@@ -0,0 +1,329 @@
+package components.musicdatabase;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * Keeps a {@code MusicDatabase} a copy of a {@code ReplicatedMusicDatabase},
+ * usually in another process, by applying the changes the primary streams to
+ * it. Runs on its own thread from construction until {@code close}, and
+ * reconnects whenever the connection drops, resuming after the last change
+ * applied (or from a snapshot, if the primary no longer has that change).
+ *
+ * <p>
+ * A snapshot is loaded into a new database from {@code db.newInstance()} and
+ * then moved into db with {@code transferFrom}, so db is never seen half
+ * loaded. If db is read while being followed, it should be one of the
+ * thread-safe implementations.
+ */
+public class ReplicaFollower implements Closeable {
+
+    /**
+     * Time, in milliseconds, to wait before reconnecting.
+     */
+    private static final long RETRY_MILLIS = 100;
+
+    /**
+     * The database kept a copy of the primary.
+     */
+    private final MusicDatabase db;
+
+    /**
+     * Host of the primary.
+     */
+    private final String host;
+
+    /**
+     * Port of the primary.
+     */
+    private final int port;
+
+    /**
+     * Thread following the primary.
+     */
+    private final Thread follower;
+
+    /**
+     * Id of the primary db is a copy of, or empty before the first snapshot.
+     */
+    private volatile String primaryId = "";
+
+    /**
+     * Sequence number of the last change applied to db, or -1 before the
+     * first snapshot.
+     */
+    private volatile long applied = -1;
+
+    /**
+     * Newest sequence number heard of from the primary.
+     */
+    private volatile long primarySequence = 0;
+
+    /**
+     * Time, in milliseconds, between the primary making the last change
+     * applied and this applying it.
+     */
+    private volatile long lagMillis = 0;
+
+    /**
+     * Number of snapshots loaded.
+     */
+    private volatile int snapshots = 0;
+
+    /**
+     * The current connection, or null between connections.
+     */
+    private volatile Socket socket = null;
+
+    /**
+     * Whether this has been closed.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Constructor, which starts following the primary.
+     *
+     * @param db
+     *            The database to keep a copy of the primary
+     * @param host
+     *            Host of the primary
+     * @param port
+     *            Port of the primary
+     * @requires db is not changed except by this
+     * @ensures [db follows the primary at host:port until this is closed]
+     */
+    public ReplicaFollower(MusicDatabase db, String host, int port) {
+        assert db != null : "Violation of: db != null";
+        assert host != null : "Violation of: host != null";
+
+        this.db = db;
+        this.host = host;
+        this.port = port;
+        this.follower = new Thread(this::follow, "MusicDatabase-follower");
+        this.follower.setDaemon(true);
+        this.follower.start();
+    }
+
+    /**
+     * Connects to the primary and applies its changes until this is closed,
+     * reconnecting after every failure.
+     */
+    private void follow() {
+        while (!this.closed) {
+            try (Socket connection = new Socket(this.host, this.port)) {
+                this.socket = connection;
+                if (this.closed) {
+                    return;
+                }
+                connection.setTcpNoDelay(true);
+                InputStream in = new BufferedInputStream(
+                        connection.getInputStream());
+                OutputStream out = new BufferedOutputStream(
+                        connection.getOutputStream());
+                ReplicatedMusicDatabase.writeLine(out,
+                        ReplicatedMusicDatabase.FOLLOW + "\t" + this.primaryId
+                                + "\t" + this.applied);
+                out.flush();
+
+                ByteArrayOutputStream line = new ByteArrayOutputStream();
+                String record = ReplicatedMusicDatabase.readLine(in, line);
+                while (record != null) {
+                    this.handle(record, in, line);
+                    if (in.available() == 0) {
+                        /*
+                         * Acknowledges once per burst rather than per line.
+                         */
+                        ReplicatedMusicDatabase.writeLine(out,
+                                ReplicatedMusicDatabase.ACK + "\t"
+                                        + this.applied);
+                        out.flush();
+                    }
+                    record = ReplicatedMusicDatabase.readLine(in, line);
+                }
+            } catch (IOException e) {
+                /*
+                 * Reconnects below, resuming after the last change applied.
+                 */
+            } catch (IllegalArgumentException e) {
+                /*
+                 * A change db could not apply; starts over from a snapshot.
+                 */
+                this.primaryId = "";
+            }
+            this.socket = null;
+            if (!this.closed) {
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Handles one line from the primary.
+     *
+     * @param record
+     *            The line, without its checksum
+     * @param in
+     *            The rest of the input, for the songs of a snapshot
+     * @param line
+     *            Buffer to read lines into
+     * @throws IOException
+     *             if in cannot be read or the primary skipped a change
+     * @updates db
+     */
+    private void handle(String record, InputStream in,
+            ByteArrayOutputStream line) throws IOException {
+        final int three = 3;
+        final int fields = 4;
+        String[] values = record.split("\t", fields);
+        switch (values[0]) {
+            case ReplicatedMusicDatabase.LOG: {
+                long seq = Long.parseLong(values[1]);
+                if (seq > this.applied + 1) {
+                    throw new IOException("ERROR: Missing changes "
+                            + (this.applied + 1) + " to " + (seq - 1));
+                }
+                if (seq == this.applied + 1) {
+                    JournaledMusicDatabase.apply(this.db, values[three]);
+                    this.lagMillis = System.currentTimeMillis()
+                            - Long.parseLong(values[2]);
+                    this.applied = seq;
+                }
+                this.primarySequence = Math.max(this.primarySequence, seq);
+                break;
+            }
+            case ReplicatedMusicDatabase.SNAPSHOT: {
+                int count = Integer.parseInt(values[three]);
+                MusicDatabase fresh = this.db.newInstance();
+                fresh.ensureCapacity(count);
+                for (int i = 0; i < count; i++) {
+                    String song = ReplicatedMusicDatabase.readLine(in, line);
+                    if (song == null) {
+                        throw new IOException("ERROR: Snapshot cut short");
+                    }
+                    JournaledMusicDatabase.apply(fresh, song);
+                }
+                this.db.transferFrom(fresh);
+                this.primaryId = values[1];
+                this.applied = Long.parseLong(values[2]);
+                this.primarySequence = Math.max(this.primarySequence,
+                        this.applied);
+                this.lagMillis = 0;
+                this.snapshots++;
+                break;
+            }
+            case ReplicatedMusicDatabase.HEARTBEAT: {
+                this.primarySequence = Long.parseLong(values[1]);
+                break;
+            }
+            default: {
+                throw new IOException(
+                        "ERROR: Unexpected replication line " + values[0]);
+            }
+        }
+        synchronized (this) {
+            this.notifyAll();
+        }
+    }
+
+    /**
+     * Returns the sequence number of the last change applied.
+     *
+     * @return the sequence number, or -1 before the first snapshot
+     */
+    public final long appliedSequence() {
+        return this.applied;
+    }
+
+    /**
+     * Returns how many changes the primary was last heard to have made that
+     * have not been applied yet.
+     *
+     * @return the number of changes
+     */
+    public final long lag() {
+        return Math.max(0, this.primarySequence - this.applied);
+    }
+
+    /**
+     * Returns the time, in milliseconds, between the primary making the last
+     * change applied and this applying it.
+     *
+     * @return the time
+     */
+    public final long lagMillis() {
+        return this.lagMillis;
+    }
+
+    /**
+     * Returns the number of snapshots loaded so far.
+     *
+     * @return the number of snapshots
+     */
+    public final int snapshots() {
+        return this.snapshots;
+    }
+
+    /**
+     * Waits until the change numbered {@code sequence} has been applied.
+     *
+     * @param sequence
+     *            The sequence number, from the primary's {@code sequence()}
+     * @param timeoutMillis
+     *            Longest time, in milliseconds, to wait
+     * @return true if the change was applied in time
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    public final synchronized boolean awaitSequence(long sequence,
+            long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long left = timeoutMillis;
+        while (this.applied < sequence && left > 0) {
+            this.wait(left);
+            left = deadline - System.currentTimeMillis();
+        }
+        return this.applied >= sequence;
+    }
+
+    /**
+     * Drops the current connection, as a network failure would. The follower
+     * reconnects on its own.
+     */
+    void dropConnection() {
+        Socket connection = this.socket;
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                /*
+                 * Already closed.
+                 */
+            }
+        }
+    }
+
+    /**
+     * Stops following the primary. db keeps the changes applied so far.
+     */
+    @Override
+    public final void close() {
+        this.closed = true;
+        this.dropConnection();
+        this.follower.interrupt();
+        try {
+            this.follower.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,713 @@
+package components.musicdatabase;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@code MusicDatabase} that streams every change made to another
+ * {@code MusicDatabase} over a socket to {@code ReplicaFollower}s, usually in
+ * other processes, so that read replicas stay current without reloading the
+ * whole catalog.
+ *
+ * <p>
+ * Every change is applied to the wrapped database and then appended to an
+ * in-memory log as a numbered line in the format of
+ * {@code JournaledMusicDatabase}'s journal. The newest {@code backlog} to
+ * {@code 2 * backlog} lines are kept. A follower connects, names the last line
+ * it applied, and is sent every line after it; a follower too far behind for
+ * that, or new, or last connected to a different primary, is sent a snapshot
+ * of the whole database first. Sorting by a comparator that can't be
+ * recreated by name, and {@code transferFrom}, also make every follower take
+ * a snapshot.
+ *
+ * <p>
+ * Followers acknowledge the lines they have applied, and
+ * {@code followerLag} reports how many lines each is behind. While idle, the
+ * primary sends a heartbeat every {@code heartbeatMillis} so that followers
+ * can report their own lag.
+ *
+ * <p>
+ * Changes are serialized by this, so several threads may change this at once
+ * as long as reads of rep are safe alongside them.
+ *
+ * @convention rep is not changed except through this AND log holds the lines
+ *             of changes firstRetained through sequence, in order AND
+ *             firstRetained <= sequence + 1
+ * @correspondence this = rep
+ */
+public class ReplicatedMusicDatabase extends ForwardingMusicDatabase
+        implements Closeable {
+
+    /*
+     * Private members.
+     */
+
+    /**
+     * Default number of lines kept for followers that fall behind.
+     */
+    public static final int DEFAULT_BACKLOG = 100_000;
+
+    /**
+     * Default time, in milliseconds, between heartbeats to idle followers.
+     */
+    public static final long DEFAULT_HEARTBEAT_MILLIS = 100;
+
+    /**
+     * Line holding one change: sequence number, time made, and journal line.
+     */
+    static final String LOG = "LOG";
+
+    /**
+     * Line starting a snapshot: primary id, sequence number, and number of
+     * songs, each of which follows as an add journal line.
+     */
+    static final String SNAPSHOT = "SNAPSHOT";
+
+    /**
+     * Line sent to idle followers: sequence number and time sent.
+     */
+    static final String HEARTBEAT = "HEARTBEAT";
+
+    /**
+     * Line opening a connection from a follower: the id of the primary it
+     * followed and the last sequence number it applied.
+     */
+    static final String FOLLOW = "FOLLOW";
+
+    /**
+     * Line from a follower: the last sequence number it applied.
+     */
+    static final String ACK = "ACK";
+
+    /**
+     * Identifies this primary, so a follower of an earlier one resyncs.
+     */
+    private final String id;
+
+    /**
+     * Least number of lines kept for followers that fall behind.
+     */
+    private final int backlog;
+
+    /**
+     * Time, in milliseconds, between heartbeats to idle followers.
+     */
+    private final long heartbeatMillis;
+
+    /**
+     * Encoded lines of the retained changes, oldest first. Also guards every
+     * change to rep, so lines are numbered in the order rep applied them.
+     */
+    private final ArrayList<byte[]> log;
+
+    /**
+     * Sequence number of the newest change.
+     */
+    private long sequence;
+
+    /**
+     * Sequence number of the first line in log.
+     */
+    private long firstRetained;
+
+    /**
+     * Socket followers connect to.
+     */
+    private final ServerSocket listener;
+
+    /**
+     * Connected followers.
+     */
+    private final Set<Socket> followers;
+
+    /**
+     * Last sequence number acknowledged by each connected follower, by
+     * address.
+     */
+    private final Map<String, Long> acknowledged;
+
+    /**
+     * Whether this has been closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Constructor listening on the loopback interface with the default
+     * backlog and heartbeat.
+     *
+     * @param rep
+     *            The database to replicate
+     * @param port
+     *            Port to listen on, or 0 for any free port
+     * @throws IOException
+     *             if the port cannot be listened on
+     * @requires rep is not changed except through this
+     * @ensures this = rep
+     */
+    public ReplicatedMusicDatabase(MusicDatabase rep, int port)
+            throws IOException {
+        this(rep, new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+                DEFAULT_BACKLOG, DEFAULT_HEARTBEAT_MILLIS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param rep
+     *            The database to replicate
+     * @param address
+     *            Address to listen on
+     * @param backlog
+     *            Least number of lines kept for followers that fall behind
+     * @param heartbeatMillis
+     *            Time, in milliseconds, between heartbeats to idle followers
+     * @throws IOException
+     *             if the address cannot be listened on
+     * @requires rep is not changed except through this AND backlog > 0 AND
+     *           heartbeatMillis > 0
+     * @ensures this = rep
+     */
+    public ReplicatedMusicDatabase(MusicDatabase rep, InetSocketAddress address,
+            int backlog, long heartbeatMillis) throws IOException {
+        super(rep);
+        assert address != null : "Violation of: address != null";
+        assert backlog > 0 : "Violation of: backlog > 0";
+        assert heartbeatMillis > 0 : "Violation of: heartbeatMillis > 0";
+
+        this.id = UUID.randomUUID().toString();
+        this.backlog = backlog;
+        this.heartbeatMillis = heartbeatMillis;
+        this.log = new ArrayList<byte[]>();
+        this.sequence = 0;
+        this.firstRetained = 1;
+        this.followers = ConcurrentHashMap.newKeySet();
+        this.acknowledged = new ConcurrentHashMap<String, Long>();
+        this.closed = false;
+
+        this.listener = new ServerSocket();
+        this.listener.bind(address);
+        Thread acceptor = new Thread(this::accept, "MusicDatabase-replication");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /*
+     * ------------------------------ The log ---------------------------------
+     */
+
+    /**
+     * Appends the line for one change to log. The caller must hold log's
+     * lock, and must have applied the change to rep while holding it.
+     *
+     * @param record
+     *            The journal line for the change, without its checksum
+     */
+    private void append(String record) {
+        this.sequence++;
+        this.log.add(JournaledMusicDatabase.encode(LOG + "\t" + this.sequence
+                + "\t" + System.currentTimeMillis() + "\t" + record));
+        if (this.log.size() >= 2 * this.backlog) {
+            int drop = this.log.size() - this.backlog;
+            this.log.subList(0, drop).clear();
+            this.firstRetained += drop;
+        }
+        this.log.notifyAll();
+    }
+
+    /**
+     * Records a change that can't be sent as a line, by dropping the whole log
+     * so that every follower takes a snapshot. The caller must hold log's
+     * lock, and must have applied the change to rep while holding it.
+     */
+    private void resync() {
+        this.sequence++;
+        this.log.clear();
+        this.firstRetained = this.sequence + 1;
+        this.log.notifyAll();
+    }
+
+    /**
+     * Appends the line for sorting by {@code order} to log, or resyncs if
+     * followers could not recreate order. The caller must hold log's lock,
+     * and must have sorted rep while holding it.
+     *
+     * @param order
+     *            The order sorted by
+     */
+    private void appendSort(Comparator<Song> order) {
+        if (JournaledMusicDatabase.isRecreatable(order)) {
+            this.append(JournaledMusicDatabase.journalLine(
+                    JournaledMusicDatabase.SORT, order.getClass().getName()));
+        } else {
+            /*
+             * A lambda or anonymous comparator can't be recreated by a
+             * follower, so followers are sent the sorted order directly.
+             */
+            this.resync();
+        }
+    }
+
+    /**
+     * Reads one line written with {@code JournaledMusicDatabase.encode} and
+     * checks its checksum.
+     *
+     * @param in
+     *            The input
+     * @param line
+     *            Buffer to read the line into
+     * @return the line, without its checksum, or null at the end of in
+     * @throws IOException
+     *             if in cannot be read or the checksum does not match
+     */
+    static String readLine(InputStream in, ByteArrayOutputStream line)
+            throws IOException {
+        line.reset();
+        int b = in.read();
+        while (b != -1 && b != '\n') {
+            line.write(b);
+            b = in.read();
+        }
+        String record = null;
+        if (b != -1) {
+            record = JournaledMusicDatabase.decode(line);
+            if (record == null) {
+                throw new IOException("ERROR: Corrupt replication line");
+            }
+        }
+        return record;
+    }
+
+    /**
+     * Writes one line with its checksum.
+     *
+     * @param out
+     *            The output
+     * @param record
+     *            The line, without its checksum
+     * @throws IOException
+     *             if out cannot be written
+     */
+    static void writeLine(OutputStream out, String record) throws IOException {
+        out.write(JournaledMusicDatabase.encode(record));
+    }
+
+    /*
+     * ----------------------------- Followers --------------------------------
+     */
+
+    /**
+     * Accepts followers until this is closed, serving each on its own thread.
+     */
+    private void accept() {
+        while (!this.closed) {
+            try {
+                Socket socket = this.listener.accept();
+                socket.setTcpNoDelay(true);
+                Thread sender = new Thread(() -> this.serve(socket),
+                        "MusicDatabase-replica");
+                sender.setDaemon(true);
+                sender.start();
+            } catch (IOException e) {
+                /*
+                 * The listener was closed, or one connection failed; either
+                 * way the loop condition decides.
+                 */
+            }
+        }
+    }
+
+    /**
+     * Serves one follower until it disconnects or this is closed.
+     *
+     * @param socket
+     *            The follower's connection
+     */
+    private void serve(Socket socket) {
+        String name = socket.getRemoteSocketAddress().toString();
+        this.followers.add(socket);
+        try (socket) {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(
+                    socket.getOutputStream());
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            String record = readLine(in, line);
+            if (record == null) {
+                throw new EOFException();
+            }
+            String[] fields = record.split("\t", -1);
+            if (fields.length != 3 || !fields[0].equals(FOLLOW)) {
+                throw new IOException("ERROR: Expected " + FOLLOW);
+            }
+            long applied = Long.parseLong(fields[2]);
+            if (!fields[1].equals(this.id)) {
+                /*
+                 * Nothing the follower applied came from this primary.
+                 */
+                applied = -1;
+            }
+            this.acknowledged.put(name, Math.max(0, applied));
+
+            Thread acks = new Thread(() -> this.readAcks(socket, in, name),
+                    "MusicDatabase-replica-acks");
+            acks.setDaemon(true);
+            acks.start();
+            this.send(out, applied + 1);
+        } catch (IOException | NumberFormatException e) {
+            /*
+             * The follower went away or misbehaved; it will reconnect.
+             */
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            this.acknowledged.remove(name);
+            this.followers.remove(socket);
+        }
+    }
+
+    /**
+     * Sends a follower every change from {@code next} on, with a snapshot
+     * first if those changes are no longer in the log, until this is closed.
+     *
+     * @param out
+     *            The connection to the follower
+     * @param next
+     *            Sequence number of the first change the follower needs
+     * @throws IOException
+     *             if the follower cannot be written to
+     * @throws InterruptedException
+     *             if interrupted while waiting for changes
+     */
+    private void send(OutputStream out, long next)
+            throws IOException, InterruptedException {
+        long position = next;
+        while (!this.closed) {
+            ArrayList<byte[]> lines = new ArrayList<byte[]>();
+            ArrayList<Song> snapshot = null;
+            long current;
+            synchronized (this.log) {
+                if (position > this.sequence) {
+                    this.log.wait(this.heartbeatMillis);
+                }
+                current = this.sequence;
+                if (position < this.firstRetained || position > current + 1) {
+                    /*
+                     * Copied while no change can happen, and written after.
+                     */
+                    snapshot = new ArrayList<Song>(this.rep().size());
+                    for (Song song : this.rep()) {
+                        snapshot.add(song);
+                    }
+                } else {
+                    int from = (int) (position - this.firstRetained);
+                    lines.addAll(this.log.subList(from, this.log.size()));
+                }
+                position = current + 1;
+            }
+
+            if (snapshot != null) {
+                writeLine(out, SNAPSHOT + "\t" + this.id + "\t" + current
+                        + "\t" + snapshot.size());
+                for (Song song : snapshot) {
+                    writeLine(out, JournaledMusicDatabase
+                            .journalLine(JournaledMusicDatabase.ADD, song));
+                }
+            }
+            for (byte[] line : lines) {
+                out.write(line);
+            }
+            writeLine(out, HEARTBEAT + "\t" + current + "\t"
+                    + System.currentTimeMillis());
+            out.flush();
+        }
+    }
+
+    /**
+     * Records a follower's acknowledgements until it disconnects.
+     *
+     * @param socket
+     *            The follower's connection, closed when it stops
+     *            acknowledging
+     * @param in
+     *            The input of the connection
+     * @param name
+     *            The follower's address
+     */
+    private void readAcks(Socket socket, InputStream in, String name) {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        try (socket) {
+            String record = readLine(in, line);
+            while (record != null) {
+                String[] fields = record.split("\t", -1);
+                if (fields.length == 2 && fields[0].equals(ACK)) {
+                    this.acknowledged.replace(name, Long.parseLong(fields[1]));
+                }
+                record = readLine(in, line);
+            }
+        } catch (IOException | NumberFormatException e) {
+            /*
+             * Closing the socket stops the sender too.
+             */
+        }
+    }
+
+    /*
+     * --------------------------- Public methods -----------------------------
+     */
+
+    /**
+     * Returns the port followers connect to.
+     *
+     * @return the port
+     */
+    public final int port() {
+        return this.listener.getLocalPort();
+    }
+
+    /**
+     * Returns the sequence number of the newest change.
+     *
+     * @return the sequence number
+     */
+    public final long sequence() {
+        synchronized (this.log) {
+            return this.sequence;
+        }
+    }
+
+    /**
+     * Returns how many changes each connected follower has yet to
+     * acknowledge, by address.
+     *
+     * @return the lag of each follower
+     */
+    public final Map<String, Long> followerLag() {
+        long current = this.sequence();
+        Map<String, Long> lag = new HashMap<String, Long>();
+        for (Map.Entry<String, Long> follower : this.acknowledged.entrySet()) {
+            lag.put(follower.getKey(),
+                    Math.max(0, current - follower.getValue()));
+        }
+        return lag;
+    }
+
+    /**
+     * Stops listening and disconnects every follower. Changes made afterwards
+     * are not replicated.
+     *
+     * @throws IOException
+     *             if the listening socket cannot be closed
+     */
+    @Override
+    public final void close() throws IOException {
+        this.closed = true;
+        this.listener.close();
+        for (Socket follower : this.followers) {
+            follower.close();
+        }
+        synchronized (this.log) {
+            this.log.notifyAll();
+        }
+    }
+
+    /*
+     * --------------------------- Kernel methods -----------------------------
+     */
+
+    /**
+     * Removes the song and sends its removal to followers.
+     *
+     * @param repIt
+     *            The iterator over rep
+     * @param song
+     *            The song it last returned
+     */
+    @Override
+    protected final void removeByIterator(Iterator<Song> repIt, Song song) {
+        synchronized (this.log) {
+            repIt.remove();
+            this.append(JournaledMusicDatabase
+                    .journalLine(JournaledMusicDatabase.REMOVE, song));
+        }
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void clear() {
+        synchronized (this.log) {
+            this.rep().clear();
+            this.append(JournaledMusicDatabase
+                    .journalLine(JournaledMusicDatabase.CLEAR));
+        }
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void transferFrom(MusicDatabase source) {
+        assert source != null : "Violation of: source is not null";
+        assert source != this : "Violation of: source is not this";
+
+        synchronized (this.log) {
+            if (source instanceof ReplicatedMusicDatabase) {
+                /*
+                 * Moves the contents of source's rep; source's followers see
+                 * it cleared.
+                 */
+                ReplicatedMusicDatabase replicated =
+                        (ReplicatedMusicDatabase) source;
+                synchronized (replicated.log) {
+                    this.rep().transferFrom(replicated.rep());
+                    replicated.append(JournaledMusicDatabase
+                            .journalLine(JournaledMusicDatabase.CLEAR));
+                }
+            } else {
+                this.rep().transferFrom(source);
+            }
+            /*
+             * Replacing everything at once is cheaper to send as a snapshot
+             * than as a line per song.
+             */
+            this.resync();
+        }
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void addEntry(Song song) {
+        synchronized (this.log) {
+            this.rep().addEntry(song);
+            this.append(JournaledMusicDatabase
+                    .journalLine(JournaledMusicDatabase.ADD, song));
+        }
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public ArrayList<Song> removeEntries(SearchField field, String value) {
+        synchronized (this.log) {
+            ArrayList<Song> removed = this.rep().removeEntries(field, value);
+            if (removed.size() > 0) {
+                this.append(JournaledMusicDatabase.journalLine(
+                        JournaledMusicDatabase.REMOVE_ENTRIES, field.name(),
+                        value));
+            }
+            return removed;
+        }
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Song removeEntry(Song song) {
+        synchronized (this.log) {
+            Song removed = this.rep().removeEntry(song);
+            this.append(JournaledMusicDatabase
+                    .journalLine(JournaledMusicDatabase.REMOVE, removed));
+            return removed;
+        }
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public Song removeEntryByOrder(int n) {
+        synchronized (this.log) {
+            Song removed = this.rep().removeEntryByOrder(n);
+            this.append(JournaledMusicDatabase
+                    .journalLine(JournaledMusicDatabase.REMOVE, removed));
+            return removed;
+        }
+    }
+
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public void sort(Comparator<Song> order) {
+        synchronized (this.log) {
+            this.rep().sort(order);
+            this.appendSort(order);
+        }
+    }
+
+    /**
+     * Reports rep's memory, with the log kept for followers added to its
+     * history.
+     *
+     * @return the estimate
+     */
+    // CHECKSTYLE: ALLOW THIS METHOD TO BE OVERRIDDEN
+    @Override
+    public MemoryReport memoryReport() {
+        MemoryReport report = this.rep().memoryReport();
+        long log;
+        synchronized (this.log) {
+            log = MemoryReport.arrayList(this.log.size());
+            for (byte[] line : this.log) {
+                log += MemoryReport.array(line.length, 1);
+            }
+        }
+        return new MemoryReport(report.storage(), report.songs(),
+                report.strings(), report.duplicateStrings(), report.indexes(),
+                report.caches(), report.history() + log, report.offHeap());
+    }
+
+    @Override
+    protected final void addNewEntries(Collection<Song> songs) {
+        synchronized (this.log) {
+            addNewEntries(this.rep(), songs);
+            for (Song song : songs) {
+                this.append(JournaledMusicDatabase
+                        .journalLine(JournaledMusicDatabase.ADD, song));
+            }
+        }
+    }
+
+    /**
+     * Sends a line per song merged in and then one for the sort, which
+     * leaves followers in the merged order.
+     *
+     * @param songs
+     *            The songs to merge in
+     * @param order
+     *            The order this and songs are both sorted by
+     */
+    @Override
+    protected final void mergeNewEntries(List<Song> songs,
+            Comparator<Song> order) {
+        synchronized (this.log) {
+            mergeNewEntries(this.rep(), songs, order);
+            for (Song song : songs) {
+                this.append(JournaledMusicDatabase
+                        .journalLine(JournaledMusicDatabase.ADD, song));
+            }
+            this.appendSort(order);
+        }
+    }
+
+    @Override
+    protected final void removeExistingEntries(Set<Song> songs) {
+        synchronized (this.log) {
+            removeExistingEntries(this.rep(), songs);
+            for (Song song : songs) {
+                this.append(JournaledMusicDatabase
+                        .journalLine(JournaledMusicDatabase.REMOVE, song));
+            }
+        }
+    }
+}
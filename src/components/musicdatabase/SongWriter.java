@@ -0,0 +1,510 @@
+package components.musicdatabase;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Encodes {@code Song} objects as tab delimited rows directly into a reusable
+ * byte buffer, which is drained to a {@code WritableByteChannel} (optionally
+ * through a streaming GZIP encoder) only when it fills up. Used by
+ * {@code writeToFile} so that exporting a database costs no per-row
+ * {@code String} allocation.
+ */
+final class SongWriter implements Closeable {
+
+    /**
+     * Size of the reusable encoding buffer.
+     */
+    static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Header written as the first row of every file.
+     */
+    static final String HEADER = "Title\tArtist\tAlbum\tLength";
+
+    /**
+     * Bytes of the platform line separator, matching what
+     * {@code BufferedWriter.newLine()} would have written.
+     */
+    private static final byte[] NEW_LINE = System.lineSeparator()
+            .getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Maximum number of UTF-8 bytes a single {@code char} can encode to.
+     */
+    private static final int MAX_BYTES_PER_CHAR = 3;
+
+    /**
+     * Chars below this encode to one byte.
+     */
+    private static final int ONE_BYTE_LIMIT = 0x80;
+
+    /**
+     * Chars below this (and at least {@code ONE_BYTE_LIMIT}) encode to two
+     * bytes.
+     */
+    private static final int TWO_BYTE_LIMIT = 0x800;
+
+    /**
+     * Lead bits of the first byte of a two byte sequence.
+     */
+    private static final int TWO_BYTE_LEAD = 0xC0;
+
+    /**
+     * Lead bits of the first byte of a three byte sequence.
+     */
+    private static final int THREE_BYTE_LEAD = 0xE0;
+
+    /**
+     * Lead bits of the first byte of a four byte sequence.
+     */
+    private static final int FOUR_BYTE_LEAD = 0xF0;
+
+    /**
+     * Lead bits of every continuation byte.
+     */
+    private static final int CONTINUATION = 0x80;
+
+    /**
+     * Number of payload bits in a continuation byte.
+     */
+    private static final int PAYLOAD_BITS = 6;
+
+    /**
+     * Mask selecting the payload bits of a continuation byte.
+     */
+    private static final int PAYLOAD_MASK = 0x3F;
+
+    /**
+     * Backing array of {@code buffer}, written to directly.
+     */
+    private final byte[] bytes;
+
+    /**
+     * View over {@code bytes} handed to the channel when draining.
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * Number of bytes currently held in {@code bytes}.
+     */
+    private int pos;
+
+    /**
+     * Channel the encoded bytes end up in.
+     */
+    private final WritableByteChannel channel;
+
+    /**
+     * GZIP encoder between this and {@code channel}, or null if uncompressed.
+     */
+    private final GZIPOutputStream gzip;
+
+    /**
+     * Constructor.
+     *
+     * @param channel
+     *            The channel to write to
+     * @param compress
+     *            Whether the output should be GZIP compressed
+     * @throws IOException
+     *             if the GZIP header cannot be written
+     * @requires channel is open
+     */
+    SongWriter(WritableByteChannel channel, boolean compress)
+            throws IOException {
+        assert channel != null : "Violation of: channel != null";
+
+        this.bytes = new byte[BUFFER_SIZE];
+        this.buffer = ByteBuffer.wrap(this.bytes);
+        this.pos = 0;
+        this.channel = channel;
+        if (compress) {
+            OutputStream channelOut = Channels.newOutputStream(channel);
+            /*
+             * Closing the encoder ends its Deflater, freeing zlib's native
+             * memory, and then closes this, which must leave the channel
+             * open.
+             */
+            OutputStream out = new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    channelOut.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len)
+                        throws IOException {
+                    channelOut.write(b, off, len);
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+            this.gzip = new GZIPOutputStream(out, BUFFER_SIZE);
+        } else {
+            this.gzip = null;
+        }
+    }
+
+    /**
+     * Something written to a file by a {@code SongWriter}.
+     */
+    @FunctionalInterface
+    interface Contents {
+
+        /**
+         * Writes the contents of the file.
+         *
+         * @param wrtr
+         *            The writer to write them to
+         * @throws IOException
+         *             if writing fails
+         */
+        void writeTo(SongWriter wrtr) throws IOException;
+    }
+
+    /**
+     * Writes a header and every song in {@code songs} to {@code target},
+     * replacing it atomically as described by
+     * {@code writeAtomically(target, compress, contents)}.
+     *
+     * @param target
+     *            The file to write
+     * @param songs
+     *            The songs to write, in order
+     * @param compress
+     *            Whether the output should be GZIP compressed
+     * @throws IOException
+     *             if the file cannot be written
+     * @requires the parent directory of {@code target} exists
+     * @ensures target contains a header followed by every song in songs
+     */
+    static void writeAtomically(Path target, Iterable<Song> songs,
+            boolean compress) throws IOException {
+        writeAtomically(target, compress, wrtr -> {
+            wrtr.writeHeader();
+            for (Song song : songs) {
+                wrtr.write(song);
+            }
+        });
+    }
+
+    /**
+     * Writes {@code contents} to {@code target}, replacing it atomically. The
+     * contents go to a temporary file next to {@code target}, which is forced
+     * to disk and then renamed over {@code target}, so a crash at any point
+     * leaves either the old file or the complete new one, never a truncated
+     * mix. The new file gets the permissions of the one it replaces, or, if
+     * there was none, the default ones for a new file, as writing
+     * {@code target} in place would.
+     *
+     * @param target
+     *            The file to write
+     * @param compress
+     *            Whether the output should be GZIP compressed
+     * @param contents
+     *            Writes the contents of the file
+     * @throws IOException
+     *             if the file cannot be written
+     * @requires the parent directory of {@code target} exists
+     * @ensures target holds what contents wrote
+     */
+    static void writeAtomically(Path target, boolean compress,
+            Contents contents) throws IOException {
+        Path directory = target.toAbsolutePath().getParent();
+        /*
+         * Not Files.createTempFile, which makes the file readable by its owner
+         * only; a plain new file gets the permissions the umask allows.
+         */
+        Path temp = null;
+        FileChannel created = null;
+        while (created == null) {
+            temp = directory.resolve("." + target.getFileName() + "."
+                    + Long.toUnsignedString(
+                            ThreadLocalRandom.current().nextLong(),
+                            Character.MAX_RADIX)
+                    + ".tmp");
+            try {
+                created = FileChannel.open(temp, StandardOpenOption.CREATE_NEW,
+                        StandardOpenOption.WRITE);
+            } catch (FileAlreadyExistsException e) {
+                /*
+                 * Tries another name.
+                 */
+                created = null;
+            }
+        }
+        try {
+            try (FileChannel channel = created) {
+                try (SongWriter wrtr = new SongWriter(channel, compress)) {
+                    contents.writeTo(wrtr);
+                }
+                channel.force(true);
+            }
+            keepPermissions(target, temp);
+
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+
+        /*
+         * Makes the rename itself durable. Directories cannot be opened this
+         * way on every platform, in which case the rename is left to the
+         * file system.
+         */
+        try (FileChannel dir = FileChannel.open(directory,
+                StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            /*
+             * Nothing else to do, the file itself is already durable.
+             */
+        }
+    }
+
+    /**
+     * Gives {@code temp} the POSIX permissions of {@code target}, if it exists
+     * and the file system has them.
+     *
+     * @param target
+     *            The file being replaced
+     * @param temp
+     *            The file replacing it
+     * @throws IOException
+     *             if the permissions cannot be read or set
+     */
+    private static void keepPermissions(Path target, Path temp)
+            throws IOException {
+        if (Files.exists(target) && Files.getFileStore(temp)
+                .supportsFileAttributeView(PosixFileAttributeView.class)) {
+            Files.setPosixFilePermissions(temp,
+                    Files.getPosixFilePermissions(target));
+        }
+    }
+
+    /**
+     * Writes the header row.
+     *
+     * @throws IOException
+     *             if writing to the channel fails
+     */
+    void writeHeader() throws IOException {
+        this.writeField(HEADER);
+        this.writeNewLine();
+    }
+
+    /**
+     * Writes {@code song} as one tab delimited row.
+     *
+     * @param song
+     *            The song to write
+     * @throws IOException
+     *             if writing to the channel fails
+     * @requires song != null
+     */
+    void write(Song song) throws IOException {
+        this.writeField(song.title());
+        this.writeByte('\t');
+        this.writeField(song.artist());
+        this.writeByte('\t');
+        this.writeField(song.album());
+        this.writeByte('\t');
+        this.writeField(song.length());
+        this.writeNewLine();
+    }
+
+    /**
+     * Writes the platform line separator.
+     *
+     * @throws IOException
+     *             if writing to the channel fails
+     */
+    void writeNewLine() throws IOException {
+        if (this.bytes.length - this.pos < NEW_LINE.length) {
+            this.drain();
+        }
+        for (byte b : NEW_LINE) {
+            this.bytes[this.pos] = b;
+            this.pos++;
+        }
+    }
+
+    /**
+     * Writes a single ASCII character.
+     *
+     * @param c
+     *            The character to write
+     * @throws IOException
+     *             if writing to the channel fails
+     * @requires c < 128
+     */
+    void writeByte(char c) throws IOException {
+        if (this.pos == this.bytes.length) {
+            this.drain();
+        }
+        this.bytes[this.pos] = (byte) c;
+        this.pos++;
+    }
+
+    /**
+     * Writes {@code str} encoded as UTF-8.
+     *
+     * @param str
+     *            The string to write
+     * @throws IOException
+     *             if writing to the channel fails
+     */
+    void writeField(String str) throws IOException {
+        int len = str.length();
+        if (this.bytes.length - this.pos < len * MAX_BYTES_PER_CHAR) {
+            this.drain();
+            if (this.bytes.length < len * MAX_BYTES_PER_CHAR) {
+                /*
+                 * Too large to ever fit in the buffer, which is not worth a
+                 * fast path.
+                 */
+                this.writeRaw(str.getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+        }
+
+        byte[] dst = this.bytes;
+        int p = this.pos;
+        int i = 0;
+        while (i < len) {
+            char c = str.charAt(i);
+            i++;
+            if (c < ONE_BYTE_LIMIT) {
+                dst[p++] = (byte) c;
+            } else if (c < TWO_BYTE_LIMIT) {
+                dst[p++] = (byte) (TWO_BYTE_LEAD | (c >> PAYLOAD_BITS));
+                dst[p++] = (byte) (CONTINUATION | (c & PAYLOAD_MASK));
+            } else if (Character.isHighSurrogate(c) && i < len
+                    && Character.isLowSurrogate(str.charAt(i))) {
+                /*
+                 * A surrogate pair is two chars, so the four bytes it encodes
+                 * to still fit in the space reserved above.
+                 */
+                int cp = Character.toCodePoint(c, str.charAt(i));
+                i++;
+                dst[p++] = (byte) (FOUR_BYTE_LEAD
+                        | (cp >> (MAX_BYTES_PER_CHAR * PAYLOAD_BITS)));
+                dst[p++] = (byte) (CONTINUATION
+                        | ((cp >> (2 * PAYLOAD_BITS)) & PAYLOAD_MASK));
+                dst[p++] = (byte) (CONTINUATION
+                        | ((cp >> PAYLOAD_BITS) & PAYLOAD_MASK));
+                dst[p++] = (byte) (CONTINUATION | (cp & PAYLOAD_MASK));
+            } else if (Character.isSurrogate(c)) {
+                /*
+                 * Unpaired surrogate, replaced the same way String.getBytes
+                 * does.
+                 */
+                dst[p++] = (byte) '?';
+            } else {
+                dst[p++] = (byte) (THREE_BYTE_LEAD
+                        | (c >> (2 * PAYLOAD_BITS)));
+                dst[p++] = (byte) (CONTINUATION
+                        | ((c >> PAYLOAD_BITS) & PAYLOAD_MASK));
+                dst[p++] = (byte) (CONTINUATION | (c & PAYLOAD_MASK));
+            }
+        }
+        this.pos = p;
+    }
+
+    /**
+     * Writes already encoded bytes, bypassing the buffer.
+     *
+     * @param raw
+     *            The bytes to write
+     * @throws IOException
+     *             if writing to the channel fails
+     */
+    private void writeRaw(byte[] raw) throws IOException {
+        this.drain();
+        if (this.gzip != null) {
+            this.gzip.write(raw);
+        } else {
+            ByteBuffer wrapped = ByteBuffer.wrap(raw);
+            while (wrapped.hasRemaining()) {
+                this.channel.write(wrapped);
+            }
+        }
+    }
+
+    /**
+     * Hands everything in the buffer to the channel (or GZIP encoder) and
+     * empties it.
+     *
+     * @throws IOException
+     *             if writing to the channel fails
+     */
+    private void drain() throws IOException {
+        if (this.pos == 0) {
+            return;
+        }
+        if (this.gzip != null) {
+            this.gzip.write(this.bytes, 0, this.pos);
+        } else {
+            this.buffer.clear().limit(this.pos);
+            while (this.buffer.hasRemaining()) {
+                this.channel.write(this.buffer);
+            }
+        }
+        this.pos = 0;
+    }
+
+    /**
+     * Writes out anything still buffered, finishing the GZIP stream if there
+     * is one. Does not close the channel.
+     *
+     * @throws IOException
+     *             if writing to the channel fails
+     */
+    void flush() throws IOException {
+        this.drain();
+        if (this.gzip != null) {
+            this.gzip.finish();
+        }
+    }
+
+    /**
+     * Writes out anything still buffered, finishing the GZIP stream if there
+     * is one, and releases the GZIP encoder. Does not close the channel.
+     *
+     * @throws IOException
+     *             if writing to the channel fails
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            this.flush();
+        } finally {
+            if (this.gzip != null) {
+                this.gzip.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package server;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import components.musicdatabase.Song;
+
+/**
+ * Writes songs as JSON objects with title, artist, album, and length members,
+ * and reads arrays of them back. Only this much of JSON is understood: the
+ * array must hold objects whose members are all strings.
+ */
+final class JsonSongs {
+
+    /**
+     * Private constructor so this utility class cannot be instantiated.
+     */
+    private JsonSongs() {
+    }
+
+    /**
+     * Writes {@code song} as a JSON object.
+     *
+     * @param out
+     *            The output
+     * @param song
+     *            The song
+     * @throws IOException
+     *             if out cannot be written
+     */
+    static void write(Writer out, Song song) throws IOException {
+        out.write("{\"title\":");
+        writeString(out, song.title());
+        out.write(",\"artist\":");
+        writeString(out, song.artist());
+        out.write(",\"album\":");
+        writeString(out, song.album());
+        out.write(",\"length\":");
+        writeString(out, song.length());
+        out.write('}');
+    }
+
+    /**
+     * Writes {@code s} as a JSON string.
+     *
+     * @param out
+     *            The output
+     * @param s
+     *            The string
+     * @throws IOException
+     *             if out cannot be written
+     */
+    private static void writeString(Writer out, String s) throws IOException {
+        final int firstPrintable = 0x20;
+        out.write('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c < firstPrintable) {
+                out.write(String.format("\\u%04x", (int) c));
+            } else {
+                out.write(c);
+            }
+        }
+        out.write('"');
+    }
+
+    /**
+     * Reads a JSON array of songs.
+     *
+     * @param in
+     *            The input, holding one array
+     * @return the songs, in order
+     * @throws IOException
+     *             if in cannot be read
+     * @throws IllegalArgumentException
+     *             if in is not an array of songs
+     */
+    static ArrayList<Song> read(Reader in) throws IOException {
+        Parser parser = new Parser(in);
+        ArrayList<Song> songs = new ArrayList<Song>();
+        parser.expect('[');
+        if (parser.peek() == ']') {
+            parser.next();
+        } else {
+            boolean more = true;
+            while (more) {
+                songs.add(parser.song());
+                int c = parser.next();
+                more = c == ',';
+                if (!more) {
+                    Parser.check(c, ']');
+                }
+            }
+        }
+        if (parser.peek() != -1) {
+            throw new IllegalArgumentException(
+                    "ERROR: Unexpected input after the array");
+        }
+        return songs;
+    }
+
+    /**
+     * Reads JSON one character at a time.
+     */
+    private static final class Parser {
+
+        /**
+         * The input.
+         */
+        private final Reader in;
+
+        /**
+         * The next character, already read, or -2 if none is.
+         */
+        private int lookahead = -2;
+
+        /**
+         * Constructor.
+         *
+         * @param in
+         *            The input
+         */
+        Parser(Reader in) {
+            this.in = in;
+        }
+
+        /**
+         * Returns the next character other than whitespace without consuming
+         * it.
+         *
+         * @return the character, or -1 at the end of the input
+         * @throws IOException
+         *             if in cannot be read
+         */
+        int peek() throws IOException {
+            if (this.lookahead == -2) {
+                this.lookahead = this.in.read();
+            }
+            while (this.lookahead != -1
+                    && Character.isWhitespace(this.lookahead)) {
+                this.lookahead = this.in.read();
+            }
+            return this.lookahead;
+        }
+
+        /**
+         * Consumes the next character other than whitespace.
+         *
+         * @return the character, or -1 at the end of the input
+         * @throws IOException
+         *             if in cannot be read
+         */
+        int next() throws IOException {
+            int c = this.peek();
+            this.lookahead = -2;
+            return c;
+        }
+
+        /**
+         * Throws if {@code c} is not {@code expected}.
+         *
+         * @param c
+         *            The character found
+         * @param expected
+         *            The character expected
+         */
+        static void check(int c, char expected) {
+            if (c != expected) {
+                throw new IllegalArgumentException(
+                        "ERROR: Expected '" + expected + "' in JSON");
+            }
+        }
+
+        /**
+         * Consumes the next character other than whitespace, and throws if it
+         * is not {@code expected}.
+         *
+         * @param expected
+         *            The character expected
+         * @throws IOException
+         *             if in cannot be read
+         */
+        void expect(char expected) throws IOException {
+            check(this.next(), expected);
+        }
+
+        /**
+         * Reads a string, starting at its opening quote.
+         *
+         * @return the string
+         * @throws IOException
+         *             if in cannot be read
+         */
+        String string() throws IOException {
+            final int hex = 16;
+            final int escapeDigits = 4;
+            this.expect('"');
+            StringBuilder s = new StringBuilder();
+            int c = this.in.read();
+            while (c != '"') {
+                if (c == -1) {
+                    throw new IllegalArgumentException(
+                            "ERROR: Unterminated string in JSON");
+                }
+                if (c == '\\') {
+                    c = this.in.read();
+                    switch (c) {
+                        case 'n': {
+                            c = '\n';
+                            break;
+                        }
+                        case 't': {
+                            c = '\t';
+                            break;
+                        }
+                        case 'r': {
+                            c = '\r';
+                            break;
+                        }
+                        case 'b': {
+                            c = '\b';
+                            break;
+                        }
+                        case 'f': {
+                            c = '\f';
+                            break;
+                        }
+                        case 'u': {
+                            char[] digits = new char[escapeDigits];
+                            for (int i = 0; i < escapeDigits; i++) {
+                                digits[i] = (char) this.in.read();
+                            }
+                            try {
+                                c = Integer.parseInt(new String(digits), hex);
+                            } catch (NumberFormatException e) {
+                                throw new IllegalArgumentException(
+                                        "ERROR: Bad escape in JSON", e);
+                            }
+                            break;
+                        }
+                        default: {
+                            /*
+                             * \" \\ and \/ stand for themselves.
+                             */
+                            break;
+                        }
+                    }
+                }
+                s.append((char) c);
+                c = this.in.read();
+            }
+            return s.toString();
+        }
+
+        /**
+         * Reads a song object.
+         *
+         * @return the song
+         * @throws IOException
+         *             if in cannot be read
+         */
+        Song song() throws IOException {
+            Map<String, String> members = new HashMap<String, String>();
+            this.expect('{');
+            if (this.peek() == '}') {
+                this.next();
+            } else {
+                boolean more = true;
+                while (more) {
+                    String name = this.string();
+                    this.expect(':');
+                    members.put(name, this.string());
+                    int c = this.next();
+                    more = c == ',';
+                    if (!more) {
+                        check(c, '}');
+                    }
+                }
+            }
+
+            String title = members.get("title");
+            String artist = members.get("artist");
+            String album = members.getOrDefault("album", "");
+            String length = members.get("length");
+            if (title == null || title.isEmpty() || artist == null
+                    || artist.isEmpty() || length == null
+                    || length.isEmpty()) {
+                throw new IllegalArgumentException("ERROR: A song needs a "
+                        + "title, an artist, and a length");
+            }
+            return MusicDatabaseServer.newSong(title, artist, album, length);
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package server;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import components.musicdatabase.MusicDatabase;
+import components.musicdatabase.MusicDatabase3;
+import components.musicdatabase.Song;
+
+/**
+ * Sends queries to a {@code MusicDatabaseServer} from many threads at once
+ * and reports the requests per second and the median (p50) and 99th
+ * percentile (p99) latencies. Without a URL it starts a server on localhost
+ * serving a generated catalog and measures that.
+ *
+ * <p>
+ * Of the requests, 60% are {@code /entries} by artist, 20% are
+ * {@code /prefix} by title, and 20% are {@code /size}. Every response is read
+ * to the end before the request counts as done.
+ *
+ * <p>
+ * Usage: {@code LoadGenerator [threads] [seconds] [songs] [url]}
+ */
+public final class LoadGenerator {
+
+    /**
+     * Private constructor so this utility class cannot be instantiated.
+     */
+    private LoadGenerator() {
+    }
+
+    /**
+     * Number of distinct artists in the generated catalog.
+     */
+    private static final int ARTISTS = 500;
+
+    /**
+     * Latencies of one thread's requests, in nanoseconds.
+     */
+    private static final class Latencies {
+
+        /**
+         * The latencies, followed by unused space.
+         */
+        private long[] nanos = new long[1024];
+
+        /**
+         * Number of latencies recorded.
+         */
+        private int count = 0;
+
+        /**
+         * Records one latency.
+         *
+         * @param latency
+         *            The latency, in nanoseconds
+         */
+        void add(long latency) {
+            if (this.count == this.nanos.length) {
+                this.nanos = Arrays.copyOf(this.nanos, this.count * 2);
+            }
+            this.nanos[this.count] = latency;
+            this.count++;
+        }
+    }
+
+    /**
+     * Makes the {@code i}th song of the generated catalog.
+     *
+     * @param i
+     *            The song number
+     * @return the song
+     */
+    private static Song song(int i) {
+        return new Song("Title " + i, "Artist " + (i % ARTISTS), "", "03:00");
+    }
+
+    /**
+     * Picks the path and query of the next request.
+     *
+     * @param random
+     *            Source of randomness
+     * @param songs
+     *            Number of songs in the catalog
+     * @return the path and query
+     */
+    private static String nextRequest(SplittableRandom random, int songs) {
+        final int hundred = 100;
+        final int entriesPercent = 60;
+        final int prefixPercent = 80;
+        final int prefixDivisor = 100;
+        int kind = random.nextInt(hundred);
+        String request;
+        if (kind < entriesPercent) {
+            request = "/entries?field=ARTIST&value="
+                    + encode("Artist " + random.nextInt(ARTISTS));
+        } else if (kind < prefixPercent) {
+            int prefix = random.nextInt(Math.max(1, songs / prefixDivisor));
+            request = "/prefix?field=TITLE&prefix="
+                    + encode("Title " + prefix);
+        } else {
+            request = "/size";
+        }
+        return request;
+    }
+
+    /**
+     * Encodes a query parameter value.
+     *
+     * @param value
+     *            The value
+     * @return the encoded value
+     */
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the latency at {@code percentile} of sorted latencies.
+     *
+     * @param sorted
+     *            The latencies, in increasing order
+     * @param percentile
+     *            The percentile, from 0 to 100
+     * @return the latency, in milliseconds
+     */
+    private static double percentile(long[] sorted, double percentile) {
+        final double hundred = 100;
+        final double nanosPerMilli = 1e6;
+        double latency = 0;
+        if (sorted.length > 0) {
+            int index = (int) Math.ceil(percentile / hundred * sorted.length)
+                    - 1;
+            latency = sorted[Math.max(0, index)] / nanosPerMilli;
+        }
+        return latency;
+    }
+
+    /**
+     * What one run measured.
+     *
+     * @param nanos
+     *            Latency of every successful request, in nanoseconds, in
+     *            increasing order
+     * @param errors
+     *            Number of failed requests
+     * @param seconds
+     *            How long the run took
+     */
+    private record Result(long[] nanos, long errors, double seconds) {
+    }
+
+    /**
+     * Runs {@code threads} threads sending requests to {@code base} for
+     * {@code seconds} seconds.
+     *
+     * @param client
+     *            The client to send with
+     * @param base
+     *            The URL of the server, without a trailing slash
+     * @param threads
+     *            Number of threads
+     * @param songs
+     *            Number of songs in the catalog
+     * @param seconds
+     *            How long to run
+     * @return what was measured
+     * @throws InterruptedException
+     *             if interrupted while waiting for the threads
+     */
+    private static Result run(HttpClient client, String base, int threads,
+            int songs, double seconds) throws InterruptedException {
+        final double millisPerSecond = 1e3;
+        final double nanosPerSecond = 1e9;
+        final int ok = 200;
+        LongAdder errors = new LongAdder();
+        AtomicBoolean stop = new AtomicBoolean(false);
+        CountDownLatch start = new CountDownLatch(1);
+        ArrayList<Thread> workers = new ArrayList<Thread>();
+        ArrayList<Latencies> latencies = new ArrayList<Latencies>();
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            Latencies own = new Latencies();
+            latencies.add(own);
+            Thread worker = new Thread(() -> {
+                SplittableRandom random = new SplittableRandom(id);
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                while (!stop.get()) {
+                    HttpRequest request = HttpRequest
+                            .newBuilder(URI.create(
+                                    base + nextRequest(random, songs)))
+                            .build();
+                    long begin = System.nanoTime();
+                    try {
+                        HttpResponse<byte[]> response = client.send(request,
+                                HttpResponse.BodyHandlers.ofByteArray());
+                        if (response.statusCode() == ok) {
+                            own.add(System.nanoTime() - begin);
+                        } else {
+                            errors.increment();
+                        }
+                    } catch (IOException e) {
+                        errors.increment();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        Thread.sleep((long) (seconds * millisPerSecond));
+        stop.set(true);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double elapsed = (System.nanoTime() - begin) / nanosPerSecond;
+
+        int total = 0;
+        for (Latencies own : latencies) {
+            total += own.count;
+        }
+        long[] all = new long[total];
+        int pos = 0;
+        for (Latencies own : latencies) {
+            System.arraycopy(own.nanos, 0, all, pos, own.count);
+            pos += own.count;
+        }
+        Arrays.sort(all);
+        return new Result(all, errors.sum(), elapsed);
+    }
+
+    /**
+     * Main method.
+     *
+     * @param args
+     *            [threads] [seconds] [songs] [url]
+     * @throws IOException
+     *             if the embedded server cannot be started
+     * @throws InterruptedException
+     *             if interrupted while waiting for the threads
+     */
+    public static void main(String[] args)
+            throws IOException, InterruptedException {
+        final int defaultThreads = 16;
+        final double defaultSeconds = 5;
+        final int defaultSongs = 10_000;
+        final double p50 = 50;
+        final double p99 = 99;
+        final double hundred = 100;
+        final int three = 3;
+        int threads = defaultThreads;
+        double seconds = defaultSeconds;
+        int songs = defaultSongs;
+        if (args.length > 0) {
+            threads = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            seconds = Double.parseDouble(args[1]);
+        }
+        if (args.length > 2) {
+            songs = Integer.parseInt(args[2]);
+        }
+
+        MusicDatabaseServer embedded = null;
+        String base;
+        if (args.length > three) {
+            base = args[three];
+        } else {
+            MusicDatabase db = new MusicDatabase3(songs);
+            for (int i = 0; i < songs; i++) {
+                db.addEntry(song(i));
+            }
+            embedded = new MusicDatabaseServer(db, 0);
+            embedded.start();
+            base = "http://127.0.0.1:" + embedded.port();
+        }
+
+        /*
+         * Warms up both ends before measuring.
+         */
+        HttpClient client = HttpClient.newBuilder()
+                .executor(MusicDatabaseServer.newPerRequestExecutor())
+                .build();
+        run(client, base, threads, songs, seconds / 2);
+        Result result = run(client, base, threads, songs, seconds);
+        if (embedded != null) {
+            embedded.close();
+        }
+
+        long[] all = result.nanos();
+        System.out.printf("%s, %d threads, %.1f s%n", base, threads,
+                result.seconds());
+        System.out.printf("%d requests, %d errors, %.0f requests/s%n",
+                all.length, result.errors(), all.length / result.seconds());
+        System.out.printf("p50 %.3f ms, p99 %.3f ms, max %.3f ms%n",
+                percentile(all, p50), percentile(all, p99),
+                percentile(all, hundred));
+    }
+}
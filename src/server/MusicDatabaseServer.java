@@ -0,0 +1,772 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import components.musicdatabase.MusicDatabase;
+import components.musicdatabase.MusicDatabase3;
+import components.musicdatabase.MusicDatabase4;
+import components.musicdatabase.MusicDatabase5;
+import components.musicdatabase.MusicDatabaseKernel.SearchField;
+import components.musicdatabase.MusicDatabaseSecondary;
+import components.musicdatabase.Song;
+
+/**
+ * Serves queries on a {@code MusicDatabase} over HTTP on the loopback
+ * interface, so other programs can use a catalog without embedding this
+ * library. Built on the JDK's {@code com.sun.net.httpserver}, with one
+ * virtual thread per request where the JDK has them and a cached thread pool
+ * otherwise.
+ *
+ * <p>
+ * Every endpoint answers in JSON, or in the tab separated format of
+ * {@code writeToFile} when given {@code format=tsv}. The songs of a response
+ * are collected under the lock and written once it is released, so a slow
+ * client never holds up imports, or the queries queued behind them.
+ * <ul>
+ * <li>{@code GET /size}: the number of songs
+ * <li>{@code GET /entries?field=F&value=V}: {@code getEntries(F, V)}
+ * <li>{@code GET /range?field=F&from=A&to=B}: the songs whose field F is at
+ * least A and less than B; either bound may be left out
+ * <li>{@code GET /prefix?field=F&prefix=P}: the songs whose field F starts
+ * with P
+ * <li>{@code GET /export}: every song, in order
+ * <li>{@code POST /import}: adds the songs of the body, tab separated with a
+ * header row or a JSON array of objects with title, artist, album, and length
+ * members, that are not in the database already
+ * </ul>
+ * F is one of TITLE, ARTIST, ALBUM, and LENGTH. Bad requests get status 400
+ * and a message.
+ *
+ * <p>
+ * Imports run under an exclusive lock. Queries of a {@code MusicDatabase3},
+ * {@code MusicDatabase4}, or {@code MusicDatabase5}, whose reads are
+ * thread-safe, share a lock; queries of any other database take the
+ * exclusive lock too, since reads of some (such as {@code MusicDatabase2},
+ * which caches as it reads) change their state. The database must only be
+ * changed through this server while it runs.
+ */
+public final class MusicDatabaseServer implements AutoCloseable {
+
+    /**
+     * Size of the buffer responses are written through.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Status code of a successful request.
+     */
+    private static final int OK = 200;
+
+    /**
+     * Status code of a malformed request.
+     */
+    private static final int BAD_REQUEST = 400;
+
+    /**
+     * Status code of a request for an unknown endpoint.
+     */
+    private static final int NOT_FOUND = 404;
+
+    /**
+     * Status code of a request with the wrong method.
+     */
+    private static final int METHOD_NOT_ALLOWED = 405;
+
+    /**
+     * Format of a song length, mm:ss or hh:mm:ss.
+     */
+    private static final Pattern LENGTH = Pattern
+            .compile("[0-9]{2}:[0-9]{2}(:[0-9]{2})?");
+
+    /*
+     * The JDK's server sends a chunked response in several small writes, so
+     * with Nagle's algorithm on every streamed response waits out the
+     * client's delayed ACK (about 40 ms). Turned off unless the property was
+     * set already.
+     */
+    static {
+        String noDelay = "sun.net.httpserver.nodelay";
+        if (System.getProperty(noDelay) == null) {
+            System.setProperty(noDelay, "true");
+        }
+    }
+
+    /**
+     * The database served.
+     */
+    private final MusicDatabase db;
+
+    /**
+     * Exclusive for imports, and shared by queries if db's reads are
+     * thread-safe.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Taken by queries: lock's read lock if db's reads are thread-safe, and
+     * its write lock otherwise.
+     */
+    private final Lock queryLock;
+
+    /**
+     * Runs the requests.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * The HTTP server.
+     */
+    private final HttpServer server;
+
+    /**
+     * Constructor. Binds to {@code port} on the loopback interface; call
+     * {@code start} to begin serving.
+     *
+     * @param db
+     *            The database to serve
+     * @param port
+     *            The port, or 0 for any free port
+     * @throws IOException
+     *             if the port cannot be bound
+     */
+    public MusicDatabaseServer(MusicDatabase db, int port)
+            throws IOException {
+        assert db != null : "Violation of: db != null";
+
+        this.db = db;
+        if (hasThreadSafeReads(db)) {
+            this.queryLock = this.lock.readLock();
+        } else {
+            this.queryLock = this.lock.writeLock();
+        }
+        this.executor = newPerRequestExecutor();
+        this.server = HttpServer.create(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), port), 0);
+        this.server.setExecutor(this.executor);
+        this.server.createContext("/", this::handle);
+    }
+
+    /**
+     * Reports whether any number of threads can read {@code db} at once.
+     *
+     * @param db
+     *            The database
+     * @return true if db is one of the thread-safe implementations
+     */
+    static boolean hasThreadSafeReads(MusicDatabase db) {
+        return db instanceof MusicDatabase3 || db instanceof MusicDatabase4
+                || db instanceof MusicDatabase5;
+    }
+
+    /**
+     * Returns an executor that runs every task on a new virtual thread, or a
+     * cached thread pool if this JDK has no virtual threads. Looked up
+     * reflectively so this still compiles and runs on JDKs before 21.
+     *
+     * @return the executor
+     */
+    static ExecutorService newPerRequestExecutor() {
+        ExecutorService executor;
+        try {
+            executor = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            executor = Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task, "music-database-server");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Starts serving requests.
+     */
+    public void start() {
+        this.server.start();
+    }
+
+    /**
+     * Returns the port this is bound to.
+     *
+     * @return the port
+     */
+    public int port() {
+        return this.server.getAddress().getPort();
+    }
+
+    /**
+     * Stops accepting requests, and waits up to a second for those already
+     * running to finish.
+     */
+    @Override
+    public void close() {
+        this.server.stop(0);
+        this.executor.shutdown();
+        try {
+            this.executor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Handles one request.
+     *
+     * @param exchange
+     *            The request and its response
+     * @throws IOException
+     *             if the connection fails
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String path = exchange.getRequestURI().getPath();
+            Map<String, String> query = parseQuery(
+                    exchange.getRequestURI().getRawQuery());
+            boolean post = exchange.getRequestMethod().equals("POST");
+            boolean get = exchange.getRequestMethod().equals("GET");
+            try {
+                if (path.equals("/import") && post) {
+                    this.importSongs(exchange, query);
+                } else if (!get) {
+                    sendText(exchange, METHOD_NOT_ALLOWED,
+                            "Method not allowed");
+                } else if (path.equals("/size")) {
+                    this.sendSize(exchange, query);
+                } else if (path.equals("/entries")) {
+                    this.sendEntries(exchange, query);
+                } else if (path.equals("/range")) {
+                    SearchField field = field(query);
+                    String from = query.get("from");
+                    String to = query.get("to");
+                    this.sendMatching(exchange, query,
+                            song -> inRange(value(field, song), from, to));
+                } else if (path.equals("/prefix")) {
+                    SearchField field = field(query);
+                    String prefix = required(query, "prefix");
+                    this.sendMatching(exchange, query,
+                            song -> value(field, song).startsWith(prefix));
+                } else if (path.equals("/export")) {
+                    this.sendMatching(exchange, query, song -> true);
+                } else {
+                    sendText(exchange, NOT_FOUND, "No such endpoint: " + path);
+                }
+            } catch (IllegalArgumentException e) {
+                sendText(exchange, BAD_REQUEST, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Sends the size of the database.
+     *
+     * @param exchange
+     *            The request and its response
+     * @param query
+     *            The query parameters
+     * @throws IOException
+     *             if the connection fails
+     */
+    private void sendSize(HttpExchange exchange, Map<String, String> query)
+            throws IOException {
+        int size;
+        this.queryLock.lock();
+        try {
+            size = this.db.size();
+        } finally {
+            this.queryLock.unlock();
+        }
+        if (isTsv(query)) {
+            sendText(exchange, OK, Integer.toString(size));
+        } else {
+            sendJson(exchange, "{\"size\":" + size + "}");
+        }
+    }
+
+    /**
+     * Sends the songs {@code getEntries} finds.
+     *
+     * @param exchange
+     *            The request and its response
+     * @param query
+     *            The query parameters
+     * @throws IOException
+     *             if the connection fails
+     */
+    private void sendEntries(HttpExchange exchange, Map<String, String> query)
+            throws IOException {
+        SearchField field = field(query);
+        String value = required(query, "value");
+        ArrayList<Song> songs;
+        this.queryLock.lock();
+        try {
+            songs = this.db.getEntries(field, value);
+        } finally {
+            this.queryLock.unlock();
+        }
+        sendSongs(exchange, query, songs);
+    }
+
+    /**
+     * Sends every song of the database that {@code filter} accepts, in order.
+     *
+     * @param exchange
+     *            The request and its response
+     * @param query
+     *            The query parameters
+     * @param filter
+     *            The songs to send
+     * @throws IOException
+     *             if the connection fails
+     */
+    private void sendMatching(HttpExchange exchange, Map<String, String> query,
+            Predicate<Song> filter) throws IOException {
+        ArrayList<Song> songs = new ArrayList<Song>();
+        this.queryLock.lock();
+        try {
+            for (Song song : this.db) {
+                if (filter.test(song)) {
+                    songs.add(song);
+                }
+            }
+        } finally {
+            this.queryLock.unlock();
+        }
+        sendSongs(exchange, query, songs);
+    }
+
+    /**
+     * Sends {@code songs}. Never called while holding a lock, since a slow
+     * client can keep this waiting for as long as it likes.
+     *
+     * @param exchange
+     *            The request and its response
+     * @param query
+     *            The query parameters
+     * @param songs
+     *            The songs, in order
+     * @throws IOException
+     *             if the connection fails
+     */
+    private static void sendSongs(HttpExchange exchange,
+            Map<String, String> query, ArrayList<Song> songs)
+            throws IOException {
+        try (SongStream out = new SongStream(exchange, isTsv(query))) {
+            for (Song song : songs) {
+                out.write(song);
+            }
+        }
+    }
+
+    /**
+     * Adds the songs of the request body that are not in the database yet,
+     * and sends how many were added.
+     *
+     * @param exchange
+     *            The request and its response
+     * @param query
+     *            The query parameters
+     * @throws IOException
+     *             if the connection fails
+     */
+    private void importSongs(HttpExchange exchange, Map<String, String> query)
+            throws IOException {
+        String type = exchange.getRequestHeaders().getFirst("Content-Type");
+        boolean tsv = isTsv(query)
+                || (type != null && type.startsWith("text/"));
+        ArrayList<Song> songs;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                exchange.getRequestBody(), StandardCharsets.UTF_8))) {
+            if (tsv) {
+                songs = readTsv(in);
+            } else {
+                songs = JsonSongs.read(in);
+            }
+        }
+
+        int before;
+        int after;
+        this.lock.writeLock().lock();
+        try {
+            before = this.db.size();
+            this.db.addEntries(songs);
+            after = this.db.size();
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+        sendJson(exchange,
+                "{\"added\":" + (after - before) + ",\"size\":" + after + "}");
+    }
+
+    /**
+     * Reads songs in the tab separated format of {@code writeToFile}.
+     *
+     * @param in
+     *            The input, starting at the header row
+     * @return the songs
+     * @throws IOException
+     *             if in cannot be read
+     */
+    private static ArrayList<Song> readTsv(BufferedReader in)
+            throws IOException {
+        String line = in.readLine();
+        if (line == null) {
+            throw new IllegalArgumentException("ERROR: Body is empty");
+        }
+        MusicDatabaseSecondary.isValidHeader(line);
+
+        ArrayList<Song> songs = new ArrayList<Song>();
+        line = in.readLine();
+        int lineCount = 2;
+        while (line != null) {
+            MusicDatabaseSecondary.isValidDataRow(line, lineCount);
+            String[] fields = line.split("\t", -1);
+            final int three = 3;
+            songs.add(newSong(fields[0], fields[1], fields[2],
+                    fields[three]));
+            line = in.readLine();
+            lineCount++;
+        }
+        return songs;
+    }
+
+    /**
+     * Returns a new song with the given fields, checking them first: Song
+     * only checks them with assertions, which are off in production.
+     *
+     * @param title
+     *            The title
+     * @param artist
+     *            The artist
+     * @param album
+     *            The album
+     * @param length
+     *            The length
+     * @return the song
+     * @throws IllegalArgumentException
+     *             if title or artist is empty or length is not in the format
+     *             mm:ss or hh:mm:ss
+     */
+    static Song newSong(String title, String artist, String album,
+            String length) {
+        if (title.isEmpty() || artist.isEmpty()) {
+            throw new IllegalArgumentException(
+                    "ERROR: A song needs a title and an artist");
+        }
+        if (!LENGTH.matcher(length).matches()) {
+            throw new IllegalArgumentException("ERROR: Length " + length
+                    + " is not in the format mm:ss or hh:mm:ss");
+        }
+        return new Song(title, artist, album, length);
+    }
+
+    /**
+     * Returns the field of {@code song} named by {@code field}.
+     *
+     * @param field
+     *            The field
+     * @param song
+     *            The song
+     * @return the value
+     */
+    private static String value(SearchField field, Song song) {
+        String value;
+        switch (field) {
+            case TITLE: {
+                value = song.title();
+                break;
+            }
+            case ARTIST: {
+                value = song.artist();
+                break;
+            }
+            case ALBUM: {
+                value = song.album();
+                break;
+            }
+            default: {
+                value = song.length();
+                break;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Reports whether {@code from <= value < to}, where a missing bound does
+     * not limit the range.
+     *
+     * @param value
+     *            The value
+     * @param from
+     *            The least value in the range, or null
+     * @param to
+     *            The first value past the range, or null
+     * @return true if value is in the range
+     */
+    private static boolean inRange(String value, String from, String to) {
+        return (from == null || value.compareTo(from) >= 0)
+                && (to == null || value.compareTo(to) < 0);
+    }
+
+    /**
+     * Returns the field named by the {@code field} parameter.
+     *
+     * @param query
+     *            The query parameters
+     * @return the field
+     */
+    private static SearchField field(Map<String, String> query) {
+        return SearchField.valueOf(required(query, "field").toUpperCase());
+    }
+
+    /**
+     * Returns the parameter {@code name}, or throws if it is missing.
+     *
+     * @param query
+     *            The query parameters
+     * @param name
+     *            The name of the parameter
+     * @return its value
+     */
+    private static String required(Map<String, String> query, String name) {
+        String value = query.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException(
+                    "ERROR: Missing parameter " + name);
+        }
+        return value;
+    }
+
+    /**
+     * Reports whether the response should be tab separated rather than JSON.
+     *
+     * @param query
+     *            The query parameters
+     * @return true if format=tsv was given
+     */
+    private static boolean isTsv(Map<String, String> query) {
+        return "tsv".equals(query.get("format"));
+    }
+
+    /**
+     * Decodes a raw query string.
+     *
+     * @param rawQuery
+     *            The query string, or null
+     * @return its parameters, by name
+     */
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<String, String>();
+        if (rawQuery != null) {
+            for (String pair : rawQuery.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0) {
+                    query.put(
+                            URLDecoder.decode(pair.substring(0, eq),
+                                    StandardCharsets.UTF_8),
+                            URLDecoder.decode(pair.substring(eq + 1),
+                                    StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return query;
+    }
+
+    /**
+     * Sends a whole plain text response.
+     *
+     * @param exchange
+     *            The request and its response
+     * @param status
+     *            The status code
+     * @param text
+     *            The body
+     * @throws IOException
+     *             if the connection fails
+     */
+    private static void sendText(HttpExchange exchange, int status,
+            String text) throws IOException {
+        send(exchange, status, "text/plain", text);
+    }
+
+    /**
+     * Sends a whole JSON response with status 200.
+     *
+     * @param exchange
+     *            The request and its response
+     * @param json
+     *            The body
+     * @throws IOException
+     *             if the connection fails
+     */
+    private static void sendJson(HttpExchange exchange, String json)
+            throws IOException {
+        send(exchange, OK, "application/json", json);
+    }
+
+    /**
+     * Sends a whole response.
+     *
+     * @param exchange
+     *            The request and its response
+     * @param status
+     *            The status code
+     * @param type
+     *            The content type
+     * @param body
+     *            The body
+     * @throws IOException
+     *             if the connection fails
+     */
+    private static void send(HttpExchange exchange, int status, String type,
+            String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type",
+                type + "; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    /**
+     * A streamed response of songs, as a JSON array or tab separated rows.
+     * Sent chunked, so it can start before every song is known.
+     */
+    private static final class SongStream implements AutoCloseable {
+
+        /**
+         * The response body.
+         */
+        private final Writer out;
+
+        /**
+         * Whether to write tab separated rows rather than JSON.
+         */
+        private final boolean tsv;
+
+        /**
+         * Whether no song has been written yet.
+         */
+        private boolean first = true;
+
+        /**
+         * Constructor. Sends the headers and the start of the body.
+         *
+         * @param exchange
+         *            The request and its response
+         * @param tsv
+         *            Whether to write tab separated rows rather than JSON
+         * @throws IOException
+         *             if the connection fails
+         */
+        SongStream(HttpExchange exchange, boolean tsv) throws IOException {
+            this.tsv = tsv;
+            String type = "application/json";
+            if (tsv) {
+                type = "text/tab-separated-values";
+            }
+            exchange.getResponseHeaders().set("Content-Type",
+                    type + "; charset=utf-8");
+            exchange.sendResponseHeaders(OK, 0);
+            this.out = new BufferedWriter(new OutputStreamWriter(
+                    exchange.getResponseBody(), StandardCharsets.UTF_8),
+                    BUFFER_SIZE);
+            if (tsv) {
+                this.out.write("Title\tArtist\tAlbum\tLength\n");
+            } else {
+                this.out.write('[');
+            }
+        }
+
+        /**
+         * Writes one song.
+         *
+         * @param song
+         *            The song
+         * @throws IOException
+         *             if the connection fails
+         */
+        void write(Song song) throws IOException {
+            if (this.tsv) {
+                this.out.write(song.title());
+                this.out.write('\t');
+                this.out.write(song.artist());
+                this.out.write('\t');
+                this.out.write(song.album());
+                this.out.write('\t');
+                this.out.write(song.length());
+                this.out.write('\n');
+            } else {
+                if (!this.first) {
+                    this.out.write(',');
+                }
+                JsonSongs.write(this.out, song);
+            }
+            this.first = false;
+        }
+
+        /**
+         * Writes the end of the body and closes it.
+         *
+         * @throws IOException
+         *             if the connection fails
+         */
+        @Override
+        public void close() throws IOException {
+            if (!this.tsv) {
+                this.out.write(']');
+            }
+            this.out.close();
+        }
+    }
+
+    /**
+     * Main method. Serves the songs of a file until the process is stopped.
+     *
+     * @param args
+     *            [file] [port], where port defaults to 8080
+     * @throws IOException
+     *             if the port cannot be bound
+     */
+    public static void main(String[] args) throws IOException {
+        final int defaultPort = 8080;
+        MusicDatabase db = new MusicDatabase3();
+        if (args.length > 0) {
+            db.readFromFile(args[0]);
+        }
+        int port = defaultPort;
+        if (args.length > 1) {
+            port = Integer.parseInt(args[1]);
+        }
+
+        MusicDatabaseServer server = new MusicDatabaseServer(db, port);
+        server.start();
+        System.out.println("Serving " + db.size() + " songs on http://"
+                + InetAddress.getLoopbackAddress().getHostAddress() + ":"
+                + server.port() + "/");
+    }
+}
@@ -0,0 +1,175 @@
+package server;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+import components.musicdatabase.MusicDatabase;
+import components.musicdatabase.MusicDatabase1;
+import components.musicdatabase.MusicDatabase3;
+import components.musicdatabase.ReplicaFollower;
+import components.musicdatabase.ReplicatedMusicDatabase;
+import components.musicdatabase.Song;
+
+/**
+ * Runs one end of a replicated catalog, so replication can be tried with two
+ * (or more) JVMs on one machine. Both ends print their state once a second.
+ *
+ * <p>
+ * {@code ReplicaNode primary [port] [songs] [changesPerSecond]} serves a
+ * generated catalog on the loopback interface and keeps changing it, adding
+ * a new song and removing the oldest, and prints how far behind each follower
+ * is.
+ *
+ * <p>
+ * {@code ReplicaNode follower [port] [host]} follows a primary into a
+ * {@code MusicDatabase3} and prints its size, the last change applied, and
+ * its lag in changes and milliseconds.
+ */
+public final class ReplicaNode {
+
+    /**
+     * Private constructor so this utility class cannot be instantiated.
+     */
+    private ReplicaNode() {
+    }
+
+    /**
+     * Default port of the primary.
+     */
+    private static final int DEFAULT_PORT = 7070;
+
+    /**
+     * Time, in milliseconds, between reports.
+     */
+    private static final long REPORT_MILLIS = 1000;
+
+    /**
+     * Makes the {@code i}th song of the generated catalog.
+     *
+     * @param i
+     *            The song number
+     * @return the song
+     */
+    private static Song song(long i) {
+        final int artists = 500;
+        return new Song("Title " + i, "Artist " + (i % artists), "", "03:00");
+    }
+
+    /**
+     * Runs a primary until killed.
+     *
+     * @param port
+     *            Port to listen on
+     * @param songs
+     *            Number of songs in the catalog
+     * @param changesPerSecond
+     *            Number of songs added, and removed, each second
+     * @throws IOException
+     *             if the port cannot be listened on
+     */
+    private static void primary(int port, int songs, int changesPerSecond)
+            throws IOException {
+        final long nanosPerSecond = 1_000_000_000L;
+        final long nanosPerMilli = 1_000_000L;
+        MusicDatabase rep = new MusicDatabase1(songs);
+        for (int i = 0; i < songs; i++) {
+            rep.addEntry(song(i));
+        }
+        ReplicatedMusicDatabase db = new ReplicatedMusicDatabase(rep, port);
+        System.out.printf("primary on port %d, %d songs, %d changes/s%n",
+                db.port(), songs, changesPerSecond);
+
+        long interval = nanosPerSecond / Math.max(1, changesPerSecond);
+        long next = System.nanoTime();
+        long report = next + REPORT_MILLIS * nanosPerMilli;
+        long added = songs;
+        while (true) {
+            LockSupport.parkNanos(next - System.nanoTime());
+            db.addEntry(song(added));
+            db.removeEntryByOrder(0);
+            added++;
+            next += interval;
+            if (System.nanoTime() >= report) {
+                StringBuilder line = new StringBuilder();
+                line.append("sequence ").append(db.sequence());
+                for (Map.Entry<String, Long> follower : db.followerLag()
+                        .entrySet()) {
+                    line.append(", ").append(follower.getKey())
+                            .append(" behind ").append(follower.getValue());
+                }
+                System.out.println(line);
+                report += REPORT_MILLIS * nanosPerMilli;
+            }
+        }
+    }
+
+    /**
+     * Runs a follower until killed.
+     *
+     * @param port
+     *            Port of the primary
+     * @param host
+     *            Host of the primary
+     * @throws InterruptedException
+     *             if interrupted between reports
+     */
+    private static void follower(int port, String host)
+            throws InterruptedException {
+        MusicDatabase db = new MusicDatabase3();
+        ReplicaFollower follower = new ReplicaFollower(db, host, port);
+        System.out.printf("following %s:%d%n", host, port);
+        while (true) {
+            Thread.sleep(REPORT_MILLIS);
+            System.out.printf(
+                    "size %d, applied %d, behind %d, lag %d ms, snapshots %d%n",
+                    db.size(), follower.appliedSequence(), follower.lag(),
+                    follower.lagMillis(), follower.snapshots());
+        }
+    }
+
+    /**
+     * Main method.
+     *
+     * @param args
+     *            primary [port] [songs] [changesPerSecond], or follower
+     *            [port] [host]
+     * @throws IOException
+     *             if the primary's port cannot be listened on
+     * @throws InterruptedException
+     *             if a follower is interrupted
+     */
+    public static void main(String[] args)
+            throws IOException, InterruptedException {
+        final int defaultSongs = 100_000;
+        final int defaultChangesPerSecond = 1000;
+        final int three = 3;
+        if (args.length == 0
+                || !(args[0].equals("primary") || args[0].equals("follower"))) {
+            System.err.println("Usage: ReplicaNode primary [port] [songs] "
+                    + "[changesPerSecond] | follower [port] [host]");
+            System.exit(1);
+        }
+        int port = DEFAULT_PORT;
+        if (args.length > 1) {
+            port = Integer.parseInt(args[1]);
+        }
+        if (args[0].equals("primary")) {
+            int songs = defaultSongs;
+            int changesPerSecond = defaultChangesPerSecond;
+            if (args.length > 2) {
+                songs = Integer.parseInt(args[2]);
+            }
+            if (args.length > three) {
+                changesPerSecond = Integer.parseInt(args[three]);
+            }
+            primary(port, songs, changesPerSecond);
+        } else {
+            String host = "127.0.0.1";
+            if (args.length > 2) {
+                host = args[2];
+            }
+            follower(port, host);
+        }
+    }
+}
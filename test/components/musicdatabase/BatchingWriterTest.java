@@ -0,0 +1,162 @@
+package components.musicdatabase;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * JUnit test fixture for {@code BatchingWriter}.
+ */
+public class BatchingWriterTest {
+
+    /**
+     * Makes a song.
+     *
+     * @param i
+     *            The song number
+     * @return the song
+     */
+    private static Song song(int i) {
+        return new Song("Title " + i, "Artist " + (i % 10), "", "03:00");
+    }
+
+    /**
+     * Test of changes to the same songs within one batch, which should take
+     * effect in the order they were queued.
+     */
+    @Test
+    public void orderWithinBatchTest() throws Exception {
+        MusicDatabase db = new MusicDatabase1();
+        db.addEntry(song(0));
+        db.addEntry(song(1));
+        ArrayList<CompletableFuture<Boolean>> results =
+                new ArrayList<CompletableFuture<Boolean>>();
+        try (BatchingWriter writer = new BatchingWriter(db, 100, 1000)) {
+            results.add(writer.addAsync(song(0)));
+            results.add(writer.removeAsync(song(0)));
+            results.add(writer.addAsync(song(0)));
+            results.add(writer.removeAsync(song(1)));
+            results.add(writer.removeAsync(song(1)));
+            results.add(writer.addAsync(song(2)));
+            results.add(writer.addAsync(song(2)));
+        }
+
+        boolean[] expected = {false, true, true, true, false, true, false };
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], results.get(i).get());
+        }
+        assertEquals(2, db.size());
+        assertEquals(song(0), db.getEntryByOrder(0));
+        assertEquals(song(2), db.getEntryByOrder(1));
+    }
+
+    /**
+     * Test of many producers at once, checking that every change lands and
+     * that they were applied in batches.
+     */
+    @Test
+    public void concurrentProducersTest() throws Exception {
+        final int producers = 4;
+        final int songsPerProducer = 2000;
+        MusicDatabase db = new MusicDatabase3();
+        ExecutorService pool = Executors.newFixedThreadPool(producers);
+        BatchingWriter writer = new BatchingWriter(db, 64, 5);
+        ArrayList<Future<?>> tasks = new ArrayList<Future<?>>();
+        for (int p = 0; p < producers; p++) {
+            final int first = p * songsPerProducer;
+            tasks.add(pool.submit(() -> {
+                ArrayList<CompletableFuture<Boolean>> results =
+                        new ArrayList<CompletableFuture<Boolean>>();
+                for (int i = first; i < first + songsPerProducer; i++) {
+                    results.add(writer.addAsync(song(i)));
+                    if (i % 2 == 1) {
+                        results.add(writer.removeAsync(song(i)));
+                    }
+                }
+                for (CompletableFuture<Boolean> result : results) {
+                    assertEquals(true, result.join());
+                }
+            }));
+        }
+        for (Future<?> task : tasks) {
+            task.get();
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+        writer.close();
+
+        assertEquals(producers * songsPerProducer / 2, db.size());
+        BatchingWriter.Metrics metrics = writer.metrics();
+        assertEquals(producers * songsPerProducer * 3 / 2, metrics.changes());
+        assertEquals(true, metrics.maxBatchSize() <= 64);
+        assertEquals(true, metrics.meanBatchSize() > 1);
+        assertEquals(true,
+                metrics.p99LatencyMicros() <= metrics.maxLatencyMicros());
+    }
+
+    /**
+     * Test that when a batch fails partway through, the changes that took
+     * effect still report their results and only the rest fail.
+     */
+    @Test
+    public void partialFailureTest() throws Exception {
+        MusicDatabase1 rep = new MusicDatabase1();
+        rep.addEntry(song(0));
+        rep.addEntry(song(1));
+        MusicDatabaseKernel db = (MusicDatabaseKernel) Proxy.newProxyInstance(
+                MusicDatabaseKernel.class.getClassLoader(),
+                new Class<?>[] {MusicDatabaseKernel.class },
+                (proxy, method, args) -> {
+                    if (method.getName().equals("addEntry")
+                            && args[0].equals(song(3))) {
+                        throw new IllegalStateException("ERROR: Full");
+                    }
+                    try {
+                        return method.invoke(rep, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+        ArrayList<CompletableFuture<Boolean>> results =
+                new ArrayList<CompletableFuture<Boolean>>();
+        BatchingWriter writer = new BatchingWriter(db, 100, 1000);
+        results.add(writer.removeAsync(song(0)));
+        results.add(writer.addAsync(song(2)));
+        results.add(writer.addAsync(song(3)));
+        results.add(writer.addAsync(song(4)));
+        results.add(writer.addAsync(song(1)));
+        writer.close();
+
+        assertEquals(true, results.get(0).get());
+        assertEquals(true, results.get(1).get());
+        assertEquals(true, results.get(2).isCompletedExceptionally());
+        assertEquals(true, results.get(3).isCompletedExceptionally());
+        assertEquals(false, results.get(4).get());
+        assertEquals(2, rep.size());
+        assertEquals(3, writer.metrics().changes());
+    }
+
+    /**
+     * Test that changes queued after close fail.
+     */
+    @Test(expected = IllegalStateException.class)
+    public void closedTest() throws Throwable {
+        BatchingWriter writer = new BatchingWriter(new MusicDatabase1());
+        writer.close();
+        try {
+            writer.addAsync(song(0)).get();
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        }
+    }
+}
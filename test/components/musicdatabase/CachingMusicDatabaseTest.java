@@ -0,0 +1,201 @@
+package components.musicdatabase;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+
+import components.musicdatabase.CachingMusicDatabase.CacheStats;
+import components.musicdatabase.MusicDatabaseKernel.SearchField;
+
+/**
+ * JUnit test fixture for {@code CachingMusicDatabase}.
+ */
+public class CachingMusicDatabaseTest {
+
+    /**
+     * Number of songs in each database.
+     */
+    private static final int SONGS = 9;
+
+    /**
+     * Makes a song.
+     *
+     * @param i
+     *            The song number
+     * @return the song
+     */
+    private static Song song(int i) {
+        return new Song("Title " + i, "Artist " + (i % 3), "Album " + (i % 2),
+                "03:00");
+    }
+
+    /**
+     * Returns a cache in front of a database of {@code SONGS} songs.
+     *
+     * @param rep
+     *            An empty database
+     * @return the cache
+     */
+    private static CachingMusicDatabase filled(MusicDatabase rep) {
+        CachingMusicDatabase db = new CachingMusicDatabase(rep);
+        for (int i = 0; i < SONGS; i++) {
+            db.addEntry(song(i));
+        }
+        return db;
+    }
+
+    /**
+     * Test that a repeated lookup is answered from the cache with a copy of
+     * the same songs.
+     */
+    @Test
+    public void hitTest() {
+        CachingMusicDatabase db = filled(new MusicDatabase1());
+        ArrayList<Song> first = db.getEntries(SearchField.ARTIST, "Artist 1");
+        first.clear();
+        ArrayList<Song> second = db.getEntries(SearchField.ARTIST,
+                "Artist 1");
+
+        assertEquals(List.of(song(1), song(4), song(7)), second);
+        CacheStats stats = db.cacheStats();
+        assertEquals(1, stats.hits());
+        assertEquals(1, stats.misses());
+        assertEquals(0.5, stats.hitRate(), 0);
+        assertEquals(1, stats.size());
+    }
+
+    /**
+     * Test that adding a song invalidates the lookups of its values and
+     * leaves the others cached.
+     */
+    @Test
+    public void addInvalidatesTest() {
+        CachingMusicDatabase db = filled(new MusicDatabase3());
+        db.getEntries(SearchField.ARTIST, "Artist 1");
+        db.getEntries(SearchField.ARTIST, "Artist 2");
+        db.getEntries(SearchField.ALBUM, "Album 0");
+        Song added = new Song("New", "Artist 1", "Album 1", "04:00");
+        db.addEntry(added);
+
+        assertEquals(4, db.getEntries(SearchField.ARTIST, "Artist 1").size());
+        assertEquals(3, db.getEntries(SearchField.ARTIST, "Artist 2").size());
+        assertEquals(5, db.getEntries(SearchField.ALBUM, "Album 0").size());
+        CacheStats stats = db.cacheStats();
+        assertEquals(2, stats.hits());
+        assertEquals(4, stats.misses());
+        assertEquals(1, stats.invalidations());
+    }
+
+    /**
+     * Test that each way of removing songs invalidates their lookups.
+     */
+    @Test
+    public void removeInvalidatesTest() {
+        CachingMusicDatabase db = filled(new MusicDatabase1());
+        db.getEntries(SearchField.ARTIST, "Artist 0");
+        db.removeEntry(song(0));
+        assertEquals(List.of(song(3), song(6)),
+                db.getEntries(SearchField.ARTIST, "Artist 0"));
+
+        db.removeEntries(SearchField.TITLE, "Title 3");
+        assertEquals(List.of(song(6)),
+                db.getEntries(SearchField.ARTIST, "Artist 0"));
+
+        Iterator<Song> it = db.iterator();
+        while (it.hasNext()) {
+            if (it.next().equals(song(6))) {
+                it.remove();
+            }
+        }
+        assertEquals(0, db.getEntries(SearchField.ARTIST, "Artist 0").size());
+
+        db.getEntries(SearchField.ALBUM, "Album 1");
+        Song removed = db.removeEntryByOrder(0);
+        assertEquals(false, db.getEntries(SearchField.ALBUM, "Album 1")
+                .contains(removed));
+        assertEquals(0, db.cacheStats().hits());
+    }
+
+    /**
+     * Test that bulk changes invalidate the lookups of the songs changed.
+     */
+    @Test
+    public void bulkInvalidatesTest() {
+        CachingMusicDatabase db = filled(new MusicDatabase4());
+        db.getEntries(SearchField.ARTIST, "Artist 1");
+        ArrayList<Song> songs = new ArrayList<Song>();
+        songs.add(new Song("Bulk", "Artist 1", "", "01:00"));
+        db.addEntries(songs);
+        assertEquals(4, db.getEntries(SearchField.ARTIST, "Artist 1").size());
+
+        MusicDatabase split = db.split(SearchField.ARTIST, "Artist 1");
+        assertEquals(0, db.getEntries(SearchField.ARTIST, "Artist 1").size());
+        db.append(split);
+        assertEquals(4, db.getEntries(SearchField.ARTIST, "Artist 1").size());
+        assertEquals(0, db.cacheStats().hits());
+    }
+
+    /**
+     * Test that sorting, clearing, and transferring invalidate every lookup.
+     */
+    @Test
+    public void everythingInvalidatesTest() {
+        CachingMusicDatabase db = filled(new MusicDatabase1());
+        db.getEntries(SearchField.ALBUM, "Album 0");
+        db.sort(new MusicDatabaseSecondary.TitleComparator().reversed());
+        assertEquals(List.of(song(8), song(6), song(4), song(2), song(0)),
+                db.getEntries(SearchField.ALBUM, "Album 0"));
+
+        CachingMusicDatabase source = filled(new MusicDatabase1());
+        source.getEntries(SearchField.ALBUM, "Album 0");
+        db.clear();
+        assertEquals(0, db.getEntries(SearchField.ALBUM, "Album 0").size());
+        db.transferFrom(source);
+        assertEquals(5, db.getEntries(SearchField.ALBUM, "Album 0").size());
+        assertEquals(0, source.getEntries(SearchField.ALBUM, "Album 0").size());
+        assertEquals(0, db.cacheStats().hits());
+        assertEquals(0, source.cacheStats().hits());
+    }
+
+    /**
+     * Test that the lookup used least recently is dropped when the cache is
+     * full.
+     */
+    @Test
+    public void evictionTest() {
+        CachingMusicDatabase db = new CachingMusicDatabase(
+                new MusicDatabase1(), 2);
+        for (int i = 0; i < SONGS; i++) {
+            db.addEntry(song(i));
+        }
+        db.getEntries(SearchField.ARTIST, "Artist 0");
+        db.getEntries(SearchField.ARTIST, "Artist 1");
+        db.getEntries(SearchField.ARTIST, "Artist 0");
+        db.getEntries(SearchField.ARTIST, "Artist 2");
+        db.getEntries(SearchField.ARTIST, "Artist 0");
+        db.getEntries(SearchField.ARTIST, "Artist 1");
+
+        CacheStats stats = db.cacheStats();
+        assertEquals(2, stats.hits());
+        assertEquals(4, stats.misses());
+        assertEquals(2, stats.evictions());
+        assertEquals(2, stats.size());
+    }
+
+    /**
+     * Test that the results kept are counted as caches.
+     */
+    @Test
+    public void memoryReportTest() {
+        CachingMusicDatabase db = filled(new MusicDatabase1());
+        long before = db.memoryReport().caches();
+        db.getEntries(SearchField.ARTIST, "Artist 0");
+        assertEquals(true, db.memoryReport().caches() > before);
+        assertEquals(db.memoryReport().songs(),
+                new MusicDatabase1().union(db).memoryReport().songs());
+    }
+}
@@ -0,0 +1,179 @@
+package components.musicdatabase;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import components.musicdatabase.InstrumentedMusicDatabase.Operation;
+import components.musicdatabase.MusicDatabaseKernel.SearchField;
+
+/**
+ * JUnit test fixture for {@code InstrumentedMusicDatabase} and the latency
+ * histogram behind its statistics.
+ */
+public class InstrumentedMusicDatabaseTest {
+
+    /**
+     * Directory for the files read and written, deleted after each test.
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Makes a song.
+     *
+     * @param i
+     *            The song number
+     * @return the song
+     */
+    private static Song song(int i) {
+        return new Song("Title " + i, "Artist " + (i % 3), "", "03:00");
+    }
+
+    /**
+     * Test of the calls and songs counted for each method.
+     */
+    @Test
+    public void countsTest() {
+        final int songs = 9;
+        InstrumentedMusicDatabase db = new InstrumentedMusicDatabase(
+                new MusicDatabase1());
+        for (int i = 0; i < songs; i++) {
+            db.addEntry(song(i));
+        }
+        db.getEntries(SearchField.ARTIST, "Artist 1");
+        db.removeEntries(SearchField.ARTIST, "Artist 2");
+        db.contains(song(0));
+        db.size();
+
+        assertEquals(songs, db.stats(Operation.ADD_ENTRY).getCalls());
+        assertEquals(1, db.stats(Operation.GET_ENTRIES).getCalls());
+        assertEquals(songs, db.stats(Operation.GET_ENTRIES).getRowsScanned());
+        assertEquals(3, db.stats(Operation.GET_ENTRIES).getRows());
+        assertEquals(songs,
+                db.stats(Operation.REMOVE_ENTRIES).getRowsScanned());
+        assertEquals(3, db.stats(Operation.REMOVE_ENTRIES).getRows());
+        assertEquals(1, db.stats(Operation.CONTAINS).getCalls());
+        assertEquals(6, db.size());
+
+        db.setEnabled(false);
+        db.addEntry(song(songs));
+        assertEquals(songs, db.stats(Operation.ADD_ENTRY).getCalls());
+
+        db.reset();
+        assertEquals(0, db.stats(Operation.ADD_ENTRY).getCalls());
+    }
+
+    /**
+     * Test of the songs examined by an indexed implementation.
+     */
+    @Test
+    public void indexedRowsScannedTest() throws Exception {
+        final int songs = 9;
+        MusicDatabase2 rep = new MusicDatabase2();
+        InstrumentedMusicDatabase db = new InstrumentedMusicDatabase(rep);
+        for (int i = 0; i < songs; i++) {
+            db.addEntry(song(i));
+        }
+        db.getEntries(SearchField.ARTIST, "Artist 1");
+        db.getEntries(SearchField.TITLE, "Missing");
+        assertEquals(3, db.stats(Operation.GET_ENTRIES).getRowsScanned());
+        rep.close();
+    }
+
+    /**
+     * Test of the songs and bytes counted by writeToFile and readFromFile.
+     */
+    @Test
+    public void fileTest() throws Exception {
+        final int songs = 5;
+        InstrumentedMusicDatabase db = new InstrumentedMusicDatabase(
+                new MusicDatabase1());
+        for (int i = 0; i < songs; i++) {
+            db.addEntry(song(i));
+        }
+        Path file = this.folder.getRoot().toPath().resolve("songs.txt");
+        db.writeToFile(file.toString());
+        InstrumentedMusicDatabase copy = new InstrumentedMusicDatabase(
+                new MusicDatabase3());
+        copy.readFromFile(file.toString());
+
+        long bytes = Files.size(file);
+        OperationStats written = db.stats(Operation.WRITE_TO_FILE);
+        OperationStats read = copy.stats(Operation.READ_FROM_FILE);
+        assertEquals(1, written.getCalls());
+        assertEquals(songs, written.getRows());
+        assertEquals(bytes, written.getBytes());
+        assertEquals(songs, read.getRows());
+        assertEquals(bytes, read.getBytes());
+        assertEquals(true, read.getBytesPerSecond() > 0);
+        assertEquals(true, db.equals(copy));
+    }
+
+    /**
+     * Test of reading the statistics and turning them off through JMX.
+     */
+    @Test
+    public void jmxTest() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName control = new ObjectName("components.musicdatabase:"
+                + "type=InstrumentedMusicDatabase,name=jmxTest");
+        ObjectName adds = new ObjectName(
+                control.getCanonicalName() + ",operation=addEntry");
+        InstrumentedMusicDatabase db = new InstrumentedMusicDatabase(
+                new MusicDatabase1(), "jmxTest");
+        try {
+            db.addEntry(song(0));
+            assertEquals(1L, server.getAttribute(adds, "Calls"));
+
+            server.setAttribute(control, new Attribute("Enabled", false));
+            db.addEntry(song(1));
+            assertEquals(false, db.isEnabled());
+            assertEquals(1L, server.getAttribute(adds, "Calls"));
+        } finally {
+            db.close();
+        }
+        assertEquals(false, server.isRegistered(control));
+        assertEquals(false, server.isRegistered(adds));
+    }
+
+    /**
+     * Test of the percentiles of a known spread of latencies.
+     */
+    @Test
+    public void histogramTest() {
+        final int n = 1000;
+        final long microsecond = 1000;
+        final double accuracy = 0.125;
+        final int buckets = 488;
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= n; i++) {
+            histogram.record(i * microsecond);
+        }
+        assertEquals(n, histogram.count());
+        assertEquals(n * microsecond, histogram.max());
+        assertEquals(n * microsecond, histogram.percentile(1));
+
+        final double[] quantiles = { 0.5, 0.99, 0.999 };
+        for (double quantile : quantiles) {
+            double exact = quantile * n * microsecond;
+            long estimate = histogram.percentile(quantile);
+            assertEquals(true, estimate >= exact);
+            assertEquals(true, estimate <= exact * (1 + accuracy));
+        }
+        for (int bucket = 0; bucket < buckets; bucket++) {
+            long bound = LatencyHistogram.upperBoundOf(bucket);
+            assertEquals(bucket, LatencyHistogram.bucketOf(bound));
+        }
+    }
+}
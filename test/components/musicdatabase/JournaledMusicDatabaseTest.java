@@ -0,0 +1,233 @@
+package components.musicdatabase;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import components.musicdatabase.MusicDatabaseKernel.SearchField;
+
+/**
+ * JUnit test fixture for {@code JournaledMusicDatabase}'s recovery from its
+ * checkpoint and journal files.
+ */
+public class JournaledMusicDatabaseTest {
+
+    /**
+     * Directory for the checkpoint and journal files, deleted after each test.
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Opens a journaled database on the test folder that forces every change
+     * to disk and never checkpoints on its own.
+     *
+     * @return the journaled database
+     * @throws IOException
+     *             if the folder cannot be read or written
+     */
+    private JournaledMusicDatabase open() throws IOException {
+        final int neverCheckpoint = Integer.MAX_VALUE;
+        return new JournaledMusicDatabase(new MusicDatabase1(),
+                this.folder.getRoot().getPath(), 1, 0, neverCheckpoint);
+    }
+
+    /**
+     * Makes a {@code MusicDatabase1} holding the given songs, in order.
+     *
+     * @param songs
+     *            the songs
+     * @return the database
+     */
+    private static MusicDatabase expected(Song... songs) {
+        MusicDatabase db = new MusicDatabase1();
+        for (Song song : songs) {
+            db.addEntry(song);
+        }
+        return db;
+    }
+
+    /**
+     * Test of replaying adds and removes from the journal alone.
+     */
+    @Test
+    public void replayJournalTest() throws IOException {
+        Song song1 = new Song("AWAKE", "Hoshimachi Suisei", "Shinsei Mokuroku",
+                "03:14");
+        Song song2 = new Song("Bye Bye Rainy", "Hoshimachi Suisei", "",
+                "03:20");
+        Song song3 = new Song("UNDEAD", "YOASOBI", "", "03:03");
+
+        JournaledMusicDatabase db1 = this.open();
+        db1.addEntry(song1);
+        db1.addEntry(song2);
+        db1.addEntry(song3);
+        db1.removeEntry(song2);
+        db1.close();
+
+        JournaledMusicDatabase db2 = this.open();
+
+        assertEquals(true, db2.equals(expected(song1, song3)));
+        db2.close();
+    }
+
+    /**
+     * Test of replaying removeEntries and sort, with values that need escaping.
+     */
+    @Test
+    public void replayRemoveEntriesAndSortTest() throws IOException {
+        Song song1 = new Song("Tab\tin title", "TUYU", "Back\\slash", "03:19");
+        Song song2 = new Song("Loser Girl", "TUYU", "Back\\slash", "03:18");
+        Song song3 = new Song("UNDEAD", "YOASOBI", "", "03:03");
+        Song song4 = new Song("AWAKE", "Hoshimachi Suisei", "", "03:14");
+
+        JournaledMusicDatabase db1 = this.open();
+        db1.addEntry(song1);
+        db1.addEntry(song2);
+        db1.addEntry(song3);
+        db1.addEntry(song4);
+        db1.removeEntries(SearchField.ALBUM, "Back\\slash");
+        db1.sort(new MusicDatabaseSecondary.TitleComparator());
+        db1.close();
+
+        JournaledMusicDatabase db2 = this.open();
+
+        assertEquals(true, db2.equals(expected(song4, song3)));
+        db2.close();
+    }
+
+    /**
+     * Test of recovering from a checkpoint followed by more journaled changes,
+     * including a sort by a comparator that can't be journaled by name.
+     */
+    @Test
+    public void replayAfterCheckpointTest() throws IOException {
+        Song song1 = new Song("AWAKE", "Hoshimachi Suisei", "Shinsei Mokuroku",
+                "03:14");
+        Song song2 = new Song("UNDEAD", "YOASOBI", "", "03:03");
+        Song song3 = new Song("KINGWORLD", "Shirakami Fubuki", "", "03:30");
+
+        JournaledMusicDatabase db1 = this.open();
+        db1.addEntry(song1);
+        db1.addEntry(song2);
+        db1.checkpoint();
+        db1.addEntry(song3);
+        db1.sort((a, b) -> b.title().compareTo(a.title()));
+        db1.removeEntryByOrder(0);
+        db1.close();
+
+        JournaledMusicDatabase db2 = this.open();
+
+        assertEquals(true, db2.equals(expected(song3, song1)));
+        db2.close();
+    }
+
+    /**
+     * Test that append with an order journals the songs merged in and the
+     * sort, without a clear, and replays to the merged order.
+     */
+    @Test
+    public void replayAppendSortedTest() throws IOException {
+        Song song1 = new Song("AWAKE", "Hoshimachi Suisei", "", "03:14");
+        Song song2 = new Song("KINGWORLD", "Shirakami Fubuki", "", "03:30");
+        Song song3 = new Song("UNDEAD", "YOASOBI", "", "03:03");
+        MusicDatabase other = expected(song2, song3);
+
+        JournaledMusicDatabase db1 = this.open();
+        db1.addEntry(song1);
+        db1.addEntry(song3);
+        db1.append(other, new MusicDatabaseSecondary.TitleComparator());
+        db1.close();
+        List<String> journal = Files.readAllLines(
+                this.folder.getRoot().toPath().resolve("journal-0.log"),
+                StandardCharsets.UTF_8);
+
+        JournaledMusicDatabase db2 = this.open();
+
+        final int lines = 4;
+        assertEquals(lines, journal.size());
+        assertEquals(JournaledMusicDatabase.SORT, journal.get(lines - 1)
+                .charAt(0));
+        assertEquals(true, db2.equals(expected(song1, song2, song3)));
+        db2.close();
+    }
+
+    /**
+     * Orders songs by reversed title; private, so it can't be recreated from
+     * a journal line naming it.
+     */
+    private static final class ReversedTitleComparator
+            implements Comparator<Song> {
+        @Override
+        public int compare(Song a, Song b) {
+            return b.title().compareTo(a.title());
+        }
+    }
+
+    /**
+     * Test that a sort by a private comparator with an implicit constructor
+     * is checkpointed instead of journaled, so recovery still succeeds.
+     */
+    @Test
+    public void replayPrivateComparatorTest() throws IOException {
+        Song song1 = new Song("AWAKE", "Hoshimachi Suisei", "", "03:14");
+        Song song2 = new Song("UNDEAD", "YOASOBI", "", "03:03");
+        Song song3 = new Song("KINGWORLD", "Shirakami Fubuki", "", "03:30");
+
+        JournaledMusicDatabase db1 = this.open();
+        db1.addEntry(song1);
+        db1.addEntry(song2);
+        db1.addEntry(song3);
+        db1.sort(new ReversedTitleComparator());
+        db1.close();
+
+        JournaledMusicDatabase db2 = this.open();
+
+        assertEquals(true, db2.equals(expected(song2, song3, song1)));
+        db2.close();
+    }
+
+    /**
+     * Test that a journal line torn by a crash is discarded.
+     */
+    @Test
+    public void tornJournalLineTest() throws IOException {
+        Song song1 = new Song("AWAKE", "Hoshimachi Suisei", "Shinsei Mokuroku",
+                "03:14");
+
+        JournaledMusicDatabase db1 = this.open();
+        db1.addEntry(song1);
+        db1.close();
+
+        /*
+         * Simulates a crash halfway through writing a second line
+         */
+        Path journal = this.folder.getRoot().toPath().resolve("journal-0.log");
+        Files.write(journal, "A\tUNDEAD\tYOA".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+
+        JournaledMusicDatabase db2 = this.open();
+        assertEquals(true, db2.equals(expected(song1)));
+
+        /*
+         * The torn line should be gone, so new lines replay normally
+         */
+        Song song2 = new Song("UNDEAD", "YOASOBI", "", "03:03");
+        db2.addEntry(song2);
+        db2.close();
+
+        JournaledMusicDatabase db3 = this.open();
+        assertEquals(true, db3.equals(expected(song1, song2)));
+        db3.close();
+    }
+}
@@ -0,0 +1,157 @@
+package components.musicdatabase;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+/**
+ * JUnit test fixture for {@code memoryReport}, checking its estimates against
+ * how much the heap actually grows when a database is built.
+ */
+public class MemoryReportTest {
+
+    /**
+     * Number of songs in the databases measured.
+     */
+    private static final int SONGS = 100_000;
+
+    /**
+     * Largest fraction the estimate may be off from the measurement by.
+     */
+    private static final double TOLERANCE = 0.1;
+
+    /**
+     * Returns the bytes in use on the heap after collecting garbage, taking
+     * the least of a few tries so a collection cut short counts for nothing.
+     *
+     * @return the bytes in use
+     */
+    private static long usedHeap() throws InterruptedException {
+        final int tries = 4;
+        final long pauseMillis = 20;
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < tries; i++) {
+            System.gc();
+            Thread.sleep(pauseMillis);
+            used = Math.min(used, memory.getHeapMemoryUsage().getUsed());
+        }
+        return used;
+    }
+
+    /**
+     * Fills {@code db} with songs whose titles are all different and whose
+     * artists and albums repeat, each in its own string. Adds them in one
+     * batch, since {@code addEntry} checks for duplicates in linear time when
+     * assertions are on.
+     *
+     * @param db
+     *            The database to fill
+     */
+    private static void fill(MusicDatabase db) {
+        final int artists = 500;
+        final int albums = 2000;
+        ArrayList<Song> songs = new ArrayList<Song>(SONGS);
+        for (int i = 0; i < SONGS; i++) {
+            songs.add(new Song("Title " + i, "Artist " + (i % artists),
+                    "Album " + (i % albums), "03:00"));
+        }
+        db.addEntries(songs);
+    }
+
+    /**
+     * Builds a database with {@code empty} and checks its report against the
+     * growth of the heap.
+     *
+     * @param empty
+     *            An empty database
+     */
+    private static void assertMatchesHeap(MusicDatabase empty)
+            throws InterruptedException {
+        long before = usedHeap();
+        MusicDatabase db = empty;
+        fill(db);
+        long measured = usedHeap() - before;
+        MemoryReport report = db.memoryReport();
+        double error = Math.abs(report.total() - measured) / (double) measured;
+        assertEquals(report.toString() + "measured " + measured, true,
+                error < TOLERANCE);
+        assertEquals(SONGS, db.size());
+    }
+
+    /**
+     * Test of the estimate for an {@code ArrayList} of songs.
+     */
+    @Test
+    public void arrayListTest() throws Exception {
+        assertMatchesHeap(new MusicDatabase1(SONGS));
+    }
+
+    /**
+     * Test of the estimate for an array and concurrent set of songs.
+     */
+    @Test
+    public void concurrentTest() throws Exception {
+        assertMatchesHeap(new MusicDatabase3());
+    }
+
+    /**
+     * Test of the estimate for chunks and buckets of songs.
+     */
+    @Test
+    public void copyOnWriteTest() throws Exception {
+        assertMatchesHeap(new MusicDatabase4());
+    }
+
+    /**
+     * Test of the estimate for shards of songs.
+     */
+    @Test
+    public void shardedTest() throws Exception {
+        assertMatchesHeap(new MusicDatabase5());
+    }
+
+    /**
+     * Test of counting strings shared by several songs once, and equal
+     * strings held separately as duplicates.
+     */
+    @Test
+    public void duplicateStringsTest() {
+        String artist = "Artist";
+        String copy = new String(artist);
+        MusicDatabase db = new MusicDatabase1();
+        db.addEntry(new Song("A", artist, "", "03:00"));
+        db.addEntry(new Song("B", artist, "", "03:00"));
+        db.addEntry(new Song("C", copy, "", "03:00"));
+
+        MemoryReport report = db.memoryReport();
+        long strings = MemoryReport.string("A") + MemoryReport.string("B")
+                + MemoryReport.string("C") + 2 * MemoryReport.string(artist)
+                + MemoryReport.string("") + MemoryReport.string("03:00");
+        assertEquals(3 * MemoryReport.song(), report.songs());
+        assertEquals(strings, report.strings());
+        assertEquals(MemoryReport.string(copy), report.duplicateStrings());
+    }
+
+    /**
+     * Test that songs kept in mapped files count as off the heap.
+     */
+    @Test
+    public void mappedTest() throws Exception {
+        MusicDatabase2 db = new MusicDatabase2();
+        try {
+            db.addEntry(new Song("A", "Artist", "", "03:00"));
+            MemoryReport report = db.memoryReport();
+            assertEquals(report.storage() + report.indexes(),
+                    report.offHeap());
+            assertEquals(true, report.offHeap() > 0);
+            assertEquals(report.total() - report.offHeap(), report.heap());
+        } finally {
+            db.close();
+        }
+    }
+}
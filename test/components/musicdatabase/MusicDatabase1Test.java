@@ -1,12 +1,208 @@
 package components.musicdatabase;
 
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import components.musicdatabase.MusicDatabaseKernel.SearchField;
+
 /**
  * Customized JUnit test fixture for {@code MusicDatabase1} using default
- * constructor.
+ * constructor, plus tests of its sortedness tracking and sorted views.
  */
 public class MusicDatabase1Test extends MusicDatabaseTest {
     @Override
     protected final MusicDatabase constructorTest() {
         return new MusicDatabase1();
     }
+
+    /**
+     * Makes a song.
+     *
+     * @param i
+     *            The song number
+     * @return the song
+     */
+    private static Song song(int i) {
+        final int artists = 5;
+        final int lengths = 7;
+        return new Song("Title " + i, "Artist " + (i % artists), "",
+                "0" + (i % lengths) + ":00");
+    }
+
+    /**
+     * Returns the songs of {@code db}, sorted stably by {@code order}.
+     *
+     * @param db
+     *            The database
+     * @param order
+     *            The order
+     * @return the songs, in that order
+     */
+    private static List<Song> sorted(MusicDatabase db,
+            Comparator<Song> order) {
+        ArrayList<Song> songs = new ArrayList<Song>();
+        for (Song song : db) {
+            songs.add(song);
+        }
+        songs.sort(order);
+        return songs;
+    }
+
+    /**
+     * Returns the songs of the view of {@code db} sorted by {@code order}.
+     *
+     * @param db
+     *            The database
+     * @param order
+     *            The order
+     * @return the songs, in the view's order
+     */
+    private static List<Song> view(MusicDatabase1 db, Comparator<Song> order) {
+        ArrayList<Song> songs = new ArrayList<Song>();
+        for (Song song : db.view(order)) {
+            songs.add(song);
+        }
+        return songs;
+    }
+
+    /**
+     * Test that the order sorted by is remembered while songs added keep to
+     * it, and recognized when sorting by a new comparator of the same class.
+     */
+    @Test
+    public void sortedByTest() {
+        MusicDatabase1 db = new MusicDatabase1();
+        db.addEntry(song(2));
+        db.addEntry(song(1));
+        assertEquals(null, db.sortedBy());
+
+        db.sort(new MusicDatabaseSecondary.TitleComparator());
+        assertEquals(new MusicDatabaseSecondary.TitleComparator(),
+                db.sortedBy());
+        db.addEntry(song(3));
+        db.removeEntry(song(1));
+        assertEquals(new MusicDatabaseSecondary.TitleComparator(),
+                db.sortedBy());
+        db.sort(new MusicDatabaseSecondary.TitleComparator());
+        assertEquals(List.of(song(2), song(3)), sorted(db,
+                new MusicDatabaseSecondary.TitleComparator()));
+
+        db.addEntry(song(0));
+        assertEquals(null, db.sortedBy());
+        db.sort(new MusicDatabaseSecondary.TitleComparator());
+        assertEquals(song(0), db.getEntryByOrder(0));
+    }
+
+    /**
+     * Test that views stay sorted, with equal songs in the order of the
+     * database, through random adds, removes, and sorts.
+     */
+    @Test
+    public void viewsTest() {
+        final int rounds = 400;
+        final int kinds = 7;
+        final long seed = 7;
+        Comparator<Song> artist = new MusicDatabaseSecondary.ArtistComparator();
+        Comparator<Song> length = new MusicDatabaseSecondary.LengthComparator();
+        MusicDatabase1 db = new MusicDatabase1();
+        db.addView(artist);
+        db.addView(length);
+        Random random = new Random(seed);
+        int next = 0;
+        for (int round = 0; round < rounds; round++) {
+            int kind = random.nextInt(kinds);
+            if (kind <= 1 || db.size() == 0) {
+                db.addEntry(song(next));
+                next++;
+            } else if (kind == 2) {
+                ArrayList<Song> songs = new ArrayList<Song>();
+                for (int i = random.nextInt(kinds); i > 0; i--) {
+                    songs.add(song(next));
+                    next++;
+                }
+                db.addEntries(songs);
+            } else if (kind == 3) {
+                db.removeEntryByOrder(random.nextInt(db.size()));
+            } else if (kind == 4) {
+                db.removeEntries(SearchField.LENGTH,
+                        db.getEntryByOrder(random.nextInt(db.size()))
+                                .length());
+            } else if (kind == 5 && random.nextBoolean()) {
+                HashSet<Song> songs = new HashSet<Song>();
+                songs.add(db.getEntryByOrder(random.nextInt(db.size())));
+                songs.add(db.getEntryByOrder(random.nextInt(db.size())));
+                db.removeExistingEntries(songs);
+            } else if (kind == 5) {
+                Song removed = db.getEntryByOrder(random.nextInt(db.size()));
+                Iterator<Song> it = db.iterator();
+                while (it.hasNext()) {
+                    if (it.next().equals(removed)) {
+                        it.remove();
+                    }
+                }
+            } else if (random.nextBoolean()) {
+                db.sort(artist);
+            } else {
+                db.sort(new MusicDatabaseSecondary.TitleComparator());
+            }
+            assertEquals(sorted(db, artist), view(db, artist));
+            assertEquals(sorted(db, length), view(db, length));
+        }
+        db.sort(length);
+        assertEquals(sorted(db, length), view(db, length));
+        assertEquals(view(db, length).get(0), db.getEntryByOrder(0));
+        assertEquals(db.getEntryByOrder(0), db.getEntryInView(length, 0));
+    }
+
+    /**
+     * Test that views follow the songs through bulk changes, a sorted append,
+     * clear, and transferFrom.
+     */
+    @Test
+    public void viewsBulkTest() {
+        final int songs = 30;
+        Comparator<Song> length = new MusicDatabaseSecondary.LengthComparator();
+        MusicDatabase1 db = new MusicDatabase1();
+        db.addView(length);
+        MusicDatabase1 other = new MusicDatabase1();
+        for (int i = 0; i < songs; i++) {
+            other.addEntry(song(i));
+        }
+        db.transferFrom(other);
+        assertEquals(sorted(db, length), view(db, length));
+
+        MusicDatabase split = db.split(SearchField.ARTIST, "Artist 1");
+        assertEquals(sorted(db, length), view(db, length));
+        db.append(split);
+        assertEquals(sorted(db, length), view(db, length));
+
+        Comparator<Song> title = new MusicDatabaseSecondary.TitleComparator();
+        split = db.split(SearchField.ARTIST, "Artist 2");
+        db.sort(title);
+        split.sort(title);
+        db.append(split, title);
+        ArrayList<Song> merged = new ArrayList<Song>();
+        for (Song song : db) {
+            merged.add(song);
+        }
+        assertEquals(songs, merged.size());
+        assertEquals(sorted(db, title), merged);
+        assertEquals(title, db.sortedBy());
+        assertEquals(sorted(db, length), view(db, length));
+
+        db.clear();
+        assertEquals(0, view(db, length).size());
+        db.removeView(length);
+        db.addEntry(song(0));
+        db.addView(length);
+        assertEquals(List.of(song(0)), view(db, length));
+    }
 }
@@ -0,0 +1,12 @@
+package components.musicdatabase;
+
+/**
+ * Customized JUnit test fixture for {@code MusicDatabase2} using default
+ * constructor.
+ */
+public class MusicDatabase2Test extends MusicDatabaseTest {
+    @Override
+    protected final MusicDatabase constructorTest() {
+        return new MusicDatabase2();
+    }
+}
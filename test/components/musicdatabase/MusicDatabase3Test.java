@@ -0,0 +1,82 @@
+package components.musicdatabase;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import components.musicdatabase.MusicDatabaseKernel.SearchField;
+
+/**
+ * Customized JUnit test fixture for {@code MusicDatabase3} using default
+ * constructor, plus a test of concurrent use.
+ */
+public class MusicDatabase3Test extends MusicDatabaseTest {
+    @Override
+    protected final MusicDatabase constructorTest() {
+        return new MusicDatabase3();
+    }
+
+    /**
+     * Test of readers running alongside writers that add, remove, and sort:
+     * no reader should ever fail or see a torn song, and every write should
+     * land.
+     */
+    @Test
+    public void concurrentReadersAndWritersTest() throws Exception {
+        final int writers = 4;
+        final int readers = 4;
+        final int songsPerWriter = 500;
+        MusicDatabase db = this.constructorTest();
+        ExecutorService pool = Executors.newFixedThreadPool(writers + readers);
+        ArrayList<Future<?>> tasks = new ArrayList<Future<?>>();
+
+        for (int w = 0; w < writers; w++) {
+            String artist = "Artist " + w;
+            tasks.add(pool.submit(() -> {
+                for (int i = 0; i < songsPerWriter; i++) {
+                    Song song = new Song("Title " + i, artist, "", "03:00");
+                    db.addEntry(song);
+                    if (i % 2 == 1) {
+                        db.removeEntry(song);
+                    }
+                    if (i % 100 == 0) {
+                        db.sort(new MusicDatabaseSecondary.TitleComparator());
+                    }
+                }
+            }));
+        }
+        for (int r = 0; r < readers; r++) {
+            tasks.add(pool.submit(() -> {
+                for (int i = 0; i < songsPerWriter; i++) {
+                    for (Song song : db.getEntries(SearchField.LENGTH,
+                            "03:00")) {
+                        assertEquals("03:00", song.length());
+                    }
+                    int size = db.size();
+                    for (Song song : db) {
+                        assertEquals("", song.album());
+                    }
+                    assertEquals(true, size >= 0);
+                }
+            }));
+        }
+
+        for (Future<?> task : tasks) {
+            task.get();
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+
+        assertEquals(writers * songsPerWriter / 2, db.size());
+        for (int w = 0; w < writers; w++) {
+            assertEquals(songsPerWriter / 2,
+                    db.getEntries(SearchField.ARTIST, "Artist " + w).size());
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package components.musicdatabase;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/**
+ * Customized JUnit test fixture for {@code MusicDatabase4} using default
+ * constructor, plus tests of its snapshots.
+ */
+public class MusicDatabase4Test extends MusicDatabaseTest {
+    @Override
+    protected final MusicDatabase constructorTest() {
+        return new MusicDatabase4();
+    }
+
+    /**
+     * File with many lines of data.
+     */
+    private static final String FILE2 = "data\\input\\FILE2.txt";
+
+    /**
+     * Test that a snapshot keeps its songs and order through later adds,
+     * removes, sorts, and clears of the database it was taken from.
+     */
+    @Test
+    public void snapshotTest() {
+        MusicDatabase4 db1 = new MusicDatabase4();
+        db1.readFromFile(FILE2);
+        MusicDatabase db2 = db1.newInstance();
+        db2.append(db1);
+
+        MusicDatabase4 snapshot = db1.snapshot();
+        db1.addEntry(new Song("Title", "Artist", "Album", "00:00"));
+        db1.removeEntryByOrder(0);
+        db1.sort(new MusicDatabaseSecondary.TitleComparator());
+        long fingerprint = db1.fingerprint();
+        db1.clear();
+
+        assertEquals(true, snapshot.isSnapshot());
+        assertEquals(true, snapshot.equals(db2));
+        assertEquals(db2.fingerprint(), snapshot.fingerprint());
+        assertEquals(false, db2.fingerprint() == fingerprint);
+        assertEquals(0, db1.size());
+    }
+
+    /**
+     * Test that a snapshot cannot be changed.
+     */
+    @Test(expected = UnsupportedOperationException.class)
+    public void snapshotIsReadOnlyTest() {
+        MusicDatabase4 db1 = new MusicDatabase4();
+        db1.readFromFile(FILE2);
+
+        db1.snapshot().removeEntryByOrder(0);
+    }
+
+    /**
+     * Test that readFromFile publishes the whole file as one version, so a
+     * reader sees none of it or all of it.
+     */
+    @Test
+    public void readFromFilePublishesOnceTest() {
+        MusicDatabase4 db1 = new MusicDatabase4();
+        long epoch = db1.epoch();
+
+        db1.readFromFile(FILE2);
+
+        assertEquals(epoch + 1, db1.epoch());
+    }
+
+    /**
+     * Test that append with an order publishes the merge as one version, so
+     * a reader running alongside never sees this emptied or out of order.
+     */
+    @Test
+    public void appendSortedPublishesOnceTest() throws Exception {
+        final int songs = 200;
+        final int rounds = 50;
+        Comparator<Song> order = new MusicDatabaseSecondary.TitleComparator();
+        MusicDatabase4 db = new MusicDatabase4();
+        for (int i = 0; i < songs; i++) {
+            db.addEntry(new Song(String.format("Title %05d", 2 * i),
+                    "Artist", "", "03:00"));
+        }
+        db.sort(order);
+        ExecutorService pool = Executors.newFixedThreadPool(1);
+        AtomicBoolean done = new AtomicBoolean(false);
+        Future<?> reader = pool.submit(() -> {
+            while (!done.get()) {
+                assertEquals(true, db.size() >= songs);
+                Song previous = null;
+                for (Song song : db) {
+                    if (previous != null) {
+                        assertEquals(true, order.compare(previous, song) < 0);
+                    }
+                    previous = song;
+                }
+            }
+        });
+
+        for (int round = 0; round < rounds; round++) {
+            MusicDatabase4 other = new MusicDatabase4();
+            for (int i = 0; i < songs; i += rounds) {
+                other.addEntry(new Song(
+                        String.format("Title %05d", 2 * (i + round) + 1),
+                        "Artist", "", "03:00"));
+            }
+            long epoch = db.epoch();
+            db.append(other, order);
+            assertEquals(epoch + 1, db.epoch());
+        }
+        done.set(true);
+        reader.get();
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+
+        assertEquals(2 * songs, db.size());
+    }
+
+    /**
+     * Test that single adds and removes keep the songs, their order, and the
+     * set of songs right once there are enough songs for several levels of
+     * chunks, and that a snapshot taken part way through is unaffected.
+     */
+    @Test
+    public void manySingleWritesTest() {
+        final int songs = 40_000;
+        final int step = 7;
+        MusicDatabase4 db = new MusicDatabase4();
+        List<Song> model = new ArrayList<Song>();
+        for (int i = 0; i < songs; i++) {
+            Song song = new Song("Title " + i, "Artist " + (i % step), "",
+                    "03:00");
+            db.addEntry(song);
+            model.add(song);
+        }
+        MusicDatabase4 snapshot = db.snapshot();
+        List<Song> before = new ArrayList<Song>(model);
+
+        Random random = new Random(songs);
+        for (int i = 0; i < songs / 2; i++) {
+            int n = random.nextInt(model.size());
+            if (i % 2 == 0) {
+                assertEquals(model.remove(n), db.removeEntryByOrder(n));
+            } else {
+                Song song = model.remove(n);
+                db.removeEntry(song);
+                assertEquals(false, db.contains(song));
+            }
+        }
+
+        assertEquals(model.size(), db.size());
+        int n = 0;
+        for (Song song : db) {
+            assertEquals(model.get(n), song);
+            assertEquals(true, db.contains(song));
+            n++;
+        }
+        for (int i = 0; i < model.size(); i += step) {
+            assertEquals(model.get(i), db.getEntryByOrder(i));
+        }
+        assertEquals(before.size(), snapshot.size());
+        for (int i = 0; i < before.size(); i += step) {
+            assertEquals(before.get(i), snapshot.getEntryByOrder(i));
+            assertEquals(true, snapshot.contains(before.get(i)));
+        }
+    }
+}
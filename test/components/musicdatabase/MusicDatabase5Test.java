@@ -0,0 +1,151 @@
+package components.musicdatabase;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import components.musicdatabase.MusicDatabaseKernel.SearchField;
+
+/**
+ * Customized JUnit test fixture for {@code MusicDatabase5} using default
+ * constructor, plus tests of concurrent use and of the merged order of the
+ * shards.
+ */
+public class MusicDatabase5Test extends MusicDatabaseTest {
+    @Override
+    protected final MusicDatabase constructorTest() {
+        return new MusicDatabase5();
+    }
+
+    /**
+     * Test of readers running alongside writers that add, remove, and sort:
+     * no reader should ever fail or see a torn song, and every write should
+     * land.
+     */
+    @Test
+    public void concurrentReadersAndWritersTest() throws Exception {
+        final int writers = 4;
+        final int readers = 4;
+        final int songsPerWriter = 500;
+        MusicDatabase db = this.constructorTest();
+        ExecutorService pool = Executors.newFixedThreadPool(writers + readers);
+        ArrayList<Future<?>> tasks = new ArrayList<Future<?>>();
+
+        for (int w = 0; w < writers; w++) {
+            String artist = "Artist " + w;
+            tasks.add(pool.submit(() -> {
+                for (int i = 0; i < songsPerWriter; i++) {
+                    Song song = new Song("Title " + i, artist, "", "03:00");
+                    db.addEntry(song);
+                    if (i % 2 == 1) {
+                        db.removeEntry(song);
+                    }
+                    if (i % 100 == 0) {
+                        db.sort(new MusicDatabaseSecondary.TitleComparator());
+                    }
+                }
+            }));
+        }
+        for (int r = 0; r < readers; r++) {
+            tasks.add(pool.submit(() -> {
+                for (int i = 0; i < songsPerWriter; i++) {
+                    for (Song song : db.getEntries(SearchField.LENGTH,
+                            "03:00")) {
+                        assertEquals("03:00", song.length());
+                    }
+                    int size = db.size();
+                    for (Song song : db) {
+                        assertEquals("", song.album());
+                    }
+                    assertEquals(true, size >= 0);
+                }
+            }));
+        }
+
+        for (Future<?> task : tasks) {
+            task.get();
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+
+        assertEquals(writers * songsPerWriter / 2, db.size());
+        for (int w = 0; w < writers; w++) {
+            assertEquals(songsPerWriter / 2,
+                    db.getEntries(SearchField.ARTIST, "Artist " + w).size());
+        }
+    }
+
+    /**
+     * Test that the shards behave as one database: a random mix of adds,
+     * removes, and sorts leaves the same songs in the same order as in
+     * {@code MusicDatabase1}, whatever the number of shards.
+     */
+    @Test
+    public void matchesUnshardedTest() {
+        final int steps = 2000;
+        final int artists = 7;
+        final int[] shardCounts = {1, 3, 16 };
+        for (int shards : shardCounts) {
+            Random random = new Random(shards);
+            MusicDatabase sharded = new MusicDatabase5(shards);
+            MusicDatabase plain = new MusicDatabase1();
+            for (int i = 0; i < steps; i++) {
+                int op = random.nextInt(10);
+                if (op < 6 || plain.size() == 0) {
+                    Song song = new Song("Title " + i,
+                            "Artist " + random.nextInt(artists), "",
+                            "03:00");
+                    sharded.addEntry(song);
+                    plain.addEntry(song);
+                } else if (op < 8) {
+                    int n = random.nextInt(plain.size());
+                    assertEquals(plain.removeEntryByOrder(n),
+                            sharded.removeEntryByOrder(n));
+                } else if (op < 9) {
+                    String album = "Album " + random.nextInt(artists);
+                    assertEquals(plain.removeEntries(SearchField.ALBUM, album),
+                            sharded.removeEntries(SearchField.ALBUM, album));
+                } else {
+                    sharded.sort(new MusicDatabaseSecondary.ArtistComparator());
+                    plain.sort(new MusicDatabaseSecondary.ArtistComparator());
+                }
+            }
+            assertEquals(true, plain.equals(sharded));
+            assertEquals(plain.getEntries(SearchField.LENGTH, "03:00"),
+                    sharded.getEntries(SearchField.LENGTH, "03:00"));
+        }
+    }
+
+    /**
+     * Test that a search across shards by a caller that has been interrupted
+     * still removes and reports the matches of every shard, and leaves the
+     * caller interrupted.
+     */
+    @Test
+    public void interruptedSearchTest() {
+        final int songs = 64;
+        final int shards = 8;
+        MusicDatabase db = new MusicDatabase5(shards);
+        for (int i = 0; i < songs; i++) {
+            db.addEntry(new Song("Title " + i, "Artist " + i, "Album " + i % 2,
+                    "03:00"));
+        }
+
+        Thread.currentThread().interrupt();
+        ArrayList<Song> removed = db.removeEntries(SearchField.ALBUM,
+                "Album 0");
+        boolean interrupted = Thread.interrupted();
+
+        assertEquals(true, interrupted);
+        assertEquals(songs / 2, removed.size());
+        assertEquals(songs / 2, db.size());
+        assertEquals(0, db.getEntries(SearchField.ALBUM, "Album 0").size());
+    }
+}
@@ -0,0 +1,107 @@
+package components.musicdatabase;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import components.musicdatabase.MusicDatabaseKernel.SearchField;
+
+/**
+ * JUnit test fixture for the Java Flight Recorder events of
+ * {@code MusicDatabase}, read back from a recording of this process.
+ */
+public class MusicDatabaseEventsTest {
+
+    /**
+     * Directory for the files written, deleted after each test.
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Makes a song.
+     *
+     * @param i
+     *            The song number
+     * @return the song
+     */
+    private static Song song(int i) {
+        return new Song("Title " + i, "Artist " + (i % 3), "", "03:00");
+    }
+
+    /**
+     * Returns the events of {@code recording}, by name without the package.
+     *
+     * @param recording
+     *            The stopped recording
+     * @return the events
+     */
+    private Map<String, RecordedEvent> events(Recording recording)
+            throws Exception {
+        Path file = this.folder.newFile("recording.jfr").toPath();
+        recording.dump(file);
+        Map<String, RecordedEvent> events =
+                new HashMap<String, RecordedEvent>();
+        List<RecordedEvent> recorded = RecordingFile.readAllEvents(file);
+        for (RecordedEvent event : recorded) {
+            String name = event.getEventType().getName();
+            if (name.startsWith("components.musicdatabase.")) {
+                events.put(name.substring(name.lastIndexOf('.') + 1), event);
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Test that each kind of bulk work is recorded with its counts.
+     */
+    @Test
+    public void eventsTest() throws Exception {
+        final int songs = 9;
+        MusicDatabase db = new MusicDatabase1();
+        for (int i = 0; i < songs; i++) {
+            db.addEntry(song(i));
+        }
+        String path = this.folder.getRoot().toPath().resolve("songs.txt")
+                .toString();
+        MusicDatabase copy = new MusicDatabase3();
+
+        Recording recording = new Recording();
+        for (String name : new String[] { "ReadFromFile", "WriteToFile",
+                "Sort", "Scan", "Split", "Append" }) {
+            recording.enable("components.musicdatabase." + name);
+        }
+        recording.start();
+        db.writeToFile(path);
+        copy.readFromFile(path);
+        copy.sort(new MusicDatabaseSecondary.ArtistComparator());
+        copy.getEntries(SearchField.ARTIST, "Artist 1");
+        MusicDatabase split = copy.split(SearchField.ARTIST, "Artist 2");
+        copy.append(split);
+        recording.stop();
+        Map<String, RecordedEvent> events = this.events(recording);
+        recording.close();
+
+        assertEquals(songs, events.get("WriteToFile").getLong("rows"));
+        assertEquals(events.get("WriteToFile").getLong("bytes"),
+                events.get("ReadFromFile").getLong("bytes"));
+        assertEquals(songs, events.get("ReadFromFile").getLong("rows"));
+        assertEquals(MusicDatabaseSecondary.ArtistComparator.class.getName(),
+                events.get("Sort").getString("comparator"));
+        assertEquals("ARTIST", events.get("Split").getString("field"));
+        assertEquals(3, events.get("Split").getLong("rows"));
+        assertEquals(3, events.get("Append").getLong("added"));
+        assertEquals(true, events.get("Scan").getDuration().toNanos() >= 0);
+    }
+}
@@ -2,9 +2,31 @@ package components.musicdatabase;
 
 import static org.junit.Assert.assertEquals;
 
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.GZIPInputStream;
 
+import org.junit.Assume;
 import org.junit.Test;
 
 import components.musicdatabase.MusicDatabaseKernel.SearchField;
@@ -81,8 +103,8 @@ public abstract class MusicDatabaseTest {
     @Test
     public void constructorParamEqualityTest() {
         final int fifty = 50;
-        MusicDatabase db1 = new MusicDatabase1(fifty);
-        MusicDatabase db2 = new MusicDatabase1(fifty);
+        MusicDatabase db1 = this.createFromArgsTest(fifty);
+        MusicDatabase db2 = this.createFromArgsTest(fifty);
 
         assertEquals(true, db1.equals(db2));
     }
@@ -219,7 +241,7 @@ public abstract class MusicDatabaseTest {
         MusicDatabase db1 = this.createFromArgsTest();
         MusicDatabase db2 = db1.newInstance();
 
-        assertEquals(true, db2 instanceof MusicDatabase1);
+        assertEquals(true, db2.getClass() == db1.getClass());
     }
 
     /**
@@ -617,6 +639,288 @@ public abstract class MusicDatabaseTest {
         assertEquals(true, db1.equals(db2));
     }
 
+    /**
+     * Test that songs with characters outside ASCII are written and read back
+     * as UTF-8, whatever the platform charset is.
+     */
+    @Test
+    public void writeToFileUnicodeTest() {
+        MusicDatabase db1 = this.createFromArgsTest();
+        MusicDatabase db2 = db1.newInstance();
+        db1.addEntry(new Song("\u661f\u8857\u3059\u3044\u305b\u3044",
+                "Beyonc\u00e9", "Caf\u00e9 \u00fcber", "03:14"));
+
+        db1.writeToFile("data\\output\\writeToFileUnicodeTestOutput.txt");
+        db2.readFromFile("data\\output\\writeToFileUnicodeTestOutput.txt");
+
+        assertEquals(true, db1.equals(db2));
+    }
+
+    /**
+     * Test that a catalog saved in Windows-1252, as writeToFile did before it
+     * wrote UTF-8, is still read correctly.
+     */
+    @Test
+    public void readFromFileLegacyCharsetTest() throws IOException {
+        MusicDatabase db1 = this.createFromArgsTest();
+        String path = "data\\output\\readFromFileLegacyCharsetTest.txt";
+        try (OutputStream out = new FileOutputStream(path)) {
+            out.write(("Title\tArtist\tAlbum\tLength\n"
+                    + "Caf\u00e9\tBeyonc\u00e9\t\u00dcber\t03:14\n")
+                            .getBytes(Charset.forName("windows-1252")));
+        }
+
+        db1.readFromFile(path);
+
+        assertEquals(1, db1.size());
+        assertEquals(new Song("Caf\u00e9", "Beyonc\u00e9", "\u00dcber",
+                "03:14"), db1.getEntryByOrder(0));
+    }
+
+    /**
+     * Test of readFromFile with more rows than one batch, with a duplicate
+     * in a later batch, a song already in this, and an invalid last row.
+     */
+    @Test
+    public void readFromFileBatchesTest() throws IOException {
+        MusicDatabase db1 = this.createFromArgsTest();
+        Song present = new Song("Title 7", "Artist", "", "03:00");
+        db1.addEntry(present);
+        String path = "data\\output\\readFromFileBatchesTest.txt";
+        final int rows = 5000;
+        StringBuilder file = new StringBuilder(
+                "Title\tArtist\tAlbum\tLength\n");
+        for (int i = 0; i < rows; i++) {
+            file.append("Title ").append(i).append("\tArtist\t\t03:00\n");
+        }
+        file.append("Title 10\tArtist\t\t03:00\n");
+        file.append("Invalid\n");
+        file.append("Title ").append(rows).append("\tArtist\t\t03:00\n");
+        try (OutputStream out = new FileOutputStream(path)) {
+            out.write(file.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        db1.readFromFile(path);
+
+        assertEquals(rows, db1.size());
+        assertEquals(present, db1.getEntryByOrder(0));
+        assertEquals(new Song("Title 0", "Artist", "", "03:00"),
+                db1.getEntryByOrder(1));
+        assertEquals(new Song("Title " + (rows - 1), "Artist", "", "03:00"),
+                db1.getEntryByOrder(rows - 1));
+    }
+
+    /**
+     * Test of writeToFile with GZIP compression.
+     */
+    @Test
+    public void writeToFileCompressedTest() throws IOException {
+        MusicDatabase db1 = this.createFromArgsTest();
+        db1.readFromFile(FILE1);
+
+        /*
+         * Decompressing the file should give back the header followed by every
+         * song in db1 in order
+         */
+        db1.writeToFile("data\\output\\writeToFileCompressedTestOutput.gz",
+                true);
+
+        try (BufferedReader rdr = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(
+                        "data\\output\\writeToFileCompressedTestOutput.gz")),
+                StandardCharsets.UTF_8))) {
+            assertEquals("Title\tArtist\tAlbum\tLength", rdr.readLine());
+            for (Song song : db1) {
+                assertEquals(song.title() + "\t" + song.artist() + "\t"
+                        + song.album() + "\t" + song.length(), rdr.readLine());
+            }
+            assertEquals(null, rdr.readLine());
+        }
+    }
+
+    /**
+     * Test of writeToFileAsync, including a second export requested before the
+     * first one has necessarily been written.
+     */
+    @Test
+    public void writeToFileAsyncTest() {
+        MusicDatabase db1 = this.createFromArgsTest();
+        MusicDatabase db2 = db1.newInstance();
+        db1.readFromFile(FILE1);
+        String path = "data\\output\\writeToFileAsyncTestOutput.txt";
+
+        /*
+         * Whether or not the two exports get combined, the file should end up
+         * holding db1 as of the second call
+         */
+        CompletableFuture<Void> first = db1.writeToFileAsync(path);
+        db1.addEntry(new Song("Title", "Artist", "Album", "00:00"));
+        CompletableFuture<Void> second = db1.writeToFileAsync(path);
+        first.join();
+        second.join();
+
+        db2.readFromFile(path);
+
+        assertEquals(true, db1.equals(db2));
+    }
+
+    /**
+     * Test that writeToFile and writeToFileAsync give a new file the default
+     * permissions for new files, and keep those of a file they replace.
+     */
+    @Test
+    public void writeToFilePermissionsTest() throws IOException {
+        Path plain = Paths.get("data\\output\\writeToFilePermissionsPlain");
+        Path output = Paths.get("data\\output\\writeToFilePermissions.txt");
+        Files.deleteIfExists(plain);
+        Files.deleteIfExists(output);
+        Files.createDirectories(plain.toAbsolutePath().getParent());
+        Files.newOutputStream(plain).close();
+        Assume.assumeTrue(Files.getFileStore(plain)
+                .supportsFileAttributeView(PosixFileAttributeView.class));
+        MusicDatabase db1 = this.createFromArgsTest();
+        db1.readFromFile(FILE1);
+
+        db1.writeToFile(output.toString());
+        assertEquals(Files.getPosixFilePermissions(plain),
+                Files.getPosixFilePermissions(output));
+
+        Set<PosixFilePermission> shared = PosixFilePermissions
+                .fromString("rw-r-----");
+        Files.setPosixFilePermissions(output, shared);
+        db1.writeToFile(output.toString());
+        assertEquals(shared, Files.getPosixFilePermissions(output));
+        db1.writeToFileAsync(output.toString()).join();
+        assertEquals(shared, Files.getPosixFilePermissions(output));
+    }
+
+    /**
+     * Test of changesSince after adding and removing songs, including a song
+     * added and removed again.
+     */
+    @Test
+    public void changesSinceTest() {
+        MusicDatabase db1 = this.createFromArgsTest();
+        db1.readFromFile(FILE1);
+        Song awake = db1.getEntryByOrder(0);
+        Song song1 = new Song("Title", "Artist", "Album", "00:00");
+        Song song2 = new Song("UNDEAD", "YOASOBI", "", "03:03");
+
+        long epoch = db1.epoch();
+        db1.addEntry(song1);
+        db1.addEntry(song2);
+        db1.removeEntry(awake);
+        db1.removeEntry(song1);
+
+        Delta delta = db1.changesSince(epoch);
+
+        assertEquals(1, delta.added().size());
+        assertEquals(song2, delta.added().get(0));
+        assertEquals(1, delta.removed().size());
+        assertEquals(awake, delta.removed().get(0));
+        assertEquals(true, db1.changesSince(db1.epoch()).isEmpty());
+    }
+
+    /**
+     * Test of writeDelta and applyDelta bringing a copy up to date.
+     */
+    @Test
+    public void writeDeltaTest() {
+        MusicDatabase db1 = this.createFromArgsTest();
+        db1.readFromFile(FILE2);
+        MusicDatabase db2 = db1.newInstance();
+        db2.append(db1);
+
+        long epoch = db1.epoch();
+        db1.removeEntries(SearchField.ARTIST, "Hoshimachi Suisei");
+        db1.addEntry(new Song("Title", "Artist", "Album", "00:00"));
+        db1.writeDelta("data\\output\\writeDeltaTestOutput.txt", epoch);
+
+        long applied = db2
+                .applyDelta("data\\output\\writeDeltaTestOutput.txt");
+
+        /*
+         * Removing keeps the order of the remaining songs and adding appends,
+         * so db2 should end up in the same order as db1 too
+         */
+        assertEquals(db1.epoch(), applied);
+        assertEquals(true, db1.equals(db2));
+    }
+
+    /**
+     * Test that applyDelta rejects a row with an unknown operation without
+     * applying the valid rows before it.
+     */
+    @Test
+    public void applyDeltaInvalidRowTest() throws IOException {
+        MusicDatabase db1 = this.createFromArgsTest();
+        Song song1 = new Song("Title 1", "Artist", "", "03:00");
+        Song song2 = new Song("Title 2", "Artist", "", "03:00");
+        db1.addEntry(song1);
+        db1.addEntry(song2);
+        String path = "data\\output\\applyDeltaInvalidRowTest.txt";
+        try (OutputStream out = new FileOutputStream(path)) {
+            out.write(("Delta\t0\t5\n" + "-\tTitle 1\tArtist\t\t03:00\n"
+                    + "+\tTitle 3\tArtist\t\t03:00\n"
+                    + "x\tTitle 2\tArtist\t\t03:00\n")
+                            .getBytes(StandardCharsets.UTF_8));
+        }
+
+        assertEquals(-1, db1.applyDelta(path));
+        assertEquals(2, db1.size());
+        assertEquals(song1, db1.getEntryByOrder(0));
+        assertEquals(song2, db1.getEntryByOrder(1));
+    }
+
+    /**
+     * Test of partitionBy by artist, compared against split.
+     */
+    @Test
+    public void partitionByTest() {
+        MusicDatabase db1 = this.createFromArgsTest();
+        db1.readFromFile(FILE2);
+        MusicDatabase db2 = db1.newInstance();
+        db2.append(db1);
+        int size = db1.size();
+
+        Map<String, MusicDatabase> partitions = db1
+                .partitionBy(SearchField.ARTIST);
+
+        int total = 0;
+        for (Map.Entry<String, MusicDatabase> partition : partitions
+                .entrySet()) {
+            MusicDatabase expected = db2.split(SearchField.ARTIST,
+                    partition.getKey());
+            assertEquals(true, expected.equals(partition.getValue()));
+            total += partition.getValue().size();
+        }
+        assertEquals(size, total);
+        assertEquals(0, db1.size());
+        assertEquals(0, db2.size());
+    }
+
+    /**
+     * Test of partitionBy with a key function, in parallel.
+     */
+    @Test
+    public void partitionByParallelTest() {
+        MusicDatabase db1 = this.createFromArgsTest();
+        db1.readFromFile(FILE2);
+        MusicDatabase db2 = db1.newInstance();
+        db2.append(db1);
+
+        Map<String, MusicDatabase> partitions = db1
+                .partitionBy(song -> song.length().substring(0, 2), true);
+        Map<String, MusicDatabase> expected = db2
+                .partitionBy(song -> song.length().substring(0, 2), false);
+
+        assertEquals(expected.keySet(), partitions.keySet());
+        for (String key : expected.keySet()) {
+            assertEquals(true,
+                    expected.get(key).equals(partitions.get(key)));
+        }
+    }
+
     /**
      * Test of split when no matches are found.
      */
@@ -689,6 +993,134 @@ public abstract class MusicDatabaseTest {
         assertEquals(true, db1.equals(db2));
     }
 
+    /**
+     * Test of append with an order, merging two sorted databases with overlap.
+     */
+    @Test
+    public void appendSortedTest() {
+        MusicDatabase db1 = this.createFromArgsTest();
+        db1.readFromFile(FILE2);
+        MusicDatabase db2 = db1.newInstance();
+        db2.readFromFile(FILE1);
+        db2.addEntry(new Song("Zzz", "Artist", "", "00:01"));
+
+        MusicDatabase expected = db1.newInstance();
+        expected.append(db1);
+        expected.append(db2);
+        expected.sort(new MusicDatabaseSecondary.TitleComparator());
+
+        db1.sort(new MusicDatabaseSecondary.TitleComparator());
+        db2.sort(new MusicDatabaseSecondary.TitleComparator());
+        db1.append(db2, new MusicDatabaseSecondary.TitleComparator());
+
+        assertEquals(true, expected.equals(db1));
+    }
+
+    /**
+     * Test of addEntries with songs repeated in the list and already in this.
+     */
+    @Test
+    public void addEntriesDuplicatesTest() {
+        MusicDatabase db1 = this.createFromArgsTest();
+        Song song1 = new Song("Bye Bye Rainy", "Hoshimachi Suisei", "",
+                "03:20");
+        Song song2 = new Song("AWAKE", "Hoshimachi Suisei", "Shinsei Mokuroku",
+                "03:14");
+        db1.addEntry(song1);
+
+        ArrayList<Song> entries = new ArrayList<Song>();
+        entries.add(song2);
+        entries.add(song1);
+        entries.add(song2);
+        db1.addEntries(entries);
+
+        assertEquals(2, db1.size());
+        assertEquals(song1, db1.getEntryByOrder(0));
+        assertEquals(song2, db1.getEntryByOrder(1));
+    }
+
+    /**
+     * Test of removeExistingEntries, which should keep the remaining songs in
+     * order and record every removal.
+     */
+    @Test
+    public void removeExistingEntriesTest() {
+        Song song1 = new Song("Bye Bye Rainy", "Hoshimachi Suisei", "",
+                "03:20");
+        Song song2 = new Song("AWAKE", "Hoshimachi Suisei", "Shinsei Mokuroku",
+                "03:14");
+        Song song3 = new Song("UNDEAD", "YOASOBI", "", "03:03");
+        MusicDatabase db1 = this.createFromArgsTest();
+        db1.addEntry(song1);
+        db1.addEntry(song2);
+        db1.addEntry(song3);
+        long epoch = db1.epoch();
+
+        HashSet<Song> removed = new HashSet<Song>(List.of(song1, song3));
+        ((MusicDatabaseSecondary) db1).removeExistingEntries(removed);
+
+        assertEquals(1, db1.size());
+        assertEquals(song2, db1.getEntryByOrder(0));
+        assertEquals(false, db1.contains(song3));
+        assertEquals(2, db1.changesSince(epoch).removed().size());
+    }
+
+    /**
+     * Test of union, intersect, and subtract with overlapping databases.
+     */
+    @Test
+    public void setOperationsTest() {
+        Song song1 = new Song("Bye Bye Rainy", "Hoshimachi Suisei", "",
+                "03:20");
+        Song song2 = new Song("AWAKE", "Hoshimachi Suisei", "Shinsei Mokuroku",
+                "03:14");
+        Song song3 = new Song("UNDEAD", "YOASOBI", "", "03:03");
+        MusicDatabase db1 = this.createFromArgsTest();
+        db1.addEntry(song1);
+        db1.addEntry(song2);
+        MusicDatabase db2 = this.createFromArgsTest();
+        db2.addEntry(song3);
+        db2.addEntry(song2);
+
+        MusicDatabase union = db1.union(db2);
+        MusicDatabase intersection = db1.intersect(db2);
+        MusicDatabase difference = db1.subtract(db2);
+
+        assertEquals(3, union.size());
+        assertEquals(song1, union.getEntryByOrder(0));
+        assertEquals(song2, union.getEntryByOrder(1));
+        assertEquals(song3, union.getEntryByOrder(2));
+        assertEquals(1, intersection.size());
+        assertEquals(song2, intersection.getEntryByOrder(0));
+        assertEquals(1, difference.size());
+        assertEquals(song1, difference.getEntryByOrder(0));
+        assertEquals(2, db1.size());
+        assertEquals(2, db2.size());
+    }
+
+    /**
+     * Test of diff, and of applying it to bring this up to date.
+     */
+    @Test
+    public void diffTest() {
+        MusicDatabase db1 = this.createFromArgsTest();
+        db1.readFromFile(FILE2);
+        MusicDatabase db2 = db1.newInstance();
+        db2.append(db1);
+        ArrayList<Song> removed = db2.removeEntries(SearchField.ARTIST,
+                "Hoshimachi Suisei");
+        Song song = new Song("Title", "Artist", "Album", "00:00");
+        db2.addEntry(song);
+
+        Delta delta = db1.diff(db2);
+
+        assertEquals(1, delta.added().size());
+        assertEquals(song, delta.added().get(0));
+        assertEquals(removed, delta.removed());
+        db1.applyDelta(delta);
+        assertEquals(true, db1.equals(db2));
+    }
+
     /**
      * Test of equality after addEntries.
      */
@@ -745,8 +1177,7 @@ public abstract class MusicDatabaseTest {
         MusicDatabase db2 = this.createFromArgsTest();
         db2.readFromFile(FILE1);
 
-        assertEquals(true, db1 instanceof MusicDatabase1);
-        assertEquals(true, db2 instanceof MusicDatabase1);
+        assertEquals(true, db1.getClass() == db2.getClass());
 
         for (int i = 0; i < db1.size(); i++) {
             assertEquals(true,
@@ -755,4 +1186,48 @@ public abstract class MusicDatabaseTest {
 
         assertEquals(true, db1.equals(db2));
     }
+
+    /**
+     * Test of fingerprint and equals with the same songs in a different order,
+     * and after removing and adding back a song.
+     */
+    @Test
+    public void fingerprintTest() {
+        MusicDatabase db1 = this.createFromArgsTest();
+        db1.readFromFile(FILE2);
+        MusicDatabase db2 = db1.newInstance();
+        db2.append(db1);
+        db2.sort(new MusicDatabaseSecondary.TitleComparator());
+
+        assertEquals(db1.fingerprint(), db2.fingerprint());
+        assertEquals(false, db1.equals(db2));
+
+        Song song = db1.removeEntryByOrder(0);
+        assertEquals(false, db1.fingerprint() == db2.fingerprint());
+        assertEquals(false, db1.equals(db2));
+
+        db1.addEntry(song);
+        assertEquals(db1.fingerprint(), db2.fingerprint());
+
+        db1.clear();
+        assertEquals(db1.newInstance().fingerprint(), db1.fingerprint());
+    }
+
+    /**
+     * Test of renderTo writing the same rows as toString, both to a
+     * StringBuilder and to a Writer.
+     */
+    @Test
+    public void renderToTest() {
+        MusicDatabase db1 = this.createFromArgsTest();
+        db1.readFromFile(FILE2);
+        StringBuilder builder = new StringBuilder();
+        StringWriter writer = new StringWriter();
+
+        db1.renderTo(builder);
+        db1.renderTo(writer);
+
+        assertEquals(db1.toString(), builder.toString());
+        assertEquals(db1.toString(), writer.toString());
+    }
 }
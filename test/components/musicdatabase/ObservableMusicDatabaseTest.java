@@ -0,0 +1,251 @@
+package components.musicdatabase;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import components.musicdatabase.MusicDatabaseKernel.SearchField;
+
+/**
+ * JUnit test fixture for {@code ObservableMusicDatabase}.
+ */
+public class ObservableMusicDatabaseTest {
+
+    /**
+     * Order the tests sort by.
+     */
+    private static final MusicDatabaseSecondary.TitleComparator TITLE_ORDER =
+            new MusicDatabaseSecondary.TitleComparator();
+
+    /**
+     * Makes a song.
+     *
+     * @param i
+     *            The song number
+     * @return the song
+     */
+    private static Song song(int i) {
+        return new Song("Title " + i, "Artist " + (i % 2), "", "03:00");
+    }
+
+    /**
+     * Subscriber recording what it receives, requesting {@code initial} items
+     * to start with.
+     *
+     * @param <T>
+     *            Type of the items
+     */
+    private static final class Recorder<T> implements Flow.Subscriber<T> {
+
+        /**
+         * Items received, in order.
+         */
+        private final List<T> items = Collections
+                .synchronizedList(new ArrayList<T>());
+
+        /**
+         * Number of items to request on subscribing.
+         */
+        private final long initial;
+
+        /**
+         * Counted down on completion.
+         */
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        /**
+         * The subscription.
+         */
+        private volatile Flow.Subscription subscription;
+
+        /**
+         * Constructor.
+         *
+         * @param initial
+         *            Number of items to request on subscribing
+         */
+        Recorder(long initial) {
+            this.initial = initial;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription s) {
+            this.subscription = s;
+            s.request(this.initial);
+        }
+
+        @Override
+        public void onNext(T item) {
+            this.items.add(item);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            error.printStackTrace();
+        }
+
+        @Override
+        public void onComplete() {
+            this.done.countDown();
+        }
+
+        /**
+         * Waits for completion and returns the items received.
+         *
+         * @return the items
+         */
+        List<T> await() throws InterruptedException {
+            final long timeoutSeconds = 10;
+            assertEquals(true,
+                    this.done.await(timeoutSeconds, TimeUnit.SECONDS));
+            return this.items;
+        }
+    }
+
+    /**
+     * Test of the events published for each kind of change, and that changes
+     * made before subscribing are not published.
+     */
+    @Test
+    public void eventsTest() throws Exception {
+        ObservableMusicDatabase db = new ObservableMusicDatabase(
+                new MusicDatabase1());
+        db.addEntry(song(0));
+        Recorder<ChangeEvent> recorder = new Recorder<ChangeEvent>(
+                Long.MAX_VALUE);
+        db.changes().subscribe(recorder);
+
+        db.addEntry(song(1));
+        db.addEntry(song(2));
+        db.addEntry(song(3));
+        db.removeEntry(song(1));
+        db.sort(TITLE_ORDER);
+        db.removeEntries(SearchField.ARTIST, "Artist 0");
+        db.clear();
+        db.close();
+
+        List<ChangeEvent> expected = List.of(ChangeEvent.added(song(1)),
+                ChangeEvent.added(song(2)), ChangeEvent.added(song(3)),
+                ChangeEvent.removed(song(1)),
+                ChangeEvent.sorted(TITLE_ORDER),
+                ChangeEvent.removed(song(0)), ChangeEvent.removed(song(2)),
+                ChangeEvent.cleared());
+        assertEquals(expected, recorder.await());
+    }
+
+    /**
+     * Test of batching by size, with the partial batch published on close.
+     */
+    @Test
+    public void batchingTest() throws Exception {
+        ObservableMusicDatabase db = new ObservableMusicDatabase(
+                new MusicDatabase3());
+        Recorder<List<ChangeEvent>> recorder = new Recorder<List<ChangeEvent>>(
+                Long.MAX_VALUE);
+        db.changes(3, 0).subscribe(recorder);
+        final int songs = 7;
+        for (int i = 0; i < songs; i++) {
+            db.addEntry(song(i));
+        }
+        db.close();
+
+        List<List<ChangeEvent>> batches = recorder.await();
+        assertEquals(3, batches.size());
+        assertEquals(3, batches.get(0).size());
+        assertEquals(3, batches.get(1).size());
+        assertEquals(List.of(ChangeEvent.added(song(6))), batches.get(2));
+    }
+
+    /**
+     * Test that a subscriber that stops requesting holds up the writer once its
+     * buffer is full, and that nothing is lost when it resumes.
+     */
+    @Test
+    public void backpressureTest() throws Exception {
+        final int songs = 100;
+        final long stallMillis = 200;
+        ExecutorService delivery = Executors.newSingleThreadExecutor();
+        ObservableMusicDatabase db = new ObservableMusicDatabase(
+                new MusicDatabase1(), delivery, 1);
+        Recorder<ChangeEvent> recorder = new Recorder<ChangeEvent>(1);
+        db.changes().subscribe(recorder);
+
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < songs; i++) {
+                db.addEntry(song(i));
+            }
+        });
+        writer.start();
+        writer.join(stallMillis);
+        assertEquals(true, writer.isAlive());
+        assertEquals(true, db.size() < songs);
+
+        recorder.subscription.request(Long.MAX_VALUE);
+        writer.join();
+        db.close();
+        List<ChangeEvent> events = recorder.await();
+        assertEquals(songs, events.size());
+        for (int i = 0; i < songs; i++) {
+            assertEquals(ChangeEvent.added(song(i)), events.get(i));
+        }
+        delivery.shutdown();
+    }
+
+    /**
+     * Test that a subscriber that stops requesting does not hold up batches
+     * published after their linger time by another database.
+     */
+    @Test
+    public void lingerNotBlockedTest() throws Exception {
+        final long lingerMillis = 10;
+        final long timeoutMillis = 10_000;
+        ObservableMusicDatabase stalled = new ObservableMusicDatabase(
+                new MusicDatabase1(), Executors.newSingleThreadExecutor(), 1);
+        Recorder<List<ChangeEvent>> stalledRecorder =
+                new Recorder<List<ChangeEvent>>(1);
+        stalled.changes(Integer.MAX_VALUE, lingerMillis)
+                .subscribe(stalledRecorder);
+        /*
+         * The first batch is delivered and the second fills the buffer, so
+         * the third can't be published.
+         */
+        final int stalledSongs = 3;
+        for (int i = 0; i < stalledSongs; i++) {
+            stalled.addEntry(song(i));
+            Thread.sleep(lingerMillis * 10);
+        }
+
+        ObservableMusicDatabase other = new ObservableMusicDatabase(
+                new MusicDatabase1());
+        Recorder<List<ChangeEvent>> otherRecorder =
+                new Recorder<List<ChangeEvent>>(Long.MAX_VALUE);
+        other.changes(Integer.MAX_VALUE, lingerMillis)
+                .subscribe(otherRecorder);
+        other.addEntry(song(stalledSongs));
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (otherRecorder.items.isEmpty()
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(lingerMillis);
+        }
+        assertEquals(List.of(List.of(ChangeEvent.added(song(stalledSongs)))),
+                otherRecorder.items);
+
+        stalledRecorder.subscription.request(Long.MAX_VALUE);
+        stalled.close();
+        other.close();
+        assertEquals(List.of(List.of(ChangeEvent.added(song(0))),
+                List.of(ChangeEvent.added(song(1))),
+                List.of(ChangeEvent.added(song(2)))),
+                stalledRecorder.await());
+        otherRecorder.await();
+    }
+}
@@ -0,0 +1,177 @@
+package components.musicdatabase;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import components.musicdatabase.MusicDatabaseKernel.SearchField;
+
+/**
+ * JUnit test fixture for {@code ReplicatedMusicDatabase} and
+ * {@code ReplicaFollower}, with both ends in this process on a free port of
+ * localhost.
+ */
+public class ReplicatedMusicDatabaseTest {
+
+    /**
+     * Longest time, in milliseconds, to wait for a follower to catch up.
+     */
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    /**
+     * Number of lines the primary keeps for followers that fall behind.
+     */
+    private static final int BACKLOG = 4;
+
+    /**
+     * The primary.
+     */
+    private ReplicatedMusicDatabase primary;
+
+    /**
+     * The follower's database.
+     */
+    private MusicDatabase copy;
+
+    /**
+     * The follower.
+     */
+    private ReplicaFollower follower;
+
+    /**
+     * Makes a song.
+     *
+     * @param i
+     *            The song number
+     * @return the song
+     */
+    private static Song song(int i) {
+        return new Song("Title " + i, "Artist " + (i % 3), "", "03:00");
+    }
+
+    /**
+     * Starts a primary holding three songs and a follower of it.
+     */
+    @Before
+    public void setUp() throws Exception {
+        final long heartbeatMillis = 20;
+        MusicDatabase rep = new MusicDatabase1();
+        for (int i = 0; i < 3; i++) {
+            rep.addEntry(song(i));
+        }
+        this.primary = new ReplicatedMusicDatabase(rep,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                BACKLOG, heartbeatMillis);
+        this.copy = new MusicDatabase3();
+        this.follower = new ReplicaFollower(this.copy, "127.0.0.1",
+                this.primary.port());
+    }
+
+    /**
+     * Stops both ends.
+     */
+    @After
+    public void tearDown() throws Exception {
+        this.follower.close();
+        this.primary.close();
+    }
+
+    /**
+     * Waits until the follower has applied every change made so far and
+     * checks that it matches the primary, in order.
+     */
+    private void assertCaughtUp() throws InterruptedException {
+        assertEquals(true, this.follower.awaitSequence(this.primary.sequence(),
+                TIMEOUT_MILLIS));
+        assertEquals(true, this.primary.equals(this.copy));
+        for (int i = 0; i < this.primary.size(); i++) {
+            assertEquals(this.primary.getEntryByOrder(i),
+                    this.copy.getEntryByOrder(i));
+        }
+    }
+
+    /**
+     * Test of each kind of change reaching the follower, starting from a
+     * snapshot of what the primary held before it connected.
+     */
+    @Test
+    public void changesTest() throws Exception {
+        this.assertCaughtUp();
+        assertEquals(1, this.follower.snapshots());
+
+        this.primary.addEntry(song(3));
+        this.primary.addEntry(song(4));
+        this.primary.removeEntry(song(1));
+        this.primary.sort(new MusicDatabaseSecondary.TitleComparator());
+        this.primary.removeEntries(SearchField.ARTIST, "Artist 0");
+        this.assertCaughtUp();
+        assertEquals(1, this.follower.snapshots());
+        assertEquals(0, this.follower.lag());
+
+        this.primary.clear();
+        this.primary.addEntry(song(5));
+        this.assertCaughtUp();
+        assertEquals(1, this.follower.snapshots());
+    }
+
+    /**
+     * Test of a follower resuming from the log after a short disconnection,
+     * and from a snapshot after falling further behind than the log reaches.
+     */
+    @Test
+    public void reconnectTest() throws Exception {
+        final int manyChanges = 20;
+        this.assertCaughtUp();
+
+        this.follower.dropConnection();
+        this.primary.addEntry(song(3));
+        this.primary.addEntry(song(4));
+        this.assertCaughtUp();
+        assertEquals(1, this.follower.snapshots());
+
+        this.follower.dropConnection();
+        for (int i = 0; i < manyChanges; i++) {
+            this.primary.removeEntry(song(3));
+            this.primary.addEntry(song(3));
+        }
+        this.assertCaughtUp();
+        assertEquals(2, this.follower.snapshots());
+    }
+
+    /**
+     * Test that sorting by a lambda, which can't be sent as a line, reaches
+     * the follower through a snapshot.
+     */
+    @Test
+    public void lambdaSortTest() throws Exception {
+        this.assertCaughtUp();
+        this.primary.sort((a, b) -> b.title().compareTo(a.title()));
+        this.assertCaughtUp();
+        assertEquals(2, this.follower.snapshots());
+        assertEquals(song(2), this.copy.getEntryByOrder(0));
+    }
+
+    /**
+     * Test of the lag the primary reports once the follower has caught up.
+     */
+    @Test
+    public void followerLagTest() throws Exception {
+        this.primary.addEntry(song(3));
+        this.assertCaughtUp();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        Map<String, Long> lag = this.primary.followerLag();
+        while (!lag.containsValue(0L)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            lag = this.primary.followerLag();
+        }
+        assertEquals(1, lag.size());
+        assertEquals(Long.valueOf(0), lag.values().iterator().next());
+    }
+}
@@ -0,0 +1,227 @@
+package server;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import components.musicdatabase.CachingMusicDatabase;
+import components.musicdatabase.MusicDatabase;
+import components.musicdatabase.MusicDatabase1;
+import components.musicdatabase.MusicDatabase3;
+import components.musicdatabase.Song;
+
+/**
+ * JUnit test fixture for {@code MusicDatabaseServer}, run against a server on
+ * a free port of localhost.
+ */
+public class MusicDatabaseServerTest {
+
+    /**
+     * The database served.
+     */
+    private MusicDatabase db;
+
+    /**
+     * The server under test.
+     */
+    private MusicDatabaseServer server;
+
+    /**
+     * Client for the requests.
+     */
+    private final HttpClient client = HttpClient.newHttpClient();
+
+    /**
+     * Starts a server with three songs.
+     */
+    @Before
+    public void setUp() throws Exception {
+        this.db = new MusicDatabase1();
+        this.db.addEntry(new Song("Alpha", "Band", "", "03:00"));
+        this.db.addEntry(new Song("Beta", "Band", "Best Of", "04:00"));
+        this.db.addEntry(new Song("Gamma \"G\"", "Solo", "", "05:00"));
+        this.server = new MusicDatabaseServer(this.db, 0);
+        this.server.start();
+    }
+
+    /**
+     * Stops the server.
+     */
+    @After
+    public void tearDown() {
+        this.server.close();
+    }
+
+    /**
+     * Sends a request.
+     *
+     * @param request
+     *            The request, with its path relative to the server
+     * @return the response
+     */
+    private HttpResponse<String> send(HttpRequest.Builder request)
+            throws Exception {
+        return this.client.send(request.build(),
+                HttpResponse.BodyHandlers.ofString());
+    }
+
+    /**
+     * Makes a GET request.
+     *
+     * @param pathAndQuery
+     *            The path and query
+     * @return the request
+     */
+    private HttpRequest.Builder get(String pathAndQuery) {
+        return HttpRequest.newBuilder(URI.create(
+                "http://127.0.0.1:" + this.server.port() + pathAndQuery));
+    }
+
+    /**
+     * Test of /size.
+     */
+    @Test
+    public void sizeTest() throws Exception {
+        HttpResponse<String> response = this.send(this.get("/size"));
+        assertEquals(200, response.statusCode());
+        assertEquals("{\"size\":3}", response.body());
+    }
+
+    /**
+     * Test of /entries, in JSON with escaping.
+     */
+    @Test
+    public void entriesTest() throws Exception {
+        HttpResponse<String> response = this
+                .send(this.get("/entries?field=ARTIST&value=Solo"));
+        assertEquals(200, response.statusCode());
+        assertEquals("[{\"title\":\"Gamma \\\"G\\\"\",\"artist\":\"Solo\","
+                + "\"album\":\"\",\"length\":\"05:00\"}]", response.body());
+    }
+
+    /**
+     * Test of /prefix and /range, tab separated.
+     */
+    @Test
+    public void prefixAndRangeTest() throws Exception {
+        String header = "Title\tArtist\tAlbum\tLength\n";
+        HttpResponse<String> response = this
+                .send(this.get("/prefix?field=title&prefix=Be&format=tsv"));
+        assertEquals(header + "Beta\tBand\tBest Of\t04:00\n",
+                response.body());
+
+        response = this
+                .send(this.get("/range?field=LENGTH&from=03:30&format=tsv"));
+        assertEquals(header + "Beta\tBand\tBest Of\t04:00\n"
+                + "Gamma \"G\"\tSolo\t\t05:00\n", response.body());
+    }
+
+    /**
+     * Test of /import with a JSON body and a tab separated one, skipping songs
+     * already in the database.
+     */
+    @Test
+    public void importTest() throws Exception {
+        String json = "[{\"title\": \"Delta\", \"artist\": \"Band\", "
+                + "\"length\": \"02:00\"},"
+                + " {\"title\":\"Alpha\",\"artist\":\"Band\",\"album\":\"\","
+                + "\"length\":\"03:00\"}]";
+        HttpResponse<String> response = this.send(this.get("/import")
+                .POST(HttpRequest.BodyPublishers.ofString(json)));
+        assertEquals("{\"added\":1,\"size\":4}", response.body());
+
+        String tsv = "Title\tArtist\tAlbum\tLength\nEpsilon\tSolo\t\t01:00\n";
+        response = this.send(this.get("/import?format=tsv")
+                .POST(HttpRequest.BodyPublishers.ofString(tsv)));
+        assertEquals("{\"added\":1,\"size\":5}", response.body());
+        assertEquals(true,
+                this.db.contains(new Song("Epsilon", "Solo", "", "01:00")));
+    }
+
+    /**
+     * Test of the errors for bad requests.
+     */
+    @Test
+    public void badRequestsTest() throws Exception {
+        assertEquals(400, this.send(this.get("/entries?field=COLOR&value=x"))
+                .statusCode());
+        assertEquals(400,
+                this.send(this.get("/entries?field=TITLE")).statusCode());
+        assertEquals(400, this.send(this.get("/import")
+                .POST(HttpRequest.BodyPublishers.ofString("[{\"title\":")))
+                .statusCode());
+        assertEquals(400, this.send(this.get("/import")
+                .POST(HttpRequest.BodyPublishers.ofString("[{\"title\":"
+                        + "\"Zeta\",\"artist\":\"Band\",\"length\":\"3:7\"}]")))
+                .statusCode());
+        assertEquals(400, this.send(this.get("/import?format=tsv")
+                .POST(HttpRequest.BodyPublishers.ofString(
+                        "Title\tArtist\tAlbum\tLength\n\tBand\t\t03:00\n")))
+                .statusCode());
+        assertEquals(3, this.db.size());
+        assertEquals(404, this.send(this.get("/nothing")).statusCode());
+        assertEquals(405, this.send(this.get("/size")
+                .POST(HttpRequest.BodyPublishers.noBody())).statusCode());
+    }
+
+    /**
+     * Test that an export to a client that stops reading doesn't hold a lock,
+     * so an import still goes through.
+     */
+    @Test
+    public void slowClientTest() throws Exception {
+        final int songs = 100_000;
+        final int titleLength = 200;
+        final int timeoutSeconds = 10;
+        String padding = "x".repeat(titleLength);
+        ArrayList<Song> many = new ArrayList<Song>();
+        for (int i = 0; i < songs; i++) {
+            many.add(new Song(padding + i, "Many", "", "01:00"));
+        }
+        this.db.addEntries(many);
+
+        try (Socket slow = new Socket("127.0.0.1", this.server.port())) {
+            OutputStream out = slow.getOutputStream();
+            out.write(("GET /export HTTP/1.1\r\nHost: localhost\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            InputStream in = slow.getInputStream();
+            in.read();
+
+            String tsv = "Title\tArtist\tAlbum\tLength\n"
+                    + "Zeta\tSolo\t\t01:00\n";
+            HttpResponse<String> response = this.send(this.get("/import")
+                    .timeout(Duration.ofSeconds(timeoutSeconds))
+                    .POST(HttpRequest.BodyPublishers.ofString(tsv))
+                    .header("Content-Type", "text/tab-separated-values"));
+            assertEquals(200, response.statusCode());
+        }
+    }
+
+    /**
+     * Test that only the thread-safe implementations are read under a shared
+     * lock.
+     */
+    @Test
+    public void threadSafeReadsTest() {
+        assertEquals(true,
+                MusicDatabaseServer.hasThreadSafeReads(new MusicDatabase3()));
+        assertEquals(false,
+                MusicDatabaseServer.hasThreadSafeReads(new MusicDatabase1()));
+        assertEquals(false, MusicDatabaseServer.hasThreadSafeReads(
+                new CachingMusicDatabase(new MusicDatabase3())));
+    }
+}